@@ -869,15 +869,44 @@ module KBaseTrees
 	/* Build a multiple sequence alignment based on gene sequences.
 	*/
 	funcdef construct_multiple_alignment(ConstructMultipleAlignmentParams params) returns (job_id) authentication required;
+
+    /* Input data type for add_sequences_to_alignment method. Method produces object of MSA type
+        keeping only new rows and referring to input alignment as parent_msa_ref (columns of input 
+        alignment are not changed, residues of new sequences which fall into insertions relative 
+        to input alignment are dropped).
+
+        msa_ref - (required) reference to MSA object new sequences are added to.
+        gene_sequences - (required) the mapping from gene ids to their sequences (ids should not
+            intersect with rows of input alignment).
+        is_fragments_mode - (optional) 1 in case new sequences are fragments (reads, partial 
+            genes), default value is 0.
+        out_workspace - (required) the workspace to deposit the completed alignment
+        out_msa_id - (optional) the name of the newly constructed msa (will be random if not present 
+        	or null)
+    */
+    typedef structure {
+        ws_alignment_id msa_ref;
+        mapping<string, string> gene_sequences;
+        int is_fragments_mode;
+        string out_workspace;
+        string out_msa_id;
+    } AddSequencesToAlignmentParams;
+
+	/* Add sequences to existing multiple sequence alignment (Mafft profile mode is used).
+	*/
+	funcdef add_sequences_to_alignment(AddSequencesToAlignmentParams params) returns (job_id) authentication required;
 	
 	/* Input data type for construct_tree_for_alignment method. Method produces object of Tree type.
 		
 		msa_ref - (required) reference to MSA input object.
-        tree_method - (optional) tree construction program, one of 'Clustal' (Neighbor-joining approach) or 
-        	'FastTree' (where Maximum likelihood is used), (default is 'Clustal').
+        tree_method - (optional) tree construction program, one of 'Clustal' (Neighbor-joining approach), 
+        	'FastTree' (where Maximum likelihood is used), 'NJ' or 'BIONJ' (Neighbor-joining
+        	done in-process without external programs), (default is 'Clustal').
         min_nongap_percentage_for_trim - (optional) minimum percentage of non-gapped positions in alignment column,
         	if you define this parameter in 50, then columns having less than half non-gapped letters are trimmed
         	(default value is 0 - it means no trimming at all). 
+        bootstrap_replicates - (optional) number of bootstrap replicates used to calculate support values
+        	of internal nodes (they are stored as labels of these nodes), default value is 0 - no support.
         out_workspace - (required) the workspace to deposit the completed tree
         out_tree_id - (optional) the name of the newly constructed tree (will be random if not present or null)
 	*/
@@ -885,6 +914,7 @@ module KBaseTrees
 		ws_alignment_id msa_ref;
 		string tree_method;
 		int min_nongap_percentage_for_trim;
+		int bootstrap_replicates;
         string out_workspace;
         string out_tree_id;
 	} ConstructTreeForAlignmentParams;
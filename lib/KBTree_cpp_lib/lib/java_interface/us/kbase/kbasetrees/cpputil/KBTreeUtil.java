@@ -13,4 +13,8 @@ public class KBTreeUtil {
     return KBTreeUtilJNI.translateToProt(dna);
   }
 
+  public static String[] translateToProtBatch(String[] dnaSeqs) {
+    return KBTreeUtilJNI.translateToProtBatch(dnaSeqs);
+  }
+
 }
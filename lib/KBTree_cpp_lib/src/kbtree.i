@@ -1,14 +1,47 @@
 %module KBTreeUtil
 %include "std_string.i"
 %include "std_map.i"
+%include "various.i"
 
 %{
 #include "kbtree/kbtree.hh"
 std::string translateToProt(const std::string &dna);
+char **translateToProtBatch(char **dnaSeqs);
 %}
 
+/* String[] result of translateToProtBatch, the native arrays are released right after
+   they are copied into java strings */
+%typemap(jni) char **PROT_ARRAY "jobjectArray"
+%typemap(jtype) char **PROT_ARRAY "String[]"
+%typemap(jstype) char **PROT_ARRAY "String[]"
+%typemap(javaout) char **PROT_ARRAY {
+    return $jnicall;
+  }
+%typemap(out) char **PROT_ARRAY {
+  if ($1) {
+    int i;
+    jsize len=0;
+    jstring temp_string;
+    const jclass clazz = JCALL1(FindClass, jenv, "java/lang/String");
+    
+    while ($1[len]) len++;
+    $result = JCALL3(NewObjectArray, jenv, len, clazz, NULL);
+    for (i=0; i<len; i++) {
+      temp_string = JCALL1(NewStringUTF, jenv, $1[i]);
+      JCALL3(SetObjectArrayElement, jenv, $result, i, temp_string);
+      JCALL1(DeleteLocalRef, jenv, temp_string);
+      delete[] $1[i];
+    }
+    delete[] $1;
+  }
+}
+
 std::string translateToProt(const std::string &dna);
 
+%apply char **STRING_ARRAY { char **dnaSeqs };
+%apply char **PROT_ARRAY { char **translateToProtBatch };
+char **translateToProtBatch(char **dnaSeqs);
+
 namespace KBTreeLib {
 
     
@@ -38,6 +38,8 @@
 #include <sstream>
 #include <stack>
 #include <stdlib.h>
+#include <string.h>
+#include <ctype.h>
 
 using namespace std;
 using namespace KBTreeLib;
@@ -1208,6 +1210,65 @@ std::string translateToProt(const std::string &dna) {
 }
 
 
+// codon table for translateToProtBatch, derived once from translateToProt itself when
+// library is loaded (static initializer), so concurrent batch calls only read it
+struct CodonTable {
+	char code[5][5][5];
+	CodonTable() {
+		const char nucleotides[4] = {'A','G','C','T'};
+		for(int i=0; i<5; i++) {
+			for(int j=0;j<5;j++) {
+				for(int k=0;k<5;k++) {
+					code[i][j][k]='?';
+				}
+			}
+		}
+		for(int i=0; i<4; i++) {
+			for(int j=0;j<4;j++) {
+				for(int k=0;k<4;k++) {
+					std::string codon(1,nucleotides[i]);
+					codon += nucleotides[j];
+					codon += nucleotides[k];
+					std::string aa = translateToProt(codon);
+					// stop codons are dropped from the protein sequence, we mark them with '\0'
+					code[idx(nucleotides[i])][idx(nucleotides[j])][idx(nucleotides[k])] = aa.empty() ? '\0' : aa[0];
+				}
+			}
+		}
+	}
+};
+
+static const CodonTable codonTable;
+
+
+// batch version of translateToProt, so that whole genomes can be translated with a single
+// call through JNI.  Results are identical to translateToProt except that lower case
+// nucleotides are accepted as well.  Safe to call from several threads at once.
+char **translateToProtBatch(char **dnaSeqs) {
+	const char (&code)[5][5][5] = codonTable.code;
+	
+	unsigned int count = 0;
+	if(dnaSeqs != NULL) {
+		while(dnaSeqs[count] != NULL) count++;
+	}
+	char **protSeqs = new char*[count+1];
+	for(unsigned int n=0; n<count; n++) {
+		const char *dna = dnaSeqs[n];
+		size_t len = strlen(dna);
+		char *prot = new char[len/3+1];
+		size_t pos = 0;
+		for(size_t i=0; i+2<len; i+=3) {
+			char aa = code[idx(toupper(dna[i]))][idx(toupper(dna[i+1]))][idx(toupper(dna[i+2]))];
+			if(aa != '\0') prot[pos++] = aa;
+		}
+		prot[pos] = '\0';
+		protSeqs[n] = prot;
+	}
+	protSeqs[count] = NULL;
+	return protSeqs;
+}
+
+
 
 
 
@@ -22,6 +22,10 @@ using namespace std;
 
 std::string translateToProt(const std::string &dna);
 
+/* translates a NULL terminated array of dna sequences, returning a NULL terminated array of
+   protein sequences allocated with new[] (the caller is responsible for deleting them) */
+char **translateToProtBatch(char **dnaSeqs);
+
 namespace KBTreeLib {
 
 	class KBTree;
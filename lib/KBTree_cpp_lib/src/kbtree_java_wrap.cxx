@@ -224,6 +224,7 @@ static void SWIGUNUSED SWIG_JavaThrowException(JNIEnv *jenv, SWIG_JavaExceptionC
 
 #include "kbtree/kbtree.hh"
 std::string translateToProt(const std::string &dna);
+char **translateToProtBatch(char **dnaSeqs);
 
 
 #ifdef __cplusplus
@@ -252,6 +253,63 @@ SWIGEXPORT jstring JNICALL Java_us_kbase_kbasetrees_cpputil_KBTreeUtilJNI_transl
 }
 
 
+SWIGEXPORT jobjectArray JNICALL Java_us_kbase_kbasetrees_cpputil_KBTreeUtilJNI_translateToProtBatch(JNIEnv *jenv, jclass jcls, jobjectArray jarg1) {
+  jobjectArray jresult = 0 ;
+  char **arg1 = (char **) 0 ;
+  jint size1 ;
+  char **result = 0 ;
+  
+  (void)jenv;
+  (void)jcls;
+  {
+    int i = 0;
+    if (jarg1) {
+      size1 = jenv->GetArrayLength(jarg1);
+      arg1 = new char*[size1+1];
+      
+      for (i = 0; i<size1; i++) {
+        jstring j_string = (jstring)jenv->GetObjectArrayElement(jarg1, i);
+        const char *c_string = jenv->GetStringUTFChars(j_string, 0);
+        arg1[i] = new char [strlen(c_string)+1];
+        strcpy(arg1[i], c_string);
+        jenv->ReleaseStringUTFChars(j_string, c_string);
+        jenv->DeleteLocalRef(j_string);
+      }
+      arg1[i] = 0;
+    } else {
+      arg1 = 0;
+      size1 = 0;
+    }
+  }
+  result = (char **)translateToProtBatch(arg1);
+  {
+    if (result) {
+      int i;
+      jsize len=0;
+      jstring temp_string;
+      const jclass clazz = jenv->FindClass("java/lang/String");
+      
+      while (result[len]) len++;
+      jresult = jenv->NewObjectArray(len, clazz, NULL);
+      for (i=0; i<len; i++) {
+        temp_string = jenv->NewStringUTF(result[i]);
+        jenv->SetObjectArrayElement(jresult, i, temp_string);
+        jenv->DeleteLocalRef(temp_string);
+        delete[] result[i];
+      }
+      delete[] result;
+    }
+  }
+  {
+    int i;
+    for (i=0; i<size1; i++)
+    delete[] arg1[i];
+    delete[] arg1;
+  }
+  return jresult;
+}
+
+
 SWIGEXPORT jlong JNICALL Java_us_kbase_kbasetrees_cpputil_KBTreeUtilJNI_new_1KBTree_1_1SWIG_10(JNIEnv *jenv, jclass jcls, jstring jarg1) {
   jlong jresult = 0 ;
   std::string *arg1 = 0 ;
@@ -2,11 +2,16 @@ package us.kbase.common.utils;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class AlignUtil {
+	private static final long MIN_PARALLEL_SIZE = 1 << 20;
+	private static final int MIN_PARALLEL_BLOCK_WIDTH = 256;
+
 	public static int[] getPositions(String alignedSeq) {
 		int[] ret = new int[alignedSeq.length()];
 		int pos = -1;
@@ -32,43 +37,45 @@ public class AlignUtil {
 	
 	public static String removeGapsFromSubject(int subjectLen,
 			String qseq, int subjectStart, String subjectSeq) {
-		int[] alnPos = AlignUtil.getPositions(subjectSeq);
 		char[] out = new char[subjectLen];
 		Arrays.fill(out, '-');
+		int pos = subjectStart - 1;
 		for (int i = 0; i < qseq.length(); i++) {
-			if (alnPos[i] < 0)
+			if (subjectSeq.charAt(i) == '-')
 				continue;
+			pos++;
 			char ch = qseq.charAt(i);
 			if (ch == '-')
 				continue;
-			out[alnPos[i] + subjectStart] = ch;
+			out[pos] = ch;
 		}
 		return new String(out);
 	}
 
 	public static Map<String, String> trimAlignment(Map<String, String> aln, double minNonGapPart) {
-		List<char[]> tmp = new ArrayList<char[]>();
-		for (String key : aln.keySet())
-			tmp.add(aln.get(key).toCharArray());
-		char[][] arr = tmp.toArray(new char[tmp.size()][]);
-		List<Integer> posList = new ArrayList<Integer>();
-		for (int pos = 0; pos < arr[0].length; pos++) {
-			int nonGaps = 0;
-			for (int n = 0; n < arr.length; n++) 
-				if (arr[n][pos] != '-')
-					nonGaps++;
-			if (nonGaps >= minNonGapPart * arr.length)
-				posList.add(pos);
-		}
-		Map<String, String> ret = new LinkedHashMap<String, String>();
-		for (String key : aln.keySet()) {
-			String seq = aln.get(key);
-			char[] newSeq = new char[posList.size()];
-			for (int i = 0; i < posList.size(); i++) 
-				newSeq[i] = seq.charAt(posList.get(i));
-			ret.put(key, new String(newSeq));
-		}
-		return ret;
+		return trimAlignment(AlignmentMatrix.fromMap(aln), minNonGapPart).toMap();
+	}
+
+	/**
+	 * Keeps only columns where part of non-gap letters is not less than given threshold.
+	 */
+	public static AlignmentMatrix trimAlignment(AlignmentMatrix aln, double minNonGapPart) {
+		return trimAlignment(aln, minNonGapPart, null, 1);
+	}
+
+	/**
+	 * Trims alignment counting gaps in given number of parts run in external
+	 * pool (it's not shut down here, null pool means single thread).
+	 */
+	public static AlignmentMatrix trimAlignment(AlignmentMatrix aln, double minNonGapPart,
+			ExecutorService pool, int threads) {
+		int[] nonGaps = getNonGapCounts(aln, pool, threads);
+		int[] cols = new int[nonGaps.length];
+		int count = 0;
+		for (int pos = 0; pos < nonGaps.length; pos++)
+			if (nonGaps[pos] >= minNonGapPart * aln.getRowCount())
+				cols[count++] = pos;
+		return aln.selectColumns(Arrays.copyOf(cols, count));
 	}
 	
 	public static int getGapPercent(String seq) {
@@ -78,4 +85,48 @@ public class AlignUtil {
 				gapCount++;
 		return gapCount * 100 / seq.length();
 	}
+
+	public static int getGapPercent(AlignmentMatrix aln, int row) {
+		return aln.getGapCount(row) * 100 / aln.getWidth();
+	}
+
+	/**
+	 * Counts non-gap letters in columns. Large alignments are processed by
+	 * blocks of columns in parallel (each task scans its column range of
+	 * every row so that memory is read sequentially) in external pool (it's
+	 * not shut down here, null pool means single thread).
+	 */
+	public static int[] getNonGapCounts(final AlignmentMatrix aln, ExecutorService pool, int threads) {
+		int width = aln.getWidth();
+		long size = (long)width * aln.getRowCount();
+		int blocks = Math.min(threads, width / MIN_PARALLEL_BLOCK_WIDTH);
+		if (pool == null || blocks <= 1 || size < MIN_PARALLEL_SIZE)
+			return aln.getNonGapCounts();
+		int[] ret = new int[width];
+		List<Future<int[]>> parts = new ArrayList<Future<int[]>>();
+		int blockWidth = (width + blocks - 1) / blocks;
+		for (int start = 0; start < width; start += blockWidth) {
+			final int blockStart = start;
+			final int blockEnd = Math.min(width, start + blockWidth);
+			parts.add(pool.submit(new Callable<int[]>() {
+				@Override
+				public int[] call() {
+					return aln.getNonGapCounts(blockStart, blockEnd);
+				}
+			}));
+		}
+		int pos = 0;
+		try {
+			for (Future<int[]> part : parts) {
+				int[] counts = part.get();
+				System.arraycopy(counts, 0, ret, pos, counts.length);
+				pos += counts.length;
+			}
+		} catch (Exception ex) {
+			for (Future<int[]> part : parts)
+				part.cancel(true);
+			throw new IllegalStateException(ex);
+		}
+		return ret;
+	}
 }
@@ -0,0 +1,96 @@
+package us.kbase.common.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Byte level parser of aligned FASTA (output of aligners in FASTA mode).
+ * Length of the first row defines width of alignment, residues of all rows
+ * are written into one contiguous matrix pre-sized by estimated row count.
+ */
+public class AlignedFastaParser {
+	private static final String CHARSET = "ISO-8859-1";
+
+	public static Alignment parse(File f, boolean toUpperCase) throws Exception {
+		return parse(ClustalParser.readFile(f), toUpperCase);
+	}
+
+	public static Alignment parse(byte[] data, boolean toUpperCase) throws Exception {
+		List<String> names = new ArrayList<String>();
+		byte[] matrix = new byte[1 << 12];
+		int width = -1;
+		int rowStart = 0;
+		int rowLen = 0;
+		int pos = 0;
+		boolean lineStart = true;
+		while (pos < data.length) {
+			byte b = data[pos];
+			if (lineStart && b == '>') {
+				if (!names.isEmpty())
+					width = finishRow(names, width, rowLen);
+				int idStart = pos + 1;
+				int idEnd = idStart;
+				while (idEnd < data.length && !isSpace(data[idEnd]) && data[idEnd] != '\n')
+					idEnd++;
+				if (idEnd == idStart)
+					throw new IllegalStateException("Wrong caption line in aligned FASTA");
+				names.add(new String(data, idStart, idEnd - idStart, CHARSET));
+				while (idEnd < data.length && data[idEnd] != '\n')
+					idEnd++;
+				pos = idEnd + 1;
+				if (width > 0 && names.size() == 2) {
+					// number of rows is estimated from size of the first record
+					long firstRecordSize = Math.max(1, idStart - 1);
+					long rows = 1 + (data.length + firstRecordSize - 1) / firstRecordSize;
+					long capacity = Math.min(Integer.MAX_VALUE - 8, width * rows);
+					if (capacity > matrix.length)
+						matrix = Arrays.copyOf(matrix, (int)capacity);
+				}
+				rowStart = (names.size() - 1) * Math.max(width, 0);
+				rowLen = 0;
+				continue;
+			}
+			pos++;
+			if (b == '\n') {
+				lineStart = true;
+				continue;
+			}
+			lineStart = false;
+			if (isSpace(b))
+				continue;
+			if (names.isEmpty())
+				throw new IllegalStateException("Aligned FASTA doesn't start with caption line");
+			if (width >= 0 && rowLen == width)
+				throw new IllegalStateException("Alignment has sequences of different length");
+			if (rowStart + rowLen == matrix.length)
+				matrix = Arrays.copyOf(matrix, matrix.length * 2);
+			if (toUpperCase && b >= 'a' && b <= 'z')
+				b -= 'a' - 'A';
+			matrix[rowStart + rowLen++] = b;
+		}
+		if (names.isEmpty())
+			throw new IllegalStateException("Aligned FASTA is empty");
+		width = finishRow(names, width, rowLen);
+		String[] protNames = names.toArray(new String[names.size()]);
+		String[] alignSeqs = new String[protNames.length];
+		for (int i = 0; i < protNames.length; i++)
+			alignSeqs[i] = new String(matrix, i * width, width, CHARSET);
+		return new Alignment(protNames, alignSeqs, width);
+	}
+
+	private static int finishRow(List<String> names, int width, int rowLen) {
+		if (rowLen == 0)
+			throw new IllegalStateException("No sequence for caption: " + names.get(names.size() - 1));
+		if (width < 0)
+			return rowLen;
+		if (rowLen != width)
+			throw new IllegalStateException("Alignment has sequences of different length");
+		return width;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+}
@@ -0,0 +1,420 @@
+package us.kbase.common.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory multiple alignment keeping one byte per residue in a contiguous
+ * row-major array (instead of one UTF-16 string per row) together with
+ * dictionary of row ids. It's converted to/from map of strings only at
+ * workspace/JSON boundary. Renamed rows and subsets of rows are views sharing
+ * residues with original matrix (see withIds and selectRows).
+ */
+public class AlignmentMatrix {
+	public static final byte GAP = '-';
+	private static final String CHARSET = "ISO-8859-1";
+
+	private final List<String> ids;
+	private final Map<String, Integer> idToRow;
+	private final int width;
+	private final byte[] data;
+	private final int[] offsets;
+
+	/**
+	 * Creates matrix of given size filled with gaps.
+	 */
+	public AlignmentMatrix(List<String> ids, int width) {
+		this(ids, width, new byte[ids.size() * width], new int[ids.size()]);
+		Arrays.fill(data, GAP);
+		for (int row = 0; row < offsets.length; row++)
+			offsets[row] = row * width;
+	}
+
+	private AlignmentMatrix(List<String> ids, int width, byte[] data, int[] offsets) {
+		this.ids = Collections.unmodifiableList(new ArrayList<String>(ids));
+		this.idToRow = new HashMap<String, Integer>();
+		for (int i = 0; i < ids.size(); i++)
+			if (idToRow.put(ids.get(i), i) != null)
+				throw new IllegalStateException("Duplicate row id: " + ids.get(i));
+		this.width = width;
+		this.data = data;
+		this.offsets = offsets;
+	}
+
+	public static AlignmentMatrix fromMap(Map<String, String> aln) {
+		int width = aln.isEmpty() ? 0 : aln.values().iterator().next().length();
+		AlignmentMatrix ret = new AlignmentMatrix(new ArrayList<String>(aln.keySet()), width);
+		int row = 0;
+		for (String seq : aln.values())
+			ret.setRow(row++, seq);
+		return ret;
+	}
+
+	/**
+	 * Reads aligned FASTA file in two passes (ids and width first, then
+	 * residues), so that rows aren't kept as separate sequences.
+	 */
+	public static AlignmentMatrix readFasta(File f) {
+		List<String> ids = new ArrayList<String>();
+		int width = 0;
+		FastaByteReader reader = new FastaByteReader(f);
+		try {
+			for (FastaRecord rec : reader) {
+				if (!ids.isEmpty() && rec.getSequenceLength() != width)
+					throw new IllegalStateException("Rows of alignment have different lengths");
+				ids.add(rec.getId());
+				width = rec.getSequenceLength();
+			}
+		} finally {
+			reader.close();
+		}
+		AlignmentMatrix ret = new AlignmentMatrix(ids, width);
+		reader = new FastaByteReader(f);
+		try {
+			int row = 0;
+			for (FastaRecord rec : reader)
+				System.arraycopy(rec.getSequence(), 0, ret.data, ret.offsets[row++], width);
+		} finally {
+			reader.close();
+		}
+		return ret;
+	}
+
+	public static AlignmentMatrix fromAlignment(Alignment aln) {
+		AlignmentMatrix ret = new AlignmentMatrix(Arrays.asList(aln.protNames),
+				aln.alignSeqs.length == 0 ? 0 : aln.alignSeqs[0].length());
+		for (int row = 0; row < aln.alignSeqs.length; row++)
+			ret.setRow(row, aln.alignSeqs[row]);
+		return ret;
+	}
+
+	public int getRowCount() {
+		return ids.size();
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public List<String> getIds() {
+		return ids;
+	}
+
+	/**
+	 * Returns row index of given id or -1 if there is no such row.
+	 */
+	public int getRowIndex(String id) {
+		Integer ret = idToRow.get(id);
+		return ret == null ? -1 : ret;
+	}
+
+	public byte get(int row, int col) {
+		return data[offsets[row] + col];
+	}
+
+	public void set(int row, int col, byte value) {
+		data[offsets[row] + col] = value;
+	}
+
+	public boolean isGap(int row, int col) {
+		return data[offsets[row] + col] == GAP;
+	}
+
+	public String getRow(int row) {
+		try {
+			return new String(data, offsets[row], width, CHARSET);
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	public String getRow(String id) {
+		int row = getRowIndex(id);
+		return row < 0 ? null : getRow(row);
+	}
+
+	public void setRow(int row, String seq) {
+		if (seq.length() != width)
+			throw new IllegalStateException("Rows of alignment have different lengths");
+		int off = offsets[row];
+		for (int col = 0; col < width; col++)
+			data[off + col] = (byte)seq.charAt(col);
+	}
+
+	/**
+	 * Copies whole row into given row of other matrix starting from given column.
+	 */
+	public void copyRow(int row, AlignmentMatrix target, int targetRow, int targetCol) {
+		System.arraycopy(data, offsets[row], target.data, target.offsets[targetRow] + targetCol, width);
+	}
+
+	/**
+	 * Column view: residues of given column in order of rows.
+	 */
+	public byte[] getColumn(int col, byte[] buffer) {
+		byte[] ret = buffer != null && buffer.length >= ids.size() ? buffer : new byte[ids.size()];
+		for (int row = 0; row < ids.size(); row++)
+			ret[row] = data[offsets[row] + col];
+		return ret;
+	}
+
+	/**
+	 * Bitmap of gaps in given row (bit i of word i/64 is set for gap in column i).
+	 */
+	public long[] getGapBitmap(int row) {
+		long[] ret = new long[(width + 63) >>> 6];
+		int off = offsets[row];
+		for (int col = 0; col < width; col++)
+			if (data[off + col] == GAP)
+				ret[col >>> 6] |= 1L << col;
+		return ret;
+	}
+
+	public int getGapCount(int row) {
+		int ret = 0;
+		int off = offsets[row];
+		for (int col = 0; col < width; col++)
+			if (data[off + col] == GAP)
+				ret++;
+		return ret;
+	}
+
+	/**
+	 * Numbers of non-gap residues in columns (rows are scanned sequentially).
+	 */
+	public int[] getNonGapCounts() {
+		return getNonGapCounts(0, width);
+	}
+
+	/**
+	 * Numbers of non-gap residues in columns of [start, end) range.
+	 */
+	public int[] getNonGapCounts(int start, int end) {
+		int[] ret = new int[end - start];
+		for (int row = 0; row < ids.size(); row++) {
+			int off = offsets[row];
+			for (int col = start; col < end; col++)
+				if (data[off + col] != GAP)
+					ret[col - start]++;
+		}
+		return ret;
+	}
+
+	/**
+	 * Number of columns where two rows have different letters.
+	 */
+	public int getMismatchCount(int row1, int row2) {
+		int ret = 0;
+		int off1 = offsets[row1];
+		int off2 = offsets[row2];
+		for (int col = 0; col < width; col++)
+			if (data[off1 + col] != data[off2 + col])
+				ret++;
+		return ret;
+	}
+
+	/**
+	 * Lexicographic comparison of two rows by byte values of residues.
+	 */
+	public int compareRows(int row1, int row2) {
+		int off1 = offsets[row1];
+		int off2 = offsets[row2];
+		for (int col = 0; col < width; col++) {
+			byte b1 = data[off1 + col];
+			byte b2 = data[off2 + col];
+			if (b1 != b2)
+				return b1 < b2 ? -1 : 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Feeds residues of given row into message digest (without copying of row).
+	 */
+	public void updateDigest(int row, MessageDigest md) {
+		md.update(data, offsets[row], width);
+	}
+
+	/**
+	 * Fraction of mismatches among columns where both rows have residues
+	 * (1 in case there are no such columns).
+	 */
+	public double getPDistance(int row1, int row2) {
+		return getPDistance(row1, row2, null);
+	}
+
+	/**
+	 * The same as {@link #getPDistance(int, int)} but every column is counted
+	 * given number of times (it's used for bootstrap resampling of columns,
+	 * null means all weights are 1).
+	 */
+	public double getPDistance(int row1, int row2, int[] columnWeights) {
+		int compared = 0;
+		int mismatches = 0;
+		int off1 = offsets[row1];
+		int off2 = offsets[row2];
+		for (int col = 0; col < width; col++) {
+			byte b1 = data[off1 + col];
+			byte b2 = data[off2 + col];
+			if (b1 == GAP || b2 == GAP)
+				continue;
+			int weight = columnWeights == null ? 1 : columnWeights[col];
+			compared += weight;
+			if (b1 != b2)
+				mismatches += weight;
+		}
+		return compared == 0 ? 1.0 : (double)mismatches / compared;
+	}
+
+	/**
+	 * View of the same rows under new ids (given in order of rows).
+	 */
+	public AlignmentMatrix withIds(List<String> newIds) {
+		if (newIds.size() != ids.size())
+			throw new IllegalStateException("Number of ids differs from number of rows");
+		return new AlignmentMatrix(newIds, width, data, offsets);
+	}
+
+	/**
+	 * View of rows with given ids (in order of rows of this matrix).
+	 */
+	public AlignmentMatrix selectRows(Collection<String> rowIds) {
+		Set<String> wanted = new HashSet<String>(rowIds);
+		List<String> retIds = new ArrayList<String>();
+		int[] retOffsets = new int[ids.size()];
+		for (int row = 0; row < ids.size(); row++) {
+			if (wanted.contains(ids.get(row))) {
+				retOffsets[retIds.size()] = offsets[row];
+				retIds.add(ids.get(row));
+			}
+		}
+		return new AlignmentMatrix(retIds, width, data, Arrays.copyOf(retOffsets, retIds.size()));
+	}
+
+	/**
+	 * Hash of residues of given row (identical rows have equal hashes).
+	 */
+	public int getRowHash(int row) {
+		int ret = 1;
+		int off = offsets[row];
+		for (int col = 0; col < width; col++)
+			ret = 31 * ret + data[off + col];
+		return ret;
+	}
+
+	/**
+	 * Returns new matrix with given columns (in given order) of all rows.
+	 */
+	public AlignmentMatrix selectColumns(int[] cols) {
+		AlignmentMatrix ret = new AlignmentMatrix(ids, cols.length);
+		// consecutive columns are joined into runs copied in bulk
+		int[] runStarts = new int[cols.length];
+		int[] runLengths = new int[cols.length];
+		int runs = 0;
+		for (int i = 0; i < cols.length; i++) {
+			if (runs > 0 && runStarts[runs - 1] + runLengths[runs - 1] == cols[i]) {
+				runLengths[runs - 1]++;
+			} else {
+				runStarts[runs] = cols[i];
+				runLengths[runs] = 1;
+				runs++;
+			}
+		}
+		for (int row = 0; row < ids.size(); row++) {
+			int off = offsets[row];
+			int targetOff = ret.offsets[row];
+			for (int run = 0; run < runs; run++) {
+				System.arraycopy(data, off + runStarts[run], ret.data, targetOff, runLengths[run]);
+				targetOff += runLengths[run];
+			}
+		}
+		return ret;
+	}
+
+	public Map<String, String> toMap() {
+		Map<String, String> ret = new LinkedHashMap<String, String>();
+		for (int row = 0; row < ids.size(); row++)
+			ret.put(ids.get(row), getRow(row));
+		return ret;
+	}
+
+	public void writeFasta(OutputStream os) throws IOException {
+		for (int row = 0; row < ids.size(); row++) {
+			os.write('>');
+			os.write(ids.get(row).getBytes(CHARSET));
+			os.write('\n');
+			for (int pos = 0; pos < width; pos += 60) {
+				os.write(data, offsets[row] + pos, Math.min(60, width - pos));
+				os.write('\n');
+			}
+		}
+	}
+
+	/**
+	 * FASTA text of alignment produced row by row while it's read, so that it
+	 * could be streamed into stdin of external program without full copy.
+	 */
+	public InputStream getFastaStream() {
+		return new InputStream() {
+			private int row = 0;
+			private byte[] buf = new byte[0];
+			private int len = 0;
+			private int pos = 0;
+
+			@Override
+			public int read() throws IOException {
+				return fill() ? (buf[pos++] & 0xff) : -1;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int size) throws IOException {
+				if (size == 0)
+					return 0;
+				if (!fill())
+					return -1;
+				int ret = Math.min(size, len - pos);
+				System.arraycopy(buf, pos, b, off, ret);
+				pos += ret;
+				return ret;
+			}
+
+			private boolean fill() throws IOException {
+				if (pos < len)
+					return true;
+				if (row >= ids.size())
+					return false;
+				byte[] id = ids.get(row).getBytes(CHARSET);
+				int size = id.length + 2 + width + (width + 59) / 60;
+				if (buf.length < size)
+					buf = new byte[size];
+				len = 0;
+				buf[len++] = '>';
+				System.arraycopy(id, 0, buf, len, id.length);
+				len += id.length;
+				buf[len++] = '\n';
+				for (int col = 0; col < width; col += 60) {
+					int part = Math.min(60, width - col);
+					System.arraycopy(data, offsets[row] + col, buf, len, part);
+					len += part;
+					buf[len++] = '\n';
+				}
+				pos = 0;
+				row++;
+				return true;
+			}
+		};
+	}
+}
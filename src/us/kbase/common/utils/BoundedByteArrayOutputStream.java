@@ -0,0 +1,94 @@
+package us.kbase.common.utils;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * In-memory output stream for capturing error output of external tools. Only
+ * first and last parts of data (half of limit each) are kept, everything in
+ * between is counted and replaced by truncation marker.
+ */
+public class BoundedByteArrayOutputStream extends OutputStream {
+	public static final int DEFAULT_LIMIT = 1 << 16;
+
+	private final byte[] head;
+	private final byte[] tail;
+	private int headLen = 0;
+	private int tailPos = 0;
+	private boolean tailFull = false;
+	private long size = 0;
+
+	public BoundedByteArrayOutputStream() {
+		this(DEFAULT_LIMIT);
+	}
+
+	public BoundedByteArrayOutputStream(int limit) {
+		head = new byte[limit - limit / 2];
+		tail = new byte[limit / 2];
+	}
+
+	@Override
+	public synchronized void write(int b) {
+		write(new byte[] {(byte)b}, 0, 1);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) {
+		size += len;
+		int toHead = Math.min(len, head.length - headLen);
+		if (toHead > 0) {
+			System.arraycopy(b, off, head, headLen, toHead);
+			headLen += toHead;
+			off += toHead;
+			len -= toHead;
+		}
+		if (len == 0 || tail.length == 0)
+			return;
+		if (len >= tail.length) {
+			System.arraycopy(b, off + len - tail.length, tail, 0, tail.length);
+			tailPos = 0;
+			tailFull = true;
+			return;
+		}
+		int firstPart = Math.min(len, tail.length - tailPos);
+		System.arraycopy(b, off, tail, tailPos, firstPart);
+		System.arraycopy(b, off + firstPart, tail, 0, len - firstPart);
+		if (tailPos + len >= tail.length)
+			tailFull = true;
+		tailPos = (tailPos + len) % tail.length;
+	}
+
+	/**
+	 * Total number of bytes written including truncated ones.
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	public synchronized boolean isTruncated() {
+		return size > headLen + tail.length;
+	}
+
+	public synchronized byte[] toByteArray() {
+		int tailLen = tailFull ? tail.length : tailPos;
+		byte[] marker = new byte[0];
+		if (isTruncated())
+			marker = ("\n... [" + (size - headLen - tailLen) + " bytes truncated] ...\n").getBytes(
+					Charset.forName("US-ASCII"));
+		byte[] ret = new byte[headLen + marker.length + tailLen];
+		System.arraycopy(head, 0, ret, 0, headLen);
+		System.arraycopy(marker, 0, ret, headLen, marker.length);
+		if (tailFull) {
+			System.arraycopy(tail, tailPos, ret, headLen + marker.length, tail.length - tailPos);
+			System.arraycopy(tail, 0, ret, headLen + marker.length + tail.length - tailPos, tailPos);
+		} else {
+			System.arraycopy(tail, 0, ret, headLen + marker.length, tailPos);
+		}
+		return ret;
+	}
+
+	@Override
+	public String toString() {
+		return new String(toByteArray());
+	}
+}
@@ -3,8 +3,15 @@ package us.kbase.common.utils;
 import java.io.*;
 import java.util.*;
 
+/**
+ * Byte level parser of Clustal (aln) format. Residues of all rows are written
+ * into one contiguous matrix which is pre-sized after the first block (using
+ * its width and its share of input size), names of rows in next blocks are
+ * checked against the first block byte by byte.
+ */
 public class ClustalParser {
 	public static final String FORMAT_NAME = "CLUSTAL";
+	private static final String CHARSET = "ISO-8859-1";
 
 	public static String getFormatName() {
 		return FORMAT_NAME;
@@ -15,78 +22,191 @@ public class ClustalParser {
 	}
 
 	public static Alignment parse(String text, String startWord) throws Exception {
-		return parse(new BufferedReader(new StringReader(text)), startWord);
+		return parse(text.getBytes(CHARSET), startWord);
 	}
 
 	public static Alignment parse(BufferedReader br, String startWord) throws Exception {
+		StringBuilder sb = new StringBuilder();
 		try {
-			for(;;) {
-				String str = br.readLine();
-				if (str == null)
-					throw new Exception("Start word (" + startWord + ") is not found");
-				if (startWord == null && str.trim().length() > 0)
-					break;
-				if (str.trim().toUpperCase().startsWith(startWord))
+			char[] buf = new char[1 << 16];
+			for (;;) {
+				int len = br.read(buf);
+				if (len < 0)
 					break;
+				sb.append(buf, 0, len);
 			}
-			int captLen = -1;
-			List<String> nameList = new ArrayList<String>();
-			List<StringBuilder> seqList = new ArrayList<StringBuilder>();
-			StringBuilder specSb = new StringBuilder();
-			for (int blockNum = 0; ; blockNum++) {
-				int readPos = 0;
-				for (;;) {
-					String line = br.readLine();
-					if (line == null)
-						break;
-					if (line.trim().length() == 0 && readPos == 0)
-						continue;
-					if (captLen < 0) {
-						captLen = line.indexOf(' ');
-						while ((captLen < line.length()) && (line.charAt(captLen) == ' '))
-							captLen++;
+		} finally {
+			br.close();
+		}
+		return parse(sb.toString(), startWord);
+	}
+
+	public static Alignment parse(File f, String startWord) throws Exception {
+		return parse(readFile(f), startWord);
+	}
+
+	static byte[] readFile(File f) throws IOException {
+		byte[] ret = new byte[(int)f.length()];
+		DataInputStream is = new DataInputStream(new FileInputStream(f));
+		try {
+			is.readFully(ret);
+		} finally {
+			is.close();
+		}
+		return ret;
+	}
+
+	public static Alignment parse(byte[] data, String startWord) throws Exception {
+		int pos = 0;
+		for (;;) {
+			if (pos >= data.length)
+				throw new Exception("Start word (" + startWord + ") is not found");
+			int end = lineEnd(data, pos);
+			int start = skipSpaces(data, pos, end);
+			int next = end + 1;
+			if (start < end && (startWord == null || startsWithIgnoreCase(data, start, end, startWord))) {
+				pos = next;
+				break;
+			}
+			pos = next;
+		}
+		int captLen = -1;
+		List<byte[]> names = new ArrayList<byte[]>();
+		// segments of first block: start and length of residues in data
+		List<int[]> firstBlock = new ArrayList<int[]>();
+		byte[] matrix = null;
+		int stride = 0;
+		int rowLen = 0;
+		byte[] spec = new byte[256];
+		int specLen = 0;
+		for (int blockNum = 0; ; blockNum++) {
+			int blockStart = pos;
+			int readPos = 0;
+			int blockWidth = -1;
+			while (pos < data.length) {
+				int lineStart = pos;
+				int end = lineEnd(data, pos);
+				pos = end + 1;
+				int contentEnd = end;
+				if (contentEnd > lineStart && data[contentEnd - 1] == '\r')
+					contentEnd--;
+				if (readPos == 0 && skipSpaces(data, lineStart, contentEnd) == contentEnd)
+					continue;
+				if (captLen < 0) {
+					int space = lineStart;
+					while (space < contentEnd && data[space] != ' ')
+						space++;
+					if (space == contentEnd)
+						throw new Exception("Wrong line format: " +
+								new String(data, lineStart, contentEnd - lineStart, CHARSET));
+					captLen = skipSpaces(data, space, contentEnd) - lineStart;
+				}
+				if (contentEnd - lineStart <= captLen)
+					break;
+				int nameStart = skipSpaces(data, lineStart, lineStart + captLen);
+				int nameEnd = lineStart + captLen;
+				while (nameEnd > nameStart && isSpace(data[nameEnd - 1]))
+					nameEnd--;
+				if (nameStart == nameEnd) {
+					if (readPos == 0)
+						throw new Exception("Empty protein name");
+					if (readPos == names.size() || blockNum == 0) {
+						int len = contentEnd - lineStart - captLen;
+						if (specLen + len > spec.length)
+							spec = Arrays.copyOf(spec, Math.max(spec.length * 2, specLen + len));
+						System.arraycopy(data, lineStart + captLen, spec, specLen, len);
+						specLen += len;
 					}
-					{
-						if(line.length() <= captLen) 
-							break;
-						String protName = line.substring(0, captLen).trim();
-						if (protName.length() == 0) {
-							if (readPos == 0)
-								throw new Exception("Empty protein name");
-							if (readPos == nameList.size())
-								specSb.append(line.substring(captLen));
-							break;
-						}
-						String seqPart = line.substring(captLen).trim();
-						if (seqPart.length() == 0)
-							throw new Exception("No amino acids in the sequence");
-						if (blockNum == 0) {
-							nameList.add(protName);
-							seqList.add(new StringBuilder(seqPart));
-						} else {
-							if (readPos >= nameList.size())
-								throw new Exception("Different proteins quantity in blocks");
-							if (!nameList.get(readPos).equals(protName))
-								throw new Exception("Wrong order of proteins in blocks");
-							seqList.get(readPos).append(seqPart);
-						}
-						readPos++;
+					break;
+				}
+				int seqStart = skipSpaces(data, lineStart + captLen, contentEnd);
+				int seqEnd = seqStart;
+				while (seqEnd < contentEnd && !isSpace(data[seqEnd]))
+					seqEnd++;
+				int seqLen = seqEnd - seqStart;
+				if (seqLen == 0)
+					throw new Exception("No amino acids in the sequence");
+				if (blockWidth < 0) {
+					blockWidth = seqLen;
+				} else if (seqLen != blockWidth) {
+					throw new Exception("Alignment has sequences of different length");
+				}
+				if (blockNum == 0) {
+					names.add(Arrays.copyOfRange(data, nameStart, nameEnd));
+					firstBlock.add(new int[] {seqStart, seqLen});
+				} else {
+					if (readPos >= names.size())
+						throw new Exception("Different proteins quantity in blocks");
+					if (!equalBytes(names.get(readPos), data, nameStart, nameEnd))
+						throw new Exception("Wrong order of proteins in blocks");
+					if (rowLen + seqLen > stride) {
+						int newStride = Math.max(stride * 2, rowLen + seqLen);
+						byte[] temp = new byte[names.size() * newStride];
+						for (int i = 0; i < names.size(); i++)
+							System.arraycopy(matrix, i * stride, temp, i * newStride, rowLen);
+						matrix = temp;
+						stride = newStride;
 					}
+					System.arraycopy(data, seqStart, matrix, readPos * stride + rowLen, seqLen);
 				}
-				if (readPos == 0) 
-					break;
-				if (readPos != nameList.size())
-					throw new Exception("Different proteins quantity in blocks");
+				readPos++;
 			}
-			String[] protNames = new String[nameList.size()];
-			String[] alignSeqs = new String[nameList.size()];
-			for (int i=0; i<protNames.length; i++) {
-				protNames[i] = nameList.get(i);
-				alignSeqs[i] = seqList.get(i).toString();
+			if (readPos == 0)
+				break;
+			if (readPos != names.size())
+				throw new Exception("Different proteins quantity in blocks");
+			if (blockNum == 0) {
+				// number of blocks is estimated from size of first one
+				long blockBytes = Math.max(1, pos - blockStart);
+				long blocks = 1 + (data.length - pos + blockBytes - 1) / blockBytes;
+				stride = (int)Math.min(Integer.MAX_VALUE / names.size(), blockWidth * blocks);
+				matrix = new byte[names.size() * stride];
+				for (int i = 0; i < names.size(); i++)
+					System.arraycopy(data, firstBlock.get(i)[0], matrix, i * stride, blockWidth);
+				firstBlock = null;
 			}
-			return new ClustalAlignment(protNames, alignSeqs, specSb.toString());
-		} finally {
-			br.close();
+			rowLen += blockWidth;
+		}
+		String[] protNames = new String[names.size()];
+		String[] alignSeqs = new String[names.size()];
+		for (int i=0; i<protNames.length; i++) {
+			protNames[i] = new String(names.get(i), CHARSET);
+			alignSeqs[i] = new String(matrix, i * stride, rowLen, CHARSET);
 		}
+		return new ClustalAlignment(protNames, alignSeqs, new String(spec, 0, specLen, CHARSET));
+	}
+
+	private static int lineEnd(byte[] data, int pos) {
+		while (pos < data.length && data[pos] != '\n')
+			pos++;
+		return pos;
+	}
+
+	private static int skipSpaces(byte[] data, int pos, int end) {
+		while (pos < end && isSpace(data[pos]))
+			pos++;
+		return pos;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+
+	private static boolean startsWithIgnoreCase(byte[] data, int start, int end, String word) {
+		if (end - start < word.length())
+			return false;
+		for (int i = 0; i < word.length(); i++)
+			if (Character.toUpperCase((char)(data[start + i] & 0xff)) != Character.toUpperCase(word.charAt(i)))
+				return false;
+		return true;
+	}
+
+	private static boolean equalBytes(byte[] name, byte[] data, int start, int end) {
+		if (name.length != end - start)
+			return false;
+		for (int i = 0; i < name.length; i++)
+			if (name[i] != data[start + i])
+				return false;
+		return true;
 	}
 }
@@ -16,6 +16,10 @@ public class CorrectProcess extends Process {
 		this(proc,out_str,"",err_str,"ERROR:\t");
 	}
 	
+	/**
+	 * Prefixes are used for line mode which is meant for logging. Null prefix
+	 * switches corresponding stream to raw byte pumping without decoding.
+	 */
 	public CorrectProcess(Process proc,OutputStream out_str,String out_prefix,
 			OutputStream err_str,String err_prefix) {
 		this.proc = proc;
@@ -59,6 +63,7 @@ public class CorrectProcess extends Process {
 	
 	public void addInputRedirect(InputStream is) {
 		this.inp_psh = new ProcessStreamHolder(is,this.getOutputStream());
+		this.inp_psh.start();
 	}
 	
 	public static String[] arr(String... items) {
@@ -66,6 +71,7 @@ public class CorrectProcess extends Process {
 	}
 	
 	public static class ProcessStreamHolder extends Thread {
+		public static final int RAW_BUFFER_SIZE = 1 << 16;
 		protected InputStream is;
 		protected String type;
 		protected OutputStream os;
@@ -79,7 +85,7 @@ public class CorrectProcess extends Process {
 			this(is, type, null);
 		}
 		public ProcessStreamHolder(InputStream is, OutputStream redirect) {
-			this(is,"",redirect);
+			this(is,null,redirect);
 		}
 		public ProcessStreamHolder(InputStream is, String type, OutputStream redirect) {
 			this.is = is;
@@ -88,6 +94,10 @@ public class CorrectProcess extends Process {
 		}
 
 		public void run() {
+			if (type == null) {
+				pumpRaw();
+				return;
+			}
 			try {
 				PrintStream pw = System.out;
 				if((os!=null)&&(os!=System.out)) pw = new PrintStream(os);
@@ -108,6 +118,27 @@ public class CorrectProcess extends Process {
 			}
 		}
 
+		private void pumpRaw() {
+			OutputStream out = os == null ? System.out : os;
+			byte[] buffer = new byte[RAW_BUFFER_SIZE];
+			try {
+				while (!this.must_stop) {
+					int len = is.read(buffer);
+					if (len < 0)
+						break;
+					if (len == 0)
+						continue;
+					out.write(buffer, 0, len);
+					this.was_used = true;
+				}
+				if (out != System.out) out.close();
+				else out.flush();
+				is.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+
 		public void stopThread() {
 			this.must_stop = true;
 		}
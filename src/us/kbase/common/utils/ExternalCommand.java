@@ -0,0 +1,149 @@
+package us.kbase.common.utils;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Description of one invocation of external program for {@link ExternalToolExecutor}.
+ * Tool name (used for concurrency limits, timeouts and metrics) is taken from
+ * binary file name without OS suffix unless it's set explicitly.
+ */
+public class ExternalCommand {
+	private final List<String> command = new ArrayList<String>();
+	private String tool = null;
+	private String label = null;
+	private File workDir = null;
+	private Map<String, String> env = new LinkedHashMap<String, String>();
+	private long timeoutMs = -1;
+	private InputStream stdin = null;
+	private OutputStream stdout = null;
+	private String stdoutLogPrefix = null;
+
+	public ExternalCommand(File binary) {
+		this(binary.getAbsolutePath());
+	}
+
+	public ExternalCommand(String binary) {
+		command.add(binary);
+	}
+
+	public ExternalCommand args(String... args) {
+		command.addAll(Arrays.asList(args));
+		return this;
+	}
+
+	public ExternalCommand tool(String tool) {
+		this.tool = tool;
+		return this;
+	}
+
+	/**
+	 * Prefix of error messages, tool name is used by default.
+	 */
+	public ExternalCommand label(String label) {
+		this.label = label;
+		return this;
+	}
+
+	public ExternalCommand workDir(File workDir) {
+		this.workDir = workDir;
+		return this;
+	}
+
+	public ExternalCommand env(String key, String value) {
+		env.put(key, value);
+		return this;
+	}
+
+	/**
+	 * Wall clock limit in milliseconds, overrides configured one when it's positive.
+	 */
+	public ExternalCommand timeout(long timeoutMs) {
+		this.timeoutMs = timeoutMs;
+		return this;
+	}
+
+	/**
+	 * Data pumped into standard input of the process (stdin is closed right
+	 * away if it's not set).
+	 */
+	public ExternalCommand stdin(InputStream stdin) {
+		this.stdin = stdin;
+		return this;
+	}
+
+	/**
+	 * Target for standard output, it's captured in memory if it's not set.
+	 */
+	public ExternalCommand stdout(OutputStream stdout) {
+		this.stdout = stdout;
+		return this;
+	}
+
+	/**
+	 * Standard output is printed line by line into System.out with given prefix.
+	 */
+	public ExternalCommand logStdout(String prefix) {
+		this.stdoutLogPrefix = prefix;
+		return this;
+	}
+
+	public List<String> getCommand() {
+		return command;
+	}
+
+	public String getTool() {
+		if (tool != null)
+			return tool;
+		String name = new File(command.get(0)).getName();
+		for (String suffix : new String[] {".linux", ".macosx"})
+			if (name.endsWith(suffix))
+				return name.substring(0, name.length() - suffix.length());
+		return name;
+	}
+
+	public String getLabel() {
+		return label == null ? getTool() : label;
+	}
+
+	public File getWorkDir() {
+		return workDir;
+	}
+
+	public Map<String, String> getEnv() {
+		return env;
+	}
+
+	public long getTimeout() {
+		return timeoutMs;
+	}
+
+	public InputStream getStdin() {
+		return stdin;
+	}
+
+	public OutputStream getStdout() {
+		return stdout;
+	}
+
+	public String getStdoutLogPrefix() {
+		return stdoutLogPrefix;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder ret = new StringBuilder();
+		for (String part : command) {
+			if (ret.length() > 0)
+				ret.append(' ');
+			ret.append(part);
+		}
+		return ret.toString();
+	}
+}
@@ -0,0 +1,485 @@
+package us.kbase.common.utils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Single place where external programs are started. It applies wall clock
+ * timeouts (killing whole process tree), per-tool concurrency limits and
+ * collects timing/CPU/peak RSS metrics of every invocation (only failed runs
+ * and runs longer than "tool.log.slow.sec" are written to log).
+ * Configuration parameters: "tool.timeout.sec" (default timeout for all tools),
+ * "tool.timeout.sec.&lt;tool&gt;", "tool.max.concurrent.&lt;tool&gt;" and
+ * "tool.log.slow.sec".
+ */
+public class ExternalToolExecutor {
+	public static final String CFG_PROP_TIMEOUT = "tool.timeout.sec";
+	public static final String CFG_PROP_MAX_CONCURRENT = "tool.max.concurrent";
+	public static final String CFG_PROP_LOG_SLOW = "tool.log.slow.sec";
+	public static final int STDERR_LIMIT = 1 << 16;
+	private static final long DEFAULT_LOG_SLOW_SEC = 60;
+	private static final long DEFAULT_CLOCK_TICKS_PER_SEC = 100;
+	private static final long MAX_POLL_INTERVAL_MS = 200;
+	private static final long PROC_RESCAN_INTERVAL_MS = 5000;
+
+	private static long defaultTimeoutMs = -1;
+	private static long logSlowMs = DEFAULT_LOG_SLOW_SEC * 1000;
+	private static long clockTicksPerSec = -1;
+	private static Boolean procChildrenSupported = null;
+	private static final Map<String, Long> toolTimeouts = new HashMap<String, Long>();
+	private static final Map<String, Semaphore> toolLimits = new HashMap<String, Semaphore>();
+	private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private static final ThreadLocal<String> currentJobId = new ThreadLocal<String>();
+
+	public static synchronized void configure(Map<String, String> configParams) {
+		for (Map.Entry<String, String> entry : configParams.entrySet()) {
+			String key = entry.getKey();
+			String value = entry.getValue() == null ? "" : entry.getValue().trim();
+			if (value.length() == 0)
+				continue;
+			if (key.equals(CFG_PROP_TIMEOUT)) {
+				setTimeout(null, Long.parseLong(value) * 1000);
+			} else if (key.startsWith(CFG_PROP_TIMEOUT + ".")) {
+				setTimeout(key.substring(CFG_PROP_TIMEOUT.length() + 1), Long.parseLong(value) * 1000);
+			} else if (key.startsWith(CFG_PROP_MAX_CONCURRENT + ".")) {
+				setConcurrencyLimit(key.substring(CFG_PROP_MAX_CONCURRENT.length() + 1),
+						Integer.parseInt(value));
+			} else if (key.equals(CFG_PROP_LOG_SLOW)) {
+				setSlowRunThreshold(Long.parseLong(value) * 1000);
+			}
+		}
+	}
+
+	/**
+	 * Sets timeout for given tool (or default one if tool is null), non-positive
+	 * value means no timeout.
+	 */
+	public static synchronized void setTimeout(String tool, long timeoutMs) {
+		if (tool == null) {
+			defaultTimeoutMs = timeoutMs;
+		} else {
+			toolTimeouts.put(tool, timeoutMs);
+		}
+	}
+
+	public static synchronized long getTimeout(String tool) {
+		Long ret = toolTimeouts.get(tool);
+		return ret == null ? defaultTimeoutMs : ret;
+	}
+
+	/**
+	 * Limits number of simultaneously running processes of given tool, non-positive
+	 * value removes limit.
+	 */
+	public static synchronized void setConcurrencyLimit(String tool, int maxProcesses) {
+		if (maxProcesses <= 0) {
+			toolLimits.remove(tool);
+		} else {
+			toolLimits.put(tool, new Semaphore(maxProcesses, true));
+		}
+	}
+
+	private static synchronized Semaphore getConcurrencyLimit(String tool) {
+		return toolLimits.get(tool);
+	}
+
+	/**
+	 * Runs longer than given time (and all failed ones) are written to log,
+	 * negative value switches logging of successful runs off.
+	 */
+	public static synchronized void setSlowRunThreshold(long thresholdMs) {
+		logSlowMs = thresholdMs;
+	}
+
+	private static synchronized long getSlowRunThreshold() {
+		return logSlowMs;
+	}
+
+	/**
+	 * Binds calling thread to job so that metrics of processes it starts are
+	 * accounted to this job. Null value unbinds it.
+	 */
+	public static void setCurrentJob(String jobId) {
+		if (jobId == null) {
+			currentJobId.remove();
+		} else {
+			currentJobId.set(jobId);
+		}
+	}
+
+	public static String getCurrentJob() {
+		return currentJobId.get();
+	}
+
+	public static void addListener(Listener l) {
+		listeners.add(l);
+	}
+
+	public static void removeListener(Listener l) {
+		listeners.remove(l);
+	}
+
+	/**
+	 * Runs command and waits for its completion. Non-zero exit code leads to
+	 * exception with text of standard error stream.
+	 */
+	public static ExternalToolResult run(ExternalCommand cmd) throws Exception {
+		String tool = cmd.getTool();
+		long waitStart = System.currentTimeMillis();
+		Semaphore limit = getConcurrencyLimit(tool);
+		if (limit != null)
+			limit.acquire();
+		try {
+			return runProcess(cmd, System.currentTimeMillis() - waitStart);
+		} finally {
+			if (limit != null)
+				limit.release();
+		}
+	}
+
+	private static ExternalToolResult runProcess(ExternalCommand cmd, long queueWaitMs) throws Exception {
+		String tool = cmd.getTool();
+		long timeoutMs = cmd.getTimeout() > 0 ? cmd.getTimeout() : getTimeout(tool);
+		ProcessBuilder pb = new ProcessBuilder(cmd.getCommand());
+		if (cmd.getWorkDir() != null)
+			pb.directory(cmd.getWorkDir());
+		pb.environment().putAll(cmd.getEnv());
+		ByteArrayOutputStream captured = null;
+		OutputStream out = cmd.getStdout();
+		if (out == null && cmd.getStdoutLogPrefix() == null) {
+			captured = new ByteArrayOutputStream();
+			out = captured;
+		}
+		BoundedByteArrayOutputStream err = new BoundedByteArrayOutputStream(STDERR_LIMIT);
+		long startTime = System.currentTimeMillis();
+		Process p = pb.start();
+		ProcessSampler sampler = new ProcessSampler(getPid(p));
+		CorrectProcess cp = null;
+		boolean finished = false;
+		try {
+			cp = new CorrectProcess(p, out, cmd.getStdoutLogPrefix(), err, null);
+			if (cmd.getStdin() != null) {
+				cp.addInputRedirect(cmd.getStdin());
+			} else {
+				p.getOutputStream().close();
+			}
+			long pollInterval = 1;
+			while (!isFinished(p)) {
+				sampler.sample();
+				if (timeoutMs > 0 && System.currentTimeMillis() - startTime > timeoutMs) {
+					String errText = err.toString().trim();
+					throw new IllegalStateException(cmd.getLabel() + " was killed after timeout of " +
+							(timeoutMs / 1000.0) + " sec" + (errText.length() > 0 ? " (" + errText + ")" : ""));
+				}
+				Thread.sleep(pollInterval);
+				pollInterval = Math.min(pollInterval * 2, MAX_POLL_INTERVAL_MS);
+			}
+			int exitCode = cp.waitFor();
+			finished = true;
+			ExternalToolResult ret = new ExternalToolResult(tool, exitCode,
+					captured == null ? null : captured.toByteArray(), err.toString(), queueWaitMs,
+					System.currentTimeMillis() - startTime, sampler.getCpuTimeMs(),
+					sampler.getPeakRssKb());
+			long slowMs = getSlowRunThreshold();
+			if (exitCode != 0 || (slowMs >= 0 && ret.getWallTimeMs() > slowMs))
+				System.out.println("[trees] ExternalToolExecutor: " + ret);
+			for (Listener l : listeners) {
+				try {
+					l.onCompletion(cmd, ret);
+				} catch (Exception ex) {
+					System.err.println("[trees] ExternalToolExecutor: listener error (" + ex.getMessage() + ")");
+				}
+			}
+			if (exitCode != 0) {
+				String errText = ret.getStderr();
+				if (errText.length() > 0)
+					throw new Exception(cmd.getLabel() + ": " + errText);
+				throw new IllegalStateException(cmd.getLabel() + " exit code: " + exitCode);
+			}
+			return ret;
+		} finally {
+			if (!finished)
+				killProcessTree(p, cp);
+		}
+	}
+
+	private static boolean isFinished(Process p) {
+		try {
+			p.exitValue();
+			return true;
+		} catch (IllegalThreadStateException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Kills process with all its descendants (they are found through /proc
+	 * on Linux, on other systems only process itself is destroyed).
+	 */
+	public static void killProcessTree(Process p, CorrectProcess cp) {
+		int pid = getPid(p);
+		if (pid > 0) {
+			List<Integer> tree = listProcessTree(pid);
+			if (tree.size() > 0) {
+				List<String> killCmd = new ArrayList<String>();
+				killCmd.add("kill");
+				killCmd.add("-KILL");
+				for (int i = tree.size() - 1; i >= 0; i--)
+					killCmd.add(String.valueOf(tree.get(i)));
+				try {
+					new ProcessBuilder(killCmd).start().waitFor();
+				} catch (Exception ex) {
+					System.err.println("[trees] ExternalToolExecutor: error killing process " + pid +
+							" (" + ex.getMessage() + ")");
+				}
+			}
+		}
+		if (cp != null) {
+			cp.destroy();
+		} else {
+			p.destroy();
+		}
+	}
+
+	private static int getPid(Process p) {
+		try {
+			Method m = Process.class.getMethod("pid");
+			return ((Number)m.invoke(p)).intValue();
+		} catch (Exception ignore) {}
+		try {
+			Field f = p.getClass().getDeclaredField("pid");
+			f.setAccessible(true);
+			return f.getInt(p);
+		} catch (Exception ignore) {}
+		return -1;
+	}
+
+	/**
+	 * Number of clock ticks per second used in CPU times of /proc/[pid]/stat
+	 * (reported by "getconf CLK_TCK", 100 is used if it's not available).
+	 */
+	private static synchronized long getClockTicksPerSec() {
+		if (clockTicksPerSec < 0) {
+			clockTicksPerSec = DEFAULT_CLOCK_TICKS_PER_SEC;
+			try {
+				Process p = new ProcessBuilder("getconf", "CLK_TCK").redirectErrorStream(true).start();
+				BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()));
+				try {
+					String line = br.readLine();
+					if (p.waitFor() == 0 && line != null && Long.parseLong(line.trim()) > 0)
+						clockTicksPerSec = Long.parseLong(line.trim());
+				} finally {
+					br.close();
+				}
+			} catch (Exception ex) {
+				System.err.println("[trees] ExternalToolExecutor: can't get clock ticks per second, " +
+						DEFAULT_CLOCK_TICKS_PER_SEC + " is used (" + ex.getMessage() + ")");
+			}
+		}
+		return clockTicksPerSec;
+	}
+
+	/**
+	 * Checks whether kernel lists children of threads in /proc/[pid]/task/[tid]/children.
+	 */
+	private static synchronized boolean isProcChildrenSupported() {
+		if (procChildrenSupported == null) {
+			File[] tasks = new File("/proc/self/task").listFiles();
+			procChildrenSupported = tasks != null && tasks.length > 0 &&
+					new File(tasks[0], "children").exists();
+		}
+		return procChildrenSupported;
+	}
+
+	/**
+	 * Returns pid followed by all its descendants in breadth-first order or
+	 * empty list if /proc is not available.
+	 */
+	private static List<Integer> listProcessTree(int pid) {
+		return isProcChildrenSupported() ? listProcessTreeByChildren(pid) : scanProcessTree(pid);
+	}
+
+	/**
+	 * Walks down from given process reading only children files of its
+	 * descendants (processes which already exited are skipped).
+	 */
+	private static List<Integer> listProcessTreeByChildren(int pid) {
+		List<Integer> ret = new ArrayList<Integer>();
+		if (!new File("/proc/" + pid).exists())
+			return ret;
+		ret.add(pid);
+		for (int i = 0; i < ret.size(); i++) {
+			File[] tasks = new File("/proc/" + ret.get(i) + "/task").listFiles();
+			if (tasks == null)
+				continue;
+			for (File task : tasks) {
+				String line = readFirstLine(new File(task, "children"));
+				if (line == null)
+					continue;
+				for (String child : line.trim().split(" "))
+					if (child.length() > 0)
+						ret.add(Integer.parseInt(child));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Builds parent-children map for all processes in /proc (used when kernel
+	 * doesn't provide children files).
+	 */
+	private static List<Integer> scanProcessTree(int pid) {
+		List<Integer> ret = new ArrayList<Integer>();
+		File[] procDirs = new File("/proc").listFiles();
+		if (procDirs == null)
+			return ret;
+		Map<Integer, List<Integer>> children = new HashMap<Integer, List<Integer>>();
+		for (File dir : procDirs) {
+			int childPid;
+			try {
+				childPid = Integer.parseInt(dir.getName());
+			} catch (NumberFormatException ex) {
+				continue;
+			}
+			String[] stat = readStat(childPid);
+			if (stat == null)
+				continue;
+			int ppid = Integer.parseInt(stat[1]);
+			List<Integer> list = children.get(ppid);
+			if (list == null) {
+				list = new ArrayList<Integer>();
+				children.put(ppid, list);
+			}
+			list.add(childPid);
+		}
+		ret.add(pid);
+		for (int i = 0; i < ret.size(); i++) {
+			List<Integer> list = children.get(ret.get(i));
+			if (list != null)
+				ret.addAll(list);
+		}
+		return ret;
+	}
+
+	/**
+	 * Fields of /proc/[pid]/stat following process name (state is first one).
+	 */
+	private static String[] readStat(int pid) {
+		String line = readFirstLine(new File("/proc/" + pid + "/stat"));
+		if (line == null)
+			return null;
+		int pos = line.lastIndexOf(')');
+		if (pos < 0)
+			return null;
+		return line.substring(pos + 1).trim().split(" ");
+	}
+
+	private static String readFirstLine(File f) {
+		try {
+			BufferedReader br = new BufferedReader(new FileReader(f));
+			try {
+				return br.readLine();
+			} finally {
+				br.close();
+			}
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	private static long readStatusValue(int pid, String key) {
+		try {
+			BufferedReader br = new BufferedReader(new FileReader("/proc/" + pid + "/status"));
+			try {
+				while (true) {
+					String l = br.readLine();
+					if (l == null)
+						break;
+					if (l.startsWith(key + ":")) {
+						String value = l.substring(key.length() + 1).trim();
+						int space = value.indexOf(' ');
+						return Long.parseLong(space > 0 ? value.substring(0, space) : value);
+					}
+				}
+			} finally {
+				br.close();
+			}
+		} catch (Exception ignore) {}
+		return 0;
+	}
+
+	/**
+	 * Sums CPU time and RSS of process tree. Descendants are found through
+	 * children files of known processes or, if kernel doesn't provide them,
+	 * by scanning whole /proc not more often than once in few seconds (pids
+	 * found by last scan are used in between).
+	 */
+	private static class ProcessSampler {
+		private final int pid;
+		private final boolean available;
+		private long cpuTimeMs;
+		private long peakRssKb;
+		private List<Integer> tree = null;
+		private long lastScanTime = 0;
+
+		public ProcessSampler(int pid) {
+			this.pid = pid;
+			this.available = pid > 0 && new File("/proc/" + pid + "/stat").exists();
+			cpuTimeMs = available ? 0 : -1;
+			peakRssKb = available ? 0 : -1;
+		}
+
+		public void sample() {
+			if (!available)
+				return;
+			if (isProcChildrenSupported()) {
+				tree = listProcessTreeByChildren(pid);
+			} else {
+				long now = System.currentTimeMillis();
+				if (tree == null || now - lastScanTime >= PROC_RESCAN_INTERVAL_MS) {
+					tree = scanProcessTree(pid);
+					lastScanTime = now;
+				}
+			}
+			long cpuTicks = 0;
+			long rssSum = 0;
+			for (int childPid : tree) {
+				String[] stat = readStat(childPid);
+				if (stat == null || stat.length < 15)
+					continue;
+				// utime, stime, cutime, cstime (fields 14-17 of stat file)
+				for (int i = 11; i <= 14; i++)
+					cpuTicks += Long.parseLong(stat[i]);
+				rssSum += readStatusValue(childPid, "VmRSS");
+				peakRssKb = Math.max(peakRssKb, readStatusValue(childPid, "VmHWM"));
+			}
+			cpuTimeMs = Math.max(cpuTimeMs, cpuTicks * 1000 / getClockTicksPerSec());
+			peakRssKb = Math.max(peakRssKb, rssSum);
+		}
+
+		public long getCpuTimeMs() {
+			return cpuTimeMs;
+		}
+
+		public long getPeakRssKb() {
+			return peakRssKb;
+		}
+	}
+
+	public static interface Listener {
+		public void onCompletion(ExternalCommand cmd, ExternalToolResult result);
+	}
+}
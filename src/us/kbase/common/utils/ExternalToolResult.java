@@ -0,0 +1,76 @@
+package us.kbase.common.utils;
+
+import java.nio.charset.Charset;
+
+/**
+ * Outcome and resource usage of one external program invocation. CPU time and
+ * peak RSS are sampled from /proc for whole process tree, they are -1 when
+ * this information is not available (non-Linux systems).
+ */
+public class ExternalToolResult {
+	private final String tool;
+	private final int exitCode;
+	private final byte[] stdout;
+	private final String stderr;
+	private final long queueWaitMs;
+	private final long wallTimeMs;
+	private final long cpuTimeMs;
+	private final long peakRssKb;
+
+	public ExternalToolResult(String tool, int exitCode, byte[] stdout, String stderr,
+			long queueWaitMs, long wallTimeMs, long cpuTimeMs, long peakRssKb) {
+		this.tool = tool;
+		this.exitCode = exitCode;
+		this.stdout = stdout;
+		this.stderr = stderr;
+		this.queueWaitMs = queueWaitMs;
+		this.wallTimeMs = wallTimeMs;
+		this.cpuTimeMs = cpuTimeMs;
+		this.peakRssKb = peakRssKb;
+	}
+
+	public String getTool() {
+		return tool;
+	}
+
+	public int getExitCode() {
+		return exitCode;
+	}
+
+	/**
+	 * Captured standard output or null if it was redirected.
+	 */
+	public byte[] getStdout() {
+		return stdout;
+	}
+
+	public String getStdoutText() {
+		return stdout == null ? null : new String(stdout, Charset.forName("UTF-8")).trim();
+	}
+
+	public String getStderr() {
+		return stderr;
+	}
+
+	public long getQueueWaitMs() {
+		return queueWaitMs;
+	}
+
+	public long getWallTimeMs() {
+		return wallTimeMs;
+	}
+
+	public long getCpuTimeMs() {
+		return cpuTimeMs;
+	}
+
+	public long getPeakRssKb() {
+		return peakRssKb;
+	}
+
+	@Override
+	public String toString() {
+		return tool + ": exit=" + exitCode + ", wait=" + queueWaitMs + " ms, wall=" + wallTimeMs +
+				" ms, cpu=" + cpuTimeMs + " ms, peak rss=" + peakRssKb + " kb";
+	}
+}
@@ -0,0 +1,235 @@
+package us.kbase.common.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Byte oriented FASTA reader. Plain files are memory mapped (or read through
+ * file channel when they are too large for mapping), files with ".gz" suffix
+ * and arbitrary input streams are read in large chunks. Records are returned
+ * one by one so that callers don't have to keep whole file in memory.
+ */
+public class FastaByteReader implements Iterable<FastaRecord> {
+	public static final int STREAM_BUFFER_SIZE = 1 << 20;
+	public static final int INFLATER_BUFFER_SIZE = 1 << 16;
+	private static final long MAX_MAPPED_SIZE = 1L << 30;
+
+	private FileInputStream fis = null;
+	private FileChannel channel = null;
+	private InputStream is = null;
+	private ByteBuffer buf;
+	private boolean mapped = false;
+	private boolean pendingHeader = false;
+	private byte[] lineBuf = new byte[256];
+	private byte[] seqBuf = new byte[1 << 12];
+	private FastaRecord lookAhead = null;
+
+	public FastaByteReader(File f) {
+		try {
+			if (f.getName().endsWith(".gz")) {
+				is = new GZIPInputStream(new FileInputStream(f), INFLATER_BUFFER_SIZE);
+				buf = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+				buf.limit(0);
+			} else {
+				fis = new FileInputStream(f);
+				channel = fis.getChannel();
+				long size = channel.size();
+				if (size <= MAX_MAPPED_SIZE) {
+					buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+					mapped = true;
+				} else {
+					buf = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+					buf.limit(0);
+				}
+			}
+		} catch (IOException ex) {
+			close();
+			throw new RuntimeException("Wrong file name: " + f, ex);
+		}
+	}
+
+	public FastaByteReader(InputStream is) {
+		this.is = is;
+		buf = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+		buf.limit(0);
+	}
+
+	public static Map<String, String> readFromFile(File f) {
+		FastaByteReader fr = new FastaByteReader(f);
+		try {
+			return fr.readAll();
+		} finally {
+			fr.close();
+		}
+	}
+
+	public Map<String, String> readAll() {
+		Map<String, String> ret = new LinkedHashMap<String, String>();
+		for (FastaRecord rec : this)
+			ret.put(rec.getId(), rec.getSequenceString());
+		return ret;
+	}
+
+	/**
+	 * Returns next record or null if end of data is reached.
+	 */
+	public FastaRecord read() {
+		if (lookAhead != null) {
+			FastaRecord ret = lookAhead;
+			lookAhead = null;
+			return ret;
+		}
+		if (buf == null)
+			return null;
+		try {
+			return readRecord();
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	@Override
+	public Iterator<FastaRecord> iterator() {
+		return new Iterator<FastaRecord>() {
+			@Override
+			public boolean hasNext() {
+				if (lookAhead == null)
+					lookAhead = read();
+				return lookAhead != null;
+			}
+			@Override
+			public FastaRecord next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				FastaRecord ret = lookAhead;
+				lookAhead = null;
+				return ret;
+			}
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	public void close() {
+		try {
+			if (channel != null)
+				channel.close();
+			if (fis != null)
+				fis.close();
+			if (is != null)
+				is.close();
+		} catch (Exception ex) {
+			System.err.println("WARNING: couldn't close fasta reader, ignored");
+		}
+		channel = null;
+		fis = null;
+		is = null;
+		buf = null;
+	}
+
+	private FastaRecord readRecord() throws IOException {
+		if (!pendingHeader) {
+			while (true) {
+				int c = nextByte();
+				if (c < 0)
+					return null;
+				if (c == '>')
+					break;
+				if (!FastaRecord.isSpace((byte)c)) {
+					int len = readLine(c);
+					throw new IllegalStateException("Wrong caption line: " +
+							new String(lineBuf, 0, len, "US-ASCII"));
+				}
+			}
+		}
+		pendingHeader = false;
+		int headerLen = readLine(-1);
+		byte[] header = new byte[headerLen];
+		System.arraycopy(lineBuf, 0, header, 0, headerLen);
+		FastaRecord caption = new FastaRecord(header, new byte[0]);
+		if (caption.getId().length() == 0)
+			throw new IllegalStateException("Wrong caption line: >" + new String(header, "US-ASCII"));
+		int seqLen = 0;
+		boolean lineStart = true;
+		while (true) {
+			int c = nextByte();
+			if (c < 0)
+				break;
+			if (c == '\n') {
+				lineStart = true;
+			} else if (FastaRecord.isSpace((byte)c)) {
+				continue;
+			} else if (c == '>' && lineStart) {
+				pendingHeader = true;
+				break;
+			} else {
+				if (seqLen == seqBuf.length) {
+					byte[] temp = new byte[seqBuf.length * 2];
+					System.arraycopy(seqBuf, 0, temp, 0, seqLen);
+					seqBuf = temp;
+				}
+				seqBuf[seqLen++] = (byte)c;
+				lineStart = false;
+			}
+		}
+		if (seqLen == 0)
+			throw new IllegalStateException("No sequence for caption: " + caption.getId());
+		byte[] seq = new byte[seqLen];
+		System.arraycopy(seqBuf, 0, seq, 0, seqLen);
+		return new FastaRecord(header, seq);
+	}
+
+	/**
+	 * Reads the rest of current line (starting with given first byte if it's
+	 * non-negative) into lineBuf without trailing white spaces.
+	 */
+	private int readLine(int first) throws IOException {
+		int len = 0;
+		int c = first < 0 ? nextByte() : first;
+		while (c >= 0 && c != '\n') {
+			if (len == lineBuf.length) {
+				byte[] temp = new byte[lineBuf.length * 2];
+				System.arraycopy(lineBuf, 0, temp, 0, len);
+				lineBuf = temp;
+			}
+			lineBuf[len++] = (byte)c;
+			c = nextByte();
+		}
+		while (len > 0 && FastaRecord.isSpace(lineBuf[len - 1]))
+			len--;
+		return len;
+	}
+
+	private int nextByte() throws IOException {
+		if (!buf.hasRemaining() && !fill())
+			return -1;
+		return buf.get() & 0xff;
+	}
+
+	private boolean fill() throws IOException {
+		if (mapped)
+			return false;
+		buf.clear();
+		int len;
+		if (channel != null) {
+			len = channel.read(buf);
+		} else {
+			len = is.read(buf.array(), 0, buf.capacity());
+			if (len > 0)
+				buf.position(len);
+		}
+		buf.flip();
+		return len > 0;
+	}
+}
@@ -22,10 +22,7 @@ public class FastaReader {
     }
 
     public static Map<String, String> readFromFile(File f) {
-    	FastaReader fr = new FastaReader(f);
-    	Map<String, String> ret = fr.readAll();
-    	fr.close();
-    	return ret;
+    	return FastaByteReader.readFromFile(f);
     }
     
     public Map<String, String> readAll() {
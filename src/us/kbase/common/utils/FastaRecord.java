@@ -0,0 +1,78 @@
+package us.kbase.common.utils;
+
+import java.nio.charset.Charset;
+
+/**
+ * One FASTA entry. Header line is kept as raw bytes and split into id and
+ * description only when they are requested.
+ */
+public class FastaRecord {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private final byte[] header;
+	private final byte[] seq;
+	private String id = null;
+	private String descr = null;
+
+	public FastaRecord(byte[] header, byte[] seq) {
+		this.header = header;
+		this.seq = seq;
+	}
+
+	public byte[] getHeader() {
+		return header;
+	}
+
+	public String getId() {
+		if (id == null)
+			parseHeader();
+		return id;
+	}
+
+	public String getDescription() {
+		if (descr == null)
+			parseHeader();
+		return descr;
+	}
+
+	public byte[] getSequence() {
+		return seq;
+	}
+
+	public int getSequenceLength() {
+		return seq.length;
+	}
+
+	public String getSequenceString() {
+		return new String(seq, ASCII);
+	}
+
+	private void parseHeader() {
+		int idStart = 0;
+		while (idStart < header.length && isSpace(header[idStart]))
+			idStart++;
+		int idEnd = idStart;
+		while (idEnd < header.length && !isSpace(header[idEnd]))
+			idEnd++;
+		id = new String(header, idStart, idEnd - idStart, ASCII);
+		StringBuilder sb = new StringBuilder();
+		int pos = idEnd;
+		while (pos < header.length) {
+			while (pos < header.length && isSpace(header[pos]))
+				pos++;
+			int start = pos;
+			while (pos < header.length && !isSpace(header[pos]))
+				pos++;
+			if (pos > start) {
+				if (sb.length() > 0)
+					sb.append(' ');
+				sb.append(new String(header, start, pos - start, ASCII));
+			}
+		}
+		descr = sb.toString();
+	}
+
+	static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+}
@@ -0,0 +1,185 @@
+package us.kbase.kbasetrees;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import us.kbase.common.service.UObject;
+import us.kbase.common.utils.AlignUtil;
+import us.kbase.common.utils.AlignedFastaParser;
+import us.kbase.common.utils.Alignment;
+import us.kbase.common.utils.ExternalCommand;
+import us.kbase.common.utils.ExternalToolExecutor;
+import us.kbase.common.utils.FastaWriter;
+import us.kbase.kbasetrees.util.Metrics;
+import us.kbase.workspace.ObjectSaveData;
+import us.kbase.workspace.ProvenanceAction;
+import us.kbase.workspace.SaveObjectsParams;
+
+/**
+ * Adds new sequences to existing alignment used as fixed profile (mafft --add
+ * or --addfragments with --keeplength) so that work is proportional to number
+ * of added sequences. Result keeps only new rows and refers to input alignment
+ * through parent_msa_ref.
+ */
+public class AlignmentExtensionBuilder extends DefaultTaskBuilder<AddSequencesToAlignmentParams> {
+
+	@Override
+	public Class<AddSequencesToAlignmentParams> getInputDataType() {
+		return AddSequencesToAlignmentParams.class;
+	}
+
+	public AlignmentExtensionBuilder init(File tempDir, File dataDir, ObjectStorage ws) {
+		return (AlignmentExtensionBuilder)super.init(tempDir, dataDir, ws);
+	}
+
+	@Override
+	public String getOutRef(AddSequencesToAlignmentParams inputData) {
+		String objId = inputData.getOutMsaId();
+		if (objId == null)
+			objId = "msa" + System.currentTimeMillis();
+		return inputData.getOutWorkspace() + "/" + objId;
+	}
+
+	@Override
+	public String getTaskDescription() {
+		return "Adding sequences to existing multiple alignment";
+	}
+
+	private File getMafftBin(String name) {
+		return new File(getBinDir(), name + "." + getOsSuffix());
+	}
+
+	/**
+	 * Total length of input sequences.
+	 */
+	@Override
+	public long estimateJobSize(AddSequencesToAlignmentParams inputData) {
+		long ret = 0;
+		if (inputData.getGeneSequences() != null)
+			for (String seq : inputData.getGeneSequences().values())
+				ret += seq.length();
+		return ret;
+	}
+
+	@Override
+	protected List<String> getPrefetchRefs(AddSequencesToAlignmentParams inputData) {
+		if (inputData.getMsaRef() == null || MsaChainLoader.isCached(inputData.getMsaRef()))
+			return null;
+		return Arrays.asList(inputData.getMsaRef());
+	}
+
+	@Override
+	protected void runJob(String token, AddSequencesToAlignmentParams inputData,
+			String jobId, String outRef) throws Exception {
+		ExternalToolExecutor.setCurrentJob(jobId);
+		try {
+			if (inputData.getMsaRef() == null)
+				throw new IllegalStateException("Input alignment reference is not defined");
+			Map<String, String> seqs = inputData.getGeneSequences();
+			if (seqs == null || seqs.isEmpty())
+				throw new IllegalStateException("No sequences to add");
+			JobProgress jobProgress = getProgress().withStages("msa_loading", "alignment", "save");
+			jobProgress.startStage("msa_loading", 0);
+			Metrics.Timer timer = Metrics.startTimer("msa_extension.msa_loading");
+			MsaChainLoader.LoadedChain parent = MsaChainLoader.load(storage, token, inputData.getMsaRef());
+			timer.stop();
+			Map<String, String> profile = parent.getAlignment().toMap();
+			for (String id : seqs.keySet())
+				if (profile.containsKey(id))
+					throw new IllegalStateException("Sequence " + id + " is already present in alignment " + 
+							inputData.getMsaRef());
+			boolean fragments = inputData.getIsFragmentsMode() != null && inputData.getIsFragmentsMode() == 1;
+			long time = System.currentTimeMillis();
+			jobProgress.startStage("alignment", 0);
+			timer = Metrics.startTimer("msa_extension.alignment");
+			Map<String, String> added = addToProfile(profile, seqs, fragments, jobId);
+			timer.stop();
+			System.out.println("[trees] AlignmentExtensionBuilder: " + seqs.size() + " sequences were " +
+					"added to alignment of " + profile.size() + " rows in " + 
+					(System.currentTimeMillis() - time) + " ms");
+			MSA ret = new MSA().withAlignment(added).withRowOrder(new ArrayList<String>(added.keySet()))
+					.withAlignmentLength((long)added.values().iterator().next().length())
+					.withSequenceType(parent.getSequenceType())
+					.withParentMsaRef(parent.getRef());
+			String id = outRef.substring(outRef.indexOf('/') + 1);
+			releaseSlot();
+			jobProgress.startStage("save", 0);
+			saveResult(inputData.getOutWorkspace(), id, token, ret, fragments, inputData);
+		} finally {
+			ExternalToolExecutor.setCurrentJob(null);
+		}
+	}
+
+	private Map<String, String> addToProfile(Map<String, String> profile, Map<String, String> seqs,
+			boolean fragments, String jobId) throws Exception {
+		File jobDir = MultipleAlignmentBuilder.createJobDir(getTempDir(), jobId, 
+				MultipleAlignmentBuilder.getSize(profile) + MultipleAlignmentBuilder.getSize(seqs));
+		try {
+			// rows are numbered to protect ids from being changed by mafft
+			File profileFile = new File(jobDir, "profile.afa");
+			FastaWriter fw = new FastaWriter(profileFile);
+			int num = 0;
+			for (String seq : profile.values())
+				fw.write("" + (++num), seq.replace('.', '-'));
+			fw.close();
+			File addFile = new File(jobDir, "add.fa");
+			fw = new FastaWriter(addFile);
+			List<String> addedIds = new ArrayList<String>();
+			for (Map.Entry<String, String> entry : seqs.entrySet()) {
+				addedIds.add(entry.getKey());
+				fw.write("" + (profile.size() + addedIds.size()), AlignUtil.removeGaps(entry.getValue()));
+			}
+			fw.close();
+			byte[] out = ExternalToolExecutor.run(new ExternalCommand(getMafftBin("mafft"))
+					.env("MAFFT_BINARIES", getMafftBin("mafftlib").getAbsolutePath())
+					.args("--quiet", fragments ? "--addfragments" : "--add", addFile.getName(), 
+							"--keeplength", profileFile.getName())
+					.workDir(jobDir).label("MSA")).getStdout();
+			Alignment aln = AlignedFastaParser.parse(out, true);
+			long len = profile.values().iterator().next().length();
+			if (aln.alignLen != len || aln.protNames.length != profile.size() + addedIds.size())
+				throw new IllegalStateException("Sequences weren't properly added to alignment");
+			Map<String, String> ret = new LinkedHashMap<String, String>();
+			for (int i = 0; i < aln.protNames.length; i++) {
+				int rowNum = Integer.parseInt(aln.protNames[i]);
+				if (rowNum > profile.size())
+					ret.put(addedIds.get(rowNum - profile.size() - 1), aln.alignSeqs[i]);
+			}
+			return ret;
+		} finally {
+			MultipleAlignmentBuilder.deleteRecursively(jobDir);
+		}
+	}
+
+	private void saveResult(String ws, String id, String token, MSA res, boolean fragments,
+			AddSequencesToAlignmentParams inputData) throws Exception {
+		Map<String, String> seqs = inputData.getGeneSequences();
+		inputData.setGeneSequences(null);
+		ObjectSaveData data = new ObjectSaveData().withData(new UObject(res))
+				.withType("KBaseTrees.MSA")
+				.withProvenance(Arrays.asList(new ProvenanceAction()
+				.withDescription(withTimings("Sequences were added to parent MSA using mafft " + 
+						(fragments ? "--addfragments" : "--add") + " --keeplength (sequences are " +
+						"not present in method parameters, residues in insertions relative to parent " +
+						"MSA are not kept in aligned ones)"))
+				.withInputWsObjects(Arrays.asList(inputData.getMsaRef()))
+				.withService("KBaseTrees").withServiceVer(KBaseTreesServer.getServiceVersion())
+				.withMethod("add_sequences_to_alignment")
+				.withMethodParams(Arrays.asList(new UObject(inputData)))));
+		try {
+			long objid = Long.parseLong(id);
+			data.withObjid(objid);
+		} catch (NumberFormatException ex) {
+			data.withName(id);
+		}
+		Metrics.Timer timer = Metrics.startTimer("msa_extension.save");
+		storage.saveObjects(token, new SaveObjectsParams().withWorkspace(ws).withObjects(
+				Arrays.asList(data)));
+		timer.stop();
+		inputData.setGeneSequences(seqs);
+	}
+}
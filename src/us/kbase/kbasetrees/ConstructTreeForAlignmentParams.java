@@ -16,11 +16,14 @@ import com.fasterxml.jackson.annotation.JsonPropertyOrder;
  * <pre>
  * Input data type for construct_tree_for_alignment method. Method produces object of Tree type.
  * msa_ref - (required) reference to MSA input object.
- *         tree_method - (optional) tree construction program, one of 'Clustal' (Neighbor-joining approach) or 
- * 'FastTree' (where Maximum likelihood is used), (default is 'Clustal').
+ *         tree_method - (optional) tree construction program, one of 'Clustal' (Neighbor-joining approach), 
+ * 'FastTree' (where Maximum likelihood is used), 'NJ' or 'BIONJ' (Neighbor-joining
+ * done in-process without external programs), (default is 'Clustal').
  *         min_nongap_percentage_for_trim - (optional) minimum percentage of non-gapped positions in alignment column,
  * if you define this parameter in 50, then columns having less than half non-gapped letters are trimmed
  * (default value is 0 - it means no trimming at all). 
+ *         bootstrap_replicates - (optional) number of bootstrap replicates used to calculate support values
+ * of internal nodes (they are stored as labels of these nodes), default value is 0 - no support.
  *         out_workspace - (required) the workspace to deposit the completed tree
  *         out_tree_id - (optional) the name of the newly constructed tree (will be random if not present or null)
  * </pre>
@@ -32,6 +35,7 @@ import com.fasterxml.jackson.annotation.JsonPropertyOrder;
     "msa_ref",
     "tree_method",
     "min_nongap_percentage_for_trim",
+    "bootstrap_replicates",
     "out_workspace",
     "out_tree_id"
 })
@@ -43,6 +47,8 @@ public class ConstructTreeForAlignmentParams {
     private String treeMethod;
     @JsonProperty("min_nongap_percentage_for_trim")
     private Long minNongapPercentageForTrim;
+    @JsonProperty("bootstrap_replicates")
+    private Long bootstrapReplicates;
     @JsonProperty("out_workspace")
     private String outWorkspace;
     @JsonProperty("out_tree_id")
@@ -94,6 +100,21 @@ public class ConstructTreeForAlignmentParams {
         return this;
     }
 
+    @JsonProperty("bootstrap_replicates")
+    public Long getBootstrapReplicates() {
+        return bootstrapReplicates;
+    }
+
+    @JsonProperty("bootstrap_replicates")
+    public void setBootstrapReplicates(Long bootstrapReplicates) {
+        this.bootstrapReplicates = bootstrapReplicates;
+    }
+
+    public ConstructTreeForAlignmentParams withBootstrapReplicates(Long bootstrapReplicates) {
+        this.bootstrapReplicates = bootstrapReplicates;
+        return this;
+    }
+
     @JsonProperty("out_workspace")
     public String getOutWorkspace() {
         return outWorkspace;
@@ -136,7 +157,7 @@ public class ConstructTreeForAlignmentParams {
 
     @Override
     public String toString() {
-        return ((((((((((((("ConstructTreeForAlignmentParams"+" [msaRef=")+ msaRef)+", treeMethod=")+ treeMethod)+", minNongapPercentageForTrim=")+ minNongapPercentageForTrim)+", outWorkspace=")+ outWorkspace)+", outTreeId=")+ outTreeId)+", additionalProperties=")+ additionalProperties)+"]");
+        return ((((((((((((((("ConstructTreeForAlignmentParams"+" [msaRef=")+ msaRef)+", treeMethod=")+ treeMethod)+", minNongapPercentageForTrim=")+ minNongapPercentageForTrim)+", bootstrapReplicates=")+ bootstrapReplicates)+", outWorkspace=")+ outWorkspace)+", outTreeId=")+ outTreeId)+", additionalProperties=")+ additionalProperties)+"]");
     }
 
 }
@@ -1,67 +1,428 @@
 package us.kbase.kbasetrees;
 
 import java.io.File;
-import java.net.URL;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import us.kbase.auth.AuthToken;
 import us.kbase.common.service.Tuple11;
+import us.kbase.common.service.UObject;
+import us.kbase.common.taskqueue.JobStatuses;
 import us.kbase.common.taskqueue.TaskQueueConfig;
 import us.kbase.common.taskqueue.TaskRunner;
+import us.kbase.common.utils.ExternalToolExecutor;
+import us.kbase.kbasetrees.util.Metrics;
+import us.kbase.kbasetrees.util.WorkspaceUtil;
 import us.kbase.workspace.ListObjectsParams;
 import us.kbase.workspace.ObjectData;
 import us.kbase.workspace.ObjectIdentity;
+import us.kbase.workspace.ObjectSaveData;
+import us.kbase.workspace.ProvenanceAction;
 import us.kbase.workspace.SaveObjectsParams;
 import us.kbase.workspace.SubObjectIdentity;
-import us.kbase.workspace.WorkspaceClient;
 
 public abstract class DefaultTaskBuilder<T> implements TaskRunner<T> {
 
 	protected File tempDir;
 	protected File dataDir;
 	protected ObjectStorage storage;
+	protected JobStatuses jobStatuses;
+	private static final ThreadLocal<List<ObjectSaveData>> savedObjects = 
+			new ThreadLocal<List<ObjectSaveData>>();
+	private static final ThreadLocal<JobProgress> progress = new ThreadLocal<JobProgress>();
+	private static final ThreadLocal<Map<String, ObjectData>> prefetchedObjects = 
+			new ThreadLocal<Map<String, ObjectData>>();
+	private static final ThreadLocal<JobScheduler.Ticket> currentTicket = 
+			new ThreadLocal<JobScheduler.Ticket>();
+	private static final String DEFERRED_JOBS_DIR = "deferred_jobs";
+	private static final Set<String> pendingJobIds = new HashSet<String>();
+	private static int prefetchingJobs = 0;
+	private File deferredJobsDir = null;
+	private String wsUrl = null;
 
 	@Override
 	public void init(TaskQueueConfig queueCfg, Map<String, String> configParams) {
+		ExternalToolExecutor.configure(configParams);
+		MsaChainLoader.configure(configParams);
+		FastTreeRunner.configure(configParams);
+		JobScheduler.configure(configParams);
+		JobDeduplicator.configure(configParams);
+		JobProgress.configure(configParams);
+		TaskExecutors.configure(configParams);
+		WorkspaceStorage.configure(configParams);
+		registerMetrics();
+		jobStatuses = queueCfg.getJobStatuses();
+		wsUrl = queueCfg.getWsUrl();
 		init(getDirParam(configParams, "scratch"), getDirParam(configParams, "data.dir"),
 				createDefaultObjectStorage(queueCfg.getWsUrl()));
+		if (jobStatuses instanceof DeferredJobStatuses) {
+			deferredJobsDir = new File(queueCfg.getQueueDbDir(), DEFERRED_JOBS_DIR);
+			if (!deferredJobsDir.exists())
+				deferredJobsDir.mkdirs();
+			setOwnerOnly(deferredJobsDir);
+			resubmitDeferredJobs();
+		}
 	}
 	
-	public static ObjectStorage createDefaultObjectStorage(final String wsUrl) {
-		return new ObjectStorage() {
-			
+	/**
+	 * Job is put into queue of JobScheduler which starts it when it gets a
+	 * slot (according to its user, task type and estimated size). If TaskQueue
+	 * was given DeferredJobStatuses, this method returns right after that, so
+	 * all pending jobs are scheduled without holding threads of TaskQueue (job
+	 * is kept in "deferred_jobs" folder of queue database till it's done and
+	 * is submitted again after restart), otherwise caller waits for the job.
+	 * Input objects (see getPrefetchRefs) of about as many waiting jobs as
+	 * there are slots are downloaded in I/O pool, so waiting jobs fetch their
+	 * data while others compute. Duplicate of running or recently completed
+	 * identical job (see JobDeduplicator) gets copy of its results.
+	 */
+	@Override
+	public void run(String token, T inputData, String jobId, String outRef) throws Exception {
+		if (deferredJobsDir == null) {
+			new JobRun(token, inputData, jobId, outRef).submit().await();
+			return;
+		}
+		boolean isNew;
+		synchronized (DefaultTaskBuilder.class) {
+			// job could be loaded from deferred_jobs already if restart happened
+			// before TaskQueue removed it from its database
+			isNew = pendingJobIds.add(jobId);
+		}
+		if (isNew) {
+			try {
+				saveDeferredJob(token, inputData, jobId, outRef);
+				new JobRun(token, inputData, jobId, outRef).submit();
+			} catch (Exception ex) {
+				forgetDeferredJob(jobId);
+				throw ex;
+			}
+		}
+		((DeferredJobStatuses)jobStatuses).defer(jobId);
+	}
+
+	private File getDeferredJobFile(String jobId) {
+		return new File(deferredJobsDir, jobId + ".json");
+	}
+
+	/**
+	 * File keeps auth token of caller, so it's readable only by owner of
+	 * process (permissions are set before token is written).
+	 */
+	private void saveDeferredJob(String token, T inputData, String jobId, String outRef) 
+			throws IOException {
+		Map<String, Object> data = new LinkedHashMap<String, Object>();
+		data.put("task_type", getTaskType());
+		data.put("job_id", jobId);
+		data.put("token", token);
+		data.put("out_ref", outRef);
+		data.put("params", inputData);
+		File tempFile = new File(deferredJobsDir, jobId + ".json.tmp");
+		tempFile.delete();
+		if (!tempFile.createNewFile() || !setOwnerOnly(tempFile))
+			throw new IOException("Can't create file with restricted access: " + tempFile);
+		UObject.getMapper().writeValue(tempFile, data);
+		if (!tempFile.renameTo(getDeferredJobFile(jobId)))
+			throw new IOException("Can't save job " + jobId + " into " + deferredJobsDir);
+	}
+
+	private static boolean setOwnerOnly(File f) {
+		boolean ret = f.setReadable(false, false) && f.setReadable(true, true);
+		ret &= f.setWritable(false, false) && f.setWritable(true, true);
+		if (f.isDirectory())
+			ret &= f.setExecutable(false, false) && f.setExecutable(true, true);
+		return ret;
+	}
+
+	private void forgetDeferredJob(String jobId) {
+		getDeferredJobFile(jobId).delete();
+		synchronized (DefaultTaskBuilder.class) {
+			pendingJobIds.remove(jobId);
+		}
+	}
+
+	/**
+	 * Submits jobs of this task type which were taken from TaskQueue but
+	 * weren't finished before restart.
+	 */
+	@SuppressWarnings("unchecked")
+	private void resubmitDeferredJobs() {
+		File[] files = deferredJobsDir.listFiles();
+		if (files == null)
+			return;
+		for (File f : files) {
+			if (!f.getName().endsWith(".json"))
+				continue;
+			try {
+				Map<String, Object> data = UObject.getMapper().readValue(f, Map.class);
+				if (!getTaskType().equals(data.get("task_type")))
+					continue;
+				String jobId = (String)data.get("job_id");
+				synchronized (DefaultTaskBuilder.class) {
+					if (!pendingJobIds.add(jobId))
+						continue;
+				}
+				System.out.println("[trees] DefaultTaskBuilder: job " + jobId + 
+						" is submitted again after restart");
+				new JobRun((String)data.get("token"), UObject.transformObjectToObject(
+						data.get("params"), getInputDataType()), jobId, (String)data.get("out_ref")).submit();
+			} catch (Exception ex) {
+				System.err.println("[trees] DefaultTaskBuilder: can't load job from " + f + 
+						" (" + ex.getMessage() + ")");
+			}
+		}
+	}
+
+	/**
+	 * Reports result of job handed over by TaskQueue the same way as TaskQueue
+	 * does it for jobs finished in its own threads.
+	 */
+	private void completeDeferredJob(String token, String jobId, String outRef, Throwable error) {
+		try {
+			DeferredJobStatuses statuses = (DeferredJobStatuses)jobStatuses;
+			if (error == null) {
+				statuses.completeDeferred(jobId, token, "done", null, wsUrl, outRef);
+			} else {
+				StringWriter sw = new StringWriter();
+				error.printStackTrace(new PrintWriter(sw));
+				statuses.completeDeferred(jobId, token, "Error: " + error.getMessage(), sw.toString(), 
+						wsUrl, outRef);
+			}
+		} catch (Exception ex) {
+			System.err.println("[trees] DefaultTaskBuilder: can't report completion of job " + jobId + 
+					" (" + ex.getMessage() + ")");
+		}
+		forgetDeferredJob(jobId);
+	}
+
+	/**
+	 * Starts downloading of objects in parallel in I/O pool.
+	 */
+	private Map<String, Future<ObjectData>> startPrefetch(final String token, List<String> refs) {
+		Map<String, Future<ObjectData>> ret = new LinkedHashMap<String, Future<ObjectData>>();
+		if (refs == null)
+			return ret;
+		for (final String ref : refs) {
+			if (ret.containsKey(ref))
+				continue;
+			ret.put(ref, TaskExecutors.submitIo(new Callable<ObjectData>() {
+				@Override
+				public ObjectData call() throws Exception {
+					return storage.getObjects(token, Arrays.asList(
+							new ObjectIdentity().withRef(ref))).get(0);
+				}
+			}));
+		}
+		return ret;
+	}
+
+	/**
+	 * Waits for prefetched objects. Objects which can't be loaded are skipped,
+	 * job will meet the same error when it asks for them.
+	 */
+	private Map<String, ObjectData> collectPrefetched(Map<String, Future<ObjectData>> futures, 
+			String jobId) throws InterruptedException {
+		Map<String, ObjectData> ret = new LinkedHashMap<String, ObjectData>();
+		if (futures.isEmpty())
+			return ret;
+		Metrics.Timer timer = Metrics.startTimer("prefetch." + getTaskType());
+		for (Map.Entry<String, Future<ObjectData>> entry : futures.entrySet()) {
+			try {
+				ret.put(entry.getKey(), entry.getValue().get());
+			} catch (ExecutionException ex) {
+				System.err.println("[trees] DefaultTaskBuilder: can't prefetch object " + entry.getKey() + 
+						" for job " + jobId + " (" + ex.getCause().getMessage() + ")");
+			}
+		}
+		timer.stop();
+		return ret;
+	}
+
+	/**
+	 * References of workspace objects loaded by job through getObjects which
+	 * should be downloaded before job gets its computation slot.
+	 */
+	protected List<String> getPrefetchRefs(T inputData) {
+		return null;
+	}
+
+	/**
+	 * Gives slot of job to other jobs when the rest of job is network-bound
+	 * (e.g. saving of results).
+	 */
+	protected void releaseSlot() {
+		JobScheduler.Ticket ticket = currentTicket.get();
+		if (ticket != null)
+			ticket.release();
+	}
+
+	private static void registerMetrics() {
+		Metrics.init();
+		Metrics.registerGauge("queue.depth", new Metrics.Gauge() {
 			@Override
-			public List<Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>> saveObjects(
-					String authToken, SaveObjectsParams params) throws Exception {
-				WorkspaceClient client = new WorkspaceClient(new URL(wsUrl), new AuthToken(authToken));
-				client.setAuthAllowedForHttp(true);
-				return client.saveObjects(params);
+			public double getValue() {
+				return JobScheduler.getQueueDepth();
 			}
-			
+		});
+		Metrics.registerGauge("queue.running", new Metrics.Gauge() {
 			@Override
-			public List<ObjectData> getObjects(String authToken,
-					List<ObjectIdentity> objectIds) throws Exception {
-				WorkspaceClient client = new WorkspaceClient(new URL(wsUrl), new AuthToken(authToken));
-				client.setAuthAllowedForHttp(true);
-				return client.getObjects(objectIds);
+			public double getValue() {
+				return JobScheduler.getRunningCount();
 			}
-			
+		});
+		Metrics.registerGauge("queue.wait.avg_ms", new Metrics.Gauge() {
 			@Override
-			public List<Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>> listObjects(
-					String authToken, ListObjectsParams params) throws Exception {
-				WorkspaceClient client = new WorkspaceClient(new URL(wsUrl), new AuthToken(authToken));
-				client.setAuthAllowedForHttp(true);
-				return client.listObjects(params);
+			public double getValue() {
+				return JobScheduler.getAverageWaitMs();
 			}
-			
+		});
+		Metrics.registerGauge("queue.wait.max_ms", new Metrics.Gauge() {
 			@Override
-		    public List<ObjectData> getObjectSubset(String authToken, List<SubObjectIdentity> objectIds) throws Exception {
-				WorkspaceClient client = new WorkspaceClient(new URL(wsUrl), new AuthToken(authToken));
-				client.setAuthAllowedForHttp(true);
-				return client.getObjectSubset(objectIds);
-		    }
-		};
+			public double getValue() {
+				return JobScheduler.getMaxWaitMs();
+			}
+		});
+	}
+
+	/**
+	 * Progress of job running in current thread (detached instance which isn't
+	 * reported anywhere if there is no such job, e.g. in tests).
+	 */
+	protected JobProgress getProgress() {
+		JobProgress ret = progress.get();
+		return ret == null ? new JobProgress(null, null, null, getTaskType()) : ret;
+	}
+
+	/**
+	 * Adds stage timings of current job to description of provenance action.
+	 */
+	protected static String withTimings(String description) {
+		String timings = Metrics.getJobSummary(ExternalToolExecutor.getCurrentJob());
+		return timings == null ? description : (description + " (stage timings: " + timings + ")");
+	}
+
+	private JobDeduplicator.Entry joinIdenticalJobs(String token, T inputData, String jobId) {
+		if (!JobDeduplicator.isEnabled())
+			return null;
+		try {
+			List<String> refs = resolveInputRefs(token, inputData);
+			if (refs == null)
+				return null;
+			return JobDeduplicator.join(JobDeduplicator.getKey(getTaskType(), inputData, refs), jobId);
+		} catch (Exception ex) {
+			System.err.println("[trees] DefaultTaskBuilder: can't check identical jobs for job " + 
+					jobId + " (" + ex.getMessage() + ")");
+			return null;
+		}
+	}
+
+	/**
+	 * Saved parameters of original job (they could be stripped, e.g. without
+	 * sequences) with output fields of duplicate job.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> withOutputFields(UObject params, Object inputData) {
+		Map<String, Object> ret = new LinkedHashMap<String, Object>(params.asClassInstance(Map.class));
+		Map<String, Object> input = UObject.transformObjectToObject(inputData, Map.class);
+		for (Map.Entry<String, Object> entry : input.entrySet())
+			if (entry.getKey().startsWith("out_"))
+				ret.put(entry.getKey(), entry.getValue());
+		return ret;
+	}
+
+	private void saveCopy(String token, T inputData, String outRef, ObjectSaveData saved, 
+			String sourceJobId) throws Exception {
+		List<ProvenanceAction> provenance = new ArrayList<ProvenanceAction>();
+		if (saved.getProvenance() != null) {
+			for (ProvenanceAction action : saved.getProvenance()) {
+				ProvenanceAction copy = UObject.transformObjectToObject(action, ProvenanceAction.class);
+				if (copy.getMethodParams() != null && copy.getMethodParams().size() == 1)
+					copy.setMethodParams(Arrays.asList(new UObject(withOutputFields(
+							copy.getMethodParams().get(0), inputData))));
+				copy.setDescription((copy.getDescription() == null ? "" : (copy.getDescription() + " ")) + 
+						"(results of identical job " + sourceJobId + " were reused)");
+				provenance.add(copy);
+			}
+		}
+		ObjectSaveData data = new ObjectSaveData().withType(saved.getType()).withData(saved.getData())
+				.withMeta(saved.getMeta()).withProvenance(provenance);
+		String id = outRef.substring(outRef.indexOf('/') + 1);
+		try {
+			data.withObjid(Long.parseLong(id));
+		} catch (NumberFormatException ex) {
+			data.withName(id);
+		}
+		storage.saveObjects(token, new SaveObjectsParams().withWorkspace(
+				outRef.substring(0, outRef.indexOf('/'))).withObjects(Arrays.asList(data)));
+	}
+
+	/**
+	 * Immutable references of input workspace objects of job for detection of
+	 * identical jobs, null means job can't be deduplicated.
+	 */
+	protected List<String> resolveInputRefs(String token, T inputData) throws Exception {
+		return null;
+	}
+
+	/**
+	 * Resolves references into immutable ones by one request for given small
+	 * field of objects.
+	 */
+	protected List<String> resolveRefs(String token, List<String> refs, String field) throws Exception {
+		List<String> ret = new ArrayList<String>();
+		if (refs == null || refs.isEmpty())
+			return ret;
+		List<SubObjectIdentity> ids = new ArrayList<SubObjectIdentity>();
+		for (String ref : refs)
+			ids.add(new SubObjectIdentity().withRef(ref).withIncluded(Arrays.asList(field)));
+		for (ObjectData od : storage.getObjectSubset(token, ids)) {
+			if (od.getInfo() == null)
+				throw new IllegalStateException("No object info for reference resolution");
+			ret.add(WorkspaceUtil.getRefFromObjectInfo(od.getInfo()));
+		}
+		return ret;
+	}
+
+	protected abstract void runJob(String token, T inputData, String jobId, String outRef) throws Exception;
+
+	/**
+	 * Type of tasks used for per-type limits of JobScheduler.
+	 */
+	public String getTaskType() {
+		return getClass().getSimpleName();
+	}
+
+	/**
+	 * Rough size of job (number of residues to process) estimated from input 
+	 * parameters, smaller jobs are started first.
+	 */
+	public long estimateJobSize(T inputData) {
+		return JobScheduler.UNKNOWN_SIZE;
+	}
+
+	private static String getUserName(String token) {
+		try {
+			return new AuthToken(token).getUserName();
+		} catch (Exception ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Storage reusing workspace clients and their connections (see WorkspaceStorage).
+	 */
+	public static ObjectStorage createDefaultObjectStorage(String wsUrl) {
+		return WorkspaceStorage.forUrl(wsUrl);
 	}
 
 	public DefaultTaskBuilder<T> init(File tempDir, File dataDir, ObjectStorage ws) {
@@ -71,7 +432,12 @@ public abstract class DefaultTaskBuilder<T> implements TaskRunner<T> {
 		this.dataDir = dataDir;
 		if (!dataDir.exists())
 			throw new IllegalStateException("Directory " + dataDir + " doesn't exist");
-		this.storage = ws;
+		this.storage = new InstrumentedStorage(ws);
+		return this;
+	}
+
+	public DefaultTaskBuilder<T> withJobStatuses(JobStatuses jobStatuses) {
+		this.jobStatuses = jobStatuses;
 		return this;
 	}
 
@@ -110,4 +476,250 @@ public abstract class DefaultTaskBuilder<T> implements TaskRunner<T> {
 		}
 		return suffix;
 	}
+
+	/**
+	 * Job passing through deduplication, queue of JobScheduler and computation.
+	 * It doesn't hold any thread while it waits, result is reported to caller
+	 * waiting in await() and to DeferredJobStatuses (if job was handed over).
+	 */
+	private class JobRun implements JobScheduler.Job {
+		private final String token;
+		private final T inputData;
+		private final String jobId;
+		private final String outRef;
+		private final JobProgress jobProgress;
+		private final Metrics.Timer jobTimer;
+		private JobDeduplicator.Entry dedup = null;
+		private Map<String, Future<ObjectData>> prefetch = null;
+		private boolean finished = false;
+		private Throwable error = null;
+
+		JobRun(String token, T inputData, String jobId, String outRef) {
+			this.token = token;
+			this.inputData = inputData;
+			this.jobId = jobId;
+			this.outRef = outRef;
+			jobProgress = new JobProgress(jobStatuses, token, jobId, getTaskType());
+			jobTimer = Metrics.startTimer("job." + getTaskType());
+		}
+
+		JobRun submit() {
+			dedup = joinIdenticalJobs(token, inputData, jobId);
+			if (dedup == null || dedup.isOwner()) {
+				enqueue();
+				return this;
+			}
+			jobProgress.setStatus("Waiting for results of identical job " + dedup.getJobId());
+			dedup.whenDone(new Runnable() {
+				@Override
+				public void run() {
+					// listener is called by thread of identical job
+					TaskExecutors.submitIo(new Callable<Void>() {
+						@Override
+						public Void call() {
+							reuseResults();
+							return null;
+						}
+					});
+				}
+			});
+			return this;
+		}
+
+		private void reuseResults() {
+			List<ObjectSaveData> saved = dedup.getResult();
+			if (saved == null) {
+				dedup = null;
+				enqueue();
+				return;
+			}
+			try {
+				System.out.println("[trees] DefaultTaskBuilder: results of job " + dedup.getJobId() + 
+						" are reused for identical job " + jobId);
+				saveCopy(token, inputData, outRef, saved.get(0), dedup.getJobId());
+				Metrics.increment("job." + getTaskType() + ".deduplicated", 1);
+				finish(null);
+			} catch (Throwable ex) {
+				finish(ex);
+			}
+		}
+
+		private void enqueue() {
+			if (JobScheduler.getQueueDepth() > 0 || JobScheduler.getRunningCount() > 0)
+				jobProgress.setStatus("Waiting in queue (" + JobScheduler.getQueueDepth() + 
+						" jobs are waiting, " + JobScheduler.getRunningCount() + " are running)");
+			List<String> refs = getPrefetchRefs(inputData);
+			if (refs != null && !refs.isEmpty()) {
+				int slots = JobScheduler.getSlotCount();
+				boolean early;
+				synchronized (DefaultTaskBuilder.class) {
+					// objects of waiting jobs are kept in memory
+					early = prefetchingJobs < slots;
+					if (early)
+						prefetchingJobs++;
+				}
+				if (early)
+					prefetch = startPrefetch(token, refs);
+			}
+			JobScheduler.submit(getTaskType(), getUserName(token), estimateJobSize(inputData), jobId, this);
+		}
+
+		@Override
+		public void run(JobScheduler.Ticket ticket) {
+			List<ObjectSaveData> saved = new ArrayList<ObjectSaveData>();
+			boolean done = false;
+			Throwable err = null;
+			progress.set(jobProgress);
+			try {
+				Map<String, Future<ObjectData>> futures = prefetch;
+				if (futures == null) {
+					futures = startPrefetch(token, getPrefetchRefs(inputData));
+				} else {
+					synchronized (DefaultTaskBuilder.class) {
+						prefetchingJobs--;
+					}
+				}
+				prefetchedObjects.set(collectPrefetched(futures, jobId));
+				savedObjects.set(saved);
+				currentTicket.set(ticket);
+				Metrics.startJob(jobId);
+				try {
+					runJob(token, inputData, jobId, outRef);
+					done = true;
+				} finally {
+					Metrics.finishJob(jobId);
+					savedObjects.remove();
+					currentTicket.remove();
+					ticket.release();
+				}
+			} catch (Throwable ex) {
+				err = ex;
+			} finally {
+				prefetchedObjects.remove();
+				progress.remove();
+			}
+			if (dedup != null) {
+				if (done && saved.size() == 1) {
+					dedup.complete(saved);
+				} else {
+					dedup.fail();
+				}
+			}
+			finish(err);
+		}
+
+		private void finish(Throwable err) {
+			jobTimer.stop();
+			Metrics.increment("job." + getTaskType() + (err == null ? ".completed" : ".failed"), 1);
+			jobProgress.finish(err == null);
+			synchronized (this) {
+				finished = true;
+				error = err;
+				notifyAll();
+			}
+			if (deferredJobsDir != null)
+				completeDeferredJob(token, jobId, outRef, err);
+		}
+
+		synchronized void await() throws Exception {
+			while (!finished)
+				wait();
+			if (error instanceof Exception)
+				throw (Exception)error;
+			if (error instanceof Error)
+				throw (Error)error;
+		}
+	}
+
+	/**
+	 * Remembers objects saved by current job (for JobDeduplicator) and
+	 * collects timings and sizes of transferred objects.
+	 */
+	private static class InstrumentedStorage implements ObjectStorage {
+		private final ObjectStorage inner;
+
+		InstrumentedStorage(ObjectStorage inner) {
+			this.inner = inner;
+		}
+
+		@Override
+		public List<Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>> saveObjects(
+				String authToken, SaveObjectsParams params) throws Exception {
+			Metrics.Timer timer = Metrics.startTimer("storage.save_objects");
+			List<Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>> ret =
+					inner.saveObjects(authToken, params);
+			timer.stop();
+			if (ret != null)
+				for (Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>> info : ret)
+					countBytes("storage.bytes_written", info);
+			List<ObjectSaveData> saved = savedObjects.get();
+			if (saved != null)
+				saved.addAll(params.getObjects());
+			return ret;
+		}
+
+		@Override
+		public List<ObjectData> getObjects(String authToken, List<ObjectIdentity> objectIds) throws Exception {
+			List<ObjectData> prefetched = takePrefetched(objectIds);
+			if (prefetched != null)
+				return prefetched;
+			Metrics.Timer timer = Metrics.startTimer("storage.get_objects");
+			List<ObjectData> ret = inner.getObjects(authToken, objectIds);
+			timer.stop();
+			countBytes("storage.bytes_read", ret);
+			return ret;
+		}
+
+		@Override
+		public List<Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>> listObjects(
+				String authToken, ListObjectsParams params) throws Exception {
+			Metrics.Timer timer = Metrics.startTimer("storage.list_objects");
+			try {
+				return inner.listObjects(authToken, params);
+			} finally {
+				timer.stop();
+			}
+		}
+
+		@Override
+		public List<ObjectData> getObjectSubset(String authToken, List<SubObjectIdentity> objectIds) throws Exception {
+			Metrics.Timer timer = Metrics.startTimer("storage.get_object_subset");
+			try {
+				return inner.getObjectSubset(authToken, objectIds);
+			} finally {
+				timer.stop();
+			}
+		}
+
+		/**
+		 * Returns objects downloaded before job was started (each is given
+		 * only once) if all of them were prefetched.
+		 */
+		private static List<ObjectData> takePrefetched(List<ObjectIdentity> objectIds) {
+			Map<String, ObjectData> prefetched = prefetchedObjects.get();
+			if (prefetched == null || prefetched.isEmpty())
+				return null;
+			for (ObjectIdentity id : objectIds)
+				if (id.getRef() == null || !prefetched.containsKey(id.getRef()))
+					return null;
+			List<ObjectData> ret = new ArrayList<ObjectData>();
+			for (ObjectIdentity id : objectIds)
+				ret.add(prefetched.remove(id.getRef()));
+			if (ret.contains(null))
+				return null;
+			return ret;
+		}
+
+		private static void countBytes(String counter, List<ObjectData> objects) {
+			if (objects != null)
+				for (ObjectData od : objects)
+					countBytes(counter, od.getInfo());
+		}
+
+		private static void countBytes(String counter, 
+				Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>> info) {
+			if (info != null && info.getE10() != null)
+				Metrics.increment(counter, info.getE10());
+		}
+	}
 }
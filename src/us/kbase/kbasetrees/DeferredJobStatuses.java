@@ -0,0 +1,58 @@
+package us.kbase.kbasetrees;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import us.kbase.common.taskqueue.JobStatuses;
+
+/**
+ * JobStatuses given to TaskQueue which lets runners finish jobs later than
+ * TaskQueue thinks. Runner hands job over to JobScheduler, marks it as
+ * deferred and returns, so TaskQueue's thread is free for the next job.
+ * Completion reported by TaskQueue for deferred job is skipped, runner
+ * reports real result through completeDeferred when job is done.
+ */
+public class DeferredJobStatuses implements JobStatuses {
+	private final JobStatuses inner;
+	private final Set<String> deferred = new HashSet<String>();
+
+	public DeferredJobStatuses(JobStatuses inner) {
+		this.inner = inner;
+	}
+
+	/**
+	 * Marks job which TaskQueue is going to complete right after runner returns.
+	 */
+	public synchronized void defer(String jobId) {
+		deferred.add(jobId);
+	}
+
+	@Override
+	public String createAndStartJob(String token, String status, String desc,
+			String initProgressPtype, String estComplete) throws Exception {
+		return inner.createAndStartJob(token, status, desc, initProgressPtype, estComplete);
+	}
+
+	@Override
+	public void updateJob(String job, String token, String status, String estComplete) throws Exception {
+		inner.updateJob(job, token, status, estComplete);
+	}
+
+	@Override
+	public void completeJob(String job, String token, String status, String error,
+			String wsUrl, String outRef) throws Exception {
+		synchronized (this) {
+			if (deferred.remove(job))
+				return;
+		}
+		inner.completeJob(job, token, status, error, wsUrl, outRef);
+	}
+
+	/**
+	 * Reports result of deferred job.
+	 */
+	public void completeDeferred(String job, String token, String status, String error,
+			String wsUrl, String outRef) throws Exception {
+		inner.completeJob(job, token, status, error, wsUrl, outRef);
+	}
+}
@@ -0,0 +1,99 @@
+package us.kbase.kbasetrees;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import us.kbase.common.utils.AlignmentMatrix;
+import us.kbase.common.utils.ExternalCommand;
+import us.kbase.common.utils.ExternalToolExecutor;
+
+/**
+ * Runs FastTree for in-memory alignment streamed into its stdin (no temporary
+ * files). In case job has more than one CPU in its budget and FastTreeMP
+ * binary is present in bin folder it's used with OMP_NUM_THREADS set to this
+ * budget. Timing of every invocation is collected by ExternalToolExecutor.
+ * Configuration parameters: "fasttree.preset" (one of "fastest" (default),
+ * "default", "accurate") and "fasttree.threads" (CPU budget of one job, by
+ * default "cpu.threads" divided by number of job slots of JobScheduler).
+ * Both binaries are accounted as tool "FastTree", so its timeout and
+ * concurrency limits of ExternalToolExecutor apply to FastTreeMP as well.
+ */
+public class FastTreeRunner {
+	public static final String CFG_PROP_PRESET = "fasttree.preset";
+	public static final String CFG_PROP_THREADS = "fasttree.threads";
+	public static final String PRESET_FASTEST = "fastest";
+	public static final String PRESET_DEFAULT = "default";
+	public static final String PRESET_ACCURATE = "accurate";
+
+	private static String preset = PRESET_FASTEST;
+	private static int jobThreads = 0;
+
+	public static synchronized void configure(Map<String, String> configParams) {
+		String presetText = configParams.get(CFG_PROP_PRESET);
+		if (presetText != null && presetText.trim().length() > 0)
+			setPreset(presetText.trim());
+		String threadsText = configParams.get(CFG_PROP_THREADS);
+		jobThreads = threadsText == null || threadsText.trim().length() == 0 ? 0 :
+			Math.max(1, Integer.parseInt(threadsText.trim()));
+	}
+
+	public static synchronized void setPreset(String presetName) {
+		getPresetArgs(presetName);
+		preset = presetName;
+	}
+
+	public static synchronized String getPreset() {
+		return preset;
+	}
+
+	/**
+	 * Number of threads FastTree could use in one job.
+	 */
+	public static int getJobThreads() {
+		synchronized (FastTreeRunner.class) {
+			if (jobThreads > 0)
+				return jobThreads;
+		}
+		// CPU pool is shared by all jobs which could run at the same time
+		return Math.max(1, TaskExecutors.getCpuThreads() / Math.max(1, JobScheduler.getSlotCount()));
+	}
+
+	public static synchronized void setJobThreads(int threads) {
+		jobThreads = Math.max(1, threads);
+	}
+
+	public static List<String> getPresetArgs(String presetName) {
+		if (presetName.equals(PRESET_FASTEST))
+			return Arrays.asList("-fastest");
+		if (presetName.equals(PRESET_DEFAULT))
+			return new ArrayList<String>();
+		if (presetName.equals(PRESET_ACCURATE))
+			return Arrays.asList("-spr", "4", "-mlacc", "2", "-slownni");
+		throw new IllegalStateException("Unsupported FastTree preset: " + presetName);
+	}
+
+	/**
+	 * Returns tree in Newick format.
+	 * @param threads number of threads (1 means single-threaded FastTree)
+	 */
+	public static String run(File binDir, String osSuffix, File workDir, AlignmentMatrix aln,
+			int threads, String... extraArgs) throws Exception {
+		File mpBin = new File(binDir, "FastTreeMP." + osSuffix);
+		boolean mp = threads > 1 && mpBin.exists();
+		String presetName = getPreset();
+		List<String> args = new ArrayList<String>(getPresetArgs(presetName));
+		args.addAll(Arrays.asList(extraArgs));
+		ExternalCommand cmd = new ExternalCommand(mp ? mpBin : new File(binDir, "FastTree." + osSuffix))
+				.tool("FastTree").args(args.toArray(new String[args.size()])).stdin(aln.getFastaStream())
+				.label(mp ? ("FastTreeMP (" + threads + " threads, " + presetName + ")") :
+					("FastTree (" + presetName + ")"));
+		if (workDir != null)
+			cmd.workDir(workDir);
+		if (mp)
+			cmd.env("OMP_NUM_THREADS", String.valueOf(threads));
+		return ExternalToolExecutor.run(cmd).getStdoutText();
+	}
+}
@@ -0,0 +1,270 @@
+package us.kbase.kbasetrees;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import us.kbase.common.service.UObject;
+import us.kbase.workspace.ObjectSaveData;
+
+/**
+ * Coalesces identical jobs. Job is identified by its task type, input
+ * parameters except output location ("out_*" fields) and immutable versions
+ * of input workspace objects. Duplicate of running job is notified when it's
+ * done (see Entry.whenDone), and objects saved by first job (kept in memory
+ * for "job.dedup.ttl.minutes", at most "job.dedup.cache.size.mb" of serialized
+ * data of saved objects) are saved again under output location of duplicate
+ * instead of computation. Failed jobs are not remembered.
+ */
+public class JobDeduplicator {
+	public static final String CFG_PROP_TTL = "job.dedup.ttl.minutes";
+	public static final String CFG_PROP_CACHE_SIZE = "job.dedup.cache.size.mb";
+	private static final long DEFAULT_TTL_MINUTES = 60;
+	private static final long DEFAULT_CACHE_SIZE_MB = 64;
+
+	private static long ttlMs = 0;
+	private static long maxCompletedSize = DEFAULT_CACHE_SIZE_MB << 20;
+	private static final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private static long duplicates = 0;
+
+	public static synchronized void configure(Map<String, String> configParams) {
+		String ttl = configParams.get(CFG_PROP_TTL);
+		long ttlMinutes = ttl == null || ttl.trim().length() == 0 ? DEFAULT_TTL_MINUTES :
+			Long.parseLong(ttl.trim());
+		String size = configParams.get(CFG_PROP_CACHE_SIZE);
+		setLimits(ttlMinutes * 60000, (size == null || size.trim().length() == 0 ?
+				DEFAULT_CACHE_SIZE_MB : Long.parseLong(size.trim())) << 20);
+	}
+
+	/**
+	 * Zero TTL switches deduplication off, size limit is applied to total size
+	 * of serialized data of objects saved by completed jobs.
+	 */
+	public static synchronized void setLimits(long ttlMillis, long maxCompletedBytes) {
+		ttlMs = ttlMillis;
+		maxCompletedSize = maxCompletedBytes;
+		evict();
+	}
+
+	public static synchronized int getCompletedCount() {
+		int ret = 0;
+		for (Entry e : entries.values())
+			if (e.completionTime > 0)
+				ret++;
+		return ret;
+	}
+
+	public static synchronized boolean isEnabled() {
+		return ttlMs > 0;
+	}
+
+	public static synchronized long getDuplicateCount() {
+		return duplicates;
+	}
+
+	/**
+	 * Canonical key of job, input references should be already resolved into
+	 * immutable ones.
+	 */
+	@SuppressWarnings("unchecked")
+	public static String getKey(String taskType, Object inputData, List<String> resolvedRefs) {
+		Map<String, Object> params = new TreeMap<String, Object>(
+				UObject.transformObjectToObject(inputData, Map.class));
+		for (Iterator<String> it = params.keySet().iterator(); it.hasNext(); )
+			if (it.next().startsWith("out_"))
+				it.remove();
+		params.put("resolved_refs", resolvedRefs);
+		try {
+			byte[] json = UObject.getMapper().writeValueAsBytes(params);
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update((taskType + "\n").getBytes("UTF-8"));
+			md.update(json);
+			StringBuilder ret = new StringBuilder();
+			for (byte b : md.digest())
+				ret.append(String.format("%02x", b & 0xff));
+			return ret.toString();
+		} catch (Exception ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Returns entry of running or completed identical job, or new entry which
+	 * should be completed or failed by caller (see {@link Entry#isOwner()}).
+	 */
+	public static synchronized Entry join(String key, String jobId) {
+		evict();
+		Entry ret = entries.get(key);
+		if (ret != null) {
+			duplicates++;
+			return ret.duplicate();
+		}
+		ret = new Entry(key, jobId, true);
+		entries.put(key, ret);
+		return ret;
+	}
+
+	private static synchronized void finish(Entry entry, List<ObjectSaveData> saved) {
+		if (saved == null) {
+			entries.remove(entry.key);
+		} else {
+			entry.size = getSize(saved);
+			entry.completionTime = System.currentTimeMillis();
+			// completed jobs are kept in order of completion
+			entries.remove(entry.key);
+			entries.put(entry.key, entry);
+		}
+		evict();
+	}
+
+	private static void evict() {
+		long now = System.currentTimeMillis();
+		long completedSize = 0;
+		for (Entry e : entries.values())
+			if (e.completionTime > 0)
+				completedSize += e.size;
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+			Entry e = it.next();
+			if (e.completionTime > 0 && (completedSize > maxCompletedSize || now - e.completionTime > ttlMs)) {
+				it.remove();
+				completedSize -= e.size;
+			}
+		}
+	}
+
+	/**
+	 * Size of serialized data of saved objects (it's what copies of them are
+	 * made of).
+	 */
+	private static long getSize(List<ObjectSaveData> saved) {
+		final long[] ret = new long[] { 0 };
+		OutputStream counter = new OutputStream() {
+			@Override
+			public void write(int b) {
+				ret[0]++;
+			}
+			@Override
+			public void write(byte[] b, int off, int len) {
+				ret[0] += len;
+			}
+		};
+		try {
+			for (ObjectSaveData obj : saved)
+				UObject.getMapper().writeValue(counter, obj.getData());
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+		return ret[0];
+	}
+
+	public static class Entry {
+		private final String key;
+		private final String jobId;
+		private final boolean owner;
+		private final Entry shared;
+		private List<ObjectSaveData> saved = null;
+		private boolean done = false;
+		private List<Runnable> listeners = new ArrayList<Runnable>();
+		private long completionTime = 0;
+		private long size = 0;
+
+		private Entry(String key, String jobId, boolean owner) {
+			this.key = key;
+			this.jobId = jobId;
+			this.owner = owner;
+			this.shared = null;
+		}
+
+		private Entry(Entry shared) {
+			this.key = shared.key;
+			this.jobId = shared.jobId;
+			this.owner = false;
+			this.shared = shared;
+		}
+
+		private Entry duplicate() {
+			return new Entry(this);
+		}
+
+		/**
+		 * True if caller should run the job, otherwise it should wait for
+		 * results of identical job.
+		 */
+		public boolean isOwner() {
+			return owner;
+		}
+
+		/**
+		 * Job which computes results.
+		 */
+		public String getJobId() {
+			return jobId;
+		}
+
+		public void complete(List<ObjectSaveData> savedObjects) {
+			List<Runnable> toCall;
+			synchronized (this) {
+				saved = new ArrayList<ObjectSaveData>(savedObjects);
+				done = true;
+				toCall = listeners;
+				listeners = null;
+			}
+			finish(this, saved);
+			callListeners(toCall);
+		}
+
+		public void fail() {
+			List<Runnable> toCall;
+			synchronized (this) {
+				done = true;
+				toCall = listeners;
+				listeners = null;
+			}
+			finish(this, null);
+			callListeners(toCall);
+		}
+
+		private static void callListeners(List<Runnable> toCall) {
+			if (toCall == null)
+				return;
+			for (Runnable listener : toCall) {
+				try {
+					listener.run();
+				} catch (Exception ex) {
+					System.err.println("[trees] JobDeduplicator: listener error (" + ex.getMessage() + ")");
+				}
+			}
+		}
+
+		/**
+		 * Calls listener when identical job is finished (right away if it's
+		 * already done) without blocking of caller, see getResult().
+		 */
+		public void whenDone(Runnable listener) {
+			Entry target = shared == null ? this : shared;
+			synchronized (target) {
+				if (!target.done) {
+					target.listeners.add(listener);
+					return;
+				}
+			}
+			listener.run();
+		}
+
+		/**
+		 * Objects saved by identical job which is already done (null if it failed).
+		 */
+		public List<ObjectSaveData> getResult() {
+			Entry target = shared == null ? this : shared;
+			synchronized (target) {
+				return target.saved;
+			}
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package us.kbase.kbasetrees;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import us.kbase.common.taskqueue.JobStatuses;
+import us.kbase.kbasetrees.util.Metrics;
+
+/**
+ * Progress of running job (current stage out of stages declared by builder
+ * and number of processed items of stage) reported through
+ * JobStatuses.updateJob. Updates are sent by one background thread not more
+ * often than once in "progress.update.interval.sec" per job (the latest
+ * status wins), so slow job status service never blocks computation.
+ * Estimated completion time is based on rate of items of current stage and
+ * average durations of next stages in previous jobs of the same task type
+ * (kept as "stage.&lt;TaskType&gt;.&lt;stage&gt;" timers of Metrics).
+ */
+public class JobProgress {
+	public static final String CFG_PROP_UPDATE_INTERVAL = "progress.update.interval.sec";
+	private static final long DEFAULT_UPDATE_INTERVAL_SEC = 30;
+	private static final String EST_COMPLETE_FORMAT = "yyyy-MM-dd'T'HH:mm:ssZ";
+
+	private static long intervalMs = DEFAULT_UPDATE_INTERVAL_SEC * 1000;
+	private static ScheduledExecutorService sender = null;
+
+	private final JobStatuses statuses;
+	private final String token;
+	private final String jobId;
+	private final String taskType;
+	private List<String> stages = new ArrayList<String>();
+	private String stage = null;
+	private long stageStartTime = 0;
+	private int done = 0;
+	private int total = 0;
+	private String status = null;
+	private long estComplete = -1;
+	private String[] pending = null;
+	private boolean scheduled = false;
+	private long lastSentTime = 0;
+	private boolean closed = false;
+
+	public static synchronized void configure(Map<String, String> configParams) {
+		String interval = configParams.get(CFG_PROP_UPDATE_INTERVAL);
+		setUpdateInterval(interval == null || interval.trim().length() == 0 ?
+				DEFAULT_UPDATE_INTERVAL_SEC * 1000 : (Long.parseLong(interval.trim()) * 1000));
+	}
+
+	public static synchronized void setUpdateInterval(long intervalMillis) {
+		intervalMs = intervalMillis;
+	}
+
+	private static synchronized long getUpdateInterval() {
+		return intervalMs;
+	}
+
+	private static synchronized ScheduledExecutorService getSender() {
+		if (sender == null) {
+			sender = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread ret = new Thread(r, "job-progress");
+					ret.setDaemon(true);
+					return ret;
+				}
+			});
+		}
+		return sender;
+	}
+
+	/**
+	 * Statuses could be null, in this case progress is only tracked locally
+	 * (stage durations are still recorded).
+	 */
+	public JobProgress(JobStatuses statuses, String token, String jobId, String taskType) {
+		this.statuses = statuses;
+		this.token = token;
+		this.jobId = jobId;
+		this.taskType = taskType;
+	}
+
+	/**
+	 * Declares stages which job is going to pass (in order).
+	 */
+	public synchronized JobProgress withStages(String... stageNames) {
+		stages = new ArrayList<String>(Arrays.asList(stageNames));
+		return this;
+	}
+
+	/**
+	 * Reports arbitrary status (e.g. waiting in queue) without estimate.
+	 */
+	public synchronized void setStatus(String text) {
+		status = text;
+		estComplete = -1;
+		send();
+	}
+
+	/**
+	 * Starts next stage, total is number of items processed in stage (0 if
+	 * they are not counted). Previous stage is considered as completed.
+	 */
+	public synchronized void startStage(String stageName, int itemCount) {
+		long now = System.currentTimeMillis();
+		recordStage(now);
+		stage = stageName;
+		stageStartTime = now;
+		done = 0;
+		total = itemCount;
+		update(now);
+	}
+
+	public synchronized void setDone(int itemsDone) {
+		done = itemsDone;
+		update(System.currentTimeMillis());
+	}
+
+	public synchronized void step() {
+		setDone(done + 1);
+	}
+
+	/**
+	 * Stops reporting, duration of last stage is recorded only for successful job.
+	 */
+	public synchronized void finish(boolean success) {
+		if (success)
+			recordStage(System.currentTimeMillis());
+		stage = null;
+		closed = true;
+		pending = null;
+	}
+
+	public synchronized String getStatus() {
+		return status;
+	}
+
+	/**
+	 * Estimated time of completion in milliseconds or -1 if it's unknown.
+	 */
+	public synchronized long getEstimatedCompletion() {
+		return estComplete;
+	}
+
+	private void recordStage(long now) {
+		if (stage != null)
+			Metrics.record(getStageTimer(stage), now - stageStartTime);
+	}
+
+	private String getStageTimer(String stageName) {
+		return "stage." + taskType + "." + stageName;
+	}
+
+	private void update(long now) {
+		int pos = stages.indexOf(stage);
+		StringBuilder text = new StringBuilder();
+		if (pos >= 0)
+			text.append("Stage ").append(pos + 1).append(" of ").append(stages.size()).append(": ");
+		text.append(stage);
+		if (total > 0)
+			text.append(" (").append(done).append("/").append(total).append(")");
+		status = text.toString();
+		estComplete = estimateCompletion(pos, now);
+		send();
+	}
+
+	private long estimateCompletion(int pos, long now) {
+		if (pos < 0)
+			return -1;
+		long elapsed = now - stageStartTime;
+		long remaining;
+		if (total > 0 && done > 0) {
+			remaining = elapsed * (total - done) / done;
+		} else {
+			long avg = getAverageMs(stage);
+			if (avg < 0)
+				return -1;
+			remaining = Math.max(0, avg - elapsed);
+		}
+		for (String next : stages.subList(pos + 1, stages.size())) {
+			long avg = getAverageMs(next);
+			if (avg < 0)
+				return -1;
+			remaining += avg;
+		}
+		return now + remaining;
+	}
+
+	private long getAverageMs(String stageName) {
+		long[] stats = Metrics.getTimer(getStageTimer(stageName));
+		if (stats == null || stats[0] == 0)
+			return -1;
+		return stats[1] / stats[0];
+	}
+
+	private void send() {
+		if (statuses == null || closed)
+			return;
+		pending = new String[] {status, estComplete < 0 ? null :
+			new SimpleDateFormat(EST_COMPLETE_FORMAT).format(new Date(estComplete))};
+		if (scheduled)
+			return;
+		scheduled = true;
+		long delay = Math.max(0, lastSentTime + getUpdateInterval() - System.currentTimeMillis());
+		getSender().schedule(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void flush() {
+		String[] update;
+		synchronized (this) {
+			scheduled = false;
+			if (closed || pending == null)
+				return;
+			update = pending;
+			pending = null;
+			lastSentTime = System.currentTimeMillis();
+		}
+		try {
+			statuses.updateJob(jobId, token, update[0], update[1]);
+		} catch (Exception ex) {
+			System.err.println("[trees] JobProgress: can't update status of job " + jobId +
+					" (" + ex.getMessage() + ")");
+		}
+	}
+}
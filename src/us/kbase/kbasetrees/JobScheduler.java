@@ -0,0 +1,283 @@
+package us.kbase.kbasetrees;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import us.kbase.kbasetrees.util.Metrics;
+
+/**
+ * In-tree queue of jobs in front of task runners. TaskQueue hands jobs to
+ * its threads in FIFO order, so runners only submit them here (see
+ * DeferredJobStatuses) and all pending jobs wait without holding a thread.
+ * Submitted job is run in thread of scheduler when it gets a slot.
+ * Free slot goes to waiting job of user having fewest running jobs, then of
+ * user whose previous job was started earliest (round robin between users),
+ * then to job with smallest estimated size, then to the oldest one. Besides common
+ * limit ("thread.count") number of running jobs of one task type could be
+ * capped ("queue.max.running.&lt;TaskType&gt;", task type is simple name of
+ * builder class) and there are extra slots ("queue.fast.lane.slots") given
+ * only to jobs with estimated size up to "queue.fast.lane.max.size".
+ */
+public class JobScheduler {
+	public static final String CFG_PROP_MAX_RUNNING_PREFIX = "queue.max.running.";
+	public static final String CFG_PROP_FAST_LANE_SLOTS = "queue.fast.lane.slots";
+	public static final String CFG_PROP_FAST_LANE_MAX_SIZE = "queue.fast.lane.max.size";
+	/**
+	 * Size of jobs which can't be estimated from input parameters.
+	 */
+	public static final long UNKNOWN_SIZE = Long.MAX_VALUE;
+	private static final long DEFAULT_FAST_LANE_MAX_SIZE = 100000;
+
+	private static int maxRunning = Integer.MAX_VALUE;
+	private static int fastLaneSlots = 0;
+	private static long fastLaneMaxSize = DEFAULT_FAST_LANE_MAX_SIZE;
+	private static final Map<String, Integer> typeLimits = new HashMap<String, Integer>();
+
+	private static ExecutorService workers = null;
+	private static final List<Ticket> waiting = new ArrayList<Ticket>();
+	private static final Map<String, Integer> runningByUser = new HashMap<String, Integer>();
+	private static final Map<String, Integer> runningByType = new HashMap<String, Integer>();
+	private static final Map<String, Long> lastStartByUser = new HashMap<String, Long>();
+	private static int running = 0;
+	private static int runningInFastLane = 0;
+	private static long arrivals = 0;
+	private static long startedJobs = 0;
+	private static long totalWaitMs = 0;
+	private static long maxWaitMs = 0;
+
+	public static synchronized void configure(Map<String, String> configParams) {
+		String threadCount = configParams.get(KBaseTreesServer.CFG_PROP_THREAD_COUNT);
+		int limit = 1;
+		if (threadCount != null && threadCount.trim().length() > 0)
+			limit = Math.max(1, Integer.parseInt(threadCount.trim()));
+		String slots = configParams.get(CFG_PROP_FAST_LANE_SLOTS);
+		int fastSlots = slots == null || slots.trim().length() == 0 ? 0 : Integer.parseInt(slots.trim());
+		String maxSize = configParams.get(CFG_PROP_FAST_LANE_MAX_SIZE);
+		long fastMaxSize = maxSize == null || maxSize.trim().length() == 0 ?
+				DEFAULT_FAST_LANE_MAX_SIZE : Long.parseLong(maxSize.trim());
+		Map<String, Integer> limits = new HashMap<String, Integer>();
+		for (Map.Entry<String, String> entry : configParams.entrySet()) {
+			if (entry.getKey().startsWith(CFG_PROP_MAX_RUNNING_PREFIX) && entry.getValue() != null &&
+					entry.getValue().trim().length() > 0)
+				limits.put(entry.getKey().substring(CFG_PROP_MAX_RUNNING_PREFIX.length()),
+						Integer.parseInt(entry.getValue().trim()));
+		}
+		setLimits(limit, limits, fastSlots, fastMaxSize);
+	}
+
+	public static synchronized void setLimits(int maxRunningJobs, Map<String, Integer> maxRunningByType,
+			int fastLaneSlotCount, long fastLaneMaxJobSize) {
+		maxRunning = maxRunningJobs;
+		typeLimits.clear();
+		if (maxRunningByType != null)
+			typeLimits.putAll(maxRunningByType);
+		fastLaneSlots = fastLaneSlotCount;
+		fastLaneMaxSize = fastLaneMaxJobSize;
+		dispatch();
+	}
+
+	/**
+	 * Number of jobs which could run at the same time (common and fast lane slots).
+	 */
+	public static synchronized int getSlotCount() {
+		return maxRunning == Integer.MAX_VALUE ? maxRunning : (maxRunning + fastLaneSlots);
+	}
+
+	/**
+	 * Puts job into queue and returns immediately, job is run in thread of
+	 * scheduler when it gets a slot. Slot is released when job returns (or
+	 * earlier through ticket).
+	 */
+	public static synchronized Ticket submit(String taskType, String user, long size, String jobId,
+			Job job) {
+		Ticket ret = new Ticket(taskType, user == null ? "" : user, size, jobId, arrivals++, job);
+		waiting.add(ret);
+		dispatch();
+		return ret;
+	}
+
+	/**
+	 * Starts waiting jobs while there are free slots for them.
+	 */
+	private static void dispatch() {
+		while (true) {
+			Ticket next = null;
+			boolean nextInFastLane = false;
+			for (Ticket t : waiting) {
+				int typeRunning = get(runningByType, t.taskType);
+				Integer typeLimit = typeLimits.get(t.taskType);
+				if (typeLimit != null && typeRunning >= typeLimit)
+					continue;
+				boolean fastLane = false;
+				if (running - runningInFastLane >= maxRunning) {
+					if (t.size > fastLaneMaxSize || runningInFastLane >= fastLaneSlots)
+						continue;
+					fastLane = true;
+				}
+				if (next == null || isBefore(t, next)) {
+					next = t;
+					nextInFastLane = fastLane;
+				}
+			}
+			if (next == null)
+				return;
+			start(next, nextInFastLane);
+		}
+	}
+
+	private static void start(final Ticket ticket, boolean fastLane) {
+		waiting.remove(ticket);
+		ticket.started = true;
+		ticket.fastLane = fastLane;
+		running++;
+		if (fastLane)
+			runningInFastLane++;
+		runningByUser.put(ticket.user, get(runningByUser, ticket.user) + 1);
+		runningByType.put(ticket.taskType, get(runningByType, ticket.taskType) + 1);
+		long waitMs = System.currentTimeMillis() - ticket.arrivalTime;
+		lastStartByUser.put(ticket.user, ++startedJobs);
+		totalWaitMs += waitMs;
+		maxWaitMs = Math.max(maxWaitMs, waitMs);
+		Metrics.record("queue.wait." + ticket.taskType, waitMs);
+		if (waitMs > 1000)
+			System.out.println("[trees] JobScheduler: job " + ticket.jobId + " (" + ticket.taskType + 
+					") was started after waiting for " + waitMs + " ms" + (fastLane ? " in fast lane" : "") +
+					", queue depth: " + waiting.size());
+		getWorkers().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ticket.job.run(ticket);
+				} catch (Throwable ex) {
+					System.err.println("[trees] JobScheduler: job " + ticket.jobId + " failed (" + 
+							ex.getMessage() + ")");
+				} finally {
+					release(ticket);
+				}
+			}
+		});
+	}
+
+	private static ExecutorService getWorkers() {
+		if (workers == null) {
+			workers = Executors.newCachedThreadPool(new ThreadFactory() {
+				private int count = 0;
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread ret = new Thread(r, "trees-job-" + (++count));
+					ret.setDaemon(true);
+					return ret;
+				}
+			});
+		}
+		return workers;
+	}
+
+	private static boolean isBefore(Ticket t1, Ticket t2) {
+		int running1 = get(runningByUser, t1.user);
+		int running2 = get(runningByUser, t2.user);
+		if (running1 != running2)
+			return running1 < running2;
+		Long lastStart1 = lastStartByUser.get(t1.user);
+		Long lastStart2 = lastStartByUser.get(t2.user);
+		long order1 = lastStart1 == null ? 0 : lastStart1;
+		long order2 = lastStart2 == null ? 0 : lastStart2;
+		if (order1 != order2)
+			return order1 < order2;
+		if (t1.size != t2.size)
+			return t1.size < t2.size;
+		return t1.seq < t2.seq;
+	}
+
+	private static int get(Map<String, Integer> map, String key) {
+		Integer ret = map.get(key);
+		return ret == null ? 0 : ret;
+	}
+
+	/**
+	 * Frees slot of started job or removes job from queue if it's still waiting.
+	 */
+	private static synchronized void release(Ticket ticket) {
+		if (ticket.released)
+			return;
+		ticket.released = true;
+		if (!ticket.started) {
+			waiting.remove(ticket);
+			return;
+		}
+		running--;
+		if (ticket.fastLane)
+			runningInFastLane--;
+		runningByUser.put(ticket.user, get(runningByUser, ticket.user) - 1);
+		runningByType.put(ticket.taskType, get(runningByType, ticket.taskType) - 1);
+		dispatch();
+	}
+
+	/**
+	 * Number of jobs waiting for a slot.
+	 */
+	public static synchronized int getQueueDepth() {
+		return waiting.size();
+	}
+
+	public static synchronized int getRunningCount() {
+		return running;
+	}
+
+	public static synchronized long getStartedJobCount() {
+		return startedJobs;
+	}
+
+	public static synchronized double getAverageWaitMs() {
+		return startedJobs == 0 ? 0 : (double)totalWaitMs / startedJobs;
+	}
+
+	public static synchronized long getMaxWaitMs() {
+		return maxWaitMs;
+	}
+
+	public static class Ticket {
+		private final String taskType;
+		private final String user;
+		private final long size;
+		private final String jobId;
+		private final long seq;
+		private final Job job;
+		private final long arrivalTime = System.currentTimeMillis();
+		private boolean started = false;
+		private boolean fastLane = false;
+		private boolean released = false;
+
+		private Ticket(String taskType, String user, long size, String jobId, long seq, Job job) {
+			this.taskType = taskType;
+			this.user = user;
+			this.size = size;
+			this.jobId = jobId;
+			this.seq = seq;
+			this.job = job;
+		}
+
+		public String getJobId() {
+			return jobId;
+		}
+
+		public boolean isFastLane() {
+			synchronized (JobScheduler.class) {
+				return fastLane;
+			}
+		}
+
+		public void release() {
+			JobScheduler.release(this);
+		}
+	}
+
+	public static interface Job {
+		public void run(Ticket ticket) throws Exception;
+	}
+}
@@ -676,6 +676,24 @@ public class KBaseTreesClient {
         return res.get(0);
     }
 
+    /**
+     * <p>Original spec-file function name: add_sequences_to_alignment</p>
+     * <pre>
+     * Add sequences to existing multiple sequence alignment (Mafft profile mode is used).
+     * </pre>
+     * @param   params   instance of type {@link us.kbase.kbasetrees.AddSequencesToAlignmentParams AddSequencesToAlignmentParams}
+     * @return   instance of original type "job_id" (A string representing a job id for manipulating trees. This is an id for a job that is registered with the User and Job State service.)
+     * @throws IOException if an IO exception occurs
+     * @throws JsonClientException if a JSON RPC exception occurs
+     */
+    public String addSequencesToAlignment(AddSequencesToAlignmentParams params) throws IOException, JsonClientException {
+        List<Object> args = new ArrayList<Object>();
+        args.add(params);
+        TypeReference<List<String>> retType = new TypeReference<List<String>>() {};
+        List<String> res = caller.jsonrpcCall("KBaseTrees.add_sequences_to_alignment", args, retType, true, true);
+        return res.get(0);
+    }
+
     /**
      * <p>Original spec-file function name: construct_tree_for_alignment</p>
      * <pre>
@@ -17,6 +17,10 @@ import java.util.HashMap;
 import java.util.Properties;
 import java.util.ArrayList;
 
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.ini4j.Ini;
 
 import us.kbase.auth.TokenFormatException;
@@ -27,6 +31,7 @@ import us.kbase.common.taskqueue.TaskQueue;
 import us.kbase.common.taskqueue.TaskQueueConfig;
 import us.kbase.kbasetrees.SpeciesTreeBuilder;
 import us.kbase.kbasetrees.util.CdsUtil;
+import us.kbase.kbasetrees.util.Metrics;
 import us.kbase.kbasetrees.util.TreeImportPackage;
 import us.kbase.tree.TreeClient;
 import us.kbase.userandjobstate.InitProgress;
@@ -145,7 +150,9 @@ public class KBaseTreesServer extends JsonServerServlet {
     						new Results().withWorkspaceurl(finalWsUrl).withWorkspaceids(Arrays.asList(outRef)));
 				}
 			};
-			taskConfig = new TaskQueueConfig(threadCount, queueDbDir, jobStatuses, wsUrl, allConfigProps);
+			// runners hand jobs over to JobScheduler and complete them later
+			taskConfig = new TaskQueueConfig(threadCount, queueDbDir, new DeferredJobStatuses(jobStatuses), 
+					wsUrl, allConfigProps);
     	}
     	return taskConfig;
     }
@@ -154,7 +161,7 @@ public class KBaseTreesServer extends JsonServerServlet {
     	if (taskHolder == null) {
     		TaskQueueConfig cfg = getTaskConfig();
 			taskHolder = new TaskQueue(cfg, new SpeciesTreeBuilder(), new MultipleAlignmentBuilder(),
-					new TreeForAlignmentBuilder());
+					new TreeForAlignmentBuilder(), new AlignmentExtensionBuilder());
 			System.out.println("Initial queue size: " + TaskQueue.getDbConnection(cfg.getQueueDbDir()).collect(
 					"select count(*) from " + TaskQueue.QUEUE_TABLE_NAME, new us.kbase.common.utils.DbConn.SqlLoader<Integer>() {
 				public Integer collectRow(java.sql.ResultSet rs) throws java.sql.SQLException { return rs.getInt(1); }
@@ -231,6 +238,22 @@ public class KBaseTreesServer extends JsonServerServlet {
 			taskHolder.stopAllThreads();
 	}
 	
+	/**
+	 * GET on ".../metrics" returns timers, counters and gauges of service in
+	 * Prometheus text format, other GET requests are processed as before.
+	 */
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+		String uri = request.getRequestURI();
+		if (uri != null && uri.endsWith("/metrics")) {
+			response.setContentType("text/plain; version=0.0.4");
+			Metrics.writeText(response.getWriter());
+			return;
+		}
+		super.doGet(request, response);
+	}
+
 	private static String registerConfigFile(File configFile) {
 		System.setProperty(SYS_PROP_KB_DEPLOYMENT_CONFIG, configFile.getAbsolutePath());
 		return "";
@@ -926,6 +949,24 @@ public class KBaseTreesServer extends JsonServerServlet {
         return returnVal;
     }
 
+    /**
+     * <p>Original spec-file function name: add_sequences_to_alignment</p>
+     * <pre>
+     * Add sequences to existing multiple sequence alignment (Mafft profile mode is used).
+     * </pre>
+     * @param   params   instance of type {@link us.kbase.kbasetrees.AddSequencesToAlignmentParams AddSequencesToAlignmentParams}
+     * @return   instance of original type "job_id" (A string representing a job id for manipulating trees. This is an id for a job that is registered with the User and Job State service.)
+     */
+    @JsonServerMethod(rpc = "KBaseTrees.add_sequences_to_alignment")
+    public String addSequencesToAlignment(AddSequencesToAlignmentParams params, AuthToken authPart) throws Exception {
+        String returnVal = null;
+        //BEGIN add_sequences_to_alignment
+        TaskQueue tq = getTaskQueue();
+        returnVal = tq.addTask(params, authPart.toString());
+        //END add_sequences_to_alignment
+        return returnVal;
+    }
+
     /**
      * <p>Original spec-file function name: construct_tree_for_alignment</p>
      * <pre>
@@ -0,0 +1,275 @@
+package us.kbase.kbasetrees;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import us.kbase.common.utils.AlignmentMatrix;
+import us.kbase.kbasetrees.util.WorkspaceUtil;
+import us.kbase.workspace.ObjectData;
+import us.kbase.workspace.ObjectIdentity;
+import us.kbase.workspace.SubObjectIdentity;
+
+/**
+ * Loads rows of MSA together with rows of all its parents (parent_msa_ref
+ * chain). Ancestors are resolved first by light-weight requests for 
+ * parent_msa_ref field only (links between immutable refs are remembered),
+ * then all of them are fetched by one batched call. Merged alignments are
+ * kept in LRU cache by immutable reference (they shouldn't be modified by
+ * callers), so loading of already seen MSA (or of MSA whose ancestor was
+ * seen) doesn't fetch known objects again. Links are kept in separate LRU
+ * map limited by 1/{@value #LINKS_SHARE} of cache size. Cached chain is served only after
+ * caller's token passes light-weight request for all MSAs of this chain, so
+ * cache doesn't bypass access control of workspace.
+ */
+public class MsaChainLoader {
+	public static final String CFG_PROP_CACHE_SIZE = "msa.chain.cache.size.mb";
+	private static final long DEFAULT_CACHE_SIZE_MB = 256;
+	private static final Pattern IMMUTABLE_REF = Pattern.compile("\\d+/\\d+/\\d+");
+	private static final String NO_PARENT = "";
+	private static final int LINKS_SHARE = 64;
+
+	private static final LinkedHashMap<String, String> parents =
+			new LinkedHashMap<String, String>(16, 0.75f, true);
+	private static long linksSize = 0;
+	private static final LinkedHashMap<String, LoadedChain> cache =
+			new LinkedHashMap<String, LoadedChain>(16, 0.75f, true);
+	private static long maxCacheSize = DEFAULT_CACHE_SIZE_MB << 20;
+	private static long cacheSize = 0;
+
+	public static void configure(Map<String, String> configParams) {
+		String size = configParams.get(CFG_PROP_CACHE_SIZE);
+		if (size != null && size.trim().length() > 0)
+			setMaxCacheSize(Long.parseLong(size.trim()) << 20);
+	}
+
+	public static synchronized void setMaxCacheSize(long size) {
+		maxCacheSize = size;
+		evict();
+	}
+
+	public static synchronized void clearCache() {
+		cache.clear();
+		parents.clear();
+		cacheSize = 0;
+		linksSize = 0;
+	}
+
+	public static synchronized int getLinkCount() {
+		return parents.size();
+	}
+
+	/**
+	 * True if chain of alignment is in cache (only for immutable references).
+	 */
+	public static synchronized boolean isCached(String msaRef) {
+		return isImmutable(msaRef) && cache.containsKey(msaRef);
+	}
+
+	public static LoadedChain load(ObjectStorage storage, String token, String msaRef) throws Exception {
+		LoadedChain cached = null;
+		if (isImmutable(msaRef)) {
+			synchronized (MsaChainLoader.class) {
+				cached = cache.get(msaRef);
+			}
+			if (cached != null) {
+				checkAccess(storage, token, cached.getChainRefs());
+				return cached;
+			}
+		}
+		ObjectData top = storage.getObjects(token, Arrays.asList(
+				new ObjectIdentity().withRef(msaRef))).get(0);
+		MSA topMsa = top.getData().asClassInstance(MSA.class);
+		String topRef = top.getInfo() == null ? msaRef : WorkspaceUtil.getRefFromObjectInfo(top.getInfo());
+		if (isImmutable(topRef)) {
+			synchronized (MsaChainLoader.class) {
+				putParent(topRef, topMsa.getParentMsaRef() == null ? NO_PARENT : topMsa.getParentMsaRef());
+			}
+		}
+		// resolving of the rest of chain up to first cached ancestor
+		List<String> refs = new ArrayList<String>();
+		LoadedChain cachedTail = null;
+		String current = topMsa.getParentMsaRef();
+		while (current != null) {
+			String resolved = null;
+			String parent = null;
+			if (isImmutable(current)) {
+				synchronized (MsaChainLoader.class) {
+					cachedTail = cache.get(current);
+					parent = parents.get(current);
+				}
+				if (cachedTail != null)
+					break;
+				if (parent != null)
+					resolved = current;
+			}
+			if (resolved == null) {
+				ObjectData od = storage.getObjectSubset(token, Arrays.asList(new SubObjectIdentity()
+						.withRef(current).withIncluded(Arrays.asList("parent_msa_ref")))).get(0);
+				resolved = od.getInfo() == null ? current : WorkspaceUtil.getRefFromObjectInfo(od.getInfo());
+				parent = od.getData().asClassInstance(MSA.class).getParentMsaRef();
+				if (parent == null)
+					parent = NO_PARENT;
+				if (isImmutable(resolved)) {
+					synchronized (MsaChainLoader.class) {
+						putParent(resolved, parent);
+						cachedTail = cache.get(resolved);
+					}
+					if (cachedTail != null)
+						break;
+				}
+			}
+			if (resolved.equals(topRef) || refs.contains(resolved))
+				throw new IllegalStateException("Cycle in parent_msa_ref chain of " + msaRef);
+			refs.add(resolved);
+			current = parent.equals(NO_PARENT) ? null : parent;
+		}
+		if (cachedTail != null)
+			checkAccess(storage, token, cachedTail.getChainRefs());
+		// all unknown ancestors are fetched in one call
+		List<MSA> chain = new ArrayList<MSA>();
+		chain.add(topMsa);
+		if (!refs.isEmpty()) {
+			List<ObjectIdentity> objectIds = new ArrayList<ObjectIdentity>();
+			for (String ref : refs)
+				objectIds.add(new ObjectIdentity().withRef(ref));
+			List<ObjectData> objects = storage.getObjects(token, objectIds);
+			if (objects.size() != refs.size())
+				throw new IllegalStateException("Unexpected number of loaded MSA objects: " + objects.size());
+			for (ObjectData od : objects)
+				chain.add(od.getData().asClassInstance(MSA.class));
+		}
+		Map<String, String> rows = new LinkedHashMap<String, String>();
+		String seqType = null;
+		for (MSA msa : chain) {
+			if (seqType == null)
+				seqType = msa.getSequenceType();
+			checkLength(rows, msa.getAlignmentLength());
+			rows.putAll(msa.getAlignment());
+		}
+		if (cachedTail != null) {
+			checkLength(rows, (long)cachedTail.getAlignment().getWidth());
+			rows.putAll(cachedTail.getAlignment().toMap());
+			if (seqType == null)
+				seqType = cachedTail.getSequenceType();
+		}
+		List<String> chainRefs = new ArrayList<String>();
+		chainRefs.add(topRef);
+		chainRefs.addAll(refs);
+		if (cachedTail != null)
+			chainRefs.addAll(cachedTail.getChainRefs());
+		LoadedChain ret = new LoadedChain(topRef, AlignmentMatrix.fromMap(rows), seqType, chainRefs);
+		if (isImmutable(topRef)) {
+			synchronized (MsaChainLoader.class) {
+				LoadedChain prev = cache.put(topRef, ret);
+				if (prev != null)
+					cacheSize -= prev.getSize();
+				cacheSize += ret.getSize();
+				evict();
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Fails if caller can't read any of given objects (only parent_msa_ref
+	 * field of them is requested).
+	 */
+	private static void checkAccess(ObjectStorage storage, String token, List<String> refs) throws Exception {
+		List<SubObjectIdentity> objectIds = new ArrayList<SubObjectIdentity>();
+		for (String ref : refs)
+			objectIds.add(new SubObjectIdentity().withRef(ref).withIncluded(Arrays.asList("parent_msa_ref")));
+		storage.getObjectSubset(token, objectIds);
+	}
+
+	private static void checkLength(Map<String, String> rows, Long alnLen) {
+		if (rows.size() > 0 && alnLen != null) {
+			long len = rows.values().iterator().next().length();
+			if (len != alnLen)
+				throw new IllegalStateException("Parent and child MSAs have different aligned sequence " +
+						"lenths: " + len + " and " + alnLen);
+		}
+	}
+
+	private static boolean isImmutable(String ref) {
+		return IMMUTABLE_REF.matcher(ref).matches();
+	}
+
+	private static void putParent(String ref, String parent) {
+		String prev = parents.put(ref, parent);
+		if (prev != null)
+			linksSize -= getLinkSize(ref, prev);
+		linksSize += getLinkSize(ref, parent);
+		evict();
+	}
+
+	private static long getLinkSize(String ref, String parent) {
+		return 64 + 2 * (ref.length() + parent.length());
+	}
+
+	private static void evict() {
+		Iterator<LoadedChain> it = cache.values().iterator();
+		while (cacheSize > maxCacheSize && it.hasNext()) {
+			cacheSize -= it.next().getSize();
+			it.remove();
+		}
+		Iterator<Map.Entry<String, String>> linkIt = parents.entrySet().iterator();
+		while (linksSize > maxCacheSize / LINKS_SHARE && linkIt.hasNext()) {
+			Map.Entry<String, String> link = linkIt.next();
+			linksSize -= getLinkSize(link.getKey(), link.getValue());
+			linkIt.remove();
+		}
+	}
+
+	public static class LoadedChain {
+		private final String ref;
+		private final AlignmentMatrix alignment;
+		private final String sequenceType;
+		private final List<String> chainRefs;
+
+		public LoadedChain(String ref, AlignmentMatrix alignment, String sequenceType) {
+			this(ref, alignment, sequenceType, Arrays.asList(ref));
+		}
+
+		public LoadedChain(String ref, AlignmentMatrix alignment, String sequenceType,
+				List<String> chainRefs) {
+			this.ref = ref;
+			this.alignment = alignment;
+			this.sequenceType = sequenceType;
+			this.chainRefs = chainRefs;
+		}
+
+		/**
+		 * Immutable reference of the first MSA in chain (if workspace returned it).
+		 */
+		public String getRef() {
+			return ref;
+		}
+
+		public AlignmentMatrix getAlignment() {
+			return alignment;
+		}
+
+		public String getSequenceType() {
+			return sequenceType;
+		}
+
+		/**
+		 * References of all MSAs merged into this chain starting from the first one.
+		 */
+		public List<String> getChainRefs() {
+			return chainRefs;
+		}
+
+		long getSize() {
+			long ret = (long)alignment.getRowCount() * alignment.getWidth();
+			for (String id : alignment.getIds())
+				ret += 64 + 2 * id.length();
+			return ret;
+		}
+	}
+}
@@ -1,38 +1,109 @@
 package us.kbase.kbasetrees;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.PrintWriter;
-import java.io.StringReader;
-import java.nio.charset.Charset;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import us.kbase.common.service.UObject;
+import us.kbase.common.taskqueue.TaskQueueConfig;
+import us.kbase.common.utils.AlignedFastaParser;
 import us.kbase.common.utils.Alignment;
 import us.kbase.common.utils.ClustalParser;
-import us.kbase.common.utils.CorrectProcess;
+import us.kbase.common.utils.ExternalCommand;
+import us.kbase.common.utils.ExternalToolExecutor;
 import us.kbase.common.utils.FastaWriter;
+import us.kbase.kbasetrees.util.KmerClustering;
+import us.kbase.kbasetrees.util.Metrics;
+import us.kbase.kbasetrees.util.MsaCache;
+import us.kbase.kbasetrees.util.SequenceDedup;
 import us.kbase.workspace.ObjectSaveData;
 import us.kbase.workspace.ProvenanceAction;
 import us.kbase.workspace.SaveObjectsParams;
 
 public class MultipleAlignmentBuilder extends DefaultTaskBuilder<ConstructMultipleAlignmentParams> {
+	private static final File SHM_DIR = new File("/dev/shm");
+	private static final long MAX_SHM_INPUT_SIZE = 16 << 20;
+	public static final String CFG_PROP_CACHE_SIZE = "msa.cache.size.mb";
+	private static final long DEFAULT_CACHE_SIZE_MB = 1024;
+	
+	public static final String CFG_PROP_COLLAPSE_CONTAINED = "msa.collapse.contained";
+	
+	public static final String CFG_PROP_DIVIDE_THRESHOLD = "msa.divide.threshold";
+	public static final String CFG_PROP_DIVIDE_CLUSTER_SIZE = "msa.divide.cluster.size";
+	private static final int DEFAULT_DIVIDE_THRESHOLD = 1000;
+	private static final int DEFAULT_DIVIDE_CLUSTER_SIZE = 250;
+	
+	private long cacheSizeMb = DEFAULT_CACHE_SIZE_MB;
+	private boolean collapseContained = false;
+	private int divideThreshold = DEFAULT_DIVIDE_THRESHOLD;
+	private int divideClusterSize = DEFAULT_DIVIDE_CLUSTER_SIZE;
 
 	@Override
 	public Class<ConstructMultipleAlignmentParams> getInputDataType() {
 		return ConstructMultipleAlignmentParams.class;
 	}
 
+	@Override
+	public void init(TaskQueueConfig queueCfg, Map<String, String> configParams) {
+		String cacheSize = configParams.get(CFG_PROP_CACHE_SIZE);
+		if (cacheSize != null && cacheSize.trim().length() > 0)
+			cacheSizeMb = Long.parseLong(cacheSize.trim());
+		collapseContained = "true".equals(configParams.get(CFG_PROP_COLLAPSE_CONTAINED));
+		String divideThresholdText = configParams.get(CFG_PROP_DIVIDE_THRESHOLD);
+		if (divideThresholdText != null && divideThresholdText.trim().length() > 0)
+			divideThreshold = Integer.parseInt(divideThresholdText.trim());
+		String clusterSizeText = configParams.get(CFG_PROP_DIVIDE_CLUSTER_SIZE);
+		if (clusterSizeText != null && clusterSizeText.trim().length() > 0)
+			divideClusterSize = Integer.parseInt(clusterSizeText.trim());
+		super.init(queueCfg, configParams);
+	}
+
 	public MultipleAlignmentBuilder init(File tempDir, File dataDir, ObjectStorage ws) {
 		return (MultipleAlignmentBuilder)super.init(tempDir, dataDir, ws);
 	}
+	
+	/**
+	 * Cache of alignments in scratch folder, it's switched off by setting 
+	 * cache size to 0.
+	 */
+	public MsaCache getCache() {
+		if (cacheSizeMb <= 0)
+			return null;
+		return MsaCache.getInstance(new File(getTempDir(), "msa_cache"), cacheSizeMb << 20);
+	}
+	
+	public MultipleAlignmentBuilder withCacheSizeMb(long cacheSizeMb) {
+		this.cacheSizeMb = cacheSizeMb;
+		return this;
+	}
+	
+	/**
+	 * Inputs with more than given number of distinct sequences are aligned in
+	 * divide-and-merge mode (0 switches this mode off).
+	 */
+	public MultipleAlignmentBuilder withDivideMode(int threshold, int clusterSize) {
+		this.divideThreshold = threshold;
+		this.divideClusterSize = clusterSize;
+		return this;
+	}
+	
+	/**
+	 * Sequences contained in longer ones are aligned as parts of them.
+	 */
+	public MultipleAlignmentBuilder withCollapseContained(boolean collapseContained) {
+		this.collapseContained = collapseContained;
+		return this;
+	}
 
 	@Override
 	public String getOutRef(ConstructMultipleAlignmentParams inputData) {
@@ -51,99 +122,341 @@ public class MultipleAlignmentBuilder extends DefaultTaskBuilder<ConstructMultip
 		return new File(new File(dataDir, "bin"), method + "." + getOsSuffix());
 	}
 	
-	private File writeTempScript(String cmd) throws Exception {
-		File f = File.createTempFile("cmd", "sh", getTempDir());
-		PrintWriter pw = new PrintWriter(f);
-		pw.println("#!/bin/bash");
-		pw.println(cmd);
-		pw.close();
-		return f;
+	/**
+	 * Private scratch folder of one job for programs which can't work with
+	 * standard streams. Memory backed file system is used for small inputs.
+	 */
+	static File createJobDir(File tempDir, String jobId, long inputSize) throws Exception {
+		File parent = tempDir;
+		if (inputSize <= MAX_SHM_INPUT_SIZE && SHM_DIR.isDirectory() && SHM_DIR.canWrite())
+			parent = SHM_DIR;
+		String prefix = "msa_" + (jobId == null ? "" : jobId.replaceAll("[^a-zA-Z0-9_\\-]", "_") + "_");
+		File ret = File.createTempFile(prefix, "", parent);
+		ret.delete();
+		if (!ret.mkdir())
+			throw new IllegalStateException("Can't create folder: " + ret);
+		return ret;
+	}
+	
+	/**
+	 * Upper estimate of size of alignment written by FastaWriter under
+	 * numbered ids (60 residues per line).
+	 */
+	static long getSize(Map<String, String> aln) {
+		long ret = 0;
+		for (String seq : aln.values())
+			ret += seq.length() + seq.length() / 60 + 1 + 12;
+		return ret;
+	}
+
+	static void deleteRecursively(File f) {
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File child : children)
+				deleteRecursively(child);
+		f.delete();
 	}
 	
+	/**
+	 * Total length of input sequences.
+	 */
+	@Override
+	public long estimateJobSize(ConstructMultipleAlignmentParams inputData) {
+		long ret = 0;
+		if (inputData.getGeneSequences() != null)
+			for (String seq : inputData.getGeneSequences().values())
+				ret += seq.length();
+		return ret;
+	}
+
+	/**
+	 * Input sequences are part of parameters, there are no references.
+	 */
+	@Override
+	protected List<String> resolveInputRefs(String token, ConstructMultipleAlignmentParams inputData) {
+		return new ArrayList<String>();
+	}
+
 	@Override
-	public void run(String token, ConstructMultipleAlignmentParams inputData,
+	protected void runJob(String token, ConstructMultipleAlignmentParams inputData,
 			String jobId, String outRef) throws Exception {
+		ExternalToolExecutor.setCurrentJob(jobId);
+		try {
+			String method = inputData.getAlignmentMethod();
+			if (method == null) {
+				method = "clustal";
+			} else {
+				method = method.toLowerCase();
+			}
+			String alnType = null;
+			if (inputData.getIsProteinMode() != null) {
+				alnType = (inputData.getIsProteinMode() == 0) ? "dna" : "protein";
+			}
+			SequenceDedup dedup = new SequenceDedup(inputData.getGeneSequences(), collapseContained);
+			Map<String, String> seqs = dedup.getRepresentatives();
+			if (dedup.getCollapsedCount() > 0)
+				System.out.println("[trees] MultipleAlignmentBuilder: " + dedup.getCollapsedCount() + 
+						" redundant sequences were collapsed");
+			boolean dnaMode = inputData.getIsProteinMode() != null && inputData.getIsProteinMode() == 0;
+			boolean divide = divideThreshold > 0 && seqs.size() > divideThreshold && !method.equals("mafft");
+			String cacheMethod = divide ? method + "+merge" : method;
+			JobProgress jobProgress = getProgress();
+			if (divide) {
+				jobProgress.withStages("alignment", "merge", "save");
+			} else {
+				jobProgress.withStages("alignment", "save");
+			}
+			MsaCache cache = getCache();
+			MsaCache.CachedAlignment cached = cache == null ? null : cache.get(seqs, cacheMethod, alnType);
+			Map<String, String> idToAln;
+			List<String> seqIds;
+			if (cache != null)
+				System.out.println("[trees] MultipleAlignmentBuilder: alignment cache " + 
+						(cached != null ? "hit" : "miss") + " (hit rate: " + 
+						Math.round(cache.getHitRate() * 100) + "%)");
+			if (cached != null) {
+				idToAln = cached.getAlignment();
+				seqIds = cached.getRowOrder();
+			} else if (seqs.size() == 1) {
+				idToAln = new LinkedHashMap<String, String>(seqs);
+				seqIds = new ArrayList<String>(seqs.keySet());
+			} else {
+				long time = System.currentTimeMillis();
+				Metrics.Timer timer = Metrics.startTimer("msa.alignment");
+				if (divide) {
+					idToAln = alignByParts(seqs, method, dnaMode, jobId);
+				} else {
+					jobProgress.startStage("alignment", 0);
+					idToAln = align(seqs, method, dnaMode, jobId);
+				}
+				timer.stop();
+				seqIds = new ArrayList<String>(idToAln.keySet());
+				if (cache != null) {
+					try {
+						cache.put(seqs, cacheMethod, alnType, idToAln, seqIds, System.currentTimeMillis() - time);
+					} catch (Exception ex) {
+						System.err.println("[trees] MultipleAlignmentBuilder: can't store alignment in cache (" + 
+								ex.getMessage() + ")");
+					}
+				}
+			}
+			if (dedup.getCollapsedCount() > 0) {
+				idToAln = dedup.expandAlignment(idToAln, seqIds);
+				seqIds = new ArrayList<String>(idToAln.keySet());
+			}
+			MSA ret = new MSA().withAlignmentLength((long)idToAln.get(seqIds.get(0)).length())
+					.withSequenceType(alnType);
+			ret.withAlignment(idToAln).withRowOrder(seqIds);
+			String id = outRef.substring(outRef.indexOf('/') + 1);
+			releaseSlot();
+			jobProgress.startStage("save", 0);
+			saveResult(inputData.getOutWorkspace(), id, token, ret, divide ? method + 
+					" (for groups of similar sequences merged by profile alignment)" : method, inputData);
+		} finally {
+			ExternalToolExecutor.setCurrentJob(null);
+		}
+	}
+	
+	/**
+	 * Aligns sequences with given program, returned map is ordered by rows.
+	 */
+	private Map<String, String> align(Map<String, String> seqs, String method,
+			boolean dnaMode, String jobId) throws Exception {
 		Map<Integer, String> numToId = new TreeMap<Integer, String>();
-		File inputFasta = File.createTempFile("msaInput", ".fa", getTempDir());
-		File resultFile = null;
-		String resultAlnText = null;
-		List<File> toDelete = new ArrayList<File>(Arrays.asList(inputFasta));
-		String method = inputData.getAlignmentMethod();
-		if (method == null) {
-			method = "clustal";
-		} else {
-			method = method.toLowerCase();
+		StringWriter fastaText = new StringWriter();
+		FastaWriter fw = new FastaWriter(new PrintWriter(fastaText));
+		for (Map.Entry<String, String> entry : seqs.entrySet()) {
+			int num = numToId.size() + 1;
+			numToId.put(num, entry.getKey());
+			fw.write("" + num, entry.getValue());
 		}
+		fw.close();
+		byte[] fasta = fastaText.toString().getBytes("US-ASCII");
+		fastaText = null;
+		File jobDir = null;
 		Alignment aln = null;
 		try {
-			FastaWriter fw = new FastaWriter(inputFasta);
-			for (Map.Entry<String, String> entry : inputData.getGeneSequences().entrySet()) {
-				int num = numToId.size() + 1;
-				numToId.put(num, entry.getKey());
-				fw.write("" + num, entry.getValue());
-			}
-			fw.close();
-			resultFile = File.createTempFile("msaOutput", ".aln", getTempDir());
-			toDelete.add(resultFile);
-			File tmp = getTempDir();
 			if (method.equals("muscle")) {  // version 3.8.31
-				String binPath = getMethodBin("muscle").getAbsolutePath();
-				runProgram(tmp, binPath, "-in", inputFasta.getAbsolutePath(), "-out", resultFile.getAbsolutePath(), "-clw");
-			} else if (method.equals("clustal")) { // version 2.1
-				File dndFile = new File(inputFasta.getParentFile(), inputFasta.getName().substring(0, inputFasta.getName().length() - 2) + "dnd");
-				toDelete.add(dndFile);
-				String binPath = getMethodBin("clustalw2").getAbsolutePath();
-				String type = (inputData.getIsProteinMode() != null && inputData.getIsProteinMode() == 0) ? "DNA" : "PROTEIN";
-				runProgram(tmp, binPath, "/INFILE=" + inputFasta.getName(), 
-						"-OUTFILE=" + resultFile.getName(), "/OUTORDER=INPUT", "-TYPE=" + type);
-			} else if (method.equals("t-coffee")) {  // version 10.00
-				File dndFile = new File(inputFasta.getParentFile(), inputFasta.getName().substring(0, inputFasta.getName().length() - 2) + "dnd");
-				toDelete.add(dndFile);
-				String binPath = getMethodBin("tcoffee").getAbsolutePath();
-				String type = (inputData.getIsProteinMode() != null && inputData.getIsProteinMode() == 0) ? "dna" : "protein";
-				runProgram(tmp, binPath, inputFasta.getAbsolutePath(), "-type", type, "-outfile=" + resultFile.getAbsolutePath(), "-output=clustalw");
-			} else if (method.equals("probcons")) {  // version 1.12
-				File dndFile = new File(inputFasta.getParentFile(), inputFasta.getName().substring(0, inputFasta.getName().length() - 2) + "dnd");
-				toDelete.add(dndFile);
-				String binPath = getMethodBin("probcons").getAbsolutePath();
-				resultAlnText = runProgram(tmp, binPath, "-clustalw", inputFasta.getAbsolutePath());
+				aln = AlignedFastaParser.parse(runProgram(new ExternalCommand(getMethodBin("muscle"))
+						.args("-quiet").stdin(new ByteArrayInputStream(fasta))), false);
 			} else if (method.equals("mafft")) {  // version 7.157b
-				String binPath = getMethodBin("mafft").getAbsolutePath();
-				String libPath = getMethodBin("mafftlib").getAbsolutePath();
-				File cmdFile = writeTempScript("export MAFFT_BINARIES=" + libPath + "\n" + binPath + " --clustalout " + inputFasta.getAbsolutePath());
-				toDelete.add(cmdFile);
-				resultAlnText = runProgram(tmp, "bash", cmdFile.getAbsolutePath());
+				aln = AlignedFastaParser.parse(runProgram(new ExternalCommand(getMethodBin("mafft"))
+						.env("MAFFT_BINARIES", getMethodBin("mafftlib").getAbsolutePath())
+						.args("-").stdin(new ByteArrayInputStream(fasta))), true);
 			} else {
-				throw new IllegalStateException("Method " + inputData.getAlignmentMethod() + " is not supported");
+				// these programs work with files only, they are kept in private job folder
+				jobDir = createJobDir(getTempDir(), jobId, fasta.length);
+				File inputFasta = new File(jobDir, "input.fa");
+				FileOutputStream fos = new FileOutputStream(inputFasta);
+				try {
+					fos.write(fasta);
+				} finally {
+					fos.close();
+				}
+				File resultFile = new File(jobDir, "output.aln");
+				if (method.equals("clustal")) { // version 2.1
+					String type = dnaMode ? "DNA" : "PROTEIN";
+					runProgram(new ExternalCommand(getMethodBin("clustalw2")).workDir(jobDir)
+							.args("/INFILE=" + inputFasta.getName(), "-OUTFILE=" + resultFile.getName(), 
+									"/OUTORDER=INPUT", "-TYPE=" + type));
+					aln = ClustalParser.parse(resultFile, null);
+				} else if (method.equals("t-coffee")) {  // version 10.00
+					String type = dnaMode ? "dna" : "protein";
+					runProgram(new ExternalCommand(getMethodBin("tcoffee")).workDir(jobDir)
+							.args(inputFasta.getAbsolutePath(), "-type", type, 
+									"-outfile=" + resultFile.getAbsolutePath(), "-output=clustalw"));
+					aln = ClustalParser.parse(resultFile, null);
+				} else if (method.equals("probcons")) {  // version 1.12
+					aln = ClustalParser.parse(runProgram(new ExternalCommand(getMethodBin("probcons"))
+							.workDir(jobDir).args("-clustalw", inputFasta.getAbsolutePath())), null);
+				} else {
+					throw new IllegalStateException("Method " + method + " is not supported");
+				}
 			}
-			if (resultAlnText == null) {
-				aln = ClustalParser.parse(new BufferedReader(new FileReader(resultFile)), null);
-			} else {
-				aln = ClustalParser.parse(new BufferedReader(new StringReader(resultAlnText)), null);
+		} finally {
+			if (jobDir != null)
+				deleteRecursively(jobDir);
+		}
+		Map<String, String> ret = new LinkedHashMap<String, String>();
+		for (int i = 0; i < aln.protNames.length; i++)
+			ret.put(numToId.get(Integer.parseInt(aln.protNames[i])), aln.alignSeqs[i]);
+		return ret;
+	}
+	
+	/**
+	 * Divide-and-merge mode for large inputs. Sequences are split into groups
+	 * of similar ones by k-mer distance, groups are aligned in parallel (in CPU
+	 * pool shared by all jobs, see TaskExecutors) by given program and resulting
+	 * alignments are merged by profile-profile alignment (muscle -profile, or
+	 * mafft --merge if there is no muscle binary).
+	 */
+	private Map<String, String> alignByParts(final Map<String, String> seqs, final String method,
+			final boolean dnaMode, final String jobId) throws Exception {
+		List<List<String>> clusters = KmerClustering.cluster(seqs, dnaMode ? 6 : 3, divideClusterSize);
+		System.out.println("[trees] MultipleAlignmentBuilder: " + seqs.size() + " sequences are " +
+				"split into " + clusters.size() + " groups for alignment");
+		final JobProgress jobProgress = getProgress();
+		jobProgress.startStage("alignment", clusters.size());
+		List<Future<Map<String, String>>> futures = new ArrayList<Future<Map<String, String>>>();
+		try {
+			for (List<String> cluster : clusters) {
+				final Map<String, String> part = new LinkedHashMap<String, String>();
+				for (String id : cluster)
+					part.put(id, seqs.get(id));
+				futures.add(TaskExecutors.submitCpu(new Callable<Map<String, String>>() {
+					@Override
+					public Map<String, String> call() throws Exception {
+						Map<String, String> ret = part.size() == 1 ? part : 
+							align(part, method, dnaMode, jobId);
+						jobProgress.step();
+						return ret;
+					}
+				}));
+			}
+			List<Map<String, String>> parts = new ArrayList<Map<String, String>>();
+			for (Future<Map<String, String>> future : futures)
+				parts.add(future.get());
+			jobProgress.startStage("merge", 0);
+			if (!getMethodBin("muscle").exists())
+				return mergeByMafft(parts, jobId);
+			while (parts.size() > 1) {
+				futures.clear();
+				for (int i = 0; i + 1 < parts.size(); i += 2) {
+					final Map<String, String> aln1 = parts.get(i);
+					final Map<String, String> aln2 = parts.get(i + 1);
+					futures.add(TaskExecutors.submitCpu(new Callable<Map<String, String>>() {
+						@Override
+						public Map<String, String> call() throws Exception {
+							return mergeByMuscle(aln1, aln2, jobId);
+						}
+					}));
+				}
+				List<Map<String, String>> merged = new ArrayList<Map<String, String>>();
+				for (Future<Map<String, String>> future : futures)
+					merged.add(future.get());
+				if (parts.size() % 2 == 1)
+					merged.add(parts.get(parts.size() - 1));
+				parts = merged;
 			}
+			return parts.get(0);
+		} finally {
+			for (Future<Map<String, String>> future : futures)
+				future.cancel(true);
+		}
+	}
+	
+	private Map<String, String> mergeByMuscle(Map<String, String> aln1, Map<String, String> aln2, 
+			String jobId) throws Exception {
+		File jobDir = createJobDir(getTempDir(), jobId, getSize(aln1) + getSize(aln2));
+		try {
+			Map<String, String> numToId = new LinkedHashMap<String, String>();
+			File in1 = new File(jobDir, "in1.afa");
+			writeNumbered(in1, aln1, numToId);
+			File in2 = new File(jobDir, "in2.afa");
+			writeNumbered(in2, aln2, numToId);
+			byte[] out = ExternalToolExecutor.run(new ExternalCommand(getMethodBin("muscle"))
+					.args("-quiet", "-profile", "-in1", in1.getAbsolutePath(), "-in2", in2.getAbsolutePath())
+					.workDir(jobDir).label("MSA")).getStdout();
+			return readNumbered(out, numToId);
 		} finally {
-			for (File f : toDelete)
-				if (f.exists())
-					f.delete();
+			deleteRecursively(jobDir);
 		}
-		String alnType = null;
-		if (inputData.getIsProteinMode() != null) {
-			alnType = (inputData.getIsProteinMode() == 0) ? "dna" : "protein";
+	}
+	
+	private Map<String, String> mergeByMafft(List<Map<String, String>> parts, String jobId) throws Exception {
+		long size = 0;
+		for (Map<String, String> part : parts)
+			size += getSize(part);
+		File jobDir = createJobDir(getTempDir(), jobId, size);
+		try {
+			Map<String, String> numToId = new LinkedHashMap<String, String>();
+			File input = new File(jobDir, "input.afa");
+			FastaWriter fw = new FastaWriter(input);
+			PrintWriter table = new PrintWriter(new File(jobDir, "subMSAtable"));
+			for (Map<String, String> part : parts) {
+				StringBuilder line = new StringBuilder();
+				for (Map.Entry<String, String> entry : part.entrySet()) {
+					String num = "" + (numToId.size() + 1);
+					numToId.put(num, entry.getKey());
+					fw.write(num, entry.getValue());
+					line.append(line.length() == 0 ? "" : " ").append(num);
+				}
+				// single sequences are added to merged alignment without table line
+				if (part.size() > 1)
+					table.println(line);
+			}
+			fw.close();
+			table.close();
+			byte[] out = ExternalToolExecutor.run(new ExternalCommand(getMethodBin("mafft"))
+					.env("MAFFT_BINARIES", getMethodBin("mafftlib").getAbsolutePath())
+					.args("--merge", "subMSAtable", input.getName())
+					.workDir(jobDir).label("MSA")).getStdout();
+			return readNumbered(out, numToId);
+		} finally {
+			deleteRecursively(jobDir);
 		}
-		MSA ret = new MSA()
-				.withAlignmentLength((long)aln.alignSeqs[0].length()).withSequenceType(alnType);
-		Map<String, String> idToAln = new LinkedHashMap<String, String>();
-		List<String> seqIds = new ArrayList<String>();
-		for (int i = 0; i < aln.protNames.length; i++) {
-			String num = aln.protNames[i];
-			String id = numToId.get(Integer.parseInt(num));
-			String seq = aln.alignSeqs[i];
-			idToAln.put(id, seq);
-			seqIds.add(id);
+	}
+	
+	private static void writeNumbered(File f, Map<String, String> aln, Map<String, String> numToId) {
+		FastaWriter fw = new FastaWriter(f);
+		for (Map.Entry<String, String> entry : aln.entrySet()) {
+			String num = "" + (numToId.size() + 1);
+			numToId.put(num, entry.getKey());
+			fw.write(num, entry.getValue());
 		}
-		ret.withAlignment(idToAln).withRowOrder(seqIds);
-		String id = outRef.substring(outRef.indexOf('/') + 1);
-		saveResult(inputData.getOutWorkspace(), id, token, ret, method, inputData);
+		fw.close();
+	}
+	
+	private static Map<String, String> readNumbered(byte[] alignedFasta, 
+			Map<String, String> numToId) throws Exception {
+		Alignment aln = AlignedFastaParser.parse(alignedFasta, true);
+		Map<String, String> ret = new LinkedHashMap<String, String>();
+		for (int i = 0; i < aln.protNames.length; i++)
+			ret.put(numToId.get(aln.protNames[i]), aln.alignSeqs[i]);
+		if (ret.size() != numToId.size())
+			throw new IllegalStateException("Merged alignment has " + ret.size() + " rows instead of " + 
+					numToId.size());
+		return ret;
 	}
 	
 	private void saveResult(String ws, String id, String token, MSA res, String method,
@@ -153,8 +466,8 @@ public class MultipleAlignmentBuilder extends DefaultTaskBuilder<ConstructMultip
 		ObjectSaveData data = new ObjectSaveData().withData(new UObject(res))
 				.withType("KBaseTrees.MSA")
 				.withProvenance(Arrays.asList(new ProvenanceAction()
-				.withDescription("MSA was constructed using " + method + " program (sequences " +
-						"are not present in method parameters, just remove gaps from aligned ones)")
+				.withDescription(withTimings("MSA was constructed using " + method + " program (sequences " +
+						"are not present in method parameters, just remove gaps from aligned ones)"))
 				.withService("KBaseTrees").withServiceVer(KBaseTreesServer.getServiceVersion())
 				.withMethod("construct_multiple_alignment")
 				.withMethodParams(Arrays.asList(new UObject(inputData)))));
@@ -164,44 +477,14 @@ public class MultipleAlignmentBuilder extends DefaultTaskBuilder<ConstructMultip
 		} catch (NumberFormatException ex) {
 			data.withName(id);
 		}
+		Metrics.Timer timer = Metrics.startTimer("msa.save");
 		storage.saveObjects(token, new SaveObjectsParams().withWorkspace(ws).withObjects(
 				Arrays.asList(data)));
+		timer.stop();
 		inputData.setGeneSequences(seqs);
 	}
 
-	private String runProgram(File tempDir, String... cmd) throws Exception {
-		CorrectProcess cp = null;
-		ByteArrayOutputStream errBaos = null;
-		Exception err = null;
-		int procExitValue = -1;
-		ByteArrayOutputStream result = new ByteArrayOutputStream();
-			try {
-				Process p = Runtime.getRuntime().exec(CorrectProcess.arr(cmd), null, tempDir);
-				errBaos = new ByteArrayOutputStream();
-				cp = new CorrectProcess(p, result, "", errBaos, "");
-				cp.waitFor();
-				errBaos.close();
-				procExitValue = p.exitValue();
-			} catch(Exception ex) {
-				try{ 
-					errBaos.close(); 
-				} catch (Exception ignore) {}
-				try{ 
-					if(cp!=null) 
-						cp.destroy(); 
-				} catch (Exception ignore) {}
-				err = ex;
-			}
-			if (errBaos != null) {
-				String err_text = new String(errBaos.toByteArray());
-				if (err_text.length() > 0)
-					err = new Exception("MSA: " + err_text, err);
-			}
-		if (procExitValue != 0) {
-			if (err == null)
-				err = new IllegalStateException("MSA exit code: " + procExitValue);
-			throw err;
-		}
-		return new String(result.toByteArray(), Charset.forName("UTF-8")).trim();
+	private byte[] runProgram(ExternalCommand cmd) throws Exception {
+		return ExternalToolExecutor.run(cmd.label("MSA")).getStdout();
 	}
 }
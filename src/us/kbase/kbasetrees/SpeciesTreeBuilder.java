@@ -1,15 +1,12 @@
 package us.kbase.kbasetrees;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -20,19 +17,25 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
 
 import us.kbase.common.service.Tuple11;
 import us.kbase.common.service.Tuple2;
 import us.kbase.common.service.UObject;
 import us.kbase.common.taskqueue.TaskQueueConfig;
 import us.kbase.common.utils.AlignUtil;
-import us.kbase.common.utils.CorrectProcess;
-import us.kbase.common.utils.FastaReader;
+import us.kbase.common.utils.AlignmentMatrix;
+import us.kbase.common.utils.ExternalCommand;
+import us.kbase.common.utils.ExternalToolExecutor;
+import us.kbase.common.utils.FastaByteReader;
 import us.kbase.common.utils.FastaWriter;
 import us.kbase.kbasegenomes.Feature;
 import us.kbase.kbasegenomes.Genome;
+import us.kbase.kbasetrees.util.JobCheckpoint;
+import us.kbase.kbasetrees.util.Metrics;
+import us.kbase.kbasetrees.util.TranslationUtil;
+import us.kbase.kbasetrees.util.TreeCache;
 import us.kbase.kbasetrees.util.TreeStructureUtil;
 import us.kbase.kbasetrees.util.WorkspaceUtil;
 import us.kbase.workspace.ListObjectsParams;
@@ -47,11 +50,24 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 	private static final String MAX_EVALUE = "1e-05";
 	private static final int MIN_COVERAGE = 50;
 	private static final int DEFAULT_NEAREST_GENOME_COUNT = 100;
+	private static final long GENOME_SIZE_ESTIMATE = 1500000;
 	private static final String defaultGenomeWsName = "KBasePublicGenomesV3";
 	private static final String genomeWsType = "KBaseGenomes.Genome";
+	public static final String CFG_PROP_TREE_CACHE_SIZE = "tree.cache.size.mb";
+	private static final long DEFAULT_TREE_CACHE_SIZE_MB = 256;
+	public static final String CFG_PROP_CHECKPOINT_DAYS = "species.tree.checkpoint.days";
+	private static final long DEFAULT_CHECKPOINT_DAYS = 7;
+	private static final String CHECKPOINT_DIR = "species_tree_jobs";
+	private static final String STAGE_GENOMES = "genomes";
+	private static final String STAGE_GENOME_PREFIX = "genome.";
+	private static final String STAGE_ALIGNMENT = "alignment";
+	private static final String STAGE_TREE = "tree";
+	private static final String STAGE_SAVE = "save";
 	
 	private Map<String, String> genomeKbToRefMap = null;
 	private String genomeWsName = null;
+	private long treeCacheSizeMb = DEFAULT_TREE_CACHE_SIZE_MB;
+	private long checkpointDays = 0;
 	
 	@Override
 	public Class<ConstructSpeciesTreeParams> getInputDataType() {
@@ -63,6 +79,12 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 		super.init(queueCfg, configParams);
 		String genomeWsName = configParams.get("public.genomes.ws");
 		this.genomeWsName = genomeWsName == null ? defaultGenomeWsName : genomeWsName;
+		String cacheSize = configParams.get(CFG_PROP_TREE_CACHE_SIZE);
+		if (cacheSize != null && cacheSize.trim().length() > 0)
+			treeCacheSizeMb = Long.parseLong(cacheSize.trim());
+		String days = configParams.get(CFG_PROP_CHECKPOINT_DAYS);
+		checkpointDays = days == null || days.trim().length() == 0 ? DEFAULT_CHECKPOINT_DAYS : 
+			Long.parseLong(days.trim());
 	}
 
 	public SpeciesTreeBuilder init(File tempDir, File dataDir, ObjectStorage ws) {
@@ -75,6 +97,31 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 		return this;
 	}
 
+	/**
+	 * Cache of FastTree results in scratch folder, it's switched off by 
+	 * setting cache size to 0.
+	 */
+	public TreeCache getTreeCache() {
+		if (treeCacheSizeMb <= 0)
+			return null;
+		return TreeCache.getInstance(new File(getTempDir(), "tree_cache"), treeCacheSizeMb << 20);
+	}
+	
+	public SpeciesTreeBuilder withTreeCacheSizeMb(long treeCacheSizeMb) {
+		this.treeCacheSizeMb = treeCacheSizeMb;
+		return this;
+	}
+	
+	/**
+	 * Results of stages of jobs are kept in scratch folder (so that restarted
+	 * or retried job continues from last completed stage) for given number of
+	 * days, 0 switches checkpoints off.
+	 */
+	public SpeciesTreeBuilder withCheckpointDays(long checkpointDays) {
+		this.checkpointDays = checkpointDays;
+		return this;
+	}
+
 	@Override
 	public String getTaskDescription() {
 		return "Species tree construction based on user defined genomes using rps-blast ans fast-tree";
@@ -88,17 +135,85 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 		return inputData.getOutWorkspace() + "/" + objId;
 	}
 
+	/**
+	 * Proteomes of user genomes are searched by rps-blast, this part grows
+	 * with number of genomes (other steps are about the same for all jobs).
+	 */
+	@Override
+	public long estimateJobSize(ConstructSpeciesTreeParams inputData) {
+		int genomes = inputData.getNewGenomes() == null ? 0 : inputData.getNewGenomes().size();
+		return (genomes + 1) * GENOME_SIZE_ESTIMATE;
+	}
+
 	@Override
-	public void run(String token, ConstructSpeciesTreeParams inputData,
+	protected List<String> resolveInputRefs(String token, ConstructSpeciesTreeParams inputData) 
+			throws Exception {
+		return resolveRefs(token, inputData.getNewGenomes(), "id");
+	}
+
+	@Override
+	protected List<String> getPrefetchRefs(ConstructSpeciesTreeParams inputData) {
+		return inputData.getNewGenomes();
+	}
+
+	@Override
+	protected void runJob(String token, ConstructSpeciesTreeParams inputData,
 			String jobId, String outRef) throws Exception {
 		boolean useCog103Only = inputData.getUseRibosomalS9Only() != null && 
 				inputData.getUseRibosomalS9Only() == 1L;
 		long nearestGenomeCount = inputData.getNearestGenomeCount() != null ? 
 				inputData.getNearestGenomeCount() : DEFAULT_NEAREST_GENOME_COUNT;
-		Tree tree = placeUserGenomes(token, inputData.getNewGenomes(), useCog103Only, false,
-				(int)nearestGenomeCount);
-		String id = outRef.substring(outRef.indexOf('/') + 1);
-		saveResult(inputData.getOutWorkspace(), id, token, tree, inputData);
+		ExternalToolExecutor.setCurrentJob(jobId);
+		try {
+			JobProgress jobProgress = getProgress().withStages(STAGE_GENOMES, STAGE_ALIGNMENT, 
+					STAGE_TREE, STAGE_SAVE);
+			JobCheckpoint checkpoint = openCheckpoint(inputData);
+			boolean done = false;
+			try {
+				Tree tree = placeUserGenomes(token, inputData.getNewGenomes(), useCog103Only, false,
+						(int)nearestGenomeCount, checkpoint);
+				releaseSlot();
+				jobProgress.startStage(STAGE_SAVE, 0);
+				String id = outRef.substring(outRef.indexOf('/') + 1);
+				saveResult(inputData.getOutWorkspace(), id, token, tree, inputData);
+				done = true;
+			} finally {
+				if (checkpoint != null) {
+					if (done) {
+						checkpoint.delete();
+					} else {
+						checkpoint.close();
+					}
+				}
+			}
+		} finally {
+			ExternalToolExecutor.setCurrentJob(null);
+		}
+	}
+	
+	/**
+	 * Folder of checkpoints is chosen by parameters of job (except output
+	 * location), so retried job finds results of previous attempt. If the
+	 * folder is locked by identical job running at the same time, this job
+	 * goes without checkpoints.
+	 */
+	private JobCheckpoint openCheckpoint(ConstructSpeciesTreeParams inputData) {
+		if (checkpointDays <= 0)
+			return null;
+		try {
+			File parentDir = new File(tempDir, CHECKPOINT_DIR);
+			JobCheckpoint.deleteOld(parentDir, checkpointDays * 24 * 3600 * 1000);
+			JobCheckpoint ret = JobCheckpoint.tryOpen(new File(parentDir, 
+					JobDeduplicator.getKey(getTaskType(), inputData, null)));
+			if (ret == null)
+				System.out.println("[trees] SpeciesTreeBuilder: checkpoint folder is used by " +
+						"identical job, checkpoints are switched off");
+			return ret;
+		} catch (Exception ex) {
+			System.err.println("[trees] SpeciesTreeBuilder: can't open checkpoint folder (" + 
+					ex.getMessage() + ")");
+			return null;
+		}
 	}
 	
 	private void saveResult(String ws, String id, String token, Tree res,
@@ -109,7 +224,7 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 				.withType("KBaseTrees.Tree")
 				.withMeta(meta)
 				.withProvenance(Arrays.asList(new ProvenanceAction()
-				.withDescription("Species tree was constructed using rps-blast program")
+				.withDescription(withTimings("Species tree was constructed using rps-blast program"))
 				.withInputWsObjects(inputData.getNewGenomes())
 				.withService("KBaseTrees").withServiceVer(KBaseTreesServer.getServiceVersion())
 				.withMethod("construct_species_tree")
@@ -120,8 +235,10 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 		} catch (NumberFormatException ex) {
 			data.withName(id);
 		}
+		Metrics.Timer timer = Metrics.startTimer("species_tree.save");
 		storage.saveObjects(token, new SaveObjectsParams().withWorkspace(ws).withObjects(
 				Arrays.asList(data)));
+		timer.stop();
 	}
 
 	
@@ -129,21 +246,32 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 		return makeTree(concatCogAlignments(useCog103Only));
 	}
 	
-	public String makeTree(Map<String, String> aln) throws Exception {
-		File tempFile = File.createTempFile("aln", ".faa", tempDir);
-		try {
-			FastaWriter fw = new FastaWriter(tempFile);
-			for (Map.Entry<String, String> entry : aln.entrySet())
-				fw.write(entry.getKey(), entry.getValue());
-			fw.close();
-			return runFastTree(tempFile);
-		} finally {
-			try { tempFile.delete(); } catch (Exception ignore) {}
+	/**
+	 * Supermatrix is streamed into FastTree (FastTreeMP if job has several CPUs).
+	 * Result is looked up in tree cache first (by content of supermatrix and
+	 * FastTree options).
+	 */
+	public String makeTree(AlignmentMatrix aln) throws Exception {
+		TreeCache cache = getTreeCache();
+		List<String> options = FastTreeRunner.getPresetArgs(FastTreeRunner.getPreset());
+		String cached = cache == null ? null : cache.get(aln, options);
+		if (cache != null)
+			System.out.println("[trees] SpeciesTreeBuilder: tree cache " + 
+					(cached != null ? "hit" : "miss") + " (hits: " + cache.getHits() + 
+					", misses: " + cache.getMisses() + ")");
+		if (cached != null)
+			return cached;
+		String ret = FastTreeRunner.run(getBinDir(), getOsSuffix(), tempDir, aln, 
+				FastTreeRunner.getJobThreads());
+		if (cache != null) {
+			try {
+				cache.put(aln, options, ret);
+			} catch (Exception ex) {
+				System.err.println("[trees] SpeciesTreeBuilder: can't store tree in cache (" + 
+						ex.getMessage() + ")");
+			}
 		}
-	}
-	
-	private File getFastTreeBin() {
-		return new File(getBinDir(), "FastTree." + getOsSuffix());
+		return ret;
 	}
 
 	private File getFormatRpsDbBin() {
@@ -154,44 +282,6 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 		return new File(getBinDir(), "rpsblast." + getOsSuffix());
 	}
 
-	private String runFastTree(File input) throws Exception {
-		CorrectProcess cp = null;
-		ByteArrayOutputStream errBaos = null;
-		Exception err = null;
-		String binPath = getFastTreeBin().getAbsolutePath();
-		int procExitValue = -1;
-		ByteArrayOutputStream result = new ByteArrayOutputStream();
-		try {
-			Process p = Runtime.getRuntime().exec(CorrectProcess.arr(binPath,
-					"-fastest", input.getAbsolutePath()));
-			errBaos = new ByteArrayOutputStream();
-			cp = new CorrectProcess(p, result, "", errBaos, "");
-			cp.waitFor();
-			errBaos.close();
-			procExitValue = p.exitValue();
-		} catch(Exception ex) {
-			try{ 
-				errBaos.close(); 
-			} catch (Exception ignore) {}
-			try{ 
-				if(cp!=null) 
-					cp.destroy(); 
-			} catch (Exception ignore) {}
-			err = ex;
-		}
-		if (errBaos != null || result.size() == 0) {
-			String err_text = new String(errBaos.toByteArray());
-			if (err_text.length() > 0)
-				err = new Exception("FastTree: " + err_text, err);
-		}
-		if (procExitValue != 0) {
-			if (err == null)
-				err = new IllegalStateException("FastTree exit code: " + procExitValue);
-			throw err;
-		}
-		return new String(result.toByteArray(), Charset.forName("UTF-8")).trim();
-	}
-	
 	private File getCogsDir() {
 		return new File(dataDir, "cogs");
 	}
@@ -215,43 +305,39 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 	}
 	
 	public Map<String, String> loadCogAlignment(String cogCode) throws IOException {
-		GZIPInputStream is = new GZIPInputStream(new FileInputStream(
-				new File(getCogsDir(), "COG" + cogCode + ".trim.faa.gz")));
-		FastaReader fr = new FastaReader(new InputStreamReader(is));
-		Map<String, String> aln = fr.readAll();
-		fr.close();
-		return aln;
+		return FastaByteReader.readFromFile(new File(getCogsDir(), "COG" + cogCode + ".trim.faa.gz"));
 	}
 	
-	public Map<String, String> concatCogAlignments(boolean useCog103Only) throws IOException {
+	public AlignmentMatrix concatCogAlignments(boolean useCog103Only) throws IOException {
 		Map<String, Map<String, String>> cogAlignments = new LinkedHashMap<String, Map<String, String>>();
 		for (String cogCode : loadCogsCodes(useCog103Only)) 
 			cogAlignments.put(cogCode, loadCogAlignment(cogCode));
 		return concatCogAlignments(cogAlignments);
 	}
 	
-	private Map<String, String> concatCogAlignments(Map<String, Map<String, String>> alignments) throws IOException {
-		Map<String, String> concat = new TreeMap<String, String>();
-		Set<String> commonIdSet = new HashSet<String>();
+	/**
+	 * Concatenates trimmed COG alignments into one matrix with rows sorted by id,
+	 * rows missing in some COG are filled with gaps.
+	 */
+	private AlignmentMatrix concatCogAlignments(Map<String, Map<String, String>> alignments) {
+		Set<String> commonIdSet = new TreeSet<String>();
 		for (String cogCode : alignments.keySet()) {
 			Map<String, String> aln = alignments.get(cogCode);
 			commonIdSet.addAll(aln.keySet());
 		}
+		List<AlignmentMatrix> parts = new ArrayList<AlignmentMatrix>();
+		int width = 0;
 		for (String cogCode : alignments.keySet()) {
-			Map<String, String> aln = trimAlignment(alignments.get(cogCode));
-			int alnLen = aln.get(aln.keySet().iterator().next()).length();
-			for (String taxId : commonIdSet) {
-				String seq = aln.get(taxId);
-				if (seq == null) {
-					char[] arr = new char[alnLen];
-					Arrays.fill(arr, '-');
-					seq = new String(arr);
-				}
-				String prev = concat.get(taxId);
-				if (prev == null)
-					prev = "";
-				concat.put(taxId, prev + seq);
-			}
+			AlignmentMatrix aln = trimAlignment(AlignmentMatrix.fromMap(alignments.get(cogCode)));
+			parts.add(aln);
+			width += aln.getWidth();
+		}
+		AlignmentMatrix concat = new AlignmentMatrix(new ArrayList<String>(commonIdSet), width);
+		int col = 0;
+		for (AlignmentMatrix aln : parts) {
+			for (int row = 0; row < aln.getRowCount(); row++)
+				aln.copyRow(row, concat, concat.getRowIndex(aln.getIds().get(row)), col);
+			col += aln.getWidth();
 		}
 		return concat;
 	}
@@ -263,83 +349,25 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 			pw.println(f.getAbsolutePath());
 		}
 		pw.close();
-		CorrectProcess cp = null;
-		ByteArrayOutputStream errBaos = null;
-		Exception err = null;
-		String binPath = getFormatRpsDbBin().getAbsolutePath();
-		int procExitValue = -1;
-		try {
-			Process p = Runtime.getRuntime().exec(CorrectProcess.arr(binPath,
-					"-in", tempInputFile.getAbsolutePath(), "-threshold", "9.82", 
-					"-scale", "100.0", "-dbtype", "rps", "-index", "true"));
-			errBaos = new ByteArrayOutputStream();
-			cp = new CorrectProcess(p, null, "formatrpsdb", errBaos, "");
-			cp.waitFor();
-			errBaos.close();
-			procExitValue = p.exitValue();
-		} catch(Exception ex) {
-			try{ 
-				errBaos.close(); 
-			} catch (Exception ignore) {}
-			try{ 
-				if(cp!=null) 
-					cp.destroy(); 
-			} catch (Exception ignore) {}
-			err = ex;
-		}
-		if (errBaos != null) {
-			String err_text = new String(errBaos.toByteArray());
-			if (err_text.length() > 0)
-				err = new Exception("FastTree: " + err_text, err);
-		}
-		if (procExitValue != 0) {
-			if (err == null)
-				err = new IllegalStateException("FastTree exit code: " + procExitValue);
-			throw err;
-		}
+		ExternalToolExecutor.run(new ExternalCommand(getFormatRpsDbBin())
+				.args("-in", tempInputFile.getAbsolutePath(), "-threshold", "9.82", 
+						"-scale", "100.0", "-dbtype", "rps", "-index", "true")
+				.logStdout("formatrpsdb"));
 		return tempInputFile;
 	}
 	
 	public File runRpsBlast(File dbFile, File fastaQuery) throws Exception {
 		File tempOutputFile = File.createTempFile("rps", ".tab", tempDir);
-		CorrectProcess cp = null;
-		ByteArrayOutputStream errBaos = null;
-		Exception err = null;
-		String binPath = getRpsBlastBin().getAbsolutePath();
-		int procExitValue = -1;
 		FileOutputStream fos = new FileOutputStream(tempOutputFile);
 		try {
-			Process p = Runtime.getRuntime().exec(CorrectProcess.arr(binPath,
-					"-db", dbFile.getAbsolutePath(), "-query", fastaQuery.getAbsolutePath(), 
-					"-outfmt", "6 qseqid stitle qstart qseq sstart sseq evalue bitscore pident", 
-					"-evalue", MAX_EVALUE));
-			errBaos = new ByteArrayOutputStream();
-			cp = new CorrectProcess(p, fos, "", errBaos, "");
-			cp.waitFor();
-			errBaos.close();
-			procExitValue = p.exitValue();
-		} catch(Exception ex) {
-			try{ 
-				errBaos.close(); 
-			} catch (Exception ignore) {}
-			try{ 
-				if(cp!=null) 
-					cp.destroy(); 
-			} catch (Exception ignore) {}
-			err = ex;
+			ExternalToolExecutor.run(new ExternalCommand(getRpsBlastBin())
+					.args("-db", dbFile.getAbsolutePath(), "-query", fastaQuery.getAbsolutePath(), 
+							"-outfmt", "6 qseqid stitle qstart qseq sstart sseq evalue bitscore pident", 
+							"-evalue", MAX_EVALUE)
+					.stdout(fos));
 		} finally {
 			try { fos.close(); } catch (Exception ignore) {}
 		}
-		if (errBaos != null) {
-			String err_text = new String(errBaos.toByteArray());
-			if (err_text.length() > 0)
-				err = new Exception("FastTree: " + err_text, err);
-		}
-		if (procExitValue != 0) {
-			if (err == null)
-				err = new IllegalStateException("FastTree exit code: " + procExitValue);
-			throw err;
-		}
 		return tempOutputFile;
 	}
 	
@@ -372,7 +400,12 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 	}
 
 	public Map<String, String> trimAlignment(Map<String, String> aln) {
-		return AlignUtil.trimAlignment(aln, 0.95);
+		return trimAlignment(AlignmentMatrix.fromMap(aln)).toMap();
+	}
+
+	public AlignmentMatrix trimAlignment(AlignmentMatrix aln) {
+		return AlignUtil.trimAlignment(aln, 0.95, TaskExecutors.getCpuExecutor(), 
+				TaskExecutors.getCpuThreads());
 	}
 
 	private List<File> listScoreMatrixFiles(boolean useCog103Only) throws IOException {
@@ -432,32 +465,101 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 
 	public Tree placeUserGenomes(String token, List<String> genomeRefList, 
 			boolean useCog103Only, boolean userGenomesOnly, int nearestGenomeCount) throws Exception {
-		Map<String, String> idLabelMap = new TreeMap<String, String>();
-		Map<String, Map<String, List<String>>> idRefMap = new TreeMap<String, Map<String, List<String>>>();
-		Set<String> seeds = new HashSet<String>();
+		return placeUserGenomes(token, genomeRefList, useCog103Only, userGenomesOnly, 
+				nearestGenomeCount, null);
+	}
 
-		Map<String, String> concat = placeUserGenomesIntoAlignment(token,
-				genomeRefList, useCog103Only, idLabelMap, idRefMap, seeds);
-		
+	/**
+	 * Stages (rps-blast of every genome, concatenated alignment of selected
+	 * genomes, rerooted tree) are stored in checkpoint (if it's not null) and
+	 * taken from it when they were completed for the same versions of genomes.
+	 */
+	public Tree placeUserGenomes(String token, List<String> genomeRefList, 
+			boolean useCog103Only, boolean userGenomesOnly, int nearestGenomeCount,
+			JobCheckpoint checkpoint) throws Exception {
+		List<String> resolvedRefs = null;
+		String inputVersions = null;
+		if (checkpoint != null) {
+			resolvedRefs = resolveRefs(token, genomeRefList, "id");
+			inputVersions = join(resolvedRefs);
+			if (checkpoint.isCompleted(STAGE_TREE, inputVersions)) {
+				System.out.println("[trees] SpeciesTreeBuilder: tree is loaded from checkpoint");
+				return checkpoint.readJson("tree.json", Tree.class);
+			}
+		}
+		Tree ret;
+		AlignmentMatrix concat;
+		if (checkpoint != null && checkpoint.isCompleted(STAGE_ALIGNMENT, inputVersions)) {
+			System.out.println("[trees] SpeciesTreeBuilder: alignment is loaded from checkpoint");
+			ret = checkpoint.readJson("tree_input.json", Tree.class);
+			concat = AlignmentMatrix.readFasta(checkpoint.getFile("alignment.fasta"));
+		} else {
+			Map<String, String> idLabelMap = new TreeMap<String, String>();
+			Map<String, Map<String, List<String>>> idRefMap = new TreeMap<String, Map<String, List<String>>>();
+			Set<String> seeds = new HashSet<String>();
+			concat = placeUserGenomesIntoAlignment(token, genomeRefList, useCog103Only, 
+					idLabelMap, idRefMap, seeds, checkpoint, resolvedRefs);
+			Set<String> selectedIds = new HashSet<String>();
+			ret = selectNearestGenomes(token, concat, seeds, userGenomesOnly, nearestGenomeCount, 
+					useCog103Only, idLabelMap, idRefMap, selectedIds);
+			concat = concat.selectRows(selectedIds);
+			if (checkpoint != null) {
+				OutputStream os = checkpoint.openForWrite("alignment.fasta");
+				try {
+					concat.writeFasta(os);
+				} finally {
+					os.close();
+				}
+				checkpoint.writeJson("tree_input.json", ret);
+				checkpoint.completeStage(STAGE_ALIGNMENT, inputVersions);
+			}
+		}
+		getProgress().startStage(STAGE_TREE, 0);
+		Metrics.Timer timer = Metrics.startTimer("species_tree.tree");
+		String treeText = makeTree(concat);
+		timer.stop();
+		// Rerooting
+		timer = Metrics.startTimer("species_tree.reroot");
+		treeText = TreeStructureUtil.rerootTreeToMidpoint(treeText);
+		timer.stop();
+		ret.withTree(treeText);
+		if (checkpoint != null) {
+			checkpoint.writeJson("tree.json", ret);
+			checkpoint.completeStage(STAGE_TREE, inputVersions);
+		}
+		return ret;
+	}
+
+	/**
+	 * Selects rows of user genomes and public genomes closest to them (their
+	 * ids are added into selectedIds), returns tree object with everything
+	 * except tree itself.
+	 */
+	private Tree selectNearestGenomes(String token, AlignmentMatrix concat, Set<String> seeds,
+			boolean userGenomesOnly, int nearestGenomeCount, boolean useCog103Only,
+			Map<String, String> idLabelMap, Map<String, Map<String, List<String>>> idRefMap,
+			Set<String> selectedIds) throws Exception {
 		// Filtering
 		Set<String> nearestNodes = new HashSet<String>();
 		if (!userGenomesOnly) {
+			Metrics.Timer timer = Metrics.startTimer("species_tree.ranking");
 			List<Tuple2<String, Integer>> kbIdToMinDist = sortPublicGenomesByMismatches(
 					seeds, concat, false);
+			timer.stop();
 			if (kbIdToMinDist.size() > nearestGenomeCount)
 				kbIdToMinDist = kbIdToMinDist.subList(0, nearestGenomeCount);
 			for (Tuple2<String, Integer> entry : kbIdToMinDist)
 				nearestNodes.add(entry.getE1());
 		}
-		for (String kbId : new ArrayList<String>(concat.keySet())) {
-			if (!(seeds.contains(kbId) || nearestNodes.contains(kbId))) {
-				concat.remove(kbId);
+		for (String kbId : concat.getIds()) {
+			if (seeds.contains(kbId) || nearestNodes.contains(kbId)) {
+				selectedIds.add(kbId);
 			}
 		}
 		Map<String, String> kbToNames = loadGenomeKbToNames();
 		Map<String, String> kbToRefs = loadGenomeKbToRefs(token);
 		Map<String, Map<String, List<String>>> idKbMap = new TreeMap<String, Map<String, List<String>>>();
-		for (String genomeKb : new ArrayList<String>(concat.keySet())) {
+		for (String genomeKb : new ArrayList<String>(selectedIds)) {
 			Map<String, List<String>> refMap = new TreeMap<String, List<String>>();
 			refMap.put("g", Arrays.asList(genomeKb));
 			idKbMap.put(genomeKb, refMap);
@@ -466,7 +568,7 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 			String ref = kbToRefs.get(genomeKb);
 			if (ref == null) {
 				System.err.println("[trees] SpeciesTreeBuilder: Can't find genome object for id: " + genomeKb);
-				concat.remove(genomeKb);
+				selectedIds.remove(genomeKb);
 				continue;
 			}
 			String name = kbToNames.get(genomeKb);
@@ -475,30 +577,38 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 			refMap.put("g", Arrays.asList(ref));
 			idRefMap.put(genomeKb, refMap);
 		}
-		String treeText = makeTree(concat);
-		// Rerooting
-        treeText = TreeStructureUtil.rerootTreeToMidpoint(treeText);
 		Map<String, String> props = new TreeMap<String, String>();
 		props.put("cog_codes", UObject.getMapper().writeValueAsString(loadCogsCodes(useCog103Only)));
-		return new Tree().withTree(treeText).withDefaultNodeLabels(idLabelMap)
+		return new Tree().withDefaultNodeLabels(idLabelMap)
 				.withLeafList(new ArrayList<String>(idLabelMap.keySet()))
 				.withWsRefs(idRefMap).withKbRefs(idKbMap)
 				.withTreeAttributes(props).withType(SPECIES_TREE_TYPE);
 	}
 
+	private static String join(List<String> items) {
+		StringBuilder ret = new StringBuilder();
+		for (String item : items) {
+			if (ret.length() > 0)
+				ret.append(',');
+			ret.append(item);
+		}
+		return ret.toString();
+	}
+
 	public List<Tuple2<String, Integer>> sortPublicGenomesByMismatches(
-			Set<String> seeds, Map<String, String> concat, boolean stopOnZeroDist) {
+			Set<String> seeds, AlignmentMatrix aln, boolean stopOnZeroDist) {
 		List<Tuple2<String, Integer>> kbIdToMinDist = new ArrayList<Tuple2<String, Integer>>();
-		for (String kbId : concat.keySet()) {
+		List<Integer> userRows = new ArrayList<Integer>();
+		for (int row = 0; row < aln.getRowCount(); row++)
+			if (seeds.contains(aln.getIds().get(row)))
+				userRows.add(row);
+		for (int kbRow = 0; kbRow < aln.getRowCount(); kbRow++) {
+			String kbId = aln.getIds().get(kbRow);
 			if (seeds.contains(kbId))
 				continue;
-			char[] kbSeq = concat.get(kbId).toCharArray();
 			int minDist = -1;
-			for (String userId : concat.keySet()) {
-				if (!seeds.contains(userId))
-					continue;
-				char[] userSeq = concat.get(userId).toCharArray();
-				int dist = getDistance(kbSeq, userSeq);
+			for (int userRow : userRows) {
+				int dist = aln.getMismatchCount(kbRow, userRow);
 				minDist = (minDist < 0) ? dist : Math.min(dist, minDist);
 				if (stopOnZeroDist && minDist == 0)
 					break;
@@ -516,21 +626,56 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 		return kbIdToMinDist;
 	}
 
-	public Map<String, String> placeUserGenomesIntoAlignment(String token,
+	public AlignmentMatrix placeUserGenomesIntoAlignment(String token,
 			List<String> genomeRefList, boolean useCog103Only,
 			Map<String, String> idLabelMap,
 			Map<String, Map<String, List<String>>> idRefMap, Set<String> seeds)
 			throws IOException {
+		return placeUserGenomesIntoAlignment(token, genomeRefList, useCog103Only, idLabelMap, 
+				idRefMap, seeds, null, null);
+	}
+
+	/**
+	 * The same as previous but rps-blast results of every genome are stored in
+	 * checkpoint (if it's not null) and reused for the same genome version.
+	 */
+	public AlignmentMatrix placeUserGenomesIntoAlignment(String token,
+			List<String> genomeRefList, boolean useCog103Only,
+			Map<String, String> idLabelMap,
+			Map<String, Map<String, List<String>>> idRefMap, Set<String> seeds,
+			JobCheckpoint checkpoint, List<String> resolvedRefs)
+			throws IOException {
+		Metrics.Timer timer = Metrics.startTimer("species_tree.cog_loading");
 		Map<String, Map<String, String>> cogAlignments = new LinkedHashMap<String, Map<String, String>>();
 		for (String cogCode : loadCogsCodes(useCog103Only)) 
 			cogAlignments.put(cogCode, loadCogAlignment(cogCode));
+		timer.stop();
+		JobProgress jobProgress = getProgress();
+		jobProgress.startStage(STAGE_GENOMES, genomeRefList.size());
 		List<GenomeToCogsAlignment> userData = new ArrayList<GenomeToCogsAlignment>();
-		for (String genomeRef : genomeRefList) {
+		for (int genomePos = 0; genomePos < genomeRefList.size(); genomePos++) {
+			String genomeRef = genomeRefList.get(genomePos);
+			String stage = STAGE_GENOME_PREFIX + genomePos;
+			String stageFile = "genome_" + genomePos + ".json";
+			if (checkpoint != null && checkpoint.isCompleted(stage, resolvedRefs.get(genomePos))) {
+				userData.add(checkpoint.readJson(stageFile, GenomeToCogsAlignment.class));
+				jobProgress.step();
+				continue;
+			}
 			Genome genome = null;
 			try {
+				timer = Metrics.startTimer("species_tree.genome_fetch");
 				genome = storage.getObjects(token, Arrays.asList(
 						new ObjectIdentity().withRef(genomeRef))).get(0).getData().asClassInstance(Genome.class);
-				userData.add(alignGenomeProteins(token, genomeRef, genome, useCog103Only, cogAlignments));
+				timer.stop();
+				GenomeToCogsAlignment genomeRes = alignGenomeProteins(token, genomeRef, genome, 
+						useCog103Only, cogAlignments);
+				userData.add(genomeRes);
+				if (checkpoint != null) {
+					checkpoint.writeJson(stageFile, genomeRes);
+					checkpoint.completeStage(stage, resolvedRefs.get(genomePos));
+				}
+				jobProgress.step();
 			} catch (Exception ex) {
 				String genomeName = genome == null ? genomeRef : genome.getScientificName();
 				throw new IllegalStateException("Error processing genome " + genomeName + " (" + ex.getMessage() + ")", ex);
@@ -555,21 +700,13 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 				}
 			}
 		}
-		Map<String, String> concat = concatCogAlignments(cogAlignments);
+		jobProgress.startStage(STAGE_ALIGNMENT, 0);
+		timer = Metrics.startTimer("species_tree.concatenation");
+		AlignmentMatrix concat = concatCogAlignments(cogAlignments);
+		timer.stop();
 		return concat;
 	}
 	
-	private int getDistance(char[] s1, char[] s2) {
-		int ret = 0;
-		int len = s1.length;
-		if (len != s2.length)
-			throw new IllegalStateException();
-		for (int i = 0; i < len; i++)
-			if (s1[i] != s2[i])
-				ret++;
-		return ret;
-	}
-	
 	private GenomeToCogsAlignment alignGenomeProteins(String token, String genomeRef, final Genome genome,
 			boolean useCog103Only, final Map<String, Map<String, String>> cogAlignments) throws Exception {
 		String genomeName = genome.getScientificName();
@@ -577,12 +714,17 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 		File dbFile = null;
 		File tabFile = null;
 		try {
+			Metrics.Timer timer = Metrics.startTimer("species_tree.translation");
+			String[] translations = translateMissingProteins(genome.getFeatures());
+			timer.stop();
 			FastaWriter fw = new FastaWriter(fastaFile);
 			int protCount = 0;
 			try {
 				for (int pos = 0; pos < genome.getFeatures().size(); pos++) {
 					Feature feat = genome.getFeatures().get(pos);
 					String seq = feat.getProteinTranslation();
+					if (seq == null || seq.isEmpty())
+						seq = translations[pos];
 					if (seq == null || seq.isEmpty())
 						continue;
 					fw.write("" + pos, seq);
@@ -597,6 +739,7 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 			tabFile = runRpsBlast(dbFile, fastaFile);
 			final Map<String, List<ProteinToCogAlignemt>> cog2proteins = 
 					new LinkedHashMap<String, List<ProteinToCogAlignemt>>();
+			timer = Metrics.startTimer("species_tree.rps_parsing");
 			processRpsOutput(tabFile, new SpeciesTreeBuilder.RpsBlastCallback() {
 				@Override
 				public void next(String query, String subject, int qstart, String qseq,
@@ -630,6 +773,7 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 					protList.add(result);
 				}
 			});
+			timer.stop();
 			if (cog2proteins.isEmpty())
 				throw new IllegalStateException("No one protein family member found");
 			for (List<ProteinToCogAlignemt> results : cog2proteins.values())
@@ -654,6 +798,24 @@ public class SpeciesTreeBuilder extends DefaultTaskBuilder<ConstructSpeciesTreeP
 		}
 	}
 	
+	private String[] translateMissingProteins(List<Feature> features) throws Exception {
+		String[] dnaSeqs = new String[features.size()];
+		for (int pos = 0; pos < features.size(); pos++) {
+			Feature feat = features.get(pos);
+			String prot = feat.getProteinTranslation();
+			if (prot != null && !prot.isEmpty())
+				continue;
+			String type = feat.getType();
+			if (type != null && !(type.equalsIgnoreCase("CDS") || type.equalsIgnoreCase("peg")))
+				continue;
+			String dna = feat.getDnaSequence();
+			if (dna != null && !dna.isEmpty())
+				dnaSeqs[pos] = dna;
+		}
+		return TranslationUtil.translateAll(dnaSeqs, TaskExecutors.getCpuExecutor(), 
+				TaskExecutors.getCpuThreads());
+	}
+	
 	public static interface RpsBlastCallback {
 		public void next(String query, String subj, int qstart, String qseq, int sstart, String sseq, 
 				String evalue, double bitscore, double ident) throws Exception;
@@ -0,0 +1,156 @@
+package us.kbase.kbasetrees;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import us.kbase.common.utils.ExternalToolExecutor;
+
+/**
+ * Pools shared by all jobs: large one for network-bound steps (downloading
+ * of workspace objects, "io.threads" threads) and one sized by number of
+ * cores for CPU-bound steps run in parallel inside job (bootstrap
+ * replicates, alignment of groups of sequences; "cpu.threads" threads).
+ * Tasks keep job of submitting thread (see ExternalToolExecutor.setCurrentJob),
+ * so their external tools and timers are accounted to that job. Tasks of
+ * CPU pool shouldn't wait for other tasks of the same pool. Utilities
+ * taking ExecutorService (neighbor joining, trimming of alignments,
+ * translation) get view of CPU pool from getCpuExecutor() together with
+ * getCpuThreads() as number of parts to split work into.
+ */
+public class TaskExecutors {
+	public static final String CFG_PROP_IO_THREADS = "io.threads";
+	public static final String CFG_PROP_CPU_THREADS = "cpu.threads";
+	private static final int DEFAULT_IO_THREADS = 16;
+
+	private static ThreadPoolExecutor ioPool = null;
+	private static ThreadPoolExecutor cpuPool = null;
+	private static int ioThreads = DEFAULT_IO_THREADS;
+	private static int cpuThreads = Runtime.getRuntime().availableProcessors();
+
+	public static synchronized void configure(Map<String, String> configParams) {
+		String io = configParams.get(CFG_PROP_IO_THREADS);
+		String cpu = configParams.get(CFG_PROP_CPU_THREADS);
+		setThreads(io == null || io.trim().length() == 0 ? DEFAULT_IO_THREADS : Integer.parseInt(io.trim()),
+				cpu == null || cpu.trim().length() == 0 ? Runtime.getRuntime().availableProcessors() :
+					Integer.parseInt(cpu.trim()));
+	}
+
+	public static synchronized void setThreads(int ioThreadCount, int cpuThreadCount) {
+		ioThreads = Math.max(1, ioThreadCount);
+		cpuThreads = Math.max(1, cpuThreadCount);
+		if (ioPool != null)
+			resize(ioPool, ioThreads);
+		if (cpuPool != null)
+			resize(cpuPool, cpuThreads);
+	}
+
+	private static void resize(ThreadPoolExecutor pool, int threads) {
+		if (threads > pool.getMaximumPoolSize()) {
+			pool.setMaximumPoolSize(threads);
+			pool.setCorePoolSize(threads);
+		} else {
+			pool.setCorePoolSize(threads);
+			pool.setMaximumPoolSize(threads);
+		}
+	}
+
+	public static synchronized int getCpuThreads() {
+		return cpuThreads;
+	}
+
+	private static synchronized ExecutorService getIoPool() {
+		if (ioPool == null)
+			ioPool = createPool("io", ioThreads);
+		return ioPool;
+	}
+
+	private static synchronized ExecutorService getCpuPool() {
+		if (cpuPool == null)
+			cpuPool = createPool("cpu", cpuThreads);
+		return cpuPool;
+	}
+
+	private static ThreadPoolExecutor createPool(final String name, int threads) {
+		ThreadPoolExecutor ret = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private int count = 0;
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread ret = new Thread(r, "trees-" + name + "-" + (++count));
+				ret.setDaemon(true);
+				return ret;
+			}
+		});
+		ret.allowCoreThreadTimeOut(true);
+		return ret;
+	}
+
+	public static <V> Future<V> submitIo(Callable<V> task) {
+		return getIoPool().submit(withCurrentJob(task));
+	}
+
+	public static <V> Future<V> submitCpu(Callable<V> task) {
+		return getCpuPool().submit(withCurrentJob(task));
+	}
+
+	/**
+	 * CPU pool seen as ExecutorService (it can't be shut down through this view).
+	 */
+	public static ExecutorService getCpuExecutor() {
+		return new AbstractExecutorService() {
+			@Override
+			public void execute(Runnable command) {
+				submitCpu(Executors.callable(command));
+			}
+
+			@Override
+			public void shutdown() {
+				throw new UnsupportedOperationException("Shared pool can't be shut down");
+			}
+
+			@Override
+			public List<Runnable> shutdownNow() {
+				throw new UnsupportedOperationException("Shared pool can't be shut down");
+			}
+
+			@Override
+			public boolean isShutdown() {
+				return false;
+			}
+
+			@Override
+			public boolean isTerminated() {
+				return false;
+			}
+
+			@Override
+			public boolean awaitTermination(long timeout, TimeUnit unit) {
+				return false;
+			}
+		};
+	}
+
+	private static <V> Callable<V> withCurrentJob(final Callable<V> task) {
+		final String jobId = ExternalToolExecutor.getCurrentJob();
+		return new Callable<V>() {
+			@Override
+			public V call() throws Exception {
+				ExternalToolExecutor.setCurrentJob(jobId);
+				try {
+					return task.call();
+				} finally {
+					ExternalToolExecutor.setCurrentJob(null);
+				}
+			}
+		};
+	}
+}
@@ -1,25 +1,35 @@
 package us.kbase.kbasetrees;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.nio.charset.Charset;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import us.kbase.common.service.UObject;
 import us.kbase.common.utils.AlignUtil;
-import us.kbase.common.utils.CorrectProcess;
-import us.kbase.common.utils.FastaWriter;
+import us.kbase.common.utils.AlignmentMatrix;
+import us.kbase.common.utils.ExternalCommand;
+import us.kbase.common.utils.ExternalToolExecutor;
+import us.kbase.kbasetrees.util.BootstrapSupport;
+import us.kbase.kbasetrees.util.Metrics;
+import us.kbase.kbasetrees.util.NeighborJoining;
+import us.kbase.kbasetrees.util.SequenceDedup;
 import us.kbase.kbasetrees.util.TreeStructureUtil;
-import us.kbase.workspace.ObjectIdentity;
 import us.kbase.workspace.ObjectSaveData;
 import us.kbase.workspace.ProvenanceAction;
 import us.kbase.workspace.SaveObjectsParams;
 
 public class TreeForAlignmentBuilder extends DefaultTaskBuilder<ConstructTreeForAlignmentParams> {
+	private static final long BOOTSTRAP_SEED = 12345;
 	
 	@Override
 	public Class<ConstructTreeForAlignmentParams> getInputDataType() {
@@ -44,29 +54,88 @@ public class TreeForAlignmentBuilder extends DefaultTaskBuilder<ConstructTreeFor
 	}
 
 	@Override
-	public void run(String token, ConstructTreeForAlignmentParams inputData,
+	protected List<String> resolveInputRefs(String token, ConstructTreeForAlignmentParams inputData) 
+			throws Exception {
+		if (inputData.getMsaRef() == null)
+			return null;
+		return resolveRefs(token, Arrays.asList(inputData.getMsaRef()), "alignment_length");
+	}
+
+	@Override
+	protected List<String> getPrefetchRefs(ConstructTreeForAlignmentParams inputData) {
+		if (inputData.getMsaRef() == null || MsaChainLoader.isCached(inputData.getMsaRef()))
+			return null;
+		return Arrays.asList(inputData.getMsaRef());
+	}
+
+	@Override
+	protected void runJob(String token, ConstructTreeForAlignmentParams inputData,
 			String jobId, String outRef) throws Exception {
-		Long minNongapPercentage = inputData.getMinNongapPercentageForTrim();
-		Map<String, String> preAln = loadAlignment(token, inputData.getMsaRef(), 
-				minNongapPercentage == null ? 0 : minNongapPercentage);
-		Map<String, String> numbersToOrignalNodeNames = new LinkedHashMap<String, String>();
-		Map<String, String> numbersToAln = new LinkedHashMap<String, String>();
-		for (Map.Entry<String, String> entry : preAln.entrySet()) {
-			int num = numbersToOrignalNodeNames.size() + 1;
-			numbersToOrignalNodeNames.put("" + num, entry.getKey());
-			numbersToAln.put("" + num, entry.getValue());
-		}
-		String method = inputData.getTreeMethod();
-		if (method == null) {
-			method = "clustal";
-		} else {
-			method = method.toLowerCase();
+		ExternalToolExecutor.setCurrentJob(jobId);
+		try {
+			Long minNongapPercentage = inputData.getMinNongapPercentageForTrim();
+			Long replicates = inputData.getBootstrapReplicates();
+			boolean bootstrap = replicates != null && replicates > 0;
+			JobProgress jobProgress = getProgress();
+			if (bootstrap) {
+				jobProgress.withStages("msa_loading", "tree", "bootstrap", "save");
+			} else {
+				jobProgress.withStages("msa_loading", "tree", "save");
+			}
+			jobProgress.startStage("msa_loading", 0);
+			Metrics.Timer timer = Metrics.startTimer("tree.msa_loading");
+			MsaChainLoader.LoadedChain msa = MsaChainLoader.load(storage, token, inputData.getMsaRef());
+			timer.stop();
+			AlignmentMatrix preAln = trimAlignment(msa.getAlignment(), 
+					minNongapPercentage == null ? 0 : minNongapPercentage);
+			Map<String, String> numbersToOrignalNodeNames = new LinkedHashMap<String, String>();
+			for (String rowId : preAln.getIds())
+				numbersToOrignalNodeNames.put("" + (numbersToOrignalNodeNames.size() + 1), rowId);
+			// rows are renamed and selected by views sharing residues of trimmed alignment
+			AlignmentMatrix numbersToAln = preAln.withIds(
+					new ArrayList<String>(numbersToOrignalNodeNames.keySet()));
+			String method = inputData.getTreeMethod();
+			if (method == null) {
+				method = "clustal";
+			} else {
+				method = method.toLowerCase();
+			}
+			// identical rows are represented in tree by zero length cherries
+			SequenceDedup dedup = new SequenceDedup(numbersToAln);
+			AlignmentMatrix uniqueAln = dedup.getCollapsedCount() == 0 ? numbersToAln :
+				numbersToAln.selectRows(dedup.getRepresentativeIds());
+			boolean protein = !"dna".equals(msa.getSequenceType());
+			String treeText;
+			jobProgress.startStage("tree", 0);
+			timer = Metrics.startTimer("tree.construction");
+			if (uniqueAln.getRowCount() == 1) {
+				treeText = uniqueAln.getIds().get(0) + ";";
+			} else {
+				treeText = makeTree(uniqueAln, method, protein);
+			}
+			timer.stop();
+			if (dedup.getCollapsedCount() > 0)
+				treeText = TreeStructureUtil.expandDuplicateLeaves(treeText, dedup.getMemberMap());
+			timer = Metrics.startTimer("tree.reroot");
+			treeText = TreeStructureUtil.rerootTreeToMidpoint(treeText);
+			timer.stop();
+			if (bootstrap && uniqueAln.getRowCount() > 3) {
+				jobProgress.startStage("bootstrap", replicates.intValue());
+				timer = Metrics.startTimer("tree.bootstrap");
+				BootstrapSupport support = new BootstrapSupport(uniqueAln.getIds(), dedup.getMemberMap());
+				buildReplicates(uniqueAln, method, protein, 
+						replicates.intValue(), support);
+				treeText = support.applySupport(treeText);
+				timer.stop();
+			}
+			Tree tree = new Tree().withTree(treeText).withDefaultNodeLabels(numbersToOrignalNodeNames);
+			String id = outRef.substring(outRef.indexOf('/') + 1);
+			releaseSlot();
+			jobProgress.startStage("save", 0);
+			saveResult(inputData.getOutWorkspace(), id, token, tree, method, inputData);
+		} finally {
+			ExternalToolExecutor.setCurrentJob(null);
 		}
-		String treeText = makeTree(numbersToAln, method);
-		treeText = TreeStructureUtil.rerootTreeToMidpoint(treeText);
-		Tree tree = new Tree().withTree(treeText).withDefaultNodeLabels(numbersToOrignalNodeNames);
-		String id = outRef.substring(outRef.indexOf('/') + 1);
-		saveResult(inputData.getOutWorkspace(), id, token, tree, method, inputData);
 	}
 	
 	private void saveResult(String ws, String id, String token, Tree res, String method, 
@@ -74,7 +143,7 @@ public class TreeForAlignmentBuilder extends DefaultTaskBuilder<ConstructTreeFor
 		ObjectSaveData data = new ObjectSaveData().withData(new UObject(res))
 				.withType("KBaseTrees.Tree")
 				.withProvenance(Arrays.asList(new ProvenanceAction()
-				.withDescription("Tree was constructed using " + method + " program")
+				.withDescription(withTimings("Tree was constructed using " + method + " program"))
 				.withInputWsObjects(Arrays.asList(inputData.getMsaRef()))
 				.withService("KBaseTrees").withServiceVer(KBaseTreesServer.getServiceVersion())
 				.withMethod("construct_tree_for_alignment")
@@ -85,22 +154,33 @@ public class TreeForAlignmentBuilder extends DefaultTaskBuilder<ConstructTreeFor
 		} catch (NumberFormatException ex) {
 			data.withName(id);
 		}
+		Metrics.Timer timer = Metrics.startTimer("tree.save");
 		storage.saveObjects(token, new SaveObjectsParams().withWorkspace(ws).withObjects(
 				Arrays.asList(data)));
+		timer.stop();
 	}
 
 	
-	private String makeTree(Map<String, String> aln, String method) throws Exception {
+	private String makeTree(AlignmentMatrix aln, String method, boolean protein) throws Exception {
+		if (method.equals("nj") || method.equals("bionj")) {
+			return NeighborJoining.buildTree(aln, null, protein, 
+					method.equals("bionj"), TaskExecutors.getCpuExecutor(), TaskExecutors.getCpuThreads());
+		}
+		if (method.equals("fasttree"))
+			return FastTreeRunner.run(getBinDir(), getOsSuffix(), tempDir, aln, 
+					FastTreeRunner.getJobThreads());
 		File tempFile = File.createTempFile("aln", ".fa", tempDir);
 		File treeFile = null;
 		try {
-			FastaWriter fw = new FastaWriter(tempFile);
-			for (Map.Entry<String, String> entry : aln.entrySet())
-				fw.write(entry.getKey(), entry.getValue());
-			fw.close();
+			OutputStream os = new FileOutputStream(tempFile);
+			try {
+				aln.writeFasta(os);
+			} finally {
+				os.close();
+			}
 			if (method == null || method.toLowerCase().equals("clustal")) {
 				String binPath = getClustalBin().getAbsolutePath();
-				runFastTree(tempDir, binPath, "-INFILE=" + tempFile.getName(), "-TREE", "-OUTPUT=PHYLIP");
+				runProgram(tempDir, "Clustal", binPath, "-INFILE=" + tempFile.getName(), "-TREE", "-OUTPUT=PHYLIP");
 				treeFile = new File(tempDir, tempFile.getName().replace(".fa", ".ph"));
 				StringBuilder ret = new StringBuilder();
 				BufferedReader br = new BufferedReader(new FileReader(treeFile));
@@ -112,9 +192,6 @@ public class TreeForAlignmentBuilder extends DefaultTaskBuilder<ConstructTreeFor
 				}
 				br.close();
 				return ret.toString();
-			} else if (method.toLowerCase().equals("fasttree")) {
-				String binPath = getFastTreeBin().getAbsolutePath();
-				return runFastTree(tempDir, binPath, "-fastest", tempFile.getAbsolutePath());
 			} else {
 				throw new IllegalStateException("Unsupported tree construction method: " + method);
 			}
@@ -125,67 +202,61 @@ public class TreeForAlignmentBuilder extends DefaultTaskBuilder<ConstructTreeFor
 		}
 	}
 	
-	private File getFastTreeBin() {
-		return new File(getBinDir(), "FastTree." + getOsSuffix());
+	/**
+	 * Bootstrap replicates are built concurrently (one thread or one process
+	 * per replicate, number of simultaneous ones is limited by CPU pool shared
+	 * by all jobs, see TaskExecutors).
+	 * Columns are resampled by weights, so alignment isn't copied for NJ, and
+	 * FastTree gets resampled alignment through stdin. Replicates for Clustal
+	 * method are built by in-process NJ.
+	 */
+	private void buildReplicates(final AlignmentMatrix aln, final String method, 
+			final boolean protein, int replicates, final BootstrapSupport support) throws Exception {
+		final JobProgress jobProgress = getProgress();
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		try {
+			for (int i = 0; i < replicates; i++) {
+				final Random rnd = new Random(BOOTSTRAP_SEED + i);
+				results.add(TaskExecutors.submitCpu(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						int[] weights = BootstrapSupport.resampleColumns(aln.getWidth(), rnd);
+						String tree;
+						if (method.equals("fasttree")) {
+							tree = FastTreeRunner.run(getBinDir(), getOsSuffix(), tempDir, 
+									aln.selectColumns(BootstrapSupport.getColumns(weights)), 1, "-nosupport");
+						} else {
+							tree = NeighborJoining.buildTree(aln, weights, protein, 
+									method.equals("bionj"), 1);
+						}
+						support.addReplicate(tree);
+						jobProgress.step();
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> result : results)
+				result.get();
+		} finally {
+			for (Future<Object> result : results)
+				result.cancel(true);
+		}
 	}
 
 	private File getClustalBin() {
 		return new File(getBinDir(), "clustalw2." + getOsSuffix());
 	}
 
-	private String runFastTree(File tempDir, String... cmd) throws Exception {
-		CorrectProcess cp = null;
-		ByteArrayOutputStream errBaos = null;
-		Exception err = null;
-		int procExitValue = -1;
-		ByteArrayOutputStream result = new ByteArrayOutputStream();
-			try {
-				Process p = Runtime.getRuntime().exec(CorrectProcess.arr(cmd), null, tempDir);
-				errBaos = new ByteArrayOutputStream();
-				cp = new CorrectProcess(p, result, "", errBaos, "");
-				cp.waitFor();
-				errBaos.close();
-				procExitValue = p.exitValue();
-			} catch(Exception ex) {
-				try{ 
-					errBaos.close(); 
-				} catch (Exception ignore) {}
-				try{ 
-					if(cp!=null) 
-						cp.destroy(); 
-				} catch (Exception ignore) {}
-				err = ex;
-			}
-			if (errBaos != null) {
-				String err_text = new String(errBaos.toByteArray());
-				if (err_text.length() > 0)
-					err = new Exception("FastTree: " + err_text, err);
-			}
-		if (procExitValue != 0) {
-			if (err == null)
-				err = new IllegalStateException("Tree construction exit code: " + procExitValue);
-			throw err;
-		}
-		return new String(result.toByteArray(), Charset.forName("UTF-8")).trim();
+	private String runProgram(File tempDir, String label, String... cmd) throws Exception {
+		return ExternalToolExecutor.run(new ExternalCommand(cmd[0])
+				.args(Arrays.copyOfRange(cmd, 1, cmd.length))
+				.workDir(tempDir).label(label)).getStdoutText();
 	}
 	
-	private Map<String, String> loadAlignment(String token, String msaRef, long minNongapPercentage) throws Exception {
-		Map<String, String> ret = new LinkedHashMap<String, String>();
-		loadAlignment(token, msaRef, ret);
-		return AlignUtil.trimAlignment(ret, minNongapPercentage / 100.0);
-	}
-	
-	private void loadAlignment(String token, String msaRef, Map<String, String> ret) throws Exception {
-		final MSA msa = storage.getObjects(token, Arrays.asList(
-				new ObjectIdentity().withRef(msaRef))).get(0).getData().asClassInstance(MSA.class);
-		if (ret.size() > 0) {
-			long len = ret.values().iterator().next().length();
-			if (len != msa.getAlignmentLength())
-				throw new IllegalStateException("Parent and child MSAs have different aligned sequence " +
-						"lenths: " + len + " and " + msa.getAlignmentLength());
-		}
-		ret.putAll(msa.getAlignment());
-		if (msa.getParentMsaRef() != null)
-			loadAlignment(token, msa.getParentMsaRef(), ret);
+	private static AlignmentMatrix trimAlignment(AlignmentMatrix aln, long minNongapPercentage) {
+		if (minNongapPercentage > 0)
+			aln = AlignUtil.trimAlignment(aln, minNongapPercentage / 100.0, 
+					TaskExecutors.getCpuExecutor(), TaskExecutors.getCpuThreads());
+		return aln;
 	}
 }
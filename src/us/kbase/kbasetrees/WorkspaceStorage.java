@@ -0,0 +1,123 @@
+package us.kbase.kbasetrees;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.common.service.Tuple11;
+import us.kbase.kbasetrees.util.Metrics;
+import us.kbase.workspace.ListObjectsParams;
+import us.kbase.workspace.ObjectData;
+import us.kbase.workspace.ObjectIdentity;
+import us.kbase.workspace.SaveObjectsParams;
+import us.kbase.workspace.SubObjectIdentity;
+import us.kbase.workspace.WorkspaceClient;
+
+/**
+ * ObjectStorage talking to workspace service. Clients are kept per token
+ * (at most "workspace.client.cache.size" least recently used ones, each for
+ * limited time) instead of parsing token and creating client for every call.
+ * Reuse of HTTP connections is left to keep-alive cache of JDK used by
+ * client library (it's configured only by JVM-wide "http.keepAlive" and
+ * "http.maxConnections" system properties given at startup). Timings of
+ * calls are recorded by wrapper of storage in DefaultTaskBuilder.
+ */
+public class WorkspaceStorage implements ObjectStorage {
+	public static final String CFG_PROP_CLIENT_CACHE_SIZE = "workspace.client.cache.size";
+	private static final int DEFAULT_CLIENT_CACHE_SIZE = 50;
+	private static final long CLIENT_TTL_MS = 30 * 60 * 1000;
+
+	private static final Map<String, WorkspaceStorage> instances = new HashMap<String, WorkspaceStorage>();
+	private static int maxClients = DEFAULT_CLIENT_CACHE_SIZE;
+
+	private final String wsUrl;
+	private final LinkedHashMap<String, CachedClient> clients =
+			new LinkedHashMap<String, CachedClient>(16, 0.75f, true);
+
+	public static synchronized void configure(Map<String, String> configParams) {
+		String size = configParams.get(CFG_PROP_CLIENT_CACHE_SIZE);
+		maxClients = size == null || size.trim().length() == 0 ? DEFAULT_CLIENT_CACHE_SIZE :
+			Integer.parseInt(size.trim());
+	}
+
+	/**
+	 * Returns storage shared by all callers using the same workspace URL.
+	 */
+	public static synchronized WorkspaceStorage forUrl(String wsUrl) {
+		WorkspaceStorage ret = instances.get(wsUrl);
+		if (ret == null) {
+			ret = new WorkspaceStorage(wsUrl);
+			instances.put(wsUrl, ret);
+		}
+		return ret;
+	}
+
+	public WorkspaceStorage(String wsUrl) {
+		this.wsUrl = wsUrl;
+	}
+
+	private WorkspaceClient getClient(String authToken) throws Exception {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			CachedClient cached = clients.get(authToken);
+			if (cached != null && now - cached.creationTime < CLIENT_TTL_MS)
+				return cached.client;
+		}
+		WorkspaceClient client = new WorkspaceClient(new URL(wsUrl), new AuthToken(authToken));
+		client.setAuthAllowedForHttp(true);
+		Metrics.increment("workspace.clients_created", 1);
+		synchronized (this) {
+			clients.put(authToken, new CachedClient(client, now));
+			int limit;
+			synchronized (WorkspaceStorage.class) {
+				limit = maxClients;
+			}
+			for (Iterator<CachedClient> it = clients.values().iterator();
+					clients.size() > limit && it.hasNext(); ) {
+				it.next();
+				it.remove();
+			}
+		}
+		return client;
+	}
+
+	public synchronized int getCachedClientCount() {
+		return clients.size();
+	}
+
+	@Override
+	public List<Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>> saveObjects(
+			String authToken, SaveObjectsParams params) throws Exception {
+		return getClient(authToken).saveObjects(params);
+	}
+
+	@Override
+	public List<ObjectData> getObjects(String authToken, List<ObjectIdentity> objectIds) throws Exception {
+		return getClient(authToken).getObjects(objectIds);
+	}
+
+	@Override
+	public List<Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>> listObjects(
+			String authToken, ListObjectsParams params) throws Exception {
+		return getClient(authToken).listObjects(params);
+	}
+
+	@Override
+	public List<ObjectData> getObjectSubset(String authToken, List<SubObjectIdentity> objectIds) throws Exception {
+		return getClient(authToken).getObjectSubset(objectIds);
+	}
+
+	private static class CachedClient {
+		final WorkspaceClient client;
+		final long creationTime;
+
+		CachedClient(WorkspaceClient client, long creationTime) {
+			this.client = client;
+			this.creationTime = creationTime;
+		}
+	}
+}
@@ -14,6 +14,7 @@ import org.apache.commons.io.IOUtils;
 import org.ini4j.Ini;
 
 import us.kbase.auth.AuthService;
+import us.kbase.common.utils.AlignmentMatrix;
 import us.kbase.kbasetrees.ObjectStorage;
 import us.kbase.kbasetrees.SpeciesTreeBuilder;
 
@@ -48,14 +49,14 @@ public class SpeciesTreePreparation {
 			os.close();
 			inputFile.delete();
 		}
-		Map<String, String> aln = stb.concatCogAlignments(false);
-		System.out.println("Genomes in common alignment: " + aln.size());
-		System.out.println("Sequence length in common alignment: " + aln.get(aln.keySet().iterator().next()).length());
+		AlignmentMatrix aln = stb.concatCogAlignments(false);
+		System.out.println("Genomes in common alignment: " + aln.getRowCount());
+		System.out.println("Sequence length in common alignment: " + aln.getWidth());
 		Map<String, String> kbToNames = stb.loadGenomeKbToNames();
 		Map<String, String> kbToRefs = stb.loadGenomeKbToRefs(token);
 		PrintWriter pw = new PrintWriter(new File(cogsDir, "genome_names.new"));
 		try {
-			for (String genomeKb : aln.keySet()) {
+			for (String genomeKb : aln.getIds()) {
 				String ref = kbToRefs.get(genomeKb);
 				if (ref == null)
 					throw new IllegalStateException("Can't find genome object for id: " + genomeKb);
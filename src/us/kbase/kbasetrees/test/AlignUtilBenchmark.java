@@ -0,0 +1,70 @@
+package us.kbase.kbasetrees.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import us.kbase.common.utils.AlignUtil;
+import us.kbase.common.utils.AlignmentMatrix;
+import us.kbase.common.utils.FastaByteReader;
+
+/**
+ * Measures trimming of COG alignments (as it's done in species tree
+ * construction) with one thread and with column blocks processed in
+ * parallel. Arguments: [cogs folder] [number of COGs] [iterations].
+ */
+public class AlignUtilBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		File cogsDir = new File(args.length > 0 ? args[0] : "data/cogs");
+		int cogCount = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		List<Map<String, String>> maps = new ArrayList<Map<String, String>>();
+		List<AlignmentMatrix> matrices = new ArrayList<AlignmentMatrix>();
+		File[] files = cogsDir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (!f.getName().endsWith(".trim.faa.gz") || maps.size() >= cogCount)
+					continue;
+				Map<String, String> aln = FastaByteReader.readFromFile(f);
+				maps.add(aln);
+				matrices.add(AlignmentMatrix.fromMap(aln));
+			}
+		}
+		if (maps.isEmpty())
+			throw new IllegalStateException("No COG alignments found in " + cogsDir);
+		long cells = 0;
+		for (AlignmentMatrix aln : matrices)
+			cells += (long)aln.getRowCount() * aln.getWidth();
+		System.out.println("Alignments: " + maps.size() + ", cells: " + cells);
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		for (int round = 0; round < 2; round++) {
+			String prefix = round == 0 ? "warm-up " : "";
+			long time = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				for (Map<String, String> aln : maps)
+					AlignUtil.trimAlignment(aln, 0.95);
+			report(prefix + "map (with conversion)", time, iterations * maps.size());
+			time = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				for (AlignmentMatrix aln : matrices)
+					AlignUtil.trimAlignment(aln, 0.95);
+			report(prefix + "matrix, 1 thread", time, iterations * maps.size());
+			time = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				for (AlignmentMatrix aln : matrices)
+					AlignUtil.trimAlignment(aln, 0.95, pool, threads);
+			report(prefix + "matrix, " + threads + " threads", time, iterations * maps.size());
+		}
+		pool.shutdown();
+	}
+
+	private static void report(String name, long startNanos, int ops) {
+		double ms = (System.nanoTime() - startNanos) / 1e6;
+		System.out.println(String.format("%-35s %10.3f ms/alignment", name, ms / ops));
+	}
+}
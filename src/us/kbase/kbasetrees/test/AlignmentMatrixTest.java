@@ -0,0 +1,130 @@
+package us.kbase.kbasetrees.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.common.utils.AlignUtil;
+import us.kbase.common.utils.AlignmentMatrix;
+
+public class AlignmentMatrixTest {
+
+	@Test
+	public void testTrimming() throws Exception {
+		Map<String, String> aln = new LinkedHashMap<String, String>();
+		aln.put("a", "MK-VL-A");
+		aln.put("b", "M--VLWA");
+		aln.put("c", "MKW-L-A");
+		AlignmentMatrix matrix = AlignmentMatrix.fromMap(aln);
+		Assert.assertEquals(3, matrix.getRowCount());
+		Assert.assertEquals(7, matrix.getWidth());
+		Assert.assertEquals(1, matrix.getRowIndex("b"));
+		Assert.assertEquals("[3, 2, 1, 2, 3, 1, 3]", Arrays.toString(matrix.getNonGapCounts()));
+		Assert.assertEquals(0x24L, matrix.getGapBitmap(0)[0]);
+		Assert.assertEquals("MMM", new String(matrix.getColumn(0, null), "US-ASCII"));
+		Assert.assertEquals(2, matrix.getMismatchCount(0, 1));
+		Assert.assertEquals(28, AlignUtil.getGapPercent(matrix, 0));
+		Map<String, String> trimmed = AlignUtil.trimAlignment(aln, 0.6);
+		Assert.assertEquals(Arrays.asList("a", "b", "c"), Arrays.asList(trimmed.keySet().toArray()));
+		Assert.assertEquals("MKVLA", trimmed.get("a"));
+		Assert.assertEquals("M-VLA", trimmed.get("b"));
+		Assert.assertEquals("MK-LA", trimmed.get("c"));
+		ByteArrayOutputStream fasta = new ByteArrayOutputStream();
+		AlignUtil.trimAlignment(matrix, 1.0).writeFasta(fasta);
+		Assert.assertEquals(">a\nMLA\n>b\nMLA\n>c\nMLA\n", fasta.toString("US-ASCII"));
+	}
+
+	@Test
+	public void testParallelGapCounts() throws Exception {
+		List<String> ids = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++)
+			ids.add("" + i);
+		AlignmentMatrix matrix = new AlignmentMatrix(ids, 2000);
+		Random rnd = new Random(1);
+		for (int row = 0; row < matrix.getRowCount(); row++)
+			for (int col = 0; col < matrix.getWidth(); col++)
+				if (rnd.nextInt(col % 10 + 1) == 0)
+					matrix.set(row, col, (byte)'A');
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			Assert.assertTrue(Arrays.equals(matrix.getNonGapCounts(), 
+					AlignUtil.getNonGapCounts(matrix, pool, 4)));
+			AlignmentMatrix trimmed = AlignUtil.trimAlignment(matrix, 0.3, pool, 4);
+			Assert.assertEquals(AlignUtil.trimAlignment(matrix, 0.3).toMap(), trimmed.toMap());
+			Assert.assertTrue(trimmed.getWidth() > 0 && trimmed.getWidth() < matrix.getWidth());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testRowViews() throws Exception {
+		Map<String, String> aln = new LinkedHashMap<String, String>();
+		aln.put("a", "MK-VL");
+		aln.put("b", "M--VL");
+		aln.put("c", "MK-VL");
+		AlignmentMatrix matrix = AlignmentMatrix.fromMap(aln);
+		AlignmentMatrix renamed = matrix.withIds(Arrays.asList("1", "2", "3"));
+		Assert.assertEquals("M--VL", renamed.getRow("2"));
+		Assert.assertEquals(matrix.getRowHash(0), renamed.getRowHash(2));
+		AlignmentMatrix subset = renamed.selectRows(new HashSet<String>(Arrays.asList("3", "2")));
+		Assert.assertEquals(Arrays.asList("2", "3"), subset.getIds());
+		Assert.assertEquals("MK-VL", subset.getRow(1));
+		Assert.assertEquals("MV", subset.selectColumns(new int[] {0, 3}).getRow(1));
+		// views share residues with original matrix
+		matrix.set(2, 4, (byte)'A');
+		Assert.assertEquals("MK-VA", subset.getRow("3"));
+		File f = File.createTempFile("aln", ".fasta");
+		try {
+			OutputStream os = new FileOutputStream(f);
+			subset.writeFasta(os);
+			os.close();
+			Assert.assertEquals(subset.toMap(), AlignmentMatrix.readFasta(f).toMap());
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testRemoveGapsFromSubject() throws Exception {
+		Assert.assertEquals("--MKV-A-", AlignUtil.removeGapsFromSubject(8, "MKWV-A", 2, "MK-ELA"));
+	}
+
+	@Test
+	public void testFastaStream() throws Exception {
+		Map<String, String> aln = new LinkedHashMap<String, String>();
+		StringBuilder longRow = new StringBuilder();
+		for (int i = 0; i < 130; i++)
+			longRow.append(i % 7 == 0 ? '-' : 'A');
+		aln.put("seq1", longRow.toString());
+		aln.put("seq2", longRow.toString().replace('-', 'C'));
+		AlignmentMatrix matrix = AlignmentMatrix.fromMap(aln);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		matrix.writeFasta(expected);
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		InputStream is = matrix.getFastaStream();
+		byte[] buf = new byte[50];
+		for (;;) {
+			int len = is.read(buf);
+			if (len < 0)
+				break;
+			actual.write(buf, 0, len);
+		}
+		Assert.assertTrue(Arrays.equals(expected.toByteArray(), actual.toByteArray()));
+	}
+}
@@ -0,0 +1,60 @@
+package us.kbase.kbasetrees.test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.kbasetrees.util.BootstrapSupport;
+
+public class BootstrapSupportTest {
+
+	@Test
+	public void testSplitFrequencies() throws Exception {
+		List<String> leaves = Arrays.asList("a", "b", "c", "d", "e");
+		BootstrapSupport bs = new BootstrapSupport(leaves, null);
+		bs.addReplicate("((a:1,b:1):1,c:1,(d:1,e:1):1);");
+		// the same splits with other rooting and labels of other program
+		bs.addReplicate("(((d:0.1,e:0.2)0.95:1,c:1)0.9:0.5,b:1,a:2);");
+		bs.addReplicate("((a:1,c:1):1,b:1,(d:1,e:1):1);");
+		bs.addReplicate("((a:1,c:1):1,e:1,(d:1,b:1):1);");
+		Assert.assertEquals(4, bs.getReplicateCount());
+		Assert.assertEquals(0.75, bs.getSupport(Arrays.asList("d", "e")), 1e-9);
+		Assert.assertEquals(0.75, bs.getSupport(Arrays.asList("a", "b", "c")), 1e-9);
+		Assert.assertEquals(0.5, bs.getSupport(Arrays.asList("a", "b")), 1e-9);
+		Assert.assertEquals(0.5, bs.getSupport(Arrays.asList("a", "c")), 1e-9);
+		Assert.assertEquals(0.0, bs.getSupport(Arrays.asList("a", "d")), 1e-9);
+		Assert.assertEquals("((a:1.0,b:1.0)0.5:1.0,c:1.0,(d:1.0,e:1.0)0.75:1.0);",
+				bs.applySupport("((a:1,b:1):1,c:1,(d:1,e:1):1);"));
+	}
+
+	@Test
+	public void testDuplicates() throws Exception {
+		Map<String, List<String>> dups = Collections.singletonMap("a", Arrays.asList("a2"));
+		BootstrapSupport bs = new BootstrapSupport(Arrays.asList("a", "b", "c", "d"), dups);
+		bs.addReplicate("((a:1,b:1):1,c:1,d:1);");
+		bs.addReplicate("((a:1,c:1):1,b:1,d:1);");
+		Assert.assertEquals(0.5, bs.getSupport(Arrays.asList("a", "a2", "b")), 1e-9);
+		// cherry of identical sequences gets no support value
+		Assert.assertEquals("(((a:0.0,a2:0.0):1.0,b:1.0)0.5:1.0,c:1.0,d:1.0);",
+				bs.applySupport("(((a:0,a2:0):1,b:1):1,c:1,d:1);"));
+	}
+
+	@Test
+	public void testResampling() throws Exception {
+		int[] weights = BootstrapSupport.resampleColumns(100, new Random(1));
+		int sum = 0;
+		for (int w : weights)
+			sum += w;
+		Assert.assertEquals(100, sum);
+		int[] cols = BootstrapSupport.getColumns(weights);
+		Assert.assertEquals(100, cols.length);
+		for (int i = 1; i < cols.length; i++)
+			Assert.assertTrue(cols[i - 1] <= cols[i]);
+	}
+}
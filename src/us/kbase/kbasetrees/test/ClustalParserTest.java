@@ -0,0 +1,69 @@
+package us.kbase.kbasetrees.test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.common.utils.AlignedFastaParser;
+import us.kbase.common.utils.Alignment;
+import us.kbase.common.utils.ClustalAlignment;
+import us.kbase.common.utils.ClustalParser;
+
+public class ClustalParserTest {
+
+	@Test
+	public void testClustal() throws Exception {
+		String text = 
+				"CLUSTAL W (1.83) multiple sequence alignment\r\n" +
+				"\r\n" +
+				"\r\n" +
+				"seq1      MKV-LAG\r\n" +
+				"seq_two   MKVWLA-\r\n" +
+				"          *** ** \r\n" +
+				"\r\n" +
+				"seq1      TR 9\r\n" +
+				"seq_two   TK 8\r\n" +
+				"          *.\r\n";
+		ClustalAlignment aln = (ClustalAlignment)ClustalParser.parse(text);
+		Assert.assertEquals(2, aln.protNames.length);
+		Assert.assertEquals("seq_two", aln.protNames[1]);
+		Assert.assertEquals("MKV-LAGTR", aln.alignSeqs[0]);
+		Assert.assertEquals("MKVWLA-TK", aln.alignSeqs[1]);
+		Assert.assertEquals("*** ** *.", aln.infoLine);
+		Alignment aln2 = ClustalParser.parse(new BufferedReader(new StringReader(text)), null);
+		Assert.assertEquals(aln.alignSeqs[1], aln2.alignSeqs[1]);
+		checkError(text.replace("seq_two   TK", "seq_3     TK"), "Wrong order of proteins in blocks");
+		checkError(text.replace("seq_two   TK", "seq_two   TKA"), "Alignment has sequences of different length");
+		checkError(text.replace("CLUSTAL", "MUSCLE"), "Start word (CLUSTAL) is not found");
+	}
+
+	private static void checkError(String text, String message) {
+		try {
+			ClustalParser.parse(text);
+			Assert.fail("Error is expected: " + message);
+		} catch (Exception ex) {
+			Assert.assertEquals(message, ex.getMessage());
+		}
+	}
+
+	@Test
+	public void testAlignedFasta() throws Exception {
+		String text = ">1 first\nMKV-\nla\n>2\nMK\nVWL-\n\n>3\nM-----\n";
+		Alignment aln = AlignedFastaParser.parse(text.getBytes("US-ASCII"), true);
+		Assert.assertEquals(3, aln.protNames.length);
+		Assert.assertEquals("1", aln.protNames[0]);
+		Assert.assertEquals(6, aln.alignLen);
+		Assert.assertEquals("MKV-LA", aln.alignSeqs[0]);
+		Assert.assertEquals("MKVWL-", aln.alignSeqs[1]);
+		Assert.assertEquals("M-----", aln.alignSeqs[2]);
+		try {
+			AlignedFastaParser.parse(">1\nMKV\n>2\nMK\n".getBytes("US-ASCII"), false);
+			Assert.fail("Error is expected");
+		} catch (IllegalStateException ex) {
+			Assert.assertEquals("Alignment has sequences of different length", ex.getMessage());
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package us.kbase.kbasetrees.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.common.utils.BoundedByteArrayOutputStream;
+import us.kbase.common.utils.CorrectProcess;
+
+public class CorrectProcessTest {
+
+	@Test
+	public void testRawPump() throws Exception {
+		byte[] data = new byte[3 * CorrectProcess.ProcessStreamHolder.RAW_BUFFER_SIZE + 17];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte)(i * 31);
+		Process p = Runtime.getRuntime().exec(CorrectProcess.arr("cat"));
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		BoundedByteArrayOutputStream errBaos = new BoundedByteArrayOutputStream();
+		CorrectProcess cp = new CorrectProcess(p, result, null, errBaos, null);
+		cp.addInputRedirect(new ByteArrayInputStream(data));
+		Assert.assertEquals(0, cp.waitFor());
+		Assert.assertTrue(Arrays.equals(data, result.toByteArray()));
+		Assert.assertEquals(0, errBaos.size());
+	}
+
+	@Test
+	public void testBoundedCapture() throws Exception {
+		BoundedByteArrayOutputStream baos = new BoundedByteArrayOutputStream(10);
+		baos.write("abc".getBytes());
+		Assert.assertEquals("abc", baos.toString());
+		baos.write("defg".getBytes());
+		Assert.assertFalse(baos.isTruncated());
+		Assert.assertEquals("abcdefg", baos.toString());
+		for (char c = 'h'; c <= 'z'; c++)
+			baos.write(c);
+		Assert.assertTrue(baos.isTruncated());
+		Assert.assertEquals(26, baos.size());
+		Assert.assertEquals("abcde\n... [16 bytes truncated] ...\nvwxyz", baos.toString());
+		baos.write("0123456789".getBytes(), 2, 7);
+		Assert.assertEquals("abcde\n... [23 bytes truncated] ...\n45678", baos.toString());
+	}
+}
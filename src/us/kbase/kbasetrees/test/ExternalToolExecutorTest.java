@@ -0,0 +1,89 @@
+package us.kbase.kbasetrees.test;
+
+import java.io.ByteArrayInputStream;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.common.utils.ExternalCommand;
+import us.kbase.common.utils.ExternalToolExecutor;
+import us.kbase.common.utils.ExternalToolResult;
+
+public class ExternalToolExecutorTest {
+
+	@Test
+	public void testStdinStdout() throws Exception {
+		ExternalToolResult res = ExternalToolExecutor.run(new ExternalCommand("cat")
+				.stdin(new ByteArrayInputStream(" >seq1\nMKV \n".getBytes())));
+		Assert.assertEquals(0, res.getExitCode());
+		Assert.assertEquals(">seq1\nMKV", res.getStdoutText());
+		Assert.assertEquals("cat", res.getTool());
+	}
+
+	@Test
+	public void testErrorExit() throws Exception {
+		try {
+			ExternalToolExecutor.run(new ExternalCommand("bash").args("-c", "echo oops >&2; exit 3")
+					.label("Test"));
+			Assert.fail("Error should be reported");
+		} catch (Exception ex) {
+			Assert.assertEquals("Test: oops", ex.getMessage().trim());
+		}
+		try {
+			ExternalToolExecutor.run(new ExternalCommand("bash").args("-c", "exit 3").label("Test"));
+			Assert.fail("Error should be reported");
+		} catch (IllegalStateException ex) {
+			Assert.assertEquals("Test exit code: 3", ex.getMessage());
+		}
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		long time = System.currentTimeMillis();
+		try {
+			// child sleep process should be killed together with bash
+			ExternalToolExecutor.run(new ExternalCommand("bash").args("-c", "sleep 30; echo done")
+					.timeout(500));
+			Assert.fail("Timeout should be reported");
+		} catch (IllegalStateException ex) {
+			Assert.assertTrue(ex.getMessage(), ex.getMessage().startsWith("bash was killed after timeout"));
+		}
+		Assert.assertTrue(System.currentTimeMillis() - time < 10000);
+	}
+
+	@Test
+	public void testDescendantCpuTime() throws Exception {
+		// CPU time of grandchild process is collected through children of known processes
+		ExternalToolResult res = ExternalToolExecutor.run(new ExternalCommand("bash").args("-c",
+				"bash -c 'i=0; while [ $i -lt 300000 ]; do i=$((i+1)); done; sleep 1'"));
+		Assert.assertTrue("CPU time: " + res.getCpuTimeMs(), res.getCpuTimeMs() > 0);
+		Assert.assertTrue("Peak RSS: " + res.getPeakRssKb(), res.getPeakRssKb() > 0);
+	}
+
+	@Test
+	public void testConcurrencyLimit() throws Exception {
+		ExternalToolExecutor.setConcurrencyLimit("sleep", 1);
+		try {
+			final Exception[] err = new Exception[1];
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						ExternalToolExecutor.run(new ExternalCommand("sleep").args("0.5"));
+					} catch (Exception ex) {
+						err[0] = ex;
+					}
+				}
+			};
+			t.start();
+			Thread.sleep(100);
+			ExternalToolResult res = ExternalToolExecutor.run(new ExternalCommand("sleep").args("0.1"));
+			t.join();
+			Assert.assertNull(err[0]);
+			Assert.assertTrue("" + res.getQueueWaitMs(), res.getQueueWaitMs() >= 200);
+		} finally {
+			ExternalToolExecutor.setConcurrencyLimit("sleep", 0);
+		}
+	}
+}
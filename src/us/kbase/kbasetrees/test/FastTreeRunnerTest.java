@@ -0,0 +1,61 @@
+package us.kbase.kbasetrees.test;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.common.utils.AlignmentMatrix;
+import us.kbase.kbasetrees.FastTreeRunner;
+import us.kbase.kbasetrees.JobScheduler;
+import us.kbase.kbasetrees.TaskExecutors;
+
+public class FastTreeRunnerTest {
+
+	@Test
+	public void testStdinStreaming() throws Exception {
+		Map<String, String> aln = new LinkedHashMap<String, String>();
+		aln.put("a", "MKVLAAGIVALLLAAGCS");
+		aln.put("b", "MKVLAAGIVGLLLAAGCS");
+		aln.put("c", "MRVLSAGIVALL-AAGCT");
+		aln.put("d", "MRVLSAGLVALL-AAGCT");
+		File binDir = new File(new File("data"), "bin");
+		String osSuffix = System.getProperty("os.name").toLowerCase().contains("mac") ? "macosx" : "linux";
+		for (String preset : new String[] {FastTreeRunner.PRESET_FASTEST, FastTreeRunner.PRESET_ACCURATE}) {
+			FastTreeRunner.setPreset(preset);
+			// without FastTreeMP binary single-threaded FastTree is used
+			String tree = FastTreeRunner.run(binDir, osSuffix, new File("temp_files"), 
+					AlignmentMatrix.fromMap(aln), 4).trim();
+			Assert.assertTrue(tree, tree.endsWith(";"));
+			for (String id : aln.keySet())
+				Assert.assertTrue(tree, tree.contains(id + ":"));
+		}
+		FastTreeRunner.setPreset(FastTreeRunner.PRESET_FASTEST);
+		try {
+			FastTreeRunner.setPreset("unknown");
+			Assert.fail("Error is expected");
+		} catch (IllegalStateException ex) {
+			Assert.assertTrue(ex.getMessage().contains("Unsupported FastTree preset"));
+		}
+	}
+
+	@Test
+	public void testDefaultThreads() throws Exception {
+		FastTreeRunner.configure(new LinkedHashMap<String, String>());
+		TaskExecutors.setThreads(16, 8);
+		// one common slot and one fast lane slot share CPU pool
+		JobScheduler.setLimits(1, null, 1, 100);
+		try {
+			Assert.assertEquals(4, FastTreeRunner.getJobThreads());
+			FastTreeRunner.setJobThreads(3);
+			Assert.assertEquals(3, FastTreeRunner.getJobThreads());
+		} finally {
+			JobScheduler.setLimits(Integer.MAX_VALUE, null, 0, 0);
+			TaskExecutors.setThreads(16, Runtime.getRuntime().availableProcessors());
+			FastTreeRunner.configure(new LinkedHashMap<String, String>());
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package us.kbase.kbasetrees.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.common.utils.FastaByteReader;
+import us.kbase.common.utils.FastaReader;
+import us.kbase.common.utils.FastaRecord;
+
+public class FastaByteReaderTest {
+
+	@Test
+	public void testPlainFile() throws Exception {
+		File f = new File("data/test", "Shewanella_ANA_3_uid58347.fasta");
+		FastaReader fr = new FastaReader(f);
+		Map<String, String> expected = fr.readAll();
+		fr.close();
+		long time = System.currentTimeMillis();
+		Map<String, String> actual = FastaByteReader.readFromFile(f);
+		System.out.println("Fasta reading (mapped file), time: " + (System.currentTimeMillis() - time) + " ms");
+		Assert.assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testGzipFile() throws Exception {
+		File f = new File("data/cogs", "COG103.trim.faa.gz");
+		FastaReader fr = new FastaReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(f))));
+		Map<String, String> expected = fr.readAll();
+		fr.close();
+		Assert.assertEquals(expected, FastaByteReader.readFromFile(f));
+	}
+
+	@Test
+	public void testRecords() throws Exception {
+		String text = "\n>id1  some  description\r\nMKV\r\n  LA\n\n> id2\nPP\n>id3\n";
+		FastaByteReader fr = new FastaByteReader(new ByteArrayInputStream(text.getBytes("US-ASCII")));
+		Iterator<FastaRecord> it = fr.iterator();
+		FastaRecord rec = it.next();
+		Assert.assertEquals("id1", rec.getId());
+		Assert.assertEquals("some description", rec.getDescription());
+		Assert.assertEquals("MKVLA", rec.getSequenceString());
+		rec = it.next();
+		Assert.assertEquals("id2", rec.getId());
+		Assert.assertEquals("", rec.getDescription());
+		Assert.assertEquals(2, rec.getSequenceLength());
+		try {
+			it.next();
+			Assert.fail("Empty sequence should be reported");
+		} catch (IllegalStateException ex) {
+			Assert.assertEquals("No sequence for caption: id3", ex.getMessage());
+		}
+		fr.close();
+	}
+}
@@ -0,0 +1,85 @@
+package us.kbase.kbasetrees.test;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.kbasetrees.Tree;
+import us.kbase.kbasetrees.util.JobCheckpoint;
+
+public class JobCheckpointTest {
+
+	@Test
+	public void testStages() throws Exception {
+		File parentDir = new File("temp_files", "checkpoint_test" + System.currentTimeMillis());
+		try {
+			JobCheckpoint cp = JobCheckpoint.tryOpen(new File(parentDir, "job1"));
+			Assert.assertNull(cp.getStage("genome.0"));
+			cp.writeJson("genome_0.json", new Tree().withTree("(a,b);").withLeafList(Arrays.asList("a", "b")));
+			cp.completeStage("genome.0", "1/2/3");
+			OutputStream os = cp.openForWrite("alignment.fasta");
+			os.write(">a\nMK\n".getBytes());
+			os.close();
+			cp.completeStage("alignment", "1/2/3");
+			// restarted job sees completed stages
+			cp.close();
+			cp = JobCheckpoint.tryOpen(new File(parentDir, "job1"));
+			Assert.assertTrue(cp.isCompleted("genome.0", "1/2/3"));
+			Assert.assertFalse(cp.isCompleted("genome.0", "1/2/4"));
+			Assert.assertEquals("(a,b);", cp.readJson("genome_0.json", Tree.class).getTree());
+			Assert.assertEquals(6, cp.getFile("alignment.fasta").length());
+			Assert.assertFalse(new File(cp.getDir(), "alignment.fasta.tmp").exists());
+			// folders of old jobs are removed
+			JobCheckpoint.deleteOld(parentDir, 3600000);
+			Assert.assertTrue(cp.getDir().exists());
+			cp.close();
+			cp.getDir().setLastModified(System.currentTimeMillis() - 7200000);
+			JobCheckpoint.deleteOld(parentDir, 3600000);
+			Assert.assertFalse(cp.getDir().exists());
+		} finally {
+			deleteAll(parentDir);
+		}
+	}
+
+	@Test
+	public void testLocking() throws Exception {
+		File parentDir = new File("temp_files", "checkpoint_lock_test" + System.currentTimeMillis());
+		try {
+			File dir = new File(parentDir, "job1");
+			JobCheckpoint cp1 = JobCheckpoint.tryOpen(dir);
+			cp1.completeStage("genome.0", "1/2/3");
+			// identical job running at the same time doesn't get the folder
+			Assert.assertNull(JobCheckpoint.tryOpen(dir));
+			// folder of running job isn't removed even if it's old
+			dir.setLastModified(System.currentTimeMillis() - 7200000);
+			JobCheckpoint.deleteOld(parentDir, 3600000);
+			Assert.assertTrue(cp1.getFile("manifest.properties").exists());
+			cp1.close();
+			JobCheckpoint cp2 = JobCheckpoint.tryOpen(dir);
+			Assert.assertTrue(cp2.isCompleted("genome.0", "1/2/3"));
+			cp2.delete();
+			Assert.assertFalse(dir.exists());
+			cp2 = JobCheckpoint.tryOpen(dir);
+			Assert.assertNull(cp2.getStage("genome.0"));
+			cp2.close();
+		} finally {
+			deleteAll(parentDir);
+		}
+	}
+
+	private static void deleteAll(File parentDir) throws Exception {
+		File[] dirs = parentDir.listFiles();
+		if (dirs != null) {
+			for (File d : dirs) {
+				JobCheckpoint cp = JobCheckpoint.tryOpen(d);
+				if (cp != null)
+					cp.delete();
+			}
+		}
+		parentDir.delete();
+	}
+}
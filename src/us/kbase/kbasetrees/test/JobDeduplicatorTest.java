@@ -0,0 +1,36 @@
+package us.kbase.kbasetrees.test;
+
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.common.service.UObject;
+import us.kbase.kbasetrees.JobDeduplicator;
+import us.kbase.workspace.ObjectSaveData;
+
+public class JobDeduplicatorTest {
+
+	@Test
+	public void testSizeLimit() throws Exception {
+		JobDeduplicator.setLimits(60000, 2500);
+		try {
+			for (int i = 0; i < 5; i++) {
+				JobDeduplicator.Entry entry = JobDeduplicator.join("size-test-" + i, "job" + i);
+				Assert.assertTrue(entry.isOwner());
+				entry.complete(Arrays.asList(new ObjectSaveData().withData(
+						new UObject(new String(new char[1000]).replace('\0', 'A')))));
+			}
+			// results of two last jobs fit into the limit
+			Assert.assertEquals(2, JobDeduplicator.getCompletedCount());
+			Assert.assertTrue(JobDeduplicator.join("size-test-0", "job5").isOwner());
+			JobDeduplicator.Entry dup = JobDeduplicator.join("size-test-4", "job6");
+			Assert.assertFalse(dup.isOwner());
+			Assert.assertEquals("job4", dup.getJobId());
+			Assert.assertNotNull(dup.getResult());
+		} finally {
+			JobDeduplicator.setLimits(0, 0);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package us.kbase.kbasetrees.test;
+
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.kbasetrees.JobProgress;
+
+public class JobProgressTest {
+
+	@Test
+	public void testRateLimit() throws Exception {
+		LocalJobStatuses statuses = new LocalJobStatuses();
+		JobProgress.setUpdateInterval(1000);
+		try {
+			JobProgress progress = new JobProgress(statuses, "token", "job1", "TestTask")
+					.withStages("genomes", "tree");
+			progress.startStage("genomes", 100);
+			List<String> updates = statuses.waitForUpdates("job1", 1, 5000);
+			Assert.assertEquals("Stage 1 of 2: genomes (0/100)", updates.get(0));
+			long time = System.currentTimeMillis();
+			for (int i = 0; i < 100; i++)
+				progress.step();
+			// steps are coalesced into one update sent after interval
+			updates = statuses.waitForUpdates("job1", 2, 5000);
+			Assert.assertTrue(System.currentTimeMillis() - time >= 500);
+			Assert.assertEquals(2, updates.size());
+			Assert.assertEquals("Stage 1 of 2: genomes (100/100)", updates.get(1));
+			progress.startStage("tree", 0);
+			progress.finish(true);
+			Thread.sleep(1500);
+			Assert.assertEquals(2, statuses.getUpdates("job1").size());
+		} finally {
+			JobProgress.setUpdateInterval(30000);
+		}
+	}
+
+	@Test
+	public void testEstimate() throws Exception {
+		String taskType = "EstimateTask" + System.currentTimeMillis();
+		JobProgress progress = new JobProgress(null, null, null, taskType).withStages("load", "build");
+		progress.startStage("load", 0);
+		Assert.assertEquals(-1, progress.getEstimatedCompletion());
+		Thread.sleep(100);
+		progress.startStage("build", 10);
+		Thread.sleep(100);
+		progress.finish(true);
+		// next job of the same type uses durations of stages of previous one
+		progress = new JobProgress(null, null, null, taskType).withStages("load", "build");
+		long time = System.currentTimeMillis();
+		progress.startStage("load", 0);
+		Assert.assertTrue(progress.getEstimatedCompletion() >= time + 150);
+		progress.startStage("build", 4);
+		Thread.sleep(100);
+		progress.setDone(2);
+		Assert.assertEquals("Stage 2 of 2: build (2/4)", progress.getStatus());
+		long remaining = progress.getEstimatedCompletion() - System.currentTimeMillis();
+		Assert.assertTrue("" + remaining, remaining > 50 && remaining < 500);
+	}
+}
@@ -0,0 +1,124 @@
+package us.kbase.kbasetrees.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.kbasetrees.JobScheduler;
+
+public class JobSchedulerTest {
+
+	@Test
+	public void testFairShare() throws Exception {
+		JobScheduler.setLimits(1, null, 0, 0);
+		try {
+			List<String> started = Collections.synchronizedList(new ArrayList<String>());
+			CountDownLatch gate = new CountDownLatch(1);
+			CountDownLatch finished = new CountDownLatch(4);
+			submitJob("Msa", "user1", 100, "1", started, gate, finished);
+			// user1 submits big and small jobs before single job of user2
+			submitJob("Msa", "user1", 1000, "2", started, null, finished);
+			submitJob("Msa", "user1", 10, "3", started, null, finished);
+			submitJob("Msa", "user2", 1000, "4", started, null, finished);
+			Assert.assertEquals(3, JobScheduler.getQueueDepth());
+			gate.countDown();
+			Assert.assertTrue(finished.await(10, TimeUnit.SECONDS));
+			Assert.assertEquals("[1, 4, 3, 2]", started.toString());
+			waitForIdle();
+		} finally {
+			JobScheduler.setLimits(Integer.MAX_VALUE, null, 0, 0);
+		}
+	}
+
+	@Test
+	public void testTypeLimitAndFastLane() throws Exception {
+		JobScheduler.setLimits(2, Collections.singletonMap("SpeciesTree", 1), 1, 100);
+		try {
+			List<String> started = Collections.synchronizedList(new ArrayList<String>());
+			CountDownLatch treeGate = new CountDownLatch(1);
+			CountDownLatch msaGate = new CountDownLatch(1);
+			CountDownLatch msaFinished = new CountDownLatch(2);
+			CountDownLatch treeFinished = new CountDownLatch(2);
+			submitJob("SpeciesTree", "user1", 1000, "1", started, treeGate, treeFinished);
+			// second species tree waits though there is free slot
+			submitJob("SpeciesTree", "user2", 1000, "2", started, null, treeFinished);
+			submitJob("Msa", "user3", 1000, "3", started, msaGate, msaFinished);
+			// all common slots are busy, small job goes to fast lane
+			JobScheduler.Ticket small = submitJob("Msa", "user3", 50, "4", started, msaGate, msaFinished);
+			Assert.assertTrue(small.isFastLane());
+			Assert.assertEquals(3, JobScheduler.getRunningCount());
+			Assert.assertEquals(1, JobScheduler.getQueueDepth());
+			msaGate.countDown();
+			Assert.assertTrue(msaFinished.await(10, TimeUnit.SECONDS));
+			Assert.assertTrue(started.toString(), !started.contains("2"));
+			treeGate.countDown();
+			Assert.assertTrue(treeFinished.await(10, TimeUnit.SECONDS));
+			Assert.assertEquals("2", started.get(3));
+			waitForIdle();
+		} finally {
+			JobScheduler.setLimits(Integer.MAX_VALUE, null, 0, 0);
+		}
+	}
+
+	@Test
+	public void testSubmittedJobs() throws Exception {
+		JobScheduler.setLimits(2, Collections.singletonMap("SpeciesTree", 1), 0, 0);
+		try {
+			List<String> started = Collections.synchronizedList(new ArrayList<String>());
+			CountDownLatch treeGate = new CountDownLatch(1);
+			CountDownLatch msaGate = new CountDownLatch(1);
+			CountDownLatch finished = new CountDownLatch(42);
+			submitJob("SpeciesTree", "user1", 1000, "t0", started, treeGate, finished);
+			// capped species trees are waiting without holding any thread
+			for (int i = 1; i <= 20; i++)
+				submitJob("SpeciesTree", "user1", 1000, "t" + i, started, null, finished);
+			submitJob("Msa", "user1", 1000, "m0", started, msaGate, finished);
+			for (int i = 1; i < 20; i++)
+				submitJob("Msa", "user1", 1000, "m" + i, started, null, finished);
+			// the only job of user2 comes after all jobs of user1
+			submitJob("Msa", "user2", 1000, "u2", started, null, finished);
+			Assert.assertEquals(2, JobScheduler.getRunningCount());
+			Assert.assertEquals(40, JobScheduler.getQueueDepth());
+			msaGate.countDown();
+			// all jobs except species trees are done
+			while (finished.getCount() > 21)
+				Thread.sleep(10);
+			Assert.assertEquals("u2", started.get(2));
+			Assert.assertEquals(22, started.size());
+			Assert.assertEquals(20, JobScheduler.getQueueDepth());
+			for (String jobId : started)
+				Assert.assertTrue(jobId, jobId.equals("t0") || !jobId.startsWith("t"));
+			treeGate.countDown();
+			Assert.assertTrue(finished.await(10, TimeUnit.SECONDS));
+			Assert.assertEquals(42, started.size());
+			waitForIdle();
+		} finally {
+			JobScheduler.setLimits(Integer.MAX_VALUE, null, 0, 0);
+		}
+	}
+
+	private static JobScheduler.Ticket submitJob(String type, String user, long size, final String jobId, 
+			final List<String> started, final CountDownLatch gate, final CountDownLatch finished) {
+		return JobScheduler.submit(type, user, size, jobId, new JobScheduler.Job() {
+			@Override
+			public void run(JobScheduler.Ticket ticket) throws Exception {
+				started.add(jobId);
+				if (gate != null)
+					gate.await();
+				finished.countDown();
+			}
+		});
+	}
+
+	private static void waitForIdle() throws Exception {
+		// slot is released after job returns
+		while (JobScheduler.getRunningCount() > 0)
+			Thread.sleep(10);
+	}
+}
@@ -0,0 +1,58 @@
+package us.kbase.kbasetrees.test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.kbasetrees.util.KmerClustering;
+
+public class KmerClusteringTest {
+
+	@Test
+	public void testDistance() throws Exception {
+		int[] p1 = KmerClustering.getKmerProfile("MKVLAGT", 3);
+		Assert.assertEquals(5, p1.length);
+		Assert.assertEquals(0.0, KmerClustering.getDistance(p1, KmerClustering.getKmerProfile("MK-VLAGT", 3)));
+		Assert.assertEquals(0.0, KmerClustering.getDistance(p1, KmerClustering.getKmerProfile("KVLAG", 3)));
+		Assert.assertEquals(1.0, KmerClustering.getDistance(p1, KmerClustering.getKmerProfile("WWWWW", 3)));
+		Assert.assertEquals(1.0, KmerClustering.getDistance(p1, KmerClustering.getKmerProfile("MK", 3)));
+	}
+
+	@Test
+	public void testClusters() throws Exception {
+		Map<String, String> seqs = new LinkedHashMap<String, String>();
+		for (int i = 0; i < 6; i++) {
+			seqs.put("a" + i, "MKVLAGTRPQEH" + "ACDEFGHIKLMNPQRSTVWY".charAt(i));
+			seqs.put("b" + i, "WYWCNDCWRYNH" + "ACDEFGHIKLMNPQRSTVWY".charAt(i));
+		}
+		List<List<String>> clusters = KmerClustering.cluster(seqs, 3, 6);
+		Assert.assertEquals(2, clusters.size());
+		for (List<String> cluster : clusters) {
+			Assert.assertEquals(6, cluster.size());
+			Set<Character> prefixes = new HashSet<Character>();
+			for (String id : cluster)
+				prefixes.add(id.charAt(0));
+			Assert.assertEquals(1, prefixes.size());
+		}
+		Set<String> all = new HashSet<String>();
+		for (List<String> cluster : KmerClustering.cluster(seqs, 3, 1)) {
+			Assert.assertEquals(1, cluster.size());
+			all.addAll(cluster);
+		}
+		Assert.assertEquals(seqs.keySet(), all);
+		Map<String, String> same = new LinkedHashMap<String, String>();
+		for (int i = 0; i < 5; i++)
+			same.put("s" + i, "MKVLAGT");
+		List<Integer> sizes = new ArrayList<Integer>();
+		for (List<String> cluster : KmerClustering.cluster(same, 3, 2))
+			sizes.add(cluster.size());
+		Assert.assertEquals(3, sizes.size());
+	}
+}
@@ -0,0 +1,64 @@
+package us.kbase.kbasetrees.test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import us.kbase.common.taskqueue.JobStatuses;
+
+/**
+ * In-memory stand-in for job status service keeping every reported status.
+ */
+public class LocalJobStatuses implements JobStatuses {
+	private final Map<String, List<String>> updates = new LinkedHashMap<String, List<String>>();
+	private final Map<String, String> estimates = new LinkedHashMap<String, String>();
+	private int lastJobId = 0;
+
+	@Override
+	public synchronized String createAndStartJob(String token, String status, String desc,
+			String initProgressPtype, String estComplete) throws Exception {
+		String ret = "job" + (++lastJobId);
+		updateJob(ret, token, status, estComplete);
+		return ret;
+	}
+
+	@Override
+	public synchronized void updateJob(String job, String token, String status,
+			String estComplete) throws Exception {
+		List<String> statuses = updates.get(job);
+		if (statuses == null) {
+			statuses = new ArrayList<String>();
+			updates.put(job, statuses);
+		}
+		statuses.add(status);
+		estimates.put(job, estComplete);
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void completeJob(String job, String token, String status,
+			String error, String wsUrl, String outRef) throws Exception {
+		updateJob(job, token, error == null ? status : ("Error: " + error), null);
+	}
+
+	public synchronized List<String> getUpdates(String job) {
+		List<String> ret = updates.get(job);
+		return ret == null ? new ArrayList<String>() : new ArrayList<String>(ret);
+	}
+
+	public synchronized String getEstimate(String job) {
+		return estimates.get(job);
+	}
+
+	/**
+	 * Waits until job gets given number of updates (or timeout is over).
+	 */
+	public synchronized List<String> waitForUpdates(String job, int count, long timeoutMs) 
+			throws InterruptedException {
+		long end = System.currentTimeMillis() + timeoutMs;
+		while (getUpdates(job).size() < count && System.currentTimeMillis() < end)
+			wait(Math.max(1, end - System.currentTimeMillis()));
+		return getUpdates(job);
+	}
+}
@@ -0,0 +1,131 @@
+package us.kbase.kbasetrees.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import us.kbase.common.service.UObject;
+
+/**
+ * Minimal local stand-in for workspace service answering JSON-RPC calls
+ * get_objects, get_object_subset and save_objects with objects registered
+ * in memory. It counts requests and distinct client TCP connections, so
+ * reuse of connections by clients could be measured.
+ */
+public class LocalWorkspaceServer {
+	private final HttpServer server;
+	private final Map<String, Object> objects = new LinkedHashMap<String, Object>();
+	private final Set<String> connections = new HashSet<String>();
+	private int requests = 0;
+
+	public LocalWorkspaceServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				processRequest(exchange);
+			}
+		});
+		server.start();
+	}
+
+	public String getUrl() {
+		return "http://localhost:" + server.getAddress().getPort() + "/";
+	}
+
+	public synchronized void putObject(String ref, Object data) {
+		objects.put(ref, data);
+	}
+
+	public synchronized int getRequestCount() {
+		return requests;
+	}
+
+	public synchronized int getConnectionCount() {
+		return connections.size();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void processRequest(HttpExchange exchange) throws IOException {
+		InputStream is = exchange.getRequestBody();
+		Map<String, Object> request;
+		try {
+			request = UObject.getMapper().readValue(is, Map.class);
+		} finally {
+			is.close();
+		}
+		synchronized (this) {
+			requests++;
+			connections.add(exchange.getRemoteAddress().toString());
+		}
+		String method = (String)request.get("method");
+		List<Object> params = (List<Object>)request.get("params");
+		Map<String, Object> response = new LinkedHashMap<String, Object>();
+		response.put("version", "1.1");
+		response.put("id", request.get("id"));
+		if (method.endsWith(".get_objects") || method.endsWith(".get_object_subset")) {
+			List<Object> ret = new ArrayList<Object>();
+			for (Object id : (List<Object>)params.get(0)) {
+				String ref = (String)((Map<String, Object>)id).get("ref");
+				Map<String, Object> od = new LinkedHashMap<String, Object>();
+				synchronized (this) {
+					od.put("data", objects.get(ref));
+				}
+				od.put("info", getInfo(ref));
+				ret.add(od);
+			}
+			response.put("result", Arrays.asList(ret));
+		} else if (method.endsWith(".save_objects")) {
+			List<Object> ret = new ArrayList<Object>();
+			Map<String, Object> saveParams = (Map<String, Object>)params.get(0);
+			for (Object obj : (List<Object>)saveParams.get("objects")) {
+				Map<String, Object> data = (Map<String, Object>)obj;
+				String ref = saveParams.get("workspace") + "/" + 
+						(data.get("name") != null ? data.get("name") : data.get("objid"));
+				synchronized (this) {
+					objects.put(ref, data.get("data"));
+				}
+				ret.add(getInfo(ref));
+			}
+			response.put("result", Arrays.asList(ret));
+		} else {
+			Map<String, Object> error = new LinkedHashMap<String, Object>();
+			error.put("name", "JSONRPCError");
+			error.put("code", -32601);
+			error.put("message", "Unsupported method: " + method);
+			response.put("error", error);
+		}
+		byte[] body = UObject.getMapper().writeValueAsBytes(response);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(response.containsKey("error") ? 500 : 200, body.length);
+		OutputStream os = exchange.getResponseBody();
+		try {
+			os.write(body);
+		} finally {
+			os.close();
+		}
+	}
+
+	private static List<Object> getInfo(String ref) {
+		String[] parts = ref.split("/");
+		return Arrays.<Object>asList(1L, parts[parts.length - 1], "KBaseTrees.MSA-1.0", 
+				"2014-01-01T00:00:00+0000", 1L, "user", 1L, parts[0], "", 0L, 
+				new LinkedHashMap<String, String>());
+	}
+}
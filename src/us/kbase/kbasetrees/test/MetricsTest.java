@@ -0,0 +1,66 @@
+package us.kbase.kbasetrees.test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.common.utils.ExternalToolExecutor;
+import us.kbase.kbasetrees.util.Metrics;
+
+public class MetricsTest {
+
+	@Test
+	public void testJobTimers() throws Exception {
+		String jobId = "metrics_test_" + System.currentTimeMillis();
+		long[] before = Metrics.getTimer("test.stage");
+		ExternalToolExecutor.setCurrentJob(jobId);
+		Metrics.startJob(jobId);
+		try {
+			Metrics.record("test.stage", 1500);
+			Metrics.record("test.stage", 500);
+			Metrics.startTimer("test.other").stop();
+			Assert.assertEquals("test.stage: 2.0 s (x2), test.other: 0.0 s", Metrics.getJobSummary(jobId));
+		} finally {
+			Metrics.finishJob(jobId);
+			ExternalToolExecutor.setCurrentJob(null);
+		}
+		Assert.assertNull(Metrics.getJobSummary(jobId));
+		long[] after = Metrics.getTimer("test.stage");
+		Assert.assertEquals((before == null ? 0 : before[0]) + 2, after[0]);
+		Assert.assertEquals((before == null ? 0 : before[1]) + 2000, after[1]);
+		// timers out of job are counted only globally
+		Metrics.record("test.stage", 100);
+		Assert.assertEquals(after[0] + 1, Metrics.getTimer("test.stage")[0]);
+	}
+
+	@Test
+	public void testTextFormat() throws Exception {
+		Metrics.increment("test.bytes", 10);
+		Metrics.increment("test.bytes", 5);
+		Assert.assertTrue(Metrics.getCounter("test.bytes") >= 15);
+		Metrics.record("test.format", 2500);
+		Metrics.registerGauge("test.gauge", new Metrics.Gauge() {
+			@Override
+			public double getValue() throws Exception {
+				return 3;
+			}
+		});
+		Metrics.registerGauge("test.broken", new Metrics.Gauge() {
+			@Override
+			public double getValue() throws Exception {
+				throw new IllegalStateException("Not available");
+			}
+		});
+		StringWriter sw = new StringWriter();
+		Metrics.writeText(new PrintWriter(sw));
+		String text = sw.toString();
+		Assert.assertTrue(text, text.contains("kbtrees_timer_count{name=\"test.format\"} 1\n"));
+		Assert.assertTrue(text, text.contains("kbtrees_timer_seconds_max{name=\"test.format\"} 2.5\n"));
+		Assert.assertTrue(text, text.contains("kbtrees_counter{name=\"test.bytes\"} "));
+		Assert.assertTrue(text, text.contains("kbtrees_gauge{name=\"test.gauge\"} 3.0\n"));
+		Assert.assertTrue(text, !text.contains("test.broken"));
+	}
+}
@@ -0,0 +1,67 @@
+package us.kbase.kbasetrees.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.kbasetrees.util.MsaCache;
+
+public class MsaCacheTest {
+
+	@Test
+	public void testHitsAndEviction() throws Exception {
+		File dir = new File("temp_files", "msa_cache_test" + System.currentTimeMillis());
+		try {
+			MsaCache cache = new MsaCache(dir, 1 << 20);
+			Map<String, String> seqs = new LinkedHashMap<String, String>();
+			seqs.put("a", "MKVLA");
+			seqs.put("b", "MKLA");
+			seqs.put("c", "MKVLA");
+			Map<String, String> aln = new LinkedHashMap<String, String>();
+			aln.put("b", "MK-LA");
+			aln.put("a", "MKVLA");
+			aln.put("c", "MKVLA");
+			Assert.assertNull(cache.get(seqs, "muscle", "protein"));
+			cache.put(seqs, "muscle", "protein", aln, Arrays.asList("b", "a", "c"), 1000);
+			Assert.assertNull(cache.get(seqs, "clustal", "protein"));
+			// the same sequences with other ids in other order
+			Map<String, String> seqs2 = new LinkedHashMap<String, String>();
+			seqs2.put("x", "MKLA");
+			seqs2.put("y", "MKVLA");
+			seqs2.put("z", "MKVLA");
+			MsaCache.CachedAlignment res = cache.get(seqs2, "muscle", "protein");
+			Assert.assertNotNull(res);
+			Assert.assertEquals("MK-LA", res.getAlignment().get("x"));
+			Assert.assertEquals("MKVLA", res.getAlignment().get("y"));
+			Assert.assertEquals(Arrays.asList("x", "y", "z"), res.getRowOrder());
+			Assert.assertEquals(1, cache.getHits());
+			Assert.assertEquals(2, cache.getMisses());
+			// entries are visible after restart
+			cache = new MsaCache(dir, 1 << 20);
+			Assert.assertEquals(1, cache.getEntryCount());
+			// cheap entry is evicted first
+			seqs2.put("w", "MKKK");
+			aln.clear();
+			aln.put("x", "MK-LA");
+			aln.put("y", "MKVLA");
+			aln.put("z", "MKVLA");
+			aln.put("w", "MK-KK");
+			cache.put(seqs2, "muscle", "protein", aln, Arrays.asList("x", "y", "z", "w"), 10);
+			cache.setMaxSize(cache.getTotalSize() - 1);
+			Assert.assertEquals(1, cache.getEntryCount());
+			Assert.assertEquals(1, cache.getEvictions());
+			Assert.assertNotNull(cache.get(seqs, "muscle", "protein"));
+		} finally {
+			File[] files = dir.listFiles();
+			if (files != null)
+				for (File f : files)
+					f.delete();
+			dir.delete();
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package us.kbase.kbasetrees.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.common.service.Tuple11;
+import us.kbase.common.service.UObject;
+import us.kbase.kbasetrees.MSA;
+import us.kbase.kbasetrees.MsaChainLoader;
+import us.kbase.kbasetrees.ObjectStorage;
+import us.kbase.workspace.ListObjectsParams;
+import us.kbase.workspace.ObjectData;
+import us.kbase.workspace.ObjectIdentity;
+import us.kbase.workspace.SaveObjectsParams;
+import us.kbase.workspace.SubObjectIdentity;
+
+public class MsaChainLoaderTest {
+
+	@Test
+	public void testChain() throws Exception {
+		MsaChainLoader.clearCache();
+		MemoryStorage storage = new MemoryStorage();
+		storage.put("1/1/1", null, "a", "AC-T");
+		storage.put("1/2/1", "1/1/1", "b", "A--T");
+		storage.put("1/3/1", "1/2/1", "c", "ACGT");
+		Map<String, String> aln = MsaChainLoader.load(storage, "token", "1/3/1").getAlignment().toMap();
+		Assert.assertEquals(3, aln.size());
+		Assert.assertEquals("AC-T", aln.get("a"));
+		Assert.assertEquals("A--T", aln.get("b"));
+		Assert.assertEquals("ACGT", aln.get("c"));
+		// top object + one batch for both ancestors
+		Assert.assertEquals(2, storage.getObjectsCalls);
+		Assert.assertEquals(3, storage.loadedObjects);
+		Assert.assertEquals(2, storage.subsetCalls);
+		storage.reset();
+		MsaChainLoader.load(storage, "token", "1/3/1");
+		// cached chain isn't loaded, only access to its objects is checked
+		Assert.assertEquals(0, storage.getObjectsCalls);
+		Assert.assertEquals(3, storage.subsetCalls);
+		// only new child is loaded when ancestors are cached
+		storage.reset();
+		storage.put("1/4/1", "1/3/1", "d", "TTTT");
+		Map<String, String> aln2 = MsaChainLoader.load(storage, "token", "1/4/1").getAlignment().toMap();
+		Assert.assertEquals(4, aln2.size());
+		Assert.assertEquals("TTTT", aln2.get("d"));
+		Assert.assertEquals(1, storage.loadedObjects);
+		Assert.assertEquals(3, storage.subsetCalls);
+	}
+
+	@Test
+	public void testCachedChainAccess() throws Exception {
+		MsaChainLoader.clearCache();
+		MemoryStorage storage = new MemoryStorage();
+		storage.put("1/1/1", null, "a", "AC-T");
+		storage.put("2/1/1", "1/1/1", "b", "A--T");
+		storage.put("2/2/1", "2/1/1", "c", "ACGT");
+		MsaChainLoader.load(storage, "token", "2/2/1");
+		// other user can read workspace 2 but not workspace 1
+		storage.hiddenWorkspace = "1";
+		for (String ref : new String[] {"2/2/1", "2/1/1"}) {
+			try {
+				MsaChainLoader.load(storage, "other", ref);
+				Assert.fail("Access error is expected for " + ref);
+			} catch (IllegalStateException ex) {
+				Assert.assertEquals("Access denied: 1/1/1", ex.getMessage());
+			}
+		}
+		// cached ancestor of new child is checked as well
+		storage.put("2/3/1", "2/2/1", "d", "TTTT");
+		try {
+			MsaChainLoader.load(storage, "other", "2/3/1");
+			Assert.fail("Access error is expected");
+		} catch (IllegalStateException ex) {
+			Assert.assertEquals("Access denied: 1/1/1", ex.getMessage());
+		}
+		Assert.assertEquals(4, MsaChainLoader.load(storage, "token", "2/3/1").getAlignment().getRowCount());
+	}
+
+	@Test
+	public void testBoundedLinks() throws Exception {
+		MsaChainLoader.clearCache();
+		MemoryStorage storage = new MemoryStorage();
+		try {
+			// room for a few links only
+			MsaChainLoader.setMaxCacheSize(64 * 400);
+			storage.put("1/1/1", null, "a", "ACGT");
+			for (int i = 2; i <= 50; i++)
+				storage.put("1/" + i + "/1", "1/" + (i - 1) + "/1", "s" + i, "ACGT");
+			Assert.assertEquals(50, MsaChainLoader.load(storage, "token", "1/50/1")
+					.getAlignment().getRowCount());
+			int links = MsaChainLoader.getLinkCount();
+			Assert.assertTrue("Links: " + links, links > 0 && links < 10);
+			// chain is still loaded correctly when links are forgotten
+			Assert.assertEquals(49, MsaChainLoader.load(storage, "token", "1/49/1")
+					.getAlignment().getRowCount());
+		} finally {
+			MsaChainLoader.setMaxCacheSize(256L << 20);
+			MsaChainLoader.clearCache();
+		}
+	}
+
+	@Test
+	public void testDifferentLength() throws Exception {
+		MsaChainLoader.clearCache();
+		MemoryStorage storage = new MemoryStorage();
+		storage.put("1/1/1", null, "a", "AC-T");
+		storage.put("1/2/1", "1/1/1", "b", "ACT");
+		try {
+			MsaChainLoader.load(storage, "token", "1/2/1");
+			Assert.fail("Error is expected");
+		} catch (IllegalStateException ex) {
+			Assert.assertTrue(ex.getMessage().contains("different aligned sequence"));
+		}
+	}
+
+	private static class MemoryStorage implements ObjectStorage {
+		private final Map<String, MSA> objects = new HashMap<String, MSA>();
+		int getObjectsCalls = 0;
+		int loadedObjects = 0;
+		int subsetCalls = 0;
+		String hiddenWorkspace = null;
+
+		void put(String ref, String parentRef, String id, String seq) {
+			Map<String, String> aln = new LinkedHashMap<String, String>();
+			aln.put(id, seq);
+			objects.put(ref, new MSA().withAlignment(aln).withAlignmentLength((long)seq.length())
+					.withParentMsaRef(parentRef));
+		}
+
+		void reset() {
+			getObjectsCalls = 0;
+			loadedObjects = 0;
+			subsetCalls = 0;
+		}
+
+		private ObjectData get(String authToken, String ref) {
+			String[] parts = ref.split("/");
+			if (!authToken.equals("token") && parts[0].equals(hiddenWorkspace))
+				throw new IllegalStateException("Access denied: " + ref);
+			Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>> info =
+					new Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>()
+					.withE1(Long.parseLong(parts[1])).withE5(Long.parseLong(parts[2]))
+					.withE7(Long.parseLong(parts[0]));
+			return new ObjectData().withData(new UObject(objects.get(ref))).withInfo(info);
+		}
+
+		@Override
+		public List<ObjectData> getObjects(String authToken, List<ObjectIdentity> objectIds) throws Exception {
+			getObjectsCalls++;
+			List<ObjectData> ret = new ArrayList<ObjectData>();
+			for (ObjectIdentity oi : objectIds) {
+				ret.add(get(authToken, oi.getRef()));
+				loadedObjects++;
+			}
+			return ret;
+		}
+
+		@Override
+		public List<ObjectData> getObjectSubset(String authToken, List<SubObjectIdentity> objectIds) throws Exception {
+			List<ObjectData> ret = new ArrayList<ObjectData>();
+			for (SubObjectIdentity soi : objectIds) {
+				MSA msa = objects.get(soi.getRef());
+				ret.add(get(authToken, soi.getRef()).withData(new UObject(new MSA().withParentMsaRef(msa.getParentMsaRef()))));
+				subsetCalls++;
+			}
+			return ret;
+		}
+
+		@Override
+		public List<Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>> saveObjects(
+				String authToken, SaveObjectsParams params) throws Exception {
+			throw new IllegalStateException("Unsupported method");
+		}
+
+		@Override
+		public List<Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>> listObjects(
+				String authToken, ListObjectsParams params) throws Exception {
+			throw new IllegalStateException("Unsupported method");
+		}
+	}
+}
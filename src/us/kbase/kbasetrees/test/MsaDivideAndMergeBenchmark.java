@@ -0,0 +1,103 @@
+package us.kbase.kbasetrees.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import us.kbase.common.service.Tuple11;
+import us.kbase.kbasetrees.ConstructMultipleAlignmentParams;
+import us.kbase.kbasetrees.MSA;
+import us.kbase.kbasetrees.MultipleAlignmentBuilder;
+import us.kbase.kbasetrees.ObjectStorage;
+import us.kbase.workspace.ListObjectsParams;
+import us.kbase.workspace.ObjectData;
+import us.kbase.workspace.ObjectIdentity;
+import us.kbase.workspace.SaveObjectsParams;
+import us.kbase.workspace.SubObjectIdentity;
+
+/**
+ * Compares time of single-shot alignment with divide-and-merge mode on random
+ * protein families. Arguments: [method] [number of sequences] [group size].
+ * It needs aligner binaries in data/bin.
+ */
+public class MsaDivideAndMergeBenchmark {
+	private static final String AMINO_ACIDS = "ACDEFGHIKLMNPQRSTVWY";
+
+	public static void main(String[] args) throws Exception {
+		String method = args.length > 0 ? args[0] : "muscle";
+		int seqCount = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int clusterSize = args.length > 2 ? Integer.parseInt(args[2]) : 250;
+		Map<String, String> seqs = generateFamilies(seqCount, Math.max(1, seqCount / 100), 300, new Random(1));
+		for (int threshold : new int[] {0, seqCount - 1}) {
+			long time = System.currentTimeMillis();
+			MSA msa = align(method, seqs, threshold, clusterSize);
+			System.out.println((threshold == 0 ? "Single-shot" : "Divide-and-merge") + " alignment (" + 
+					method + ", " + seqCount + " sequences): length=" + msa.getAlignmentLength() + 
+					", time=" + (System.currentTimeMillis() - time) + " ms");
+		}
+	}
+
+	private static Map<String, String> generateFamilies(int seqCount, int familyCount, 
+			int length, Random rnd) {
+		List<String> ancestors = new ArrayList<String>();
+		for (int i = 0; i < familyCount; i++)
+			ancestors.add(randomSeq(length, rnd));
+		Map<String, String> ret = new LinkedHashMap<String, String>();
+		for (int i = 0; i < seqCount; i++) {
+			StringBuilder seq = new StringBuilder();
+			for (char c : ancestors.get(rnd.nextInt(familyCount)).toCharArray()) {
+				double r = rnd.nextDouble();
+				if (r < 0.02)
+					continue;  // deletion
+				seq.append(r < 0.2 ? AMINO_ACIDS.charAt(rnd.nextInt(AMINO_ACIDS.length())) : c);
+				if (r > 0.98)
+					seq.append(AMINO_ACIDS.charAt(rnd.nextInt(AMINO_ACIDS.length())));  // insertion
+			}
+			ret.put("seq" + i, seq.toString());
+		}
+		return ret;
+	}
+
+	private static String randomSeq(int length, Random rnd) {
+		StringBuilder ret = new StringBuilder();
+		for (int i = 0; i < length; i++)
+			ret.append(AMINO_ACIDS.charAt(rnd.nextInt(AMINO_ACIDS.length())));
+		return ret.toString();
+	}
+
+	private static MSA align(String method, Map<String, String> seqs, int threshold, 
+			int clusterSize) throws Exception {
+		final MSA[] retWrap = new MSA[] { null };
+		File tempDir = new File("temp_files");
+		MultipleAlignmentBuilder builder = new MultipleAlignmentBuilder().init(
+				tempDir, new File("data"), new ObjectStorage() {
+					@Override
+					public List<Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>> saveObjects(
+							String authToken, SaveObjectsParams params) throws Exception {
+						retWrap[0] = params.getObjects().get(0).getData().asClassInstance(MSA.class);
+						return new ArrayList<Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>>();
+					}
+					@Override
+					public List<ObjectData> getObjects(String authToken,
+							List<ObjectIdentity> objectIds) throws Exception {
+						throw new IllegalStateException();
+					}
+					@Override
+					public List<Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>> listObjects(
+							String authToken, ListObjectsParams params) throws Exception {
+						throw new IllegalStateException();
+					}
+					@Override
+					public List<ObjectData> getObjectSubset(String authToken, 
+							List<SubObjectIdentity> objectIds) throws Exception {
+						throw new IllegalStateException();
+					}
+				}).withDivideMode(threshold, clusterSize).withCacheSizeMb(0);
+		builder.run("token", new ConstructMultipleAlignmentParams().withAlignmentMethod(method)
+				.withGeneSequences(seqs).withOutWorkspace("ws"), "", "ws/msa");
+		return retWrap[0];
+	}
+}
@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -13,7 +14,10 @@ import junit.framework.Assert;
 import org.junit.Test;
 
 import us.kbase.common.service.Tuple11;
+import us.kbase.common.service.UObject;
 import us.kbase.common.utils.AlignUtil;
+import us.kbase.kbasetrees.AddSequencesToAlignmentParams;
+import us.kbase.kbasetrees.AlignmentExtensionBuilder;
 import us.kbase.kbasetrees.ConstructMultipleAlignmentParams;
 import us.kbase.kbasetrees.MSA;
 import us.kbase.kbasetrees.MultipleAlignmentBuilder;
@@ -51,7 +55,57 @@ public class MultipleAlignmentBuilderTest {
 		build("Mafft");
 	}
 
+	@Test
+	public void testMuscleDivideAndMerge() throws Exception {
+		build("Muscle", 5);
+	}
+
+	@Test
+	public void testMafftAdd() throws Exception {
+		final MSA parent = build("Mafft");
+		final MSA[] retWrap = new MSA[] { null };
+		AlignmentExtensionBuilder aeb = new AlignmentExtensionBuilder().init(
+				new File("temp_files"), new File("data"), new ObjectStorage() {
+					@Override
+					public List<Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>> saveObjects(
+							String authToken, SaveObjectsParams params) throws Exception {
+						retWrap[0] = params.getObjects().get(0).getData().asClassInstance(MSA.class);
+						return new ArrayList<Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>>();
+					}
+					@Override
+					public List<ObjectData> getObjects(String authToken,
+							List<ObjectIdentity> objectIds) throws Exception {
+						return Arrays.asList(new ObjectData().withData(new UObject(parent)));
+					}
+					@Override
+					public List<Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>> listObjects(
+							String authToken, ListObjectsParams params)
+							throws Exception {
+						throw new IllegalStateException();
+					}
+					@Override
+					public List<ObjectData> getObjectSubset(String authToken, List<SubObjectIdentity> objectIds) throws Exception {
+						throw new IllegalStateException("Unsupported method");
+					}
+				});
+		Map<String, String> seqs = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, String> entry : loadProtSeqs().entrySet())
+			if (seqs.size() < 3)
+				seqs.put("new_" + entry.getKey(), entry.getValue());
+		aeb.run("token", new AddSequencesToAlignmentParams().withMsaRef("ws/123").withGeneSequences(seqs)
+				.withOutWorkspace("ws"), "", "ws/124");
+		MSA msa = retWrap[0];
+		Assert.assertEquals("ws/123", msa.getParentMsaRef());
+		Assert.assertEquals(seqs.keySet(), msa.getAlignment().keySet());
+		for (String id : msa.getRowOrder())
+			Assert.assertEquals((long)parent.getAlignmentLength(), (long)msa.getAlignment().get(id).length());
+	}
+
 	private static MSA build(String method) throws Exception {
+		return build(method, 0);
+	}
+
+	private static MSA build(String method, int divideThreshold) throws Exception {
 		final MSA[] retWrap = new MSA[] { null };
 		long time = System.currentTimeMillis();
 		MultipleAlignmentBuilder stb = new MultipleAlignmentBuilder().init(
@@ -77,7 +131,7 @@ public class MultipleAlignmentBuilderTest {
 					public List<ObjectData> getObjectSubset(String authToken, List<SubObjectIdentity> objectIds) throws Exception {
 						throw new IllegalStateException("Unsupported method");
 					}
-				});
+				}).withDivideMode(divideThreshold, Math.max(2, divideThreshold / 2));
 		Map<String, String> seqs = loadProtSeqs();
 		stb.run("token", new ConstructMultipleAlignmentParams().withAlignmentMethod(method).withGeneSequences(seqs).withOutWorkspace("ws"), "", "ws/123");
 		MSA msa = retWrap[0];
@@ -0,0 +1,67 @@
+package us.kbase.kbasetrees.test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.common.utils.AlignmentMatrix;
+import us.kbase.kbasetrees.TaskExecutors;
+import us.kbase.kbasetrees.util.NeighborJoining;
+
+public class NeighborJoiningTest {
+
+	@Test
+	public void testAdditiveTree() throws Exception {
+		// classic additive example, (a,b) and (d,e) are cherries
+		List<String> ids = Arrays.asList("a", "b", "c", "d", "e");
+		for (boolean bionj : new boolean[] {false, true}) {
+			String tree = NeighborJoining.buildTree(ids, new float[][] {
+					{}, {5}, {9, 10}, {9, 10, 8}, {8, 9, 7, 3}}, bionj, 1);
+			Assert.assertEquals("(((b:3.0,a:2.0):3.0,c:4.0):2.0,e:1.0,d:2.0);", tree);
+		}
+	}
+
+	@Test
+	public void testSmall() throws Exception {
+		Assert.assertEquals("a;", NeighborJoining.buildTree(Arrays.asList("a"),
+				new float[][] {{}}, false, 1));
+		Assert.assertEquals("(a:0.5,b:0.5);", NeighborJoining.buildTree(Arrays.asList("a", "b"),
+				new float[][] {{}, {1}}, false, 1));
+	}
+
+	@Test
+	public void testThreads() throws Exception {
+		Map<String, String> aln = new LinkedHashMap<String, String>();
+		Random rnd = new Random(1);
+		char[] base = new char[200];
+		for (int i = 0; i < base.length; i++)
+			base[i] = "ACDEFGHIKLMNPQRSTVWY".charAt(rnd.nextInt(20));
+		for (int i = 0; i < 700; i++) {
+			char[] seq = base.clone();
+			for (int j = 0; j < 40; j++)
+				seq[rnd.nextInt(seq.length)] = rnd.nextInt(4) == 0 ? '-' : "ACDEFGHIKLMNPQRSTVWY".charAt(rnd.nextInt(20));
+			aln.put("s" + i, new String(seq));
+		}
+		AlignmentMatrix matrix = AlignmentMatrix.fromMap(aln);
+		String tree1 = NeighborJoining.buildTree(matrix, true, false, 1);
+		Assert.assertEquals(tree1, NeighborJoining.buildTree(matrix, true, false, 4));
+		String tree2 = NeighborJoining.buildTree(matrix, true, true, 1);
+		Assert.assertEquals(tree2, NeighborJoining.buildTree(matrix, true, true, 3));
+		// shared CPU pool of service
+		Assert.assertEquals(tree2, NeighborJoining.buildTree(matrix, null, true, true, 
+				TaskExecutors.getCpuExecutor(), 4));
+	}
+
+	@Test
+	public void testCorrection() throws Exception {
+		Assert.assertEquals(0.0, NeighborJoining.correctDistance(0, true), 1e-9);
+		Assert.assertEquals(-Math.log(1 - 0.4 / 3), NeighborJoining.correctDistance(0.1, false), 1e-9);
+		Assert.assertEquals(NeighborJoining.MAX_DISTANCE, NeighborJoining.correctDistance(1.0, true), 1e-9);
+	}
+}
@@ -0,0 +1,70 @@
+package us.kbase.kbasetrees.test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.common.utils.AlignmentMatrix;
+import us.kbase.kbasetrees.util.SequenceDedup;
+import us.kbase.kbasetrees.util.TreeStructureUtil;
+
+public class SequenceDedupTest {
+
+	@Test
+	public void testAlignmentExpansion() throws Exception {
+		Map<String, String> seqs = new LinkedHashMap<String, String>();
+		seqs.put("a", "MKVLA");
+		seqs.put("b", "MKLA");
+		seqs.put("c", "MKVLA");
+		seqs.put("d", "KVL");
+		SequenceDedup dedup = new SequenceDedup(seqs, false);
+		Assert.assertEquals(Arrays.asList("a", "b", "d"), 
+				Arrays.asList(dedup.getRepresentatives().keySet().toArray()));
+		Map<String, String> repAln = new LinkedHashMap<String, String>();
+		repAln.put("a", "MKVLA");
+		repAln.put("b", "MK-LA");
+		repAln.put("d", "-KVL-");
+		Map<String, String> aln = dedup.expandAlignment(repAln, Arrays.asList("a", "b", "d"));
+		Assert.assertEquals(Arrays.asList("a", "b", "c", "d"), Arrays.asList(aln.keySet().toArray()));
+		Assert.assertEquals("MKVLA", aln.get("c"));
+		aln = dedup.expandAlignment(repAln, Arrays.asList("b", "a", "d"));
+		Assert.assertEquals(Arrays.asList("b", "a", "c", "d"), Arrays.asList(aln.keySet().toArray()));
+		dedup = new SequenceDedup(seqs, true);
+		Assert.assertEquals(Arrays.asList("a", "b"), 
+				Arrays.asList(dedup.getRepresentatives().keySet().toArray()));
+		repAln.remove("d");
+		repAln.put("b", "MK--LA");
+		repAln.put("a", "MKV-LA");
+		aln = dedup.expandAlignment(repAln, Arrays.asList("b", "a"));
+		Assert.assertEquals(Arrays.asList("b", "a", "c", "d"), Arrays.asList(aln.keySet().toArray()));
+		Assert.assertEquals("-KV-L-", aln.get("d"));
+	}
+
+	@Test
+	public void testAlignmentRows() throws Exception {
+		Map<String, String> aln = new LinkedHashMap<String, String>();
+		aln.put("a", "MK-LA");
+		aln.put("b", "MKVLA");
+		aln.put("c", "MK-LA");
+		aln.put("d", "MK-LA");
+		SequenceDedup dedup = new SequenceDedup(AlignmentMatrix.fromMap(aln));
+		Assert.assertEquals(Arrays.asList("a", "b"), dedup.getRepresentativeIds());
+		Assert.assertEquals(Arrays.asList("c", "d"), dedup.getMembers("a"));
+		Assert.assertEquals(2, dedup.getCollapsedCount());
+	}
+
+	@Test
+	public void testTreeExpansion() throws Exception {
+		Map<String, List<String>> dups = new LinkedHashMap<String, List<String>>();
+		dups.put("1", Arrays.asList("3", "4"));
+		String tree = TreeStructureUtil.expandDuplicateLeaves("(1:0.5,2:0.25);", dups);
+		Assert.assertEquals("(((1:0.0,3:0.0):0.0,4:0.0):0.5,2:0.25);", tree);
+		tree = TreeStructureUtil.expandDuplicateLeaves("1;", dups);
+		Assert.assertEquals("((1:0.0,3:0.0):0.0,4:0.0);", tree);
+	}
+}
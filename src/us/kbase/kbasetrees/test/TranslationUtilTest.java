@@ -0,0 +1,47 @@
+package us.kbase.kbasetrees.test;
+
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.kbasetrees.util.TranslationUtil;
+
+public class TranslationUtilTest {
+
+	@Test
+	public void testTranslate() throws Exception {
+		Assert.assertEquals("MKF", TranslationUtil.translate("ATGAAATTTTAA"));
+		Assert.assertEquals("MKF", TranslationUtil.translate("atgaaatttTAAGG"));
+		Assert.assertEquals("M?W", TranslationUtil.translate("ATGNNNTGGTGA"));
+		Assert.assertEquals("", TranslationUtil.translate("AT"));
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		Random rnd = new Random(1234);
+		String[] dnaSeqs = new String[5000];
+		for (int i = 0; i < dnaSeqs.length; i++) {
+			if (i % 100 == 0)
+				continue;
+			StringBuilder sb = new StringBuilder();
+			int len = 30 + rnd.nextInt(3000);
+			for (int j = 0; j < len; j++)
+				sb.append("ACGT".charAt(rnd.nextInt(4)));
+			dnaSeqs[i] = sb.toString();
+		}
+		long time = System.currentTimeMillis();
+		String[] prots = TranslationUtil.translateAll(dnaSeqs, 4);
+		System.out.println("Batch translation (native=" + TranslationUtil.isNativeLibraryLoaded() +
+				"), time: " + (System.currentTimeMillis() - time) + " ms");
+		Assert.assertEquals(dnaSeqs.length, prots.length);
+		for (int i = 0; i < dnaSeqs.length; i++) {
+			if (dnaSeqs[i] == null) {
+				Assert.assertNull(prots[i]);
+			} else {
+				Assert.assertEquals(TranslationUtil.translate(dnaSeqs[i]), prots[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package us.kbase.kbasetrees.test;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import us.kbase.common.utils.AlignmentMatrix;
+import us.kbase.common.utils.ExternalCommand;
+import us.kbase.common.utils.ExternalToolExecutor;
+import us.kbase.common.utils.FastaWriter;
+import us.kbase.kbasetrees.util.NeighborJoining;
+
+/**
+ * Compares in-process NJ/BIONJ with clustalw2 and FastTree (if they are
+ * present in data/bin) on simulated protein alignments. Every new row is
+ * a mutated copy of one of previous rows so alignment has tree-like
+ * structure. Arguments: [sizes, comma separated] [alignment width].
+ */
+public class TreeBuilderBenchmark {
+	private static final String AMINO_ACIDS = "ACDEFGHIKLMNPQRSTVWY";
+
+	public static void main(String[] args) throws Exception {
+		String[] sizes = (args.length > 0 ? args[0] : "1000,2000,5000,10000").split(",");
+		int width = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+		File binDir = new File(new File("data"), "bin");
+		File tempDir = new File("temp_files");
+		tempDir.mkdirs();
+		int threads = Runtime.getRuntime().availableProcessors();
+		for (String sizeText : sizes) {
+			int size = Integer.parseInt(sizeText.trim());
+			Map<String, String> aln = simulate(size, width, new Random(size));
+			AlignmentMatrix matrix = AlignmentMatrix.fromMap(aln);
+			System.out.println("Rows: " + size + ", width: " + width);
+			long time = System.nanoTime();
+			NeighborJoining.buildTree(matrix, true, false, 1);
+			report("nj, 1 thread", time);
+			time = System.nanoTime();
+			NeighborJoining.buildTree(matrix, true, false, threads);
+			report("nj, " + threads + " threads", time);
+			time = System.nanoTime();
+			NeighborJoining.buildTree(matrix, true, true, threads);
+			report("bionj, " + threads + " threads", time);
+			File inputFile = new File(tempDir, "bench_" + size + ".fa");
+			FastaWriter fw = new FastaWriter(inputFile);
+			for (Map.Entry<String, String> entry : aln.entrySet())
+				fw.write(entry.getKey(), entry.getValue());
+			fw.close();
+			try {
+				File fastTree = new File(binDir, "FastTree.linux");
+				if (fastTree.exists()) {
+					time = System.nanoTime();
+					ExternalToolExecutor.run(new ExternalCommand(fastTree.getAbsolutePath())
+							.args("-fastest", inputFile.getAbsolutePath()).workDir(tempDir).label("FastTree"));
+					report("FastTree -fastest", time);
+				}
+				File clustal = new File(binDir, "clustalw2.linux");
+				if (clustal.exists()) {
+					time = System.nanoTime();
+					ExternalToolExecutor.run(new ExternalCommand(clustal.getAbsolutePath())
+							.args("-INFILE=" + inputFile.getName(), "-TREE", "-OUTPUT=PHYLIP")
+							.workDir(tempDir).label("Clustal"));
+					report("clustalw2 -TREE", time);
+				}
+			} finally {
+				inputFile.delete();
+				new File(tempDir, inputFile.getName().replace(".fa", ".ph")).delete();
+			}
+		}
+	}
+
+	private static Map<String, String> simulate(int size, int width, Random rnd) {
+		char[][] rows = new char[size][];
+		rows[0] = new char[width];
+		for (int i = 0; i < width; i++)
+			rows[0][i] = AMINO_ACIDS.charAt(rnd.nextInt(AMINO_ACIDS.length()));
+		Map<String, String> ret = new LinkedHashMap<String, String>();
+		ret.put("seq0", new String(rows[0]));
+		for (int n = 1; n < size; n++) {
+			rows[n] = rows[rnd.nextInt(n)].clone();
+			int mutations = 1 + rnd.nextInt(width / 20);
+			for (int i = 0; i < mutations; i++)
+				rows[n][rnd.nextInt(width)] = rnd.nextInt(10) == 0 ? '-' :
+					AMINO_ACIDS.charAt(rnd.nextInt(AMINO_ACIDS.length()));
+			ret.put("seq" + n, new String(rows[n]));
+		}
+		return ret;
+	}
+
+	private static void report(String name, long startNanos) {
+		double ms = (System.nanoTime() - startNanos) / 1e6;
+		System.out.println(String.format("  %-25s %10.1f ms", name, ms));
+	}
+}
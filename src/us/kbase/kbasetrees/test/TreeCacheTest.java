@@ -0,0 +1,60 @@
+package us.kbase.kbasetrees.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import us.kbase.common.utils.AlignmentMatrix;
+import us.kbase.kbasetrees.util.TreeCache;
+
+public class TreeCacheTest {
+
+	@Test
+	public void testHitsAndEviction() throws Exception {
+		File dir = new File("temp_files", "tree_cache_test" + System.currentTimeMillis());
+		try {
+			TreeCache cache = new TreeCache(dir, 1 << 20);
+			Map<String, String> aln = new LinkedHashMap<String, String>();
+			aln.put("a", "MKVLA");
+			aln.put("b", "MK-LA");
+			aln.put("c", "MKVLS");
+			List<String> options = Arrays.asList("-fastest");
+			Assert.assertNull(cache.get(AlignmentMatrix.fromMap(aln), options));
+			cache.put(AlignmentMatrix.fromMap(aln), options, "(a:0.1,b:0.2,c:0.3)0.95:0.0;");
+			Assert.assertNull(cache.get(AlignmentMatrix.fromMap(aln), Arrays.asList("-slownni")));
+			// the same rows with other ids in other order
+			Map<String, String> aln2 = new LinkedHashMap<String, String>();
+			aln2.put("z", "MKVLS");
+			aln2.put("x", "MKVLA");
+			aln2.put("y", "MK-LA");
+			Assert.assertEquals("(x:0.1,y:0.2,z:0.3)0.95:0.0;", 
+					cache.get(AlignmentMatrix.fromMap(aln2), options));
+			Assert.assertEquals(1, cache.getHits());
+			Assert.assertEquals(2, cache.getMisses());
+			// entries are visible after restart
+			cache = new TreeCache(dir, 1 << 20);
+			Assert.assertEquals(1, cache.getEntryCount());
+			// least recently used entry is evicted
+			aln2.put("w", "MKKKK");
+			cache.put(AlignmentMatrix.fromMap(aln2), options, "((x:0.1,y:0.2):0.1,z:0.3,w:0.5);");
+			Assert.assertNotNull(cache.get(AlignmentMatrix.fromMap(aln), options));
+			cache.setMaxSize(cache.getTotalSize() - 1);
+			Assert.assertEquals(1, cache.getEntryCount());
+			Assert.assertEquals(1, cache.getEvictions());
+			Assert.assertNotNull(cache.get(AlignmentMatrix.fromMap(aln), options));
+			Assert.assertNull(cache.get(AlignmentMatrix.fromMap(aln2), options));
+		} finally {
+			File[] files = dir.listFiles();
+			if (files != null)
+				for (File f : files)
+					f.delete();
+			dir.delete();
+		}
+	}
+}
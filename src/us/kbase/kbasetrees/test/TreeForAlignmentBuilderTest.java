@@ -21,6 +21,7 @@ import org.junit.Test;
 import us.kbase.common.service.Tuple11;
 import us.kbase.common.service.UObject;
 import us.kbase.kbasetrees.ConstructTreeForAlignmentParams;
+import us.kbase.kbasetrees.JobDeduplicator;
 import us.kbase.kbasetrees.MSA;
 import us.kbase.kbasetrees.ObjectStorage;
 import us.kbase.kbasetrees.Tree;
@@ -28,6 +29,7 @@ import us.kbase.kbasetrees.TreeForAlignmentBuilder;
 import us.kbase.workspace.ListObjectsParams;
 import us.kbase.workspace.ObjectData;
 import us.kbase.workspace.ObjectIdentity;
+import us.kbase.workspace.ObjectSaveData;
 import us.kbase.workspace.SaveObjectsParams;
 import us.kbase.workspace.SubObjectIdentity;
 
@@ -43,7 +45,84 @@ public class TreeForAlignmentBuilderTest {
 		build("Clustal");
 	}
 
+	@Test
+	public void testNj() throws Exception {
+		build("NJ");
+		build("BIONJ");
+	}
+
+	@Test
+	public void testBootstrap() throws Exception {
+		Tree tree = build("NJ", 20L);
+		Assert.assertTrue(tree.getTree(), tree.getTree().matches(".*\\)(0\\.[0-9]+|1\\.0):.*"));
+		build("FastTree", 4L);
+	}
+
+	@Test
+	public void testDuplicateJobs() throws Exception {
+		JobDeduplicator.setLimits(60000, 1 << 20);
+		try {
+			final MSA input = new MSA().withAlignment(loadAlignedSeqs());
+			final List<SaveObjectsParams> saved = new ArrayList<SaveObjectsParams>();
+			final int[] loads = new int[] { 0 };
+			final List<String> loadThreads = new ArrayList<String>();
+			TreeForAlignmentBuilder stb = new TreeForAlignmentBuilder().init(
+					new File("temp_files"), new File("data"), new ObjectStorage() {
+						@Override
+						public List<Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>> saveObjects(
+								String authToken, SaveObjectsParams params) throws Exception {
+							saved.add(params);
+							return new ArrayList<Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>>();
+						}
+						@Override
+						public List<ObjectData> getObjects(String authToken,
+								List<ObjectIdentity> objectIds) throws Exception {
+							loads[0]++;
+							loadThreads.add(Thread.currentThread().getName());
+							return Arrays.asList(new ObjectData().withData(new UObject(input)));
+						}
+						@Override
+						public List<Tuple11<Long, String, String, String, Long, String, Long, String, String, Long, Map<String, String>>> listObjects(
+								String authToken, ListObjectsParams params)
+								throws Exception {
+							throw new IllegalStateException();
+						}
+						@Override
+						public List<ObjectData> getObjectSubset(String authToken, List<SubObjectIdentity> objectIds) throws Exception {
+							return Arrays.asList(new ObjectData().withInfo(new Tuple11<Long, String, String, 
+									String, Long, String, Long, String, String, Long, Map<String, String>>()
+									.withE1(2L).withE5(3L).withE7(1L)));
+						}
+					});
+			stb.run("token", new ConstructTreeForAlignmentParams().withTreeMethod("NJ").withMsaRef("ws/msa.1")
+					.withOutWorkspace("ws").withOutTreeId("tree1"), "job1", "ws/tree1");
+			stb.run("token", new ConstructTreeForAlignmentParams().withTreeMethod("NJ").withMsaRef("ws/msa.1")
+					.withOutWorkspace("ws2").withOutTreeId("tree2"), "job2", "ws2/tree2");
+			Assert.assertEquals(1, loads[0]);
+			Assert.assertEquals(2, saved.size());
+			ObjectSaveData copy = saved.get(1).getObjects().get(0);
+			Assert.assertEquals("ws2", saved.get(1).getWorkspace());
+			Assert.assertEquals("tree2", copy.getName());
+			Assert.assertEquals(saved.get(0).getObjects().get(0).getData().asClassInstance(Tree.class).getTree(),
+					copy.getData().asClassInstance(Tree.class).getTree());
+			Assert.assertTrue(copy.getProvenance().get(0).getDescription().contains("job1"));
+			// other method is computed
+			stb.run("token", new ConstructTreeForAlignmentParams().withTreeMethod("BIONJ").withMsaRef("ws/msa.1")
+					.withOutWorkspace("ws").withOutTreeId("tree3"), "job3", "ws/tree3");
+			Assert.assertEquals(2, loads[0]);
+			// input alignment is downloaded in I/O pool before job is started
+			for (String thread : loadThreads)
+				Assert.assertTrue(thread, thread.startsWith("trees-io-"));
+		} finally {
+			JobDeduplicator.setLimits(0, 0);
+		}
+	}
+
 	private static Tree build(String method) throws Exception {
+		return build(method, null);
+	}
+
+	private static Tree build(String method, Long bootstrapReplicates) throws Exception {
 		final MSA input = new MSA().withAlignment(loadAlignedSeqs());
 		final Tree[] retWrap = new Tree[] { null };
 		long time = System.currentTimeMillis();
@@ -71,7 +150,8 @@ public class TreeForAlignmentBuilderTest {
 						throw new IllegalStateException("Unsupported method");
 					}
 				});
-		stb.run("token", new ConstructTreeForAlignmentParams().withTreeMethod(method).withMsaRef("ws/msa.1").withOutWorkspace("ws"), "", "ws/123");
+		stb.run("token", new ConstructTreeForAlignmentParams().withTreeMethod(method).withMsaRef("ws/msa.1")
+				.withBootstrapReplicates(bootstrapReplicates).withOutWorkspace("ws"), "", "ws/123");
 		Tree tree = retWrap[0];
 		Map<String, String> replacements = new TreeMap<String, String>(tree.getDefaultNodeLabels());
 		relabel(tree.getTree(), replacements);
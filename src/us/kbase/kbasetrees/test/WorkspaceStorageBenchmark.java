@@ -0,0 +1,96 @@
+package us.kbase.kbasetrees.test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.kbasetrees.MSA;
+import us.kbase.kbasetrees.ObjectStorage;
+import us.kbase.kbasetrees.WorkspaceStorage;
+import us.kbase.workspace.ObjectIdentity;
+import us.kbase.workspace.WorkspaceClient;
+
+/**
+ * Compares creation of new workspace client for every call with clients
+ * and connections reused by WorkspaceStorage on local stand-in for workspace
+ * service. Arguments: token [calls] [threads] [rows of returned alignment].
+ */
+public class WorkspaceStorageBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage: <token> [calls] [threads] [rows]");
+			return;
+		}
+		String token = args[0];
+		int calls = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		int rows = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+		Map<String, String> aln = new LinkedHashMap<String, String>();
+		for (int i = 0; i < rows; i++)
+			aln.put("seq" + i, "MKVLAAGIVGLLLAQSAFAADLKVGVVDTQRLLAES");
+		LocalWorkspaceServer server = new LocalWorkspaceServer();
+		try {
+			server.putObject("ws/msa", new MSA().withAlignment(aln));
+			final String url = server.getUrl();
+			run("new client per call", new ObjectStorageCall() {
+				@Override
+				public void call(String token) throws Exception {
+					WorkspaceClient client = new WorkspaceClient(new URL(url), new AuthToken(token));
+					client.setAuthAllowedForHttp(true);
+					client.getObjects(Arrays.asList(new ObjectIdentity().withRef("ws/msa")));
+				}
+			}, token, calls, threads, server);
+			final ObjectStorage storage = new WorkspaceStorage(url);
+			run("WorkspaceStorage", new ObjectStorageCall() {
+				@Override
+				public void call(String token) throws Exception {
+					storage.getObjects(token, Arrays.asList(new ObjectIdentity().withRef("ws/msa")));
+				}
+			}, token, calls, threads, server);
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static void run(String title, final ObjectStorageCall call, final String token,
+			int calls, int threads, LocalWorkspaceServer server) throws Exception {
+		int requestsBefore = server.getRequestCount();
+		int connectionsBefore = server.getConnectionCount();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		long time = System.currentTimeMillis();
+		try {
+			List<Future<Object>> results = new ArrayList<Future<Object>>();
+			for (int i = 0; i < calls; i++) {
+				results.add(pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						call.call(token);
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> result : results)
+				result.get();
+		} finally {
+			pool.shutdownNow();
+		}
+		time = System.currentTimeMillis() - time;
+		System.out.println(title + ": " + calls + " calls in " + time + " ms (" + 
+				Math.round(1000.0 * calls / Math.max(1, time)) + " calls/s), requests: " + 
+				(server.getRequestCount() - requestsBefore) + ", connections: " + 
+				(server.getConnectionCount() - connectionsBefore));
+	}
+
+	private static interface ObjectStorageCall {
+		public void call(String token) throws Exception;
+	}
+}
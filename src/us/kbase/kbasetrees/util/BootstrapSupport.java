@@ -0,0 +1,211 @@
+package us.kbase.kbasetrees.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.forester.io.parsers.nhx.NHXParser;
+import org.forester.phylogeny.Phylogeny;
+import org.forester.phylogeny.PhylogenyNode;
+import org.forester.phylogeny.iterators.PhylogenyNodeIterator;
+
+/**
+ * Collects split (bipartition) frequencies of bootstrap replicate trees and
+ * writes them as labels of internal nodes of the main tree. Every leaf gets
+ * random 64-bit value, split is identified by sum of values of its leaves
+ * (taken for the side giving smaller sum of two complementary ones), so
+ * splits are counted in hash map without sets of leaves. Replicates could be
+ * built for representatives of identical sequences, in this case value of
+ * representative is sum of values of all sequences collapsed into it.
+ */
+public class BootstrapSupport {
+	private final Map<String, Long> leafValues = new HashMap<String, Long>();
+	private final Map<String, Long> repValues = new HashMap<String, Long>();
+	private final Map<String, String> leafToRep = new HashMap<String, String>();
+	private final long total;
+	private final Map<Long, Integer> splitCounts = new HashMap<Long, Integer>();
+	private int replicates = 0;
+
+	/**
+	 * @param reps leaves of replicate trees
+	 * @param repToDuplicates leaves of main tree collapsed into representatives
+	 */
+	public BootstrapSupport(Collection<String> reps, Map<String, List<String>> repToDuplicates) {
+		Random rnd = new Random(reps.size());
+		long sum = 0;
+		for (String rep : reps) {
+			long repValue = addLeaf(rep, rep, rnd);
+			List<String> dups = repToDuplicates == null ? null : repToDuplicates.get(rep);
+			if (dups != null)
+				for (String dup : dups)
+					repValue += addLeaf(dup, rep, rnd);
+			repValues.put(rep, repValue);
+			sum += repValue;
+		}
+		total = sum;
+	}
+
+	private long addLeaf(String leaf, String rep, Random rnd) {
+		long ret = rnd.nextLong();
+		leafValues.put(leaf, ret);
+		leafToRep.put(leaf, rep);
+		return ret;
+	}
+
+	/**
+	 * Random column weights of bootstrap replicate (numbers of times every
+	 * column is taken in resampled alignment).
+	 */
+	public static int[] resampleColumns(int width, Random rnd) {
+		int[] ret = new int[width];
+		for (int i = 0; i < width; i++)
+			ret[rnd.nextInt(width)]++;
+		return ret;
+	}
+
+	/**
+	 * Column indexes of bootstrap replicate for given weights.
+	 */
+	public static int[] getColumns(int[] columnWeights) {
+		int[] ret = new int[columnWeights.length];
+		int pos = 0;
+		for (int col = 0; col < columnWeights.length; col++)
+			for (int i = 0; i < columnWeights[col]; i++)
+				ret[pos++] = col;
+		return ret;
+	}
+
+	/**
+	 * Adds splits of replicate tree in Newick format, could be called from
+	 * several threads.
+	 */
+	public void addReplicate(String newick) {
+		Set<Long> splits = new HashSet<Long>();
+		long[] stack = new long[16];
+		int top = -1;
+		int pos = 0;
+		int len = newick.length();
+		while (pos < len) {
+			char c = newick.charAt(pos);
+			if (c == '(') {
+				if (++top == stack.length)
+					stack = Arrays.copyOf(stack, stack.length * 2);
+				stack[top] = 0;
+				pos++;
+			} else if (c == ')') {
+				long value = stack[top--];
+				if (top >= 0) {
+					stack[top] += value;
+					splits.add(getSplit(value));
+				}
+				// internal node label (support of other program) is skipped
+				pos = skipTo(newick, pos + 1, ":,);[");
+			} else if (c == ':') {
+				pos = skipTo(newick, pos + 1, ",);[");
+			} else if (c == '[') {
+				pos = skipTo(newick, pos + 1, "]") + 1;
+			} else if (c == ',' || c == ';' || Character.isWhitespace(c)) {
+				pos++;
+			} else {
+				int end = skipTo(newick, pos, ":,);[");
+				String name = newick.substring(pos, end).trim();
+				Long value = repValues.get(name);
+				if (value == null)
+					throw new IllegalStateException("Unexpected leaf in replicate tree: " + name);
+				if (top >= 0)
+					stack[top] += value;
+				pos = end;
+			}
+		}
+		synchronized (this) {
+			for (Long split : splits) {
+				Integer count = splitCounts.get(split);
+				splitCounts.put(split, count == null ? 1 : (count + 1));
+			}
+			replicates++;
+		}
+	}
+
+	public synchronized int getReplicateCount() {
+		return replicates;
+	}
+
+	/**
+	 * Frequency of split separating given leaves of main tree from the others.
+	 */
+	public synchronized double getSupport(Collection<String> leaves) {
+		long value = 0;
+		for (String leaf : leaves)
+			value += leafValues.get(leaf);
+		return getSupport(value);
+	}
+
+	private synchronized double getSupport(long value) {
+		Integer count = splitCounts.get(getSplit(value));
+		return replicates == 0 || count == null ? 0 : (double)count / replicates;
+	}
+
+	/**
+	 * Sets support values as labels of internal nodes of main tree. Nodes
+	 * inside groups of identical sequences get empty labels.
+	 */
+	public String applySupport(String treeText) throws IOException {
+		NHXParser parser = new NHXParser();
+		parser.setSource(treeText);
+		Phylogeny[] trees = parser.parse();
+		StringBuilder ret = new StringBuilder();
+		for (Phylogeny tree : trees) {
+			Map<Integer, Long> nodeValues = new HashMap<Integer, Long>();
+			Map<Integer, String> nodeReps = new HashMap<Integer, String>();
+			for (PhylogenyNodeIterator it = tree.iteratorPostorder(); it.hasNext(); ) {
+				PhylogenyNode node = it.next();
+				long value = 0;
+				String rep = null;
+				if (node.isExternal()) {
+					Long leafValue = leafValues.get(node.getName());
+					if (leafValue == null)
+						throw new IllegalStateException("Unexpected leaf in tree: " + node.getName());
+					value = leafValue;
+					rep = leafToRep.get(node.getName());
+				} else {
+					for (int i = 0; i < node.getNumberOfDescendants(); i++) {
+						int childId = node.getChildNode(i).getId();
+						value += nodeValues.get(childId);
+						String childRep = nodeReps.get(childId);
+						if (i == 0) {
+							rep = childRep;
+						} else if (rep != null && !rep.equals(childRep)) {
+							rep = null;
+						}
+					}
+					if (!node.isRoot())
+						node.setName(rep != null ? "" : formatSupport(getSupport(value)));
+				}
+				nodeValues.put(node.getId(), value);
+				nodeReps.put(node.getId(), rep);
+			}
+			ret.append(tree.toNewHampshire());
+		}
+		return ret.toString();
+	}
+
+	private long getSplit(long value) {
+		return Math.min(value, total - value);
+	}
+
+	private static String formatSupport(double support) {
+		return String.valueOf(Math.round(support * 1000) / 1000.0);
+	}
+
+	private static int skipTo(String text, int pos, String stopChars) {
+		while (pos < text.length() && stopChars.indexOf(text.charAt(pos)) < 0)
+			pos++;
+		return pos;
+	}
+}
@@ -0,0 +1,306 @@
+package us.kbase.kbasetrees.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base of content-addressed local disk caches. Each entry is a file named by
+ * hex SHA-256 key (key derivation is up to subclass), files are written into
+ * temporary file first and then renamed, so readers never see partial content.
+ * Total size is bounded, entry with lowest priority is evicted first (priority
+ * is given by subclass when entry is added or read). Entries found in folder
+ * are loaded in order of modification time, which is updated on every read.
+ */
+public abstract class FileCache {
+	private static final Map<File, FileCache> instances = new HashMap<File, FileCache>();
+
+	private final File dir;
+	private final String suffix;
+	private long maxSize;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private long totalSize = 0;
+	private long generations = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * Returns shared cache of given type for given folder (it's created and
+	 * scanned on first call). Size limit is updated on every call.
+	 */
+	protected static synchronized <C extends FileCache> C getInstance(File dir, long maxSize,
+			Class<C> type) {
+		File key = dir.getAbsoluteFile();
+		FileCache ret = instances.get(key);
+		if (ret == null) {
+			try {
+				ret = type.getConstructor(File.class, long.class).newInstance(dir, maxSize);
+			} catch (Exception ex) {
+				throw new IllegalStateException(ex);
+			}
+			instances.put(key, ret);
+		} else {
+			ret.setMaxSize(maxSize);
+		}
+		return type.cast(ret);
+	}
+
+	/**
+	 * Subclass should call {@link #load()} at the end of its constructor.
+	 */
+	protected FileCache(File dir, String suffix, long maxSize) {
+		this.dir = dir;
+		this.suffix = suffix;
+		this.maxSize = maxSize;
+		if (!dir.exists())
+			dir.mkdirs();
+	}
+
+	/**
+	 * Registers entries found in folder (unreadable ones and leftovers of
+	 * interrupted writes are deleted).
+	 */
+	protected synchronized void load() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			List<File> sorted = new ArrayList<File>();
+			for (File f : files) {
+				if (f.getName().endsWith(suffix)) {
+					sorted.add(f);
+				} else if (f.getName().endsWith(".tmp")) {
+					f.delete();
+				}
+			}
+			Collections.sort(sorted, new Comparator<File>() {
+				@Override
+				public int compare(File o1, File o2) {
+					return Long.valueOf(o1.lastModified()).compareTo(o2.lastModified());
+				}
+			});
+			for (File f : sorted) {
+				String name = f.getName();
+				try {
+					addEntry(name.substring(0, name.length() - suffix.length()), f.length(), readCost(f));
+				} catch (IOException ex) {
+					f.delete();
+				}
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * Cost of entry stored in given file (it's called for files found in
+	 * folder during loading).
+	 */
+	protected long readCost(File f) throws IOException {
+		return 0;
+	}
+
+	/**
+	 * Priority of entry when it's added or read.
+	 */
+	protected abstract double getPriority(long size, long cost);
+
+	/**
+	 * Called when entry with given priority is evicted.
+	 */
+	protected void onEviction(double priority) {
+	}
+
+	public synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		evict();
+	}
+
+	/**
+	 * Reads entry with given key or returns null if there is no such entry or
+	 * it can't be read. File is opened under lock so that concurrent put or
+	 * eviction can't remove it in between (opened file stays readable after
+	 * that), and failed entry is removed only if it wasn't replaced meanwhile.
+	 */
+	protected <T> T read(String key, EntryReader<T> reader) {
+		File f = getFile(key);
+		InputStream is;
+		long generation;
+		long size;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			try {
+				is = new FileInputStream(f);
+			} catch (IOException ex) {
+				System.err.println("[trees] " + getClass().getSimpleName() + ": error opening " + f +
+						" (" + ex.getMessage() + ")");
+				removeEntry(key);
+				misses++;
+				return null;
+			}
+			generation = entry.generation;
+			size = entry.size;
+			entry.priority = getPriority(entry.size, entry.cost);
+			f.setLastModified(System.currentTimeMillis());
+		}
+		try {
+			T ret;
+			try {
+				ret = reader.read(is, size);
+			} finally {
+				is.close();
+			}
+			synchronized (this) {
+				hits++;
+			}
+			return ret;
+		} catch (IOException ex) {
+			System.err.println("[trees] " + getClass().getSimpleName() + ": error reading " + f +
+					" (" + ex.getMessage() + ")");
+			synchronized (this) {
+				Entry entry = entries.get(key);
+				if (entry != null && entry.generation == generation)
+					removeEntry(key);
+				misses++;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Stores entry with given key replacing previous one, cost is passed to
+	 * {@link #getPriority(long, long)}.
+	 */
+	protected void write(String key, long cost, EntryWriter writer) throws IOException {
+		File tempFile = File.createTempFile(key, ".tmp", dir);
+		try {
+			OutputStream os = new FileOutputStream(tempFile);
+			try {
+				writer.write(os);
+			} finally {
+				os.close();
+			}
+			synchronized (this) {
+				File f = getFile(key);
+				removeEntry(key);
+				if (!tempFile.renameTo(f))
+					throw new IOException("Can't rename " + tempFile + " to " + f);
+				addEntry(key, f.length(), cost);
+				evict();
+			}
+		} finally {
+			if (tempFile.exists())
+				tempFile.delete();
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized double getHitRate() {
+		return hits + misses == 0 ? 0 : hits / (double)(hits + misses);
+	}
+
+	public synchronized long getTotalSize() {
+		return totalSize;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Hex SHA-256 digest used as key of entry.
+	 */
+	protected static String toKey(MessageDigest md) {
+		StringBuilder ret = new StringBuilder();
+		for (byte b : md.digest())
+			ret.append(String.format("%02x", b & 0xff));
+		return ret.toString();
+	}
+
+	protected static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (Exception ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private File getFile(String key) {
+		return new File(dir, key + suffix);
+	}
+
+	private void addEntry(String key, long size, long cost) {
+		Entry entry = new Entry(size, Math.max(cost, 1), ++generations);
+		entry.priority = getPriority(entry.size, entry.cost);
+		entries.put(key, entry);
+		totalSize += size;
+	}
+
+	private void removeEntry(String key) {
+		Entry entry = entries.remove(key);
+		if (entry == null)
+			return;
+		totalSize -= entry.size;
+		getFile(key).delete();
+	}
+
+	private void evict() {
+		while (totalSize > maxSize && !entries.isEmpty()) {
+			String minKey = null;
+			double minPriority = 0;
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				if (minKey == null || entry.getValue().priority < minPriority) {
+					minKey = entry.getKey();
+					minPriority = entry.getValue().priority;
+				}
+			}
+			onEviction(minPriority);
+			removeEntry(minKey);
+			evictions++;
+		}
+	}
+
+	protected interface EntryReader<T> {
+		public T read(InputStream is, long size) throws IOException;
+	}
+
+	protected interface EntryWriter {
+		public void write(OutputStream os) throws IOException;
+	}
+
+	private static class Entry {
+		final long size;
+		final long cost;
+		final long generation;
+		double priority;
+
+		Entry(long size, long cost, long generation) {
+			this.size = size;
+			this.cost = cost;
+			this.generation = generation;
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package us.kbase.kbasetrees.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Properties;
+
+import us.kbase.common.service.UObject;
+
+/**
+ * Job-scoped folder keeping outputs of completed stages of long pipeline
+ * together with manifest (properties file "manifest.properties" mapping
+ * stage name to value describing its input, e.g. immutable reference of
+ * processed object). Files of stage are written before stage is marked as
+ * completed in manifest, and every write goes through temporary file, so
+ * restarted job finds only whole results of stages. Folder is used by one
+ * job at a time: it's locked (through file lock, so jobs of other server
+ * processes sharing the same scratch folder are also excluded) until
+ * checkpoint is closed or deleted.
+ */
+public class JobCheckpoint {
+	private static final String MANIFEST_FILE = "manifest.properties";
+	private static final String LOCK_FILE = "lock";
+
+	private final File dir;
+	private final Properties manifest = new Properties();
+	private final RandomAccessFile lockFile;
+	private final FileLock lock;
+
+	private JobCheckpoint(File dir, RandomAccessFile lockFile, FileLock lock) throws IOException {
+		this.dir = dir;
+		this.lockFile = lockFile;
+		this.lock = lock;
+		File manifestFile = new File(dir, MANIFEST_FILE);
+		if (manifestFile.exists()) {
+			InputStream is = new FileInputStream(manifestFile);
+			try {
+				manifest.load(is);
+			} finally {
+				is.close();
+			}
+		}
+	}
+
+	/**
+	 * Opens (creating if necessary) and locks checkpoint folder. Returns null
+	 * if folder is currently used by another job.
+	 */
+	public static JobCheckpoint tryOpen(File dir) throws IOException {
+		if (!dir.exists())
+			dir.mkdirs();
+		RandomAccessFile lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+		FileLock lock = null;
+		try {
+			try {
+				lock = lockFile.getChannel().tryLock();
+			} catch (OverlappingFileLockException ex) {
+				// locked by another job of this process
+			}
+			if (lock == null) {
+				lockFile.close();
+				return null;
+			}
+			return new JobCheckpoint(dir, lockFile, lock);
+		} catch (IOException ex) {
+			if (lock != null)
+				lock.release();
+			lockFile.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Removes folders of jobs which weren't touched for given time (they
+	 * belong to jobs which are not going to be restarted). Folders locked
+	 * by running jobs are kept.
+	 */
+	public static void deleteOld(File parentDir, long maxAgeMs) throws IOException {
+		File[] dirs = parentDir.listFiles();
+		if (dirs == null)
+			return;
+		long now = System.currentTimeMillis();
+		for (File d : dirs) {
+			if (d.isDirectory() && now - d.lastModified() > maxAgeMs) {
+				JobCheckpoint cp = tryOpen(d);
+				if (cp != null)
+					cp.delete();
+			}
+		}
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	public File getFile(String name) {
+		return new File(dir, name);
+	}
+
+	/**
+	 * Returns value stored for completed stage or null if stage wasn't completed.
+	 */
+	public synchronized String getStage(String stage) {
+		return manifest.getProperty(stage);
+	}
+
+	public synchronized boolean isCompleted(String stage, String value) {
+		return value.equals(manifest.getProperty(stage));
+	}
+
+	public synchronized void completeStage(String stage, String value) throws IOException {
+		manifest.setProperty(stage, value);
+		saveManifest();
+	}
+
+	private void saveManifest() throws IOException {
+		File tempFile = new File(dir, MANIFEST_FILE + ".tmp");
+		OutputStream os = new FileOutputStream(tempFile);
+		try {
+			manifest.store(os, "Completed stages");
+		} finally {
+			os.close();
+		}
+		replace(tempFile, new File(dir, MANIFEST_FILE));
+		dir.setLastModified(System.currentTimeMillis());
+	}
+
+	public void writeJson(String name, Object data) throws IOException {
+		File tempFile = new File(dir, name + ".tmp");
+		UObject.getMapper().writeValue(tempFile, data);
+		replace(tempFile, getFile(name));
+	}
+
+	public <T> T readJson(String name, Class<T> type) throws IOException {
+		return UObject.getMapper().readValue(getFile(name), type);
+	}
+
+	/**
+	 * Writes data into file of stage through temporary file.
+	 */
+	public OutputStream openForWrite(final String name) throws IOException {
+		final File tempFile = new File(dir, name + ".tmp");
+		return new FileOutputStream(tempFile) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				replace(tempFile, getFile(name));
+			}
+		};
+	}
+
+	/**
+	 * Releases folder keeping stage results for restarted job.
+	 */
+	public void close() throws IOException {
+		try {
+			if (lock.isValid())
+				lock.release();
+		} finally {
+			lockFile.close();
+		}
+	}
+
+	/**
+	 * Removes folder with all stage results (when job is done) and releases it.
+	 */
+	public void delete() throws IOException {
+		try {
+			deleteDir(dir);
+		} finally {
+			close();
+		}
+	}
+
+	private static void replace(File tempFile, File target) throws IOException {
+		if (target.exists())
+			target.delete();
+		if (!tempFile.renameTo(target))
+			throw new IOException("Can't rename " + tempFile + " to " + target);
+	}
+
+	private static void deleteDir(File d) {
+		File[] files = d.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		d.delete();
+	}
+}
@@ -0,0 +1,127 @@
+package us.kbase.kbasetrees.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits set of sequences into groups of similar ones using k-mer distance
+ * (fraction of common k-mers, as in MUSCLE's first stage). Groups are built by
+ * recursive bisection: two distant pivots are chosen and each sequence goes to
+ * the closest pivot until group size doesn't exceed the limit. It takes
+ * O(N log N) distance evaluations.
+ */
+public class KmerClustering {
+
+	public static List<List<String>> cluster(Map<String, String> seqs, int k, int maxClusterSize) {
+		List<String> ids = new ArrayList<String>(seqs.keySet());
+		int[][] profiles = new int[ids.size()][];
+		for (int i = 0; i < profiles.length; i++)
+			profiles[i] = getKmerProfile(seqs.get(ids.get(i)), k);
+		List<int[]> groups = new ArrayList<int[]>();
+		int[] all = new int[ids.size()];
+		for (int i = 0; i < all.length; i++)
+			all[i] = i;
+		split(all, profiles, Math.max(1, maxClusterSize), groups);
+		List<List<String>> ret = new ArrayList<List<String>>();
+		for (int[] group : groups) {
+			Arrays.sort(group);
+			List<String> cluster = new ArrayList<String>();
+			for (int pos : group)
+				cluster.add(ids.get(pos));
+			ret.add(cluster);
+		}
+		return ret;
+	}
+
+	private static void split(int[] group, int[][] profiles, int maxClusterSize, List<int[]> ret) {
+		if (group.length <= maxClusterSize) {
+			ret.add(group);
+			return;
+		}
+		int pivot1 = findFarthest(group, group[0], profiles);
+		int pivot2 = findFarthest(group, pivot1, profiles);
+		int[] part1 = new int[group.length];
+		int[] part2 = new int[group.length];
+		int len1 = 0;
+		int len2 = 0;
+		for (int pos : group) {
+			double d1 = getDistance(profiles[pos], profiles[pivot1]);
+			double d2 = getDistance(profiles[pos], profiles[pivot2]);
+			if (d1 < d2 || (d1 == d2 && len1 <= len2)) {
+				part1[len1++] = pos;
+			} else {
+				part2[len2++] = pos;
+			}
+		}
+		if (len1 == 0 || len2 == 0) {
+			// all sequences are at the same distance, splitting in halves
+			len1 = group.length / 2;
+			len2 = group.length - len1;
+			part1 = group;
+			part2 = Arrays.copyOfRange(group, len1, group.length);
+		}
+		split(Arrays.copyOf(part1, len1), profiles, maxClusterSize, ret);
+		split(Arrays.copyOf(part2, len2), profiles, maxClusterSize, ret);
+	}
+
+	private static int findFarthest(int[] group, int from, int[][] profiles) {
+		int ret = from;
+		double maxDist = -1;
+		for (int pos : group) {
+			double dist = getDistance(profiles[pos], profiles[from]);
+			if (dist > maxDist) {
+				maxDist = dist;
+				ret = pos;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns sorted codes of all k-mers of sequence (gaps are ignored).
+	 */
+	public static int[] getKmerProfile(String seq, int k) {
+		StringBuilder sb = new StringBuilder(seq.length());
+		for (int i = 0; i < seq.length(); i++) {
+			char c = Character.toUpperCase(seq.charAt(i));
+			if (c != '-' && c != '.')
+				sb.append(c);
+		}
+		int count = Math.max(0, sb.length() - k + 1);
+		int[] ret = new int[count];
+		for (int i = 0; i < count; i++) {
+			int code = 0;
+			for (int j = 0; j < k; j++)
+				code = code * 31 + (sb.charAt(i + j) - 'A');
+			ret[i] = code;
+		}
+		Arrays.sort(ret);
+		return ret;
+	}
+
+	/**
+	 * One minus fraction of common k-mers (relative to shorter sequence).
+	 */
+	public static double getDistance(int[] p1, int[] p2) {
+		int minLen = Math.min(p1.length, p2.length);
+		if (minLen == 0)
+			return 1.0;
+		int common = 0;
+		int i = 0;
+		int j = 0;
+		while (i < p1.length && j < p2.length) {
+			if (p1[i] == p2[j]) {
+				common++;
+				i++;
+				j++;
+			} else if (p1[i] < p2[j]) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return 1.0 - common / (double)minLen;
+	}
+}
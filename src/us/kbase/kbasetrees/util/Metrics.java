@@ -0,0 +1,200 @@
+package us.kbase.kbasetrees.util;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import us.kbase.common.utils.ExternalCommand;
+import us.kbase.common.utils.ExternalToolExecutor;
+import us.kbase.common.utils.ExternalToolResult;
+
+/**
+ * In-process registry of timers (count, total and max time), counters and
+ * gauges. Timers started in thread working for a job (see
+ * ExternalToolExecutor.setCurrentJob) are also summed per job, so that stage
+ * timings of job could be written into provenance of its result. Runs of
+ * external tools are recorded as "tool.&lt;name&gt;" timers. Everything is
+ * printed in Prometheus text format by {@link #writeText(PrintWriter)}.
+ */
+public class Metrics {
+	private static final String PREFIX = "kbtrees_";
+
+	private static final Map<String, TimerStats> timers = new TreeMap<String, TimerStats>();
+	private static final Map<String, Long> counters = new TreeMap<String, Long>();
+	private static final Map<String, Gauge> gauges = new TreeMap<String, Gauge>();
+	private static final Map<String, Map<String, TimerStats>> jobTimers =
+			new LinkedHashMap<String, Map<String, TimerStats>>();
+	private static boolean toolListenerAdded = false;
+
+	/**
+	 * Registers listener of ExternalToolExecutor (only once).
+	 */
+	public static synchronized void init() {
+		if (toolListenerAdded)
+			return;
+		ExternalToolExecutor.addListener(new ExternalToolExecutor.Listener() {
+			@Override
+			public void onCompletion(ExternalCommand cmd, ExternalToolResult result) {
+				record("tool." + result.getTool(), result.getWallTimeMs());
+				increment("tool." + result.getTool() + ".cpu_ms", result.getCpuTimeMs());
+				if (result.getQueueWaitMs() > 0)
+					record("tool." + result.getTool() + ".wait", result.getQueueWaitMs());
+			}
+		});
+		toolListenerAdded = true;
+	}
+
+	public static Timer startTimer(String name) {
+		return new Timer(name);
+	}
+
+	/**
+	 * Adds measured time to global timer and to timer of current job (if any).
+	 */
+	public static void record(String name, long timeMs) {
+		String jobId = ExternalToolExecutor.getCurrentJob();
+		synchronized (Metrics.class) {
+			add(timers, name, timeMs);
+			if (jobId != null) {
+				Map<String, TimerStats> job = jobTimers.get(jobId);
+				if (job != null)
+					add(job, name, timeMs);
+			}
+		}
+	}
+
+	private static void add(Map<String, TimerStats> map, String name, long timeMs) {
+		TimerStats stats = map.get(name);
+		if (stats == null) {
+			stats = new TimerStats();
+			map.put(name, stats);
+		}
+		stats.count++;
+		stats.totalMs += timeMs;
+		stats.maxMs = Math.max(stats.maxMs, timeMs);
+	}
+
+	public static synchronized void increment(String name, long value) {
+		Long prev = counters.get(name);
+		counters.put(name, prev == null ? value : (prev + value));
+	}
+
+	public static synchronized long getCounter(String name) {
+		Long ret = counters.get(name);
+		return ret == null ? 0 : ret;
+	}
+
+	/**
+	 * Returns number of measurements and total time of timer (or null).
+	 */
+	public static synchronized long[] getTimer(String name) {
+		TimerStats stats = timers.get(name);
+		return stats == null ? null : new long[] {stats.count, stats.totalMs};
+	}
+
+	public static synchronized void registerGauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Starts collecting of timers for given job.
+	 */
+	public static synchronized void startJob(String jobId) {
+		if (jobId != null)
+			jobTimers.put(jobId, new LinkedHashMap<String, TimerStats>());
+	}
+
+	public static synchronized void finishJob(String jobId) {
+		if (jobId != null)
+			jobTimers.remove(jobId);
+	}
+
+	/**
+	 * Total times of timers of job in order of their first use, like
+	 * "genome_fetch: 1.2 s, tool.rpsblast: 30.5 s (x2)".
+	 */
+	public static synchronized String getJobSummary(String jobId) {
+		Map<String, TimerStats> job = jobId == null ? null : jobTimers.get(jobId);
+		if (job == null || job.isEmpty())
+			return null;
+		List<String> parts = new ArrayList<String>();
+		for (Map.Entry<String, TimerStats> entry : job.entrySet()) {
+			TimerStats stats = entry.getValue();
+			parts.add(entry.getKey() + ": " + formatSeconds(stats.totalMs) + " s" +
+					(stats.count > 1 ? (" (x" + stats.count + ")") : ""));
+		}
+		StringBuilder ret = new StringBuilder();
+		for (String part : parts) {
+			if (ret.length() > 0)
+				ret.append(", ");
+			ret.append(part);
+		}
+		return ret.toString();
+	}
+
+	public static void writeText(PrintWriter pw) {
+		Map<String, Gauge> gaugesCopy;
+		synchronized (Metrics.class) {
+			for (Map.Entry<String, TimerStats> entry : timers.entrySet()) {
+				String label = "{name=\"" + entry.getKey() + "\"}";
+				TimerStats stats = entry.getValue();
+				pw.println(PREFIX + "timer_count" + label + " " + stats.count);
+				pw.println(PREFIX + "timer_seconds_total" + label + " " + formatSeconds(stats.totalMs));
+				pw.println(PREFIX + "timer_seconds_max" + label + " " + formatSeconds(stats.maxMs));
+			}
+			for (Map.Entry<String, Long> entry : counters.entrySet())
+				pw.println(PREFIX + "counter{name=\"" + entry.getKey() + "\"} " + entry.getValue());
+			gaugesCopy = new TreeMap<String, Gauge>(gauges);
+		}
+		// gauges may ask other components, so they're called outside of lock
+		for (Map.Entry<String, Gauge> entry : gaugesCopy.entrySet()) {
+			double value;
+			try {
+				value = entry.getValue().getValue();
+			} catch (Exception ex) {
+				continue;
+			}
+			pw.println(PREFIX + "gauge{name=\"" + entry.getKey() + "\"} " + value);
+		}
+		pw.flush();
+	}
+
+	private static String formatSeconds(long timeMs) {
+		return String.valueOf(Math.round(timeMs / 100.0) / 10.0);
+	}
+
+	private static class TimerStats {
+		long count = 0;
+		long totalMs = 0;
+		long maxMs = 0;
+	}
+
+	public static interface Gauge {
+		public double getValue() throws Exception;
+	}
+
+	public static class Timer {
+		private final String name;
+		private final long start = System.currentTimeMillis();
+		private boolean stopped = false;
+
+		private Timer(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Records time since start (only first call matters).
+		 */
+		public long stop() {
+			long ret = System.currentTimeMillis() - start;
+			if (!stopped) {
+				stopped = true;
+				record(name, ret);
+			}
+			return ret;
+		}
+	}
+}
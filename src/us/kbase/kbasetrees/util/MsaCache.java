@@ -0,0 +1,190 @@
+package us.kbase.kbasetrees.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local disk cache of multiple alignments keyed by hash of sorted input
+ * sequences together with alignment method and sequence type (so it doesn't
+ * depend on sequence ids). Each entry keeps gzipped aligned rows in order of
+ * sorted sequences. Total size is bounded, eviction uses GreedyDual-Size policy
+ * where priority of entry is proportional to time spent on alignment divided
+ * by entry size.
+ */
+public class MsaCache extends FileCache {
+	private static final int MAGIC = 0x4d534131;  // "MSA1"
+	private static final String FILE_SUFFIX = ".msa";
+
+	private double inflation = 0;
+
+	/**
+	 * Returns shared cache for given folder (it's created and scanned on first
+	 * call). Size limit is updated on every call.
+	 */
+	public static MsaCache getInstance(File dir, long maxSize) {
+		return getInstance(dir, maxSize, MsaCache.class);
+	}
+
+	public MsaCache(File dir, long maxSize) {
+		super(dir, FILE_SUFFIX, maxSize);
+		load();
+	}
+
+	@Override
+	protected long readCost(File f) throws IOException {
+		DataInputStream is = new DataInputStream(new FileInputStream(f));
+		try {
+			if (is.readInt() != MAGIC)
+				throw new IOException("Wrong header");
+			return is.readLong();
+		} finally {
+			is.close();
+		}
+	}
+
+	@Override
+	protected double getPriority(long size, long cost) {
+		return inflation + cost / (double)size;
+	}
+
+	@Override
+	protected void onEviction(double priority) {
+		inflation = priority;
+	}
+
+	/**
+	 * Returns cached alignment (row order is a list of ids of input sequences)
+	 * or null if there is no alignment for these sequences.
+	 */
+	public CachedAlignment get(Map<String, String> seqs, String method, String seqType) {
+		final List<String> sortedIds = sortIds(seqs);
+		String key = computeKey(seqs, sortedIds, method, seqType);
+		return read(key, new EntryReader<CachedAlignment>() {
+			@Override
+			public CachedAlignment read(InputStream input, long size) throws IOException {
+				DataInputStream is = new DataInputStream(input);
+				is.readInt();
+				is.readLong();
+				is = new DataInputStream(new BufferedInputStream(new GZIPInputStream(is)));
+				int rowCount = is.readInt();
+				if (rowCount != sortedIds.size())
+					throw new IOException("Wrong number of rows");
+				int alnLen = is.readInt();
+				List<String> rowOrder = new ArrayList<String>();
+				for (int i = 0; i < rowCount; i++)
+					rowOrder.add(sortedIds.get(is.readInt()));
+				byte[] row = new byte[alnLen];
+				Map<String, String> rows = new HashMap<String, String>();
+				for (int i = 0; i < rowCount; i++) {
+					is.readFully(row);
+					rows.put(sortedIds.get(i), new String(row, "US-ASCII"));
+				}
+				Map<String, String> aln = new LinkedHashMap<String, String>();
+				for (String id : rowOrder)
+					aln.put(id, rows.get(id));
+				return new CachedAlignment(aln, rowOrder);
+			}
+		});
+	}
+
+	/**
+	 * Stores alignment of given sequences, cost is time (in ms) spent on its construction.
+	 */
+	public void put(Map<String, String> seqs, String method, String seqType,
+			final Map<String, String> aln, final List<String> rowOrder, final long cost) throws IOException {
+		final List<String> sortedIds = sortIds(seqs);
+		String key = computeKey(seqs, sortedIds, method, seqType);
+		final Map<String, Integer> idToPos = new HashMap<String, Integer>();
+		for (int i = 0; i < sortedIds.size(); i++)
+			idToPos.put(sortedIds.get(i), i);
+		final int alnLen = aln.get(sortedIds.get(0)).length();
+		write(key, cost, new EntryWriter() {
+			@Override
+			public void write(OutputStream output) throws IOException {
+				DataOutputStream os = new DataOutputStream(output);
+				os.writeInt(MAGIC);
+				os.writeLong(cost);
+				os = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(os)));
+				os.writeInt(sortedIds.size());
+				os.writeInt(alnLen);
+				for (String id : rowOrder)
+					os.writeInt(idToPos.get(id));
+				for (String id : sortedIds) {
+					byte[] row = aln.get(id).getBytes("US-ASCII");
+					if (row.length != alnLen)
+						throw new IllegalStateException("Rows of alignment have different lengths");
+					os.write(row);
+				}
+				os.close();
+			}
+		});
+	}
+
+	private static List<String> sortIds(final Map<String, String> seqs) {
+		final List<String> inputOrder = new ArrayList<String>(seqs.keySet());
+		final Map<String, Integer> idToInputPos = new HashMap<String, Integer>();
+		for (int i = 0; i < inputOrder.size(); i++)
+			idToInputPos.put(inputOrder.get(i), i);
+		List<String> ret = new ArrayList<String>(inputOrder);
+		Collections.sort(ret, new Comparator<String>() {
+			@Override
+			public int compare(String o1, String o2) {
+				int ret = seqs.get(o1).compareTo(seqs.get(o2));
+				if (ret == 0)
+					ret = idToInputPos.get(o1).compareTo(idToInputPos.get(o2));
+				return ret;
+			}
+		});
+		return ret;
+	}
+
+	private static String computeKey(Map<String, String> seqs, List<String> sortedIds,
+			String method, String seqType) {
+		try {
+			MessageDigest md = createDigest();
+			md.update((method + "\n" + seqType + "\n").getBytes("UTF-8"));
+			for (String id : sortedIds) {
+				md.update(seqs.get(id).getBytes("UTF-8"));
+				md.update((byte)'\n');
+			}
+			return toKey(md);
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	public static class CachedAlignment {
+		private final Map<String, String> alignment;
+		private final List<String> rowOrder;
+
+		public CachedAlignment(Map<String, String> alignment, List<String> rowOrder) {
+			this.alignment = alignment;
+			this.rowOrder = rowOrder;
+		}
+
+		public Map<String, String> getAlignment() {
+			return alignment;
+		}
+
+		public List<String> getRowOrder() {
+			return rowOrder;
+		}
+	}
+}
@@ -0,0 +1,476 @@
+package us.kbase.kbasetrees.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import us.kbase.common.utils.AlignmentMatrix;
+
+/**
+ * In-process neighbor-joining (NJ and BIONJ) tree construction. Corrected
+ * distances (Kimura for proteins, Jukes-Cantor for DNA) are computed in
+ * parallel over blocks of rows. Search for the pair to join follows RapidNJ:
+ * rows of distance matrix are kept sorted, so scanning of row stops as soon
+ * as lower bound of Q-criterion exceeds the best value found so far. Distances
+ * between nodes which are still not joined never change, so sorted rows stay
+ * valid; entries of joined nodes are just skipped (and removed from time to
+ * time). New node reuses slot of one of joined nodes, so memory is O(N^2)
+ * for triangular matrix of distances and sorted rows.
+ */
+public class NeighborJoining {
+	public static final double MAX_DISTANCE = 3.0;
+	private static final int BLOCK_ROWS = 16;
+	private static final int MIN_PARALLEL_SEARCH = 512;
+
+	private final int n;
+	private final List<String> ids;
+	private final float[][] dist;
+	private final float[][] var;
+	private final boolean bionj;
+	private final double[] rowSums;
+	private final long[][] sortedRows;
+	private final int[] sortedAt;
+	private final int[] createdAt;
+	private final boolean[] alive;
+	private final int[] slotNode;
+	private final int[] liveSlots;
+	private int liveCount;
+	private final int[] left;
+	private final int[] right;
+	private final double[] branchLengths;
+	private int nodeCount;
+
+	public static String buildTree(AlignmentMatrix aln, boolean protein, boolean bionj,
+			int threads) throws Exception {
+		return buildTree(aln, null, protein, bionj, threads);
+	}
+
+	/**
+	 * Builds tree for alignment where every column is counted given number of
+	 * times (bootstrap replicate without copying of alignment).
+	 */
+	public static String buildTree(AlignmentMatrix aln, int[] columnWeights, boolean protein, 
+			boolean bionj, int threads) throws Exception {
+		ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		try {
+			return buildTree(aln, columnWeights, protein, bionj, pool, threads);
+		} finally {
+			if (pool != null)
+				pool.shutdown();
+		}
+	}
+
+	/**
+	 * Builds tree splitting work into given number of parts run in external
+	 * pool (it's not shut down here, null pool means single thread).
+	 */
+	public static String buildTree(AlignmentMatrix aln, int[] columnWeights, boolean protein, 
+			boolean bionj, ExecutorService pool, int threads) throws Exception {
+		float[][] dist = getDistanceMatrix(aln, columnWeights, protein, pool, threads);
+		return new NeighborJoining(aln.getIds(), dist, bionj).join(pool, threads);
+	}
+
+	/**
+	 * Returns tree in Newick format for given lower triangular distance matrix
+	 * (row i contains distances to rows 0..i-1), matrix is modified in place.
+	 */
+	public static String buildTree(List<String> ids, float[][] dist, boolean bionj,
+			int threads) throws Exception {
+		ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		try {
+			return new NeighborJoining(ids, dist, bionj).join(pool, threads);
+		} finally {
+			if (pool != null)
+				pool.shutdown();
+		}
+	}
+
+	public static float[][] getDistanceMatrix(AlignmentMatrix aln, boolean protein,
+			int threads) throws Exception {
+		ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		try {
+			return getDistanceMatrix(aln, null, protein, pool, threads);
+		} finally {
+			if (pool != null)
+				pool.shutdown();
+		}
+	}
+
+	private static float[][] getDistanceMatrix(final AlignmentMatrix aln, final int[] columnWeights,
+			final boolean protein, ExecutorService pool, final int threads) throws Exception {
+		final float[][] ret = new float[aln.getRowCount()][];
+		runParallel(pool, threads, new ParallelPart() {
+			@Override
+			public void run(int part, int parts) {
+				// blocks of rows are interleaved between threads since row i has i cells
+				for (int start = part * BLOCK_ROWS; start < ret.length; start += parts * BLOCK_ROWS) {
+					for (int i = start; i < Math.min(ret.length, start + BLOCK_ROWS); i++) {
+						float[] row = new float[i];
+						for (int j = 0; j < i; j++)
+							row[j] = (float)correctDistance(aln.getPDistance(i, j, columnWeights), protein);
+						ret[i] = row;
+					}
+				}
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * Kimura correction of p-distance for proteins, Jukes-Cantor for DNA.
+	 */
+	public static double correctDistance(double p, boolean protein) {
+		double x = protein ? (1.0 - p - 0.2 * p * p) : (1.0 - 4.0 * p / 3.0);
+		if (x <= 0)
+			return MAX_DISTANCE;
+		return Math.min(MAX_DISTANCE, -Math.log(x));
+	}
+
+	private NeighborJoining(List<String> ids, float[][] dist, boolean bionj) {
+		this.n = ids.size();
+		this.ids = ids;
+		this.dist = dist;
+		this.bionj = bionj;
+		if (bionj) {
+			// initial variances are equal to distances
+			var = new float[n][];
+			for (int i = 0; i < n; i++)
+				var[i] = Arrays.copyOf(dist[i], i);
+		} else {
+			var = null;
+		}
+		rowSums = new double[n];
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < i; j++) {
+				rowSums[i] += dist[i][j];
+				rowSums[j] += dist[i][j];
+			}
+		sortedRows = new long[n][];
+		sortedAt = new int[n];
+		createdAt = new int[n];
+		alive = new boolean[n];
+		slotNode = new int[n];
+		liveSlots = new int[n];
+		for (int i = 0; i < n; i++) {
+			alive[i] = true;
+			slotNode[i] = i;
+			liveSlots[i] = i;
+		}
+		liveCount = n;
+		left = new int[Math.max(1, 2 * n - 1)];
+		right = new int[left.length];
+		branchLengths = new double[left.length];
+		Arrays.fill(left, -1);
+		Arrays.fill(right, -1);
+		nodeCount = n;
+	}
+
+	private String join(ExecutorService pool, int threads) throws Exception {
+		if (n == 0)
+			throw new IllegalStateException("No sequences for tree construction");
+		if (n == 1)
+			return ids.get(0) + ";";
+		runParallel(pool, threads, new ParallelPart() {
+			@Override
+			public void run(int part, int parts) {
+				for (int i = part; i < n; i += parts) {
+					long[] row = new long[i];
+					for (int j = 0; j < i; j++)
+						row[j] = entry(dist[i][j], j);
+					Arrays.sort(row);
+					sortedRows[i] = row;
+				}
+			}
+		});
+		int lastCompaction = n;
+		for (int step = 1; liveCount > 3; step++) {
+			if (liveCount < lastCompaction / 2) {
+				compactRows(pool, threads);
+				lastCompaction = liveCount;
+			}
+			long[] pair = findPair(pool, threads);
+			merge((int)pair[0], (int)pair[1], step);
+		}
+		StringBuilder ret = new StringBuilder("(");
+		if (liveCount == 2) {
+			int a = liveSlots[0];
+			int b = liveSlots[1];
+			double d = getDist(a, b);
+			writeNode(ret, slotNode[a], d / 2);
+			ret.append(',');
+			writeNode(ret, slotNode[b], d / 2);
+		} else {
+			int a = liveSlots[0];
+			int b = liveSlots[1];
+			int c = liveSlots[2];
+			double ab = getDist(a, b);
+			double ac = getDist(a, c);
+			double bc = getDist(b, c);
+			writeNode(ret, slotNode[a], Math.max(0, (ab + ac - bc) / 2));
+			ret.append(',');
+			writeNode(ret, slotNode[b], Math.max(0, (ab + bc - ac) / 2));
+			ret.append(',');
+			writeNode(ret, slotNode[c], Math.max(0, (ac + bc - ab) / 2));
+		}
+		return ret.append(");").toString();
+	}
+
+	private long[] findPair(ExecutorService pool, int threads) throws Exception {
+		final double denom = liveCount - 2;
+		double maxU = Double.NEGATIVE_INFINITY;
+		for (int pos = 0; pos < liveCount; pos++)
+			maxU = Math.max(maxU, rowSums[liveSlots[pos]] / denom);
+		final double uMax = maxU;
+		if (pool == null || liveCount < MIN_PARALLEL_SEARCH)
+			return search(0, 1, denom, uMax);
+		List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+		for (int part = 0; part < threads; part++) {
+			final int partF = part;
+			final int parts = threads;
+			results.add(pool.submit(new Callable<long[]>() {
+				@Override
+				public long[] call() {
+					return search(partF, parts, denom, uMax);
+				}
+			}));
+		}
+		long[] best = null;
+		for (Future<long[]> result : results) {
+			long[] candidate = result.get();
+			if (candidate != null && (best == null || isBetter(candidate, best)))
+				best = candidate;
+		}
+		return best;
+	}
+
+	/**
+	 * Returns {slot1, slot2, Q-value bits} of best pair found in given part of rows.
+	 */
+	private long[] search(int part, int parts, double denom, double uMax) {
+		double bestQ = Double.POSITIVE_INFINITY;
+		long[] best = null;
+		for (int pos = part; pos < liveCount; pos += parts) {
+			int i = liveSlots[pos];
+			double ui = rowSums[i] / denom;
+			long[] row = sortedRows[i];
+			int rowTime = sortedAt[i];
+			for (long item : row) {
+				int j = (int)item;
+				if (!alive[j] || createdAt[j] > rowTime)
+					continue;
+				double d = Float.intBitsToFloat((int)(item >>> 32));
+				if (d - ui - uMax > bestQ)
+					break;
+				double q = d - ui - rowSums[j] / denom;
+				if (best == null || q < bestQ) {
+					bestQ = q;
+					best = new long[] {i, j, Double.doubleToLongBits(q)};
+				} else if (q == bestQ) {
+					long[] candidate = new long[] {i, j, Double.doubleToLongBits(q)};
+					if (isBetter(candidate, best))
+						best = candidate;
+				}
+			}
+		}
+		return best;
+	}
+
+	private static boolean isBetter(long[] pair1, long[] pair2) {
+		double q1 = Double.longBitsToDouble(pair1[2]);
+		double q2 = Double.longBitsToDouble(pair2[2]);
+		if (q1 != q2)
+			return q1 < q2;
+		// ties are resolved by slot numbers so that result doesn't depend on threads
+		long min1 = Math.min(pair1[0], pair1[1]);
+		long min2 = Math.min(pair2[0], pair2[1]);
+		if (min1 != min2)
+			return min1 < min2;
+		return Math.max(pair1[0], pair1[1]) < Math.max(pair2[0], pair2[1]);
+	}
+
+	private void merge(int i, int j, int step) {
+		int m = liveCount;
+		double dij = getDist(i, j);
+		double bi = dij / 2 + (rowSums[i] - rowSums[j]) / (2 * (m - 2));
+		if (bi < 0) {
+			bi = 0;
+		} else if (bi > dij) {
+			bi = dij;
+		}
+		double bj = dij - bi;
+		double lambda = 0.5;
+		if (bionj) {
+			double vij = getVar(i, j);
+			if (vij > 0) {
+				double sum = 0;
+				for (int pos = 0; pos < m; pos++) {
+					int k = liveSlots[pos];
+					if (k != i && k != j)
+						sum += getVar(j, k) - getVar(i, k);
+				}
+				lambda = Math.max(0, Math.min(1, 0.5 + sum / (2 * (m - 2) * vij)));
+			}
+		}
+		int node = nodeCount++;
+		left[node] = slotNode[i];
+		right[node] = slotNode[j];
+		branchLengths[slotNode[i]] = bi;
+		branchLengths[slotNode[j]] = bj;
+		// new node takes the lower slot, the other one is released
+		int slot = Math.min(i, j);
+		int freed = Math.max(i, j);
+		alive[freed] = false;
+		sortedRows[freed] = null;
+		for (int pos = 0; pos < m; pos++)
+			if (liveSlots[pos] == freed) {
+				liveSlots[pos] = liveSlots[--liveCount];
+				break;
+			}
+		double vij = bionj ? getVar(i, j) : 0;
+		long[] row = new long[liveCount - 1];
+		int rowLen = 0;
+		double sum = 0;
+		for (int pos = 0; pos < liveCount; pos++) {
+			int k = liveSlots[pos];
+			if (k == slot)
+				continue;
+			double dik = getDist(i, k);
+			double djk = getDist(j, k);
+			double d = Math.max(0, lambda * (dik - bi) + (1 - lambda) * (djk - bj));
+			if (bionj)
+				setVar(slot, k, Math.max(0, lambda * getVar(i, k) + (1 - lambda) * getVar(j, k) -
+						lambda * (1 - lambda) * vij));
+			rowSums[k] += d - dik - djk;
+			sum += d;
+			setDist(slot, k, d);
+			row[rowLen++] = entry((float)d, k);
+		}
+		Arrays.sort(row);
+		rowSums[slot] = sum;
+		sortedRows[slot] = row;
+		sortedAt[slot] = step;
+		createdAt[slot] = step;
+		slotNode[slot] = node;
+	}
+
+	private void compactRows(ExecutorService pool, int threads) throws Exception {
+		runParallel(pool, threads, new ParallelPart() {
+			@Override
+			public void run(int part, int parts) {
+				for (int pos = part; pos < liveCount; pos += parts) {
+					int i = liveSlots[pos];
+					long[] row = sortedRows[i];
+					int len = 0;
+					for (long item : row) {
+						int j = (int)item;
+						if (alive[j] && createdAt[j] <= sortedAt[i])
+							row[len++] = item;
+					}
+					sortedRows[i] = Arrays.copyOf(row, len);
+				}
+			}
+		});
+	}
+
+	private static long entry(float d, int slot) {
+		// bits of non-negative floats are ordered the same way as their values
+		return ((long)Float.floatToIntBits(d) << 32) | slot;
+	}
+
+	private double getDist(int i, int j) {
+		return i > j ? dist[i][j] : dist[j][i];
+	}
+
+	private void setDist(int i, int j, double value) {
+		if (i > j) {
+			dist[i][j] = (float)value;
+		} else {
+			dist[j][i] = (float)value;
+		}
+	}
+
+	private double getVar(int i, int j) {
+		return i > j ? var[i][j] : var[j][i];
+	}
+
+	private void setVar(int i, int j, double value) {
+		if (i > j) {
+			var[i][j] = (float)value;
+		} else {
+			var[j][i] = (float)value;
+		}
+	}
+
+	private void writeNode(StringBuilder ret, int root, double rootLength) {
+		// iterative traversal, caterpillar-like trees are too deep for recursion
+		int[] stack = new int[nodeCount];
+		int[] state = new int[nodeCount];
+		int top = 0;
+		stack[0] = root;
+		state[0] = 0;
+		while (top >= 0) {
+			int node = stack[top];
+			if (left[node] < 0) {
+				ret.append(ids.get(node));
+				top--;
+			} else if (state[top] == 0) {
+				ret.append('(');
+				state[top] = 1;
+				stack[++top] = left[node];
+				state[top] = 0;
+				continue;
+			} else if (state[top] == 1) {
+				ret.append(',');
+				state[top] = 2;
+				stack[++top] = right[node];
+				state[top] = 0;
+				continue;
+			} else {
+				ret.append(')');
+				top--;
+			}
+			ret.append(':');
+			appendLength(ret, top < 0 ? rootLength : branchLengths[node]);
+		}
+	}
+
+	private static void appendLength(StringBuilder ret, double value) {
+		long scaled = Math.round(value * 1e6);
+		ret.append(scaled / 1000000).append('.');
+		String frac = String.valueOf(1000000 + scaled % 1000000).substring(1);
+		int end = frac.length();
+		while (end > 1 && frac.charAt(end - 1) == '0')
+			end--;
+		ret.append(frac, 0, end);
+	}
+
+	private static void runParallel(ExecutorService pool, int threads,
+			final ParallelPart task) throws Exception {
+		if (pool == null || threads <= 1) {
+			task.run(0, 1);
+			return;
+		}
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		for (int part = 0; part < threads; part++) {
+			final int partF = part;
+			final int parts = threads;
+			results.add(pool.submit(new Callable<Object>() {
+				@Override
+				public Object call() {
+					task.run(partF, parts);
+					return null;
+				}
+			}));
+		}
+		for (Future<Object> result : results)
+			result.get();
+	}
+
+	private interface ParallelPart {
+		public void run(int part, int parts);
+	}
+}
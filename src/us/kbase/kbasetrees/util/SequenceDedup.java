@@ -0,0 +1,197 @@
+package us.kbase.kbasetrees.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import us.kbase.common.utils.AlignmentMatrix;
+
+/**
+ * Collapses identical sequences (and optionally sequences which are contained
+ * in longer ones) to one representative (the first/longest one) so that
+ * expensive programs work with reduced set of rows. Alignment of representatives
+ * is expanded back to all input sequences by {@link #expandAlignment(Map, List)}.
+ * Identical rows of AlignmentMatrix are collapsed by comparing their bytes.
+ */
+public class SequenceDedup {
+	private final Map<String, String> seqs;
+	private final Map<String, String> representatives = new LinkedHashMap<String, String>();
+	private final Map<String, List<String>> members = new LinkedHashMap<String, List<String>>();
+	private final Map<String, String> idToRep = new HashMap<String, String>();
+	private final List<String> repRows = new ArrayList<String>();
+
+	public SequenceDedup(Map<String, String> seqs, boolean collapseContained) {
+		this.seqs = seqs;
+		Map<String, String> seqToRep = new HashMap<String, String>();
+		for (Map.Entry<String, String> entry : seqs.entrySet()) {
+			String rep = seqToRep.get(entry.getValue());
+			if (rep == null) {
+				seqToRep.put(entry.getValue(), entry.getKey());
+				representatives.put(entry.getKey(), entry.getValue());
+			} else {
+				addMember(rep, entry.getKey());
+			}
+		}
+		if (collapseContained)
+			collapseContained();
+	}
+
+	/**
+	 * Collapses identical rows of alignment (rows aren't converted into
+	 * strings, see getRepresentativeIds).
+	 */
+	public SequenceDedup(AlignmentMatrix aln) {
+		this.seqs = null;
+		Map<Integer, List<Integer>> hashToReps = new HashMap<Integer, List<Integer>>();
+		for (int row = 0; row < aln.getRowCount(); row++) {
+			int hash = aln.getRowHash(row);
+			List<Integer> reps = hashToReps.get(hash);
+			if (reps == null) {
+				reps = new ArrayList<Integer>(1);
+				hashToReps.put(hash, reps);
+			}
+			Integer rep = null;
+			for (int repRow : reps) {
+				if (aln.compareRows(repRow, row) == 0) {
+					rep = repRow;
+					break;
+				}
+			}
+			if (rep == null) {
+				reps.add(row);
+				repRows.add(aln.getIds().get(row));
+			} else {
+				addMember(aln.getIds().get(rep), aln.getIds().get(row));
+			}
+		}
+	}
+
+	private void addMember(String rep, String id) {
+		List<String> list = members.get(rep);
+		if (list == null) {
+			list = new ArrayList<String>();
+			members.put(rep, list);
+		}
+		list.add(id);
+		idToRep.put(id, rep);
+	}
+
+	private void collapseContained() {
+		List<String> byLength = new ArrayList<String>(representatives.keySet());
+		Collections.sort(byLength, new Comparator<String>() {
+			@Override
+			public int compare(String o1, String o2) {
+				return representatives.get(o2).length() - representatives.get(o1).length();
+			}
+		});
+		List<String> kept = new ArrayList<String>();
+		for (String id : byLength) {
+			String seq = representatives.get(id);
+			String container = null;
+			for (String longer : kept) {
+				String longerSeq = representatives.get(longer);
+				if (longerSeq.length() > seq.length() && longerSeq.indexOf(seq) >= 0) {
+					container = longer;
+					break;
+				}
+			}
+			if (container == null) {
+				kept.add(id);
+				continue;
+			}
+			addMember(container, id);
+			List<String> ownMembers = members.remove(id);
+			if (ownMembers != null)
+				for (String member : ownMembers)
+					addMember(container, member);
+		}
+		for (String id : idToRep.keySet())
+			representatives.remove(id);
+	}
+
+	/**
+	 * Representative sequences in order of input (empty for rows of AlignmentMatrix).
+	 */
+	public Map<String, String> getRepresentatives() {
+		return representatives;
+	}
+
+	/**
+	 * Ids of representatives in order of input.
+	 */
+	public List<String> getRepresentativeIds() {
+		return seqs == null ? repRows : new ArrayList<String>(representatives.keySet());
+	}
+
+	/**
+	 * Ids of sequences collapsed into given representative.
+	 */
+	public List<String> getMembers(String rep) {
+		List<String> ret = members.get(rep);
+		return ret == null ? Collections.<String>emptyList() : ret;
+	}
+
+	public Map<String, List<String>> getMemberMap() {
+		return members;
+	}
+
+	public int getCollapsedCount() {
+		return idToRep.size();
+	}
+
+	/**
+	 * Adds rows for collapsed sequences into alignment of representatives. If
+	 * representatives come in input order then input order is used for all rows,
+	 * otherwise collapsed rows follow their representative. Sequence contained
+	 * in representative gets its row with gaps in place of missing residues.
+	 * Returned map is ordered by rows.
+	 */
+	public Map<String, String> expandAlignment(Map<String, String> repAln, List<String> repRowOrder) {
+		if (seqs == null)
+			throw new IllegalStateException("Rows of alignment can't be expanded");
+		List<String> rowOrder = new ArrayList<String>();
+		if (repRowOrder.equals(new ArrayList<String>(representatives.keySet()))) {
+			rowOrder.addAll(seqs.keySet());
+		} else {
+			for (String rep : repRowOrder) {
+				rowOrder.add(rep);
+				rowOrder.addAll(getMembers(rep));
+			}
+		}
+		Map<String, String> ret = new LinkedHashMap<String, String>();
+		for (String id : rowOrder) {
+			String rep = idToRep.get(id);
+			if (rep == null) {
+				ret.put(id, repAln.get(id));
+			} else {
+				String seq = seqs.get(id);
+				String repSeq = seqs.get(rep);
+				String aligned = repAln.get(rep);
+				if (seq.length() == repSeq.length()) {
+					ret.put(id, aligned);
+				} else {
+					ret.put(id, projectSubsequence(aligned, repSeq.indexOf(seq), seq.length()));
+				}
+			}
+		}
+		return ret;
+	}
+
+	private static String projectSubsequence(String aligned, int start, int len) {
+		char[] ret = aligned.toCharArray();
+		int pos = 0;
+		for (int i = 0; i < ret.length; i++) {
+			char c = ret[i];
+			if (c == '-' || c == '.')
+				continue;
+			if (pos < start || pos >= start + len)
+				ret[i] = '-';
+			pos++;
+		}
+		return new String(ret);
+	}
+}
@@ -0,0 +1,169 @@
+package us.kbase.kbasetrees.util;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import us.kbase.kbasetrees.cpputil.KBTreeUtil;
+
+/**
+ * Translation of coding DNA into protein sequences. Semantics are the same as
+ * in native KBTreeUtil.translateToProt (stop codons are dropped, codons with
+ * unknown nucleotides give '?') but lower case nucleotides are accepted too.
+ * Batch methods use native library when it's loaded and java lookup table otherwise.
+ */
+public class TranslationUtil {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final int MIN_CHUNK_SIZE = 256;
+	private static final byte STOP = 0;
+	private static final byte[] NUC_INDEX = new byte[256];
+	private static final byte[] CODE = new byte[125];
+	private static Boolean nativeLoaded = null;
+
+	static {
+		for (int i = 0; i < NUC_INDEX.length; i++)
+			NUC_INDEX[i] = 4;
+		String nucs = "AGCT";
+		for (int i = 0; i < nucs.length(); i++) {
+			NUC_INDEX[nucs.charAt(i)] = (byte)i;
+			NUC_INDEX[Character.toLowerCase(nucs.charAt(i))] = (byte)i;
+		}
+		for (int i = 0; i < CODE.length; i++)
+			CODE[i] = '?';
+		// Order of codons is AAA, AAG, AAC, AAT, AGA, ... (like AGCT indexes above)
+		String aminoAcids =
+				"KKNN" + "RRSS" + "TTTT" + "IMII" +
+				"EEDD" + "GGGG" + "AAAA" + "VVVV" +
+				"QQHH" + "RRRR" + "PPPP" + "LLLL" +
+				"**YY" + "*WCC" + "SSSS" + "LLFF";
+		for (int i = 0; i < 4; i++)
+			for (int j = 0; j < 4; j++)
+				for (int k = 0; k < 4; k++) {
+					char aa = aminoAcids.charAt(i * 16 + j * 4 + k);
+					CODE[i * 25 + j * 5 + k] = aa == '*' ? STOP : (byte)aa;
+				}
+	}
+
+	/**
+	 * True if native library is loaded and has batch translation (library
+	 * built before it was added is loaded fine but lacks the symbol).
+	 */
+	public static synchronized boolean isNativeLibraryLoaded() {
+		if (nativeLoaded == null) {
+			try {
+				System.loadLibrary("KBTreeUtil");
+				nativeLoaded = true;
+			} catch (Throwable ex) {
+				nativeLoaded = false;
+			}
+			if (nativeLoaded) {
+				try {
+					KBTreeUtil.translateToProtBatch(new String[0]);
+				} catch (UnsatisfiedLinkError ex) {
+					System.err.println("[trees] TranslationUtil: native library has no batch " +
+							"translation (" + ex.getMessage() + "), java implementation is used");
+					nativeLoaded = false;
+				}
+			}
+		}
+		return nativeLoaded;
+	}
+
+	/**
+	 * Translates part of DNA sequence given as ASCII bytes.
+	 */
+	public static byte[] translate(byte[] dna, int offset, int length) {
+		byte[] ret = new byte[length / 3];
+		int pos = 0;
+		int end = offset + length;
+		for (int i = offset; i + 2 < end; i += 3) {
+			byte aa = CODE[NUC_INDEX[dna[i] & 0xff] * 25 + NUC_INDEX[dna[i + 1] & 0xff] * 5 +
+			               NUC_INDEX[dna[i + 2] & 0xff]];
+			if (aa != STOP)
+				ret[pos++] = aa;
+		}
+		if (pos == ret.length)
+			return ret;
+		byte[] trimmed = new byte[pos];
+		System.arraycopy(ret, 0, trimmed, 0, pos);
+		return trimmed;
+	}
+
+	public static String translate(String dna) {
+		byte[] dnaBytes = dna.getBytes(ASCII);
+		return new String(translate(dnaBytes, 0, dnaBytes.length), ASCII);
+	}
+
+	/**
+	 * Translates array of DNA sequences splitting it into chunks processed
+	 * in parallel. Null elements are translated into nulls.
+	 */
+	public static String[] translateAll(String[] dnaSeqs, int threadCount) throws Exception {
+		ExecutorService pool = threadCount > 1 ? Executors.newFixedThreadPool(threadCount) : null;
+		try {
+			return translateAll(dnaSeqs, pool, threadCount);
+		} finally {
+			if (pool != null)
+				pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Translates sequences in given number of chunks run in external pool
+	 * (it's not shut down here, null pool means calling thread).
+	 */
+	public static String[] translateAll(final String[] dnaSeqs, ExecutorService pool,
+			int threadCount) throws Exception {
+		final String[] ret = new String[dnaSeqs.length];
+		final boolean useNative = isNativeLibraryLoaded();
+		int chunkSize = Math.max(MIN_CHUNK_SIZE, (dnaSeqs.length + threadCount - 1) / Math.max(1, threadCount));
+		if (pool == null || threadCount <= 1 || dnaSeqs.length <= chunkSize) {
+			translateChunk(dnaSeqs, 0, dnaSeqs.length, ret, useNative);
+			return ret;
+		}
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		try {
+			for (int start = 0; start < dnaSeqs.length; start += chunkSize) {
+				final int chunkStart = start;
+				final int chunkEnd = Math.min(dnaSeqs.length, start + chunkSize);
+				results.add(pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						translateChunk(dnaSeqs, chunkStart, chunkEnd, ret, useNative);
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> res : results)
+				res.get();
+		} finally {
+			for (Future<Object> res : results)
+				res.cancel(true);
+		}
+		return ret;
+	}
+
+	private static void translateChunk(String[] dnaSeqs, int start, int end, String[] ret,
+			boolean useNative) {
+		if (useNative) {
+			List<Integer> positions = new ArrayList<Integer>();
+			for (int i = start; i < end; i++)
+				if (dnaSeqs[i] != null)
+					positions.add(i);
+			String[] chunk = new String[positions.size()];
+			for (int i = 0; i < chunk.length; i++)
+				chunk[i] = dnaSeqs[positions.get(i)];
+			String[] prots = KBTreeUtil.translateToProtBatch(chunk);
+			for (int i = 0; i < prots.length; i++)
+				ret[positions.get(i)] = prots[i];
+		} else {
+			for (int i = start; i < end; i++)
+				if (dnaSeqs[i] != null)
+					ret[i] = translate(dnaSeqs[i]);
+		}
+	}
+}
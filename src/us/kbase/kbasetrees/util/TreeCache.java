@@ -0,0 +1,151 @@
+package us.kbase.kbasetrees.util;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import us.kbase.common.utils.AlignmentMatrix;
+
+/**
+ * Local disk cache of trees (Newick) keyed by hash of alignment together with
+ * options of tree construction. Rows are sorted by content before hashing and
+ * leaves of stored tree are named by positions of rows in this order, so the
+ * same alignment with other row order or other row ids hits the same entry.
+ * Total size is bounded, least recently used entries are evicted (time of
+ * last access is kept as modification time of file, so order survives
+ * restarts).
+ */
+public class TreeCache extends FileCache {
+	private static final String FILE_SUFFIX = ".nwk";
+	private static final String CHARSET = "UTF-8";
+
+	private long accessCount = 0;
+
+	/**
+	 * Returns shared cache for given folder (it's created and scanned on first
+	 * call). Size limit is updated on every call.
+	 */
+	public static TreeCache getInstance(File dir, long maxSize) {
+		return getInstance(dir, maxSize, TreeCache.class);
+	}
+
+	public TreeCache(File dir, long maxSize) {
+		super(dir, FILE_SUFFIX, maxSize);
+		load();
+	}
+
+	@Override
+	protected double getPriority(long size, long cost) {
+		return ++accessCount;
+	}
+
+	/**
+	 * Returns cached tree (with leaves named by ids of alignment) or null.
+	 */
+	public String get(final AlignmentMatrix aln, List<String> options) {
+		final int[] order = sortRows(aln);
+		String key = computeKey(aln, order, options);
+		return read(key, new EntryReader<String>() {
+			@Override
+			public String read(InputStream is, long size) throws IOException {
+				byte[] data = new byte[(int)size];
+				new DataInputStream(is).readFully(data);
+				Map<String, String> names = new HashMap<String, String>();
+				for (int i = 0; i < order.length; i++)
+					names.put("r" + i, aln.getIds().get(order[i]));
+				return renameLeaves(new String(data, CHARSET), names);
+			}
+		});
+	}
+
+	public void put(AlignmentMatrix aln, List<String> options, String tree) throws IOException {
+		int[] order = sortRows(aln);
+		String key = computeKey(aln, order, options);
+		Map<String, String> names = new HashMap<String, String>();
+		for (int i = 0; i < order.length; i++)
+			names.put(aln.getIds().get(order[i]), "r" + i);
+		final byte[] data = renameLeaves(tree, names).getBytes(CHARSET);
+		write(key, data.length, new EntryWriter() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				os.write(data);
+			}
+		});
+	}
+
+	/**
+	 * Row indexes in order of row content (ties are resolved by ids).
+	 */
+	private static int[] sortRows(final AlignmentMatrix aln) {
+		Integer[] order = new Integer[aln.getRowCount()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				int ret = aln.compareRows(o1, o2);
+				return ret != 0 ? ret : aln.getIds().get(o1).compareTo(aln.getIds().get(o2));
+			}
+		});
+		int[] ret = new int[order.length];
+		for (int i = 0; i < order.length; i++)
+			ret[i] = order[i];
+		return ret;
+	}
+
+	private static String computeKey(AlignmentMatrix aln, int[] order, List<String> options) {
+		try {
+			MessageDigest md = createDigest();
+			for (String option : options)
+				md.update((option + "\n").getBytes(CHARSET));
+			md.update((aln.getRowCount() + "x" + aln.getWidth() + "\n").getBytes(CHARSET));
+			for (int row : order)
+				aln.updateDigest(row, md);
+			return toKey(md);
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Renames leaves of Newick tree (labels of internal nodes are kept).
+	 */
+	static String renameLeaves(String newick, Map<String, String> names) {
+		StringBuilder ret = new StringBuilder(newick.length());
+		int pos = 0;
+		boolean leafPossible = true;
+		while (pos < newick.length()) {
+			char c = newick.charAt(pos);
+			if (c == '(' || c == ',') {
+				ret.append(c);
+				pos++;
+				leafPossible = true;
+			} else if (leafPossible && ":,();[".indexOf(c) < 0 && !Character.isWhitespace(c)) {
+				int end = pos;
+				while (end < newick.length() && ":,();[".indexOf(newick.charAt(end)) < 0)
+					end++;
+				String name = newick.substring(pos, end).trim();
+				String newName = names.get(name);
+				if (newName == null)
+					throw new IllegalStateException("Unexpected leaf in tree: " + name);
+				ret.append(newName);
+				pos = end;
+				leafPossible = false;
+			} else {
+				ret.append(c);
+				pos++;
+				if (!Character.isWhitespace(c))
+					leafPossible = false;
+			}
+		}
+		return ret.toString();
+	}
+}
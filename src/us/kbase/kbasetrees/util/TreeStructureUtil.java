@@ -2,6 +2,7 @@ package us.kbase.kbasetrees.util;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.forester.io.parsers.nhx.NHXFormatException;
@@ -101,6 +102,44 @@ public class TreeStructureUtil {
 		}
 	}
 	
+	/**
+	 * Replaces leaves which have duplicates with subtrees of zero length cherries
+	 * ((leaf:0,dup1:0):0,dup2:0) so that every duplicate gets its own leaf.
+	 */
+	public static String expandDuplicateLeaves(String treeText, Map<String, List<String>> leafToDuplicates) 
+			throws IOException {
+		NHXParser parser = new NHXParser();
+		parser.setSource(treeText);
+		Phylogeny [] trees = parser.parse();
+		StringBuilder changedTrees = new StringBuilder();
+		for(Phylogeny tree : trees) {
+			for (PhylogenyNode leaf : tree.getExternalNodes()) {
+				List<String> dups = leafToDuplicates.get(leaf.getName());
+				if (dups == null || dups.isEmpty())
+					continue;
+				PhylogenyNode subtree = new PhylogenyNode();
+				subtree.setName(leaf.getName());
+				for (String dup : dups) {
+					PhylogenyNode cherry = new PhylogenyNode();
+					subtree.setDistanceToParent(0);
+					cherry.addAsChild(subtree);
+					PhylogenyNode dupLeaf = new PhylogenyNode();
+					dupLeaf.setName(dup);
+					dupLeaf.setDistanceToParent(0);
+					cherry.addAsChild(dupLeaf);
+					subtree = cherry;
+				}
+				leaf.setName("");
+				for (int i = 0; i < subtree.getNumberOfDescendants(); i++)
+					leaf.addAsChild(subtree.getChildNode(i));
+			}
+			tree.externalNodesHaveChanged();
+			tree.clearHashIdToNodeMap();
+			changedTrees.append(tree.toNewHampshire());
+		}
+		return changedTrees.toString();
+	}
+	
 	public static String rerootTreeToMidpoint(String treeText) throws IOException {
         NHXParser parser = new NHXParser();
         parser.setSource(treeText);